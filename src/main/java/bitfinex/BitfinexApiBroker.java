@@ -18,11 +18,11 @@
 package bitfinex;
 
 import bitfinex.callback.channel.ChannelCallbackHandler;
-import bitfinex.callback.channel.ExecutedTradeHandler;
-import bitfinex.callback.channel.OrderbookHandler;
-import bitfinex.callback.channel.RawOrderbookHandler;
+import bitfinex.callback.channel.DecodedFrame;
 import bitfinex.callback.command.CommandCallbackHandler;
+import bitfinex.callback.command.ConfCallback;
 import bitfinex.callback.command.DoNothingCommandCallback;
+import bitfinex.callback.command.ErrorCallback;
 import bitfinex.callback.command.SubscribedCallback;
 import bitfinex.callback.command.UnsubscribedCallback;
 import bitfinex.commands.*;
@@ -35,24 +35,23 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import velox.api.layer1.common.Log;
 
-import javax.websocket.DeploymentException;
 import java.io.Closeable;
-import java.io.IOException;
-import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.function.Consumer;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class BitfinexApiBroker implements Closeable {
 
     public final static String BITFINEX_URI = "wss://api.bitfinex.com/ws/2";
 
-    private final Consumer<String> apiCallback = ((message) -> websocketCallback(message));
-
-    private WebsocketClientEndpoint websocketEndpoint;
-
-    private final Map<Integer, BitfinexStreamSymbol> channelIdSymbolMap;
+    private final ChannelRoutingTable channelRoutingTable;
 
     private final OrderbookManager orderbookManager;
 
@@ -62,10 +61,66 @@ public class BitfinexApiBroker implements Closeable {
 
     private Map<String, CommandCallbackHandler> commandCallbacks;
 
-    private AtomicLong lastMessageTime = new AtomicLong();
+    private final Set<ConfFlag> confFlags = EnumSet.noneOf(ConfFlag.class);
+
+    private volatile boolean flyweightEvents;
+
+    private int pipelineShards;
+
+    private int pipelineRingSize;
+
+    private WaitStrategy pipelineWaitStrategy;
+
+    private volatile ChannelPipeline pipeline;
+
+    private final SubscriptionRegistry subscriptions = new SubscriptionRegistry(this::sendSubscribeCommand);
+
+    /**
+     * Dispatched like a heartbeat to make a book handler seed the users that joined its channel
+     */
+    private final static JsonArray SEED_REQUEST = new JsonParser().parse("[0,\"hb\"]").getAsJsonArray();
+
+    private int connectionCount = 1;
+
+    /**
+     * Connections the pool may grow to, 0 if it keeps the initial count
+     */
+    private int maxConnectionCount;
+
+    private int maxChannelsPerConnection = ConnectionBalancer.DEFAULT_MAX_CHANNELS_PER_CONNECTION;
+
+    private long rebalanceIntervalMillis = ConnectionBalancer.DEFAULT_REBALANCE_INTERVAL_MILLIS;
+
+    private volatile BitfinexConnection[] connections = new BitfinexConnection[0];
+
+    /**
+     * Guards the growth of the connections, separate from the broker so the balancer can open one while placing a channel
+     */
+    private final Object connectionsLock = new Object();
+
+    private volatile ConnectionBalancer connectionBalancer;
+
+    /**
+     * Users of each channel, the channel is unsubscribed when the last one releases it
+     */
+    private final Map<BitfinexStreamSymbol, Integer> subscriberCounts = new HashMap<>();
+
+    /**
+     * Set by {@link #close()}, failed subscriptions are no longer repeated
+     */
+    private volatile boolean closed;
+
+    private volatile String[] websocketUris = {BITFINEX_URI};
+
+    private final Set<BitfinexCurrencyPair> dualFeedPairs = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Arbiters of the dual fed streams by their primary symbol
+     */
+    private final Map<BitfinexStreamSymbol, FeedArbiter> arbiters = new ConcurrentHashMap<>();
 
     public BitfinexApiBroker() {
-        this.channelIdSymbolMap = new HashMap<>();
+        this.channelRoutingTable = new ChannelRoutingTable();
         this.orderbookManager = new OrderbookManager(this);
         this.rawOrderbookManager = new RawOrderbookManager(this);
         this.executedTradesManager = new ExecutedTradesManager(this);
@@ -78,59 +133,282 @@ public class BitfinexApiBroker implements Closeable {
         commandCallbacks.put("info", new DoNothingCommandCallback());
         commandCallbacks.put("subscribed", new SubscribedCallback());
         commandCallbacks.put("unsubscribed", new UnsubscribedCallback());
+        commandCallbacks.put("conf", new ConfCallback());
+        commandCallbacks.put("error", new ErrorCallback());
     }
 
     public void connect() throws APIException {
+        closed = false;
+
+        final BitfinexConnection[] newConnections = new BitfinexConnection[connectionCount];
+
+        for (int i = 0; i < newConnections.length; i++) {
+            newConnections[i] = new BitfinexConnection(this, i);
+        }
+
+        connectionBalancer = new ConnectionBalancer(this, connectionCount, getMaxConnectionCount(),
+                maxChannelsPerConnection);
+        connections = newConnections;
+
+        if (pipelineWaitStrategy != null && pipeline == null) {
+            pipeline = new ChannelPipeline(pipelineShards, pipelineRingSize, pipelineWaitStrategy,
+                    getMaxConnectionCount() > 1, this::handleQueuedFrame);
+        }
+
         try {
-            final URI bitfinexURI = new URI(BITFINEX_URI);
-            websocketEndpoint = new WebsocketClientEndpoint(bitfinexURI);
-            websocketEndpoint.addConsumer(apiCallback);
-            websocketEndpoint.connect();
+            if (pipeline != null) {
+                pipeline.start();
+            }
+
+            for (final BitfinexConnection connection : newConnections) {
+                connection.connect();
+            }
         } catch (Exception e) {
             throw new APIException(e);
         }
+
+        connectionBalancer.start(rebalanceIntervalMillis);
+    }
+
+    /**
+     * Spread the channels over several websockets, must be called before {@link #connect()}.
+     * Bitfinex limits the channels of a connection and every connection has its own
+     * receive thread. All channels of an instrument are placed on the same connection.
+     *
+     * @param connectionCount          number of websockets
+     * @param maxChannelsPerConnection channels the server accepts on one connection
+     * @param rebalanceIntervalMillis  how often message rates are measured to rebalance the connections
+     */
+    public void setConnectionCount(final int connectionCount, final int maxChannelsPerConnection,
+                                   final long rebalanceIntervalMillis) {
+        if (connectionCount <= 0) {
+            throw new IllegalArgumentException("At least one connection is needed: " + connectionCount);
+        }
+        this.connectionCount = connectionCount;
+        this.maxChannelsPerConnection = maxChannelsPerConnection;
+        this.rebalanceIntervalMillis = rebalanceIntervalMillis;
+    }
+
+    public void setConnectionCount(final int connectionCount) {
+        setConnectionCount(connectionCount, maxChannelsPerConnection, rebalanceIntervalMillis);
+    }
+
+    /**
+     * Let the pool open further connections, up to the count, once the open ones carry
+     * as many channels as the server accepts. Must be called before {@link #connect()}.
+     *
+     * @param maxConnectionCount
+     */
+    public void setMaxConnectionCount(final int maxConnectionCount) {
+        if (maxConnectionCount <= 0) {
+            throw new IllegalArgumentException("At least one connection is needed: " + maxConnectionCount);
+        }
+        this.maxConnectionCount = maxConnectionCount;
+    }
+
+    public int getMaxConnectionCount() {
+        return Math.max(connectionCount, maxConnectionCount);
+    }
+
+    /**
+     * Open one more connection, called by the balancer when the open ones are full
+     *
+     * @return the index of the new connection, or -1 if it could not be opened
+     */
+    int addConnection() {
+        synchronized (connectionsLock) {
+            final BitfinexConnection[] current = connections;
+            final BitfinexConnection connection = new BitfinexConnection(this, current.length);
+
+            try {
+                connection.connect();
+            } catch (Exception e) {
+                Log.error("Websocket connection " + current.length + " failed", e);
+                connection.close();
+                return -1;
+            }
+
+            final BitfinexConnection[] grown = Arrays.copyOf(current, current.length + 1);
+            grown[current.length] = connection;
+            connections = grown;
+            return current.length;
+        }
+    }
+
+    /**
+     * Set the endpoints of the connections, connection i uses uris[i % uris.length].
+     * Must be called before {@link #connect()}, e.g. to run against local servers.
+     *
+     * @param uris
+     */
+    public void setWebsocketUris(final String... uris) {
+        if (uris.length == 0) {
+            throw new IllegalArgumentException("At least one uri is needed");
+        }
+        this.websocketUris = uris.clone();
+    }
+
+    public String getWebsocketUri(final int connection) {
+        final String[] uris = websocketUris;
+        return uris[connection % uris.length];
+    }
+
+    /**
+     * Receive the channels of the pair on two connections and deliver whichever copy
+     * of an update arrives first, see {@link FeedArbiter}. A lost connection then causes
+     * no gap. Needs a pool of at least two connections (see {@link #setConnectionCount(int)}
+     * and {@link #setMaxConnectionCount(int)}) and applies to channels subscribed after the call.
+     *
+     * @param currencyPair
+     */
+    public void enableDualFeed(final BitfinexCurrencyPair currencyPair) {
+        dualFeedPairs.add(currencyPair);
+    }
+
+    /**
+     * @param symbol
+     * @return the arbiter of a dual fed stream or null
+     */
+    public FeedArbiter getFeedArbiter(final BitfinexStreamSymbol symbol) {
+        return arbiters.get(symbol);
+    }
+
+    private boolean isDualFeed(final BitfinexStreamSymbol symbol) {
+        if (!dualFeedPairs.contains(StreamSymbols.instrumentOf(symbol))) {
+            return false;
+        }
+
+        if (getMaxConnectionCount() < 2) {
+            Log.warn("Dual feed of " + symbol + " needs two connections, subscribing one");
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Enable a connection option, must be called before {@link #connect()}
+     *
+     * @param confFlag
+     */
+    public void enableConfFlag(final ConfFlag confFlag) {
+        synchronized (confFlags) {
+            confFlags.add(confFlag);
+        }
+    }
+
+    /**
+     * In flyweight mode the channel handlers reuse their entry, trade and list objects
+     * instead of allocating new ones for every message. The objects passed to callbacks
+     * are then only valid during the callback and must be copied to be kept.
+     * Applies to channels subscribed after the call.
+     *
+     * @param flyweightEvents
+     */
+    public void setFlyweightEvents(final boolean flyweightEvents) {
+        this.flyweightEvents = flyweightEvents;
+    }
+
+    public boolean isFlyweightEvents() {
+        return flyweightEvents;
+    }
+
+    /**
+     * Apply channel data on pipeline threads instead of the websocket receive threads,
+     * must be called before {@link #connect()}. Frames are still decoded and sequence
+     * checked on the receive threads, the channel handlers and their callbacks run on
+     * one thread per shard. All channels of an instrument share a shard.
+     *
+     * @param shards       number of pipeline threads
+     * @param ringSize     queued frames per shard, a power of 2
+     * @param waitStrategy how idle pipeline threads wait for frames
+     */
+    public void enablePipeline(final int shards, final int ringSize, final WaitStrategy waitStrategy) {
+        if (pipelineWaitStrategy != null) {
+            throw new IllegalStateException("Pipeline is already enabled");
+        }
+        pipelineShards = shards;
+        pipelineRingSize = ringSize;
+        pipelineWaitStrategy = waitStrategy;
+    }
+
+    /**
+     * @return the pipeline, or null if channel data is applied on the receive threads or the broker is not connected
+     */
+    public ChannelPipeline getPipeline() {
+        return pipeline;
+    }
+
+    public boolean isPipelineEnabled() {
+        return pipelineWaitStrategy != null;
+    }
+
+    public boolean isConfFlagEnabled(final ConfFlag confFlag) {
+        synchronized (confFlags) {
+            return confFlags.contains(confFlag);
+        }
+    }
+
+    void sendConfFlags(final BitfinexConnection connection) {
+        synchronized (confFlags) {
+            if (!confFlags.isEmpty()) {
+                connection.sendCommand(new ConfCommand(confFlags));
+            }
+        }
     }
 
     @Override
     public void close() {
-        if (websocketEndpoint != null) {
-            websocketEndpoint.removeConsumer(apiCallback);
-            websocketEndpoint.close();
-            websocketEndpoint = null;
+        closed = true;
+
+        if (connectionBalancer != null) {
+            connectionBalancer.close();
+        }
+
+        for (final BitfinexConnection connection : connections) {
+            connection.close();
+        }
+
+        if (pipeline != null) {
+            pipeline.close();
         }
+
+        subscriptions.failAll("Connection closed");
     }
 
+    /**
+     * Send a command on every connection
+     *
+     * @param apiCommand
+     */
     public void sendCommand(final AbstractAPICommand apiCommand) {
-        try {
-            final String command = apiCommand.getCommand(this);
-            Log.debug("Sending to server: " + command);
-            websocketEndpoint.sendMessage(command);
-        } catch (CommandException e) {
-            Log.error("Got Exception while sending command", e);
+        for (final BitfinexConnection connection : connections) {
+            connection.sendCommand(apiCommand);
         }
     }
 
-    public WebsocketClientEndpoint getWebsocketEndpoint() {
-        return websocketEndpoint;
+    public List<BitfinexConnection> getConnections() {
+        return Collections.unmodifiableList(Arrays.asList(connections));
     }
 
-    private void websocketCallback(final String message) {
-        Log.debug("Got message: " + message);
-        updateLastMessageTime();
-        if (message.startsWith("{")) {
-            handleCommandCallback(message);
-        } else if (message.startsWith("[")) {
-            handleChannelCallback(message);
-        } else {
-            Log.error("Got unknown callback: " + message);
-        }
+    public BitfinexConnection getConnection(final int index) {
+        return connections[index];
+    }
+
+    /**
+     * @param symbol
+     * @return the connection that carries the channel of the symbol, or null if it is not subscribed
+     */
+    public BitfinexConnection getConnectionForSymbol(final BitfinexStreamSymbol symbol) {
+        final long key = channelRoutingTable.getKey(symbol);
+        return key == -1 ? null : connections[ChannelRoutingTable.connectionOf(key)];
     }
 
-    private void updateLastMessageTime() {
-        lastMessageTime.set(System.currentTimeMillis());
+    public ConnectionBalancer getConnectionBalancer() {
+        return connectionBalancer;
     }
 
-    private void handleCommandCallback(final String message) {
+    void handleCommandCallback(final BitfinexConnection connection, final String message) {
         // JSON callback
         final JsonObject jsonObject = new JsonParser().parse(message).getAsJsonObject();
 
@@ -139,128 +417,381 @@ public class BitfinexApiBroker implements Closeable {
         if (commandCallbacks.containsKey(eventType)) {
             try {
                 final CommandCallbackHandler callback = commandCallbacks.get(eventType);
-                callback.handleChannelData(this, jsonObject);
+                callback.handleChannelData(connection, jsonObject);
             } catch (APIException e) {
                 Log.error("Got an exception while handling callback", e);
+                connection.getFrameRecorder().dump("exception: " + e);
             }
         }
     }
 
-    public void removeChannel(final int channelId) {
-        synchronized (channelIdSymbolMap) {
-            channelIdSymbolMap.remove(channelId);
-            channelIdSymbolMap.notifyAll();
-        }
+    ChannelRoutingTable getChannelRoutingTable() {
+        return channelRoutingTable;
     }
 
-    public void addToChannelSymbolMap(final int channelId, final BitfinexStreamSymbol symbol) {
-        synchronized (channelIdSymbolMap) {
-            channelIdSymbolMap.put(channelId, symbol);
-            channelIdSymbolMap.notifyAll();
+    void routeChannel(final long key, final BitfinexStreamSymbol symbol) {
+        final FeedArbiter arbiter = arbiters.get(MirrorSymbol.primaryOf(symbol));
+
+        if (arbiter == null) {
+            channelRoutingTable.put(key, createChannelHandler(symbol));
+        } else {
+            final int feed = symbol instanceof MirrorSymbol ? 1 : 0;
+            channelRoutingTable.put(key, symbol, arbiter.attach(feed, symbol));
         }
     }
 
-    protected void handleChannelCallback(final String message) {
-        // Channel callback
-        Log.debug("Channel callback");
-
-        // JSON callback
-        final JsonArray jsonArray = new JsonParser().parse(message).getAsJsonArray();
+    /**
+     * Apply a decoded frame, or queue it if the pipeline is enabled. Called on the receive thread.
+     *
+     * @param handler
+     * @param frame
+     */
+    void handleChannelData(final ChannelCallbackHandler handler, final DecodedFrame frame) {
+        final ChannelPipeline currentPipeline = pipeline;
+
+        if (currentPipeline != null) {
+            currentPipeline.publish(handler, frame);
+        } else {
+            dispatchChannelData(handler, frame);
+        }
+    }
 
-        final int channel = jsonArray.get(0).getAsInt();
+    void handleChannelData(final ChannelCallbackHandler handler, final JsonArray jsonArray) {
+        final ChannelPipeline currentPipeline = pipeline;
 
-        if (channel == 0) {
-            Log.debug("signal message: " + message);
+        if (currentPipeline != null) {
+            currentPipeline.publish(handler, jsonArray);
         } else {
-            handleChannelData(jsonArray);
+            dispatchChannelData(handler, jsonArray);
         }
     }
 
-    private void handleChannelData(final JsonArray jsonArray) {
-        final int channel = jsonArray.get(0).getAsInt();
-        final BitfinexStreamSymbol channelSymbol = getFromChannelSymbolMap(channel);
-
-        if (channelSymbol == null) {
-            Log.debug("Unable to determine symbol for channel " + channel);
-            Log.debug("Data is " + jsonArray);
-            return;
+    private void dispatchChannelData(final ChannelCallbackHandler handler, final DecodedFrame frame) {
+        try {
+            if (frame.getType() == DecodedFrame.Type.CHECKSUM) {
+                handler.handleChecksum((int) frame.getLong(0, 0));
+            } else if (frame.getType() == DecodedFrame.Type.HEARTBEAT) {
+                handler.handleHeartbeat();
+            } else {
+                handler.handleChannelData(frame);
+            }
+        } catch (APIException | ArithmeticException e) {
+            Log.error("Got exception while handling callback", e);
+            dumpFrames(handler.getSymbol(), "exception: " + e);
         }
+    }
 
+    private void dispatchChannelData(final ChannelCallbackHandler handler, final JsonArray jsonArray) {
         try {
             if (jsonArray.get(1).isJsonArray()) {
-                handleChannelDataArray(jsonArray, channelSymbol);
+                handler.handleChannelData(jsonArray.get(1).getAsJsonArray());
             } else {
-                handleChannelDataString(jsonArray, channelSymbol);
+                handleChannelDataString(jsonArray, handler);
             }
-        } catch (APIException e) {
+        } catch (APIException | ArithmeticException e) {
             Log.error("Got exception while handling callback", e);
+            dumpFrames(handler.getSymbol(), "exception: " + e);
+        }
+    }
+
+    /**
+     * Apply a frame taken from the pipeline, runs on the shard thread
+     *
+     * @param slot
+     */
+    private void handleQueuedFrame(final FrameRing.Slot slot) {
+        if (slot.getJson() != null) {
+            dispatchChannelData(slot.getHandler(), slot.getJson());
+        } else {
+            dispatchChannelData(slot.getHandler(), slot.getFrame());
         }
     }
 
     private void handleChannelDataString(final JsonArray jsonArray,
-                                         final BitfinexStreamSymbol channelSymbol) throws APIException {
+                                         final ChannelCallbackHandler handler) throws APIException {
 
         final String value = jsonArray.get(1).getAsString();
 
         if ("te".equals(value)) {
             final JsonArray subarray = jsonArray.get(2).getAsJsonArray();
-            final ChannelCallbackHandler handler = new ExecutedTradeHandler();
-            handler.handleChannelData(this, channelSymbol, subarray);
+            handler.handleChannelData(subarray);
+        } else if ("cs".equals(value)) {
+            handler.handleChecksum(jsonArray.get(2).getAsInt());
+        } else if ("hb".equals(value)) {
+            handler.handleHeartbeat();
         } else {
             Log.debug("skipping: " + jsonArray);
         }
     }
 
-    private void handleChannelDataArray(final JsonArray jsonArray, final BitfinexStreamSymbol channelSymbol)
-            throws APIException {
-        final JsonArray subarray = jsonArray.get(1).getAsJsonArray();
+    /**
+     * Dump the recent frames of the connection that carries the symbol
+     */
+    private void dumpFrames(final BitfinexStreamSymbol symbol, final String reason) {
+        final BitfinexConnection connection = getConnectionForSymbol(symbol);
+
+        if (connection != null) {
+            connection.getFrameRecorder().dump(reason);
+        }
+    }
+
+    static boolean isBookSymbol(final BitfinexStreamSymbol symbol) {
+        return StreamSymbols.isBook(symbol);
+    }
+
+    /**
+     * Subscribe a channel. Any number of subscriptions can be outstanding, each is
+     * matched to its subscribed or error event by the subId of the request.
+     * The future is completed on the websocket receive thread.
+     * <p>
+     * Subscriptions are reference counted: a symbol that is already subscribed is not
+     * requested again, its events are dispatched to the callbacks of all users. The shared
+     * channel is left alone for an additional user of a book, the channel handler seeds the
+     * snapshot callbacks the new user registered from its copy of the book.
+     *
+     * @param symbol
+     * @return completes with the channel id once the channel is routed
+     */
+    public CompletableFuture<Integer> subscribeChannel(final BitfinexStreamSymbol symbol) {
+        synchronized (subscriberCounts) {
+            final int users = subscriberCounts.merge(symbol, 1, Integer::sum);
+            final long key = channelRoutingTable.getKey(symbol);
+
+            if (key == -1) {
+                if (users == 1 && isDualFeed(symbol)) {
+                    arbiters.put(symbol, new FeedArbiter(this, symbol, () -> createChannelHandler(symbol)));
+                    subscribeAgain(new MirrorSymbol(symbol));
+                }
+                return subscriptions.subscribe(symbol);
+            }
+
+            return CompletableFuture.completedFuture(ChannelRoutingTable.channelOf(key));
+        }
+    }
+
+    /**
+     * Release a subscription of the channel. The channel is unsubscribed when its last
+     * user releases it; a subscription that is not yet acknowledged is then cancelled,
+     * its channel is unsubscribed as soon as the server reports it.
+     *
+     * @param symbol
+     * @return false if the symbol is neither subscribed nor being subscribed
+     */
+    public boolean unsubscribeChannel(final BitfinexStreamSymbol symbol) {
+        synchronized (subscriberCounts) {
+            final Integer users = subscriberCounts.get(symbol);
+
+            if (users == null) {
+                return false;
+            }
+
+            if (users > 1) {
+                subscriberCounts.put(symbol, users - 1);
+                return true;
+            }
+
+            subscriberCounts.remove(symbol);
+        }
+
+        boolean unsubscribed = dropChannel(symbol);
+
+        if (arbiters.remove(symbol) != null) {
+            unsubscribed |= dropChannel(new MirrorSymbol(symbol));
+        }
+
+        return unsubscribed;
+    }
+
+    private boolean dropChannel(final BitfinexStreamSymbol symbol) {
+        final long key = channelRoutingTable.removeSymbol(symbol);
+        final boolean unsubscribed;
 
-        if (channelSymbol instanceof RawOrderbookConfiguration) {
-            final RawOrderbookHandler handler = new RawOrderbookHandler();
-            handler.handleChannelData(this, channelSymbol, subarray);
-        } else if (channelSymbol instanceof OrderbookConfiguration) {
-            final OrderbookHandler handler = new OrderbookHandler();
-            handler.handleChannelData(this, channelSymbol, subarray);
-        } else if (channelSymbol instanceof BitfinexExecutedTradeSymbol) {
-            final ChannelCallbackHandler handler = new ExecutedTradeHandler();
-            handler.handleChannelData(this, channelSymbol, subarray);
+        if (key == -1) {
+            unsubscribed = subscriptions.cancel(symbol);
         } else {
-            Log.error("Unknown stream type: " + channelSymbol);
+            connections[ChannelRoutingTable.connectionOf(key)]
+                    .sendCommand(new UnsubscribeChannelCommand(ChannelRoutingTable.channelOf(key)));
+            unsubscribed = true;
+        }
+
+        if (unsubscribed && connectionBalancer != null) {
+            connectionBalancer.release(symbol);
         }
+
+        return unsubscribed;
     }
 
-    public BitfinexStreamSymbol getFromChannelSymbolMap(final int channel) {
-        synchronized (channelIdSymbolMap) {
-            return channelIdSymbolMap.get(channel);
+    /**
+     * @param symbol
+     * @return the number of users that subscribed the symbol and did not release it yet
+     */
+    public int getSubscriberCount(final BitfinexStreamSymbol symbol) {
+        synchronized (subscriberCounts) {
+            return subscriberCounts.getOrDefault(symbol, 0);
         }
     }
 
-    public int getChannelForSymbol(final BitfinexStreamSymbol symbol) {
-        synchronized (channelIdSymbolMap) {
-            return channelIdSymbolMap.entrySet()
-                    .stream()
-                    .filter((v) -> v.getValue().equals(symbol))
-                    .map(Map.Entry::getKey)
-                    .findAny().orElse(-1);
+    /**
+     * Let the handler of a subscribed channel seed the snapshot callbacks that were registered
+     * for the symbol after its snapshot. The handler does it on its next dispatch: right away on
+     * the pipeline or under the arbiter of a dual feed, otherwise when the receive thread of the
+     * connection handles its next message. Nothing happens while the symbol is not routed, the
+     * callbacks receive the snapshot of the channel then.
+     *
+     * @param symbol
+     */
+    public void requestSeed(final BitfinexStreamSymbol symbol) {
+        final FeedArbiter arbiter = arbiters.get(symbol);
+
+        if (arbiter != null) {
+            arbiter.requestSeed();
+            return;
+        }
+
+        final long key = channelRoutingTable.getKey(symbol);
+        final ChannelRoutingTable.Route route = key == -1 ? null : channelRoutingTable.get(key);
+
+        if (route == null || route.getHandler() == null) {
+            return;
+        }
+
+        final ChannelPipeline currentPipeline = pipeline;
+
+        if (currentPipeline != null) {
+            currentPipeline.publish(route.getHandler(), SEED_REQUEST);
+        } else {
+            connections[ChannelRoutingTable.connectionOf(key)].requestSeed(route.getHandler());
         }
     }
 
-    public boolean removeChannelForSymbol(final BitfinexStreamSymbol symbol) {
-        final int channel = getChannelForSymbol(symbol);
+    /**
+     * Dispatch a seed request to the handler, see {@link #requestSeed(BitfinexStreamSymbol)}
+     *
+     * @param handler
+     */
+    void seed(final ChannelCallbackHandler handler) {
+        handleChannelData(handler, SEED_REQUEST);
+    }
 
-        if (channel != -1) {
-            synchronized (channelIdSymbolMap) {
-                channelIdSymbolMap.remove(channel);
-            }
+    /**
+     * Rebuild the book of a channel that is known to be inconsistent
+     *
+     * @param symbol
+     * @param reason
+     */
+    public void resyncChannel(final BitfinexStreamSymbol symbol, final String reason) {
+        Log.warn("Resyncing " + symbol + ": " + reason);
+        dumpFrames(symbol, reason);
+
+        if (arbiters.containsKey(symbol)) {
+            restartDualFeed(symbol);
+        } else {
+            resubscribeChannel(symbol);
+        }
+    }
+
+    /**
+     * Start a dual fed stream over, both feeds are resubscribed and the first one
+     * that is routed again delivers a new snapshot
+     *
+     * @param symbol
+     */
+    void restartDualFeed(final BitfinexStreamSymbol symbol) {
+        final FeedArbiter arbiter = arbiters.get(symbol);
+
+        if (arbiter == null) {
+            return;
+        }
+
+        arbiter.reset();
+        resubscribeChannel(symbol);
+        resubscribeChannel(new MirrorSymbol(symbol));
+    }
+
+    /**
+     * Resubscribe a single channel without touching the connections. The handlers
+     * of the symbol receive a new snapshot once the channel is subscribed again.
+     * The new channel is placed on the connection the balancer assigns to the symbol.
+     *
+     * @param symbol
+     */
+    public void resubscribeChannel(final BitfinexStreamSymbol symbol) {
+        final long key = channelRoutingTable.removeSymbol(symbol);
+
+        if (key == -1) {
+            return;
+        }
+
+        final int connection = ChannelRoutingTable.connectionOf(key);
+        final int channel = ChannelRoutingTable.channelOf(key);
+
+        Log.info("Resubscribing channel " + channel + " of connection " + connection + " (" + symbol + ")");
+        connections[connection].sendCommand(new UnsubscribeChannelCommand(channel));
+        subscribeAgain(symbol);
+    }
+
+    /**
+     * Subscribe a channel for the users that hold its symbol, without a caller that waits for
+     * the result. A failed attempt is repeated while they hold it, see
+     * {@link SubscriptionRegistry#subscribeRetrying(BitfinexStreamSymbol, java.util.function.Predicate)}.
+     *
+     * @param symbol
+     */
+    private void subscribeAgain(final BitfinexStreamSymbol symbol) {
+        subscriptions.subscribeRetrying(symbol, this::isUnrouted);
+    }
+
+    /**
+     * @param symbol
+     * @return true if users hold the symbol (or the instrument of a mirror) and its channel is not routed
+     */
+    private boolean isUnrouted(final BitfinexStreamSymbol symbol) {
+        final BitfinexStreamSymbol primary = MirrorSymbol.primaryOf(symbol);
 
-            return true;
+        if (closed || getSubscriberCount(primary) == 0) {
+            return false;
         }
 
-        return false;
+        if (symbol instanceof MirrorSymbol && !arbiters.containsKey(primary)) {
+            return false;
+        }
+
+        return channelRoutingTable.getKey(symbol) == -1;
+    }
+
+    /**
+     * Resolve the dispatch target of a new channel once, when it is subscribed
+     *
+     * @param symbol
+     * @return
+     */
+    private ChannelCallbackHandler createChannelHandler(final BitfinexStreamSymbol symbol) {
+        if (symbol instanceof RawOrderbookConfiguration) {
+            return rawOrderbookManager.createChannelHandler((RawOrderbookConfiguration) symbol);
+        } else if (symbol instanceof OrderbookConfiguration) {
+            return orderbookManager.createChannelHandler((OrderbookConfiguration) symbol);
+        } else if (symbol instanceof BitfinexExecutedTradeSymbol) {
+            return executedTradesManager.createChannelHandler((BitfinexExecutedTradeSymbol) symbol);
+        }
+
+        throw new IllegalArgumentException("Unknown stream type: " + symbol);
     }
 
-    public AtomicLong getLastMessageTime() {
-        return lastMessageTime;
+    /**
+     * @param symbol
+     * @return the channel id of the symbol on its connection, or -1
+     */
+    public int getChannelForSymbol(final BitfinexStreamSymbol symbol) {
+        final long key = channelRoutingTable.getKey(symbol);
+        return key == -1 ? -1 : ChannelRoutingTable.channelOf(key);
+    }
+
+    public boolean removeChannelForSymbol(final BitfinexStreamSymbol symbol) {
+        return channelRoutingTable.removeSymbol(symbol) != -1;
+    }
+
+    public SubscriptionRegistry getSubscriptions() {
+        return subscriptions;
     }
 
     public OrderbookManager getOrderbookManager() {
@@ -275,42 +806,84 @@ public class BitfinexApiBroker implements Closeable {
         return executedTradesManager;
     }
 
-    public synchronized boolean reconnect() {
-        try {
-            websocketEndpoint.close();
-            websocketEndpoint.connect();
+    /**
+     * Reconnect all connections
+     *
+     * @return false if a connection could not be reestablished
+     */
+    public boolean reconnect() {
+        boolean reconnected = true;
 
-            resubscribeChannels();
-            updateLastMessageTime();
+        for (final BitfinexConnection connection : connections) {
+            reconnected &= reconnect(connection);
+        }
 
-            return true;
-        } catch (DeploymentException | IOException e) {
-            Log.error("Websocket connection failed", e);
-            websocketEndpoint.close();
+        return reconnected;
+    }
+
+    public synchronized boolean reconnect(final BitfinexConnection connection) {
+        if (!connection.reconnect()) {
             return false;
         }
+
+        resubscribeChannels(connection.getIndex());
+        return true;
     }
 
-    private void resubscribeChannels() {
-        final Map<Integer, BitfinexStreamSymbol> oldChannelIdSymbolMap;
+    private void resubscribeChannels(final int connection) {
+        final List<BitfinexStreamSymbol> oldSymbols = channelRoutingTable.clear(connection);
 
-        synchronized (channelIdSymbolMap) {
-            oldChannelIdSymbolMap = new HashMap<>(channelIdSymbolMap);
-            channelIdSymbolMap.clear();
-            channelIdSymbolMap.notifyAll();
-        }
+        // Subscriptions the old socket did not answer are sent again with their subIds
+        subscriptions.resendAll(symbol -> connectionBalancer.getConnection(symbol) == connection);
 
         // Resubscribe channels
-        for (BitfinexStreamSymbol symbol : oldChannelIdSymbolMap.values()) {
-            if (symbol instanceof BitfinexExecutedTradeSymbol) {
-                sendCommand(new SubscribeTradesCommand((BitfinexExecutedTradeSymbol) symbol));
-            } else if (symbol instanceof OrderbookConfiguration) {
-                sendCommand(new SubscribeOrderbookCommand((OrderbookConfiguration) symbol));
-            } else if (symbol instanceof RawOrderbookConfiguration) {
-                sendCommand(new SubscribeRawOrderbookCommand((RawOrderbookConfiguration) symbol));
-            } else {
-                Log.error("Unknown stream symbol: " + symbol);
+        for (BitfinexStreamSymbol symbol : oldSymbols) {
+            subscribeAgain(symbol);
+        }
+
+        // Symbols whose subscription failed have neither a route nor a pending subscription
+        for (final BitfinexStreamSymbol symbol : getHeldSymbols()) {
+            if (connectionBalancer.getConnection(symbol) == connection && !oldSymbols.contains(symbol)
+                    && !subscriptions.isPending(symbol) && isUnrouted(symbol)) {
+                subscribeAgain(symbol);
             }
         }
     }
+
+    /**
+     * @return the symbols users hold and the mirrors of their dual fed instruments
+     */
+    private List<BitfinexStreamSymbol> getHeldSymbols() {
+        final List<BitfinexStreamSymbol> symbols;
+
+        synchronized (subscriberCounts) {
+            symbols = new ArrayList<>(subscriberCounts.keySet());
+        }
+
+        for (final BitfinexStreamSymbol symbol : arbiters.keySet()) {
+            symbols.add(new MirrorSymbol(symbol));
+        }
+
+        return symbols;
+    }
+
+    /**
+     * Send a subscribe request on the connection the balancer places the symbol on
+     */
+    private void sendSubscribeCommand(final BitfinexStreamSymbol requested, final String subId) {
+        // Placing may open a connection, so the array is read afterwards
+        final int index = connectionBalancer.place(requested);
+        final BitfinexConnection connection = connections[index];
+        final BitfinexStreamSymbol symbol = MirrorSymbol.primaryOf(requested);
+
+        if (symbol instanceof BitfinexExecutedTradeSymbol) {
+            connection.sendCommand(new SubscribeTradesCommand((BitfinexExecutedTradeSymbol) symbol, subId));
+        } else if (symbol instanceof OrderbookConfiguration) {
+            connection.sendCommand(new SubscribeOrderbookCommand((OrderbookConfiguration) symbol, subId));
+        } else if (symbol instanceof RawOrderbookConfiguration) {
+            connection.sendCommand(new SubscribeRawOrderbookCommand((RawOrderbookConfiguration) symbol, subId));
+        } else {
+            Log.error("Unknown stream symbol: " + symbol);
+        }
+    }
 }
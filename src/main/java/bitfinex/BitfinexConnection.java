@@ -0,0 +1,361 @@
+/*******************************************************************************
+ *
+ *    Copyright (C) 2015-2018 Jan Kristof Nidzwetzki
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License. 
+ *
+ *******************************************************************************/
+package bitfinex;
+
+import bitfinex.callback.channel.ChannelCallbackHandler;
+import bitfinex.callback.channel.ChannelFrameDecoder;
+import bitfinex.callback.channel.DecodedFrame;
+import bitfinex.callback.channel.StreamingFrameDecoder;
+import bitfinex.commands.AbstractAPICommand;
+import bitfinex.commands.CommandException;
+import bitfinex.entity.BitfinexStreamSymbol;
+import bitfinex.entity.ConfFlag;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import velox.api.layer1.common.Log;
+
+import javax.websocket.DeploymentException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * One websocket of a {@link BitfinexApiBroker}. Channel ids, sequence numbers and
+ * the recorded frames belong to the connection, the channels are routed through
+ * the routing table of the broker.
+ */
+public class BitfinexConnection implements Closeable {
+
+    private final BitfinexApiBroker bitfinexApiBroker;
+
+    private final int index;
+
+    private final WebsocketClientEndpoint.FragmentConsumer apiCallback = this::websocketFragment;
+
+    private final Consumer<DecodedFrame> streamedPartCallback = this::handleChannelData;
+
+    private volatile WebsocketClientEndpoint websocketEndpoint;
+
+    private final AtomicLong lastMessageTime = new AtomicLong();
+
+    private final FrameRecorder frameRecorder = new FrameRecorder();
+
+    private final SequenceTracker sequenceTracker = new SequenceTracker();
+
+    /**
+     * Decoder state, only used from the websocket receive thread
+     */
+    private final ChannelFrameDecoder frameDecoder = new ChannelFrameDecoder();
+
+    private final DecodedFrame decodedFrame = new DecodedFrame();
+
+    private final StreamingFrameDecoder streamingDecoder = new StreamingFrameDecoder();
+
+    /**
+     * Handlers that seed their new users before the next message is handled
+     */
+    private final Queue<ChannelCallbackHandler> pendingSeeds = new ConcurrentLinkedQueue<>();
+
+    BitfinexConnection(final BitfinexApiBroker bitfinexApiBroker, final int index) {
+        this.bitfinexApiBroker = bitfinexApiBroker;
+        this.index = index;
+    }
+
+    void connect() throws Exception {
+        final URI bitfinexURI = new URI(bitfinexApiBroker.getWebsocketUri(index));
+        websocketEndpoint = new WebsocketClientEndpoint(bitfinexURI);
+        websocketEndpoint.addFragmentConsumer(apiCallback);
+        sequenceTracker.reset();
+        websocketEndpoint.connect();
+        updateLastMessageTime();
+        bitfinexApiBroker.sendConfFlags(this);
+    }
+
+    /**
+     * Open the socket again, the channels of the connection are resubscribed by the broker
+     *
+     * @return
+     */
+    boolean reconnect() {
+        frameRecorder.dump("reconnect");
+
+        try {
+            websocketEndpoint.close();
+            streamingDecoder.reset();
+            sequenceTracker.reset();
+            websocketEndpoint.connect();
+
+            bitfinexApiBroker.sendConfFlags(this);
+            updateLastMessageTime();
+
+            return true;
+        } catch (DeploymentException | IOException e) {
+            Log.error("Websocket connection " + index + " failed", e);
+            websocketEndpoint.close();
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        final WebsocketClientEndpoint endpoint = websocketEndpoint;
+
+        if (endpoint != null) {
+            endpoint.removeFragmentConsumer(apiCallback);
+            endpoint.close();
+            websocketEndpoint = null;
+        }
+    }
+
+    public void sendCommand(final AbstractAPICommand apiCommand) {
+        try {
+            final String command = apiCommand.getCommand(bitfinexApiBroker);
+            Log.debug("Sending to server on connection " + index + ": " + command);
+            websocketEndpoint.sendMessage(command);
+        } catch (CommandException e) {
+            Log.error("Got Exception while sending command", e);
+        }
+    }
+
+    public boolean isConnected() {
+        final WebsocketClientEndpoint endpoint = websocketEndpoint;
+        return endpoint != null && endpoint.isConnected();
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public BitfinexApiBroker getBitfinexApiBroker() {
+        return bitfinexApiBroker;
+    }
+
+    public WebsocketClientEndpoint getWebsocketEndpoint() {
+        return websocketEndpoint;
+    }
+
+    public AtomicLong getLastMessageTime() {
+        return lastMessageTime;
+    }
+
+    public FrameRecorder getFrameRecorder() {
+        return frameRecorder;
+    }
+
+    public SequenceTracker getSequenceTracker() {
+        return sequenceTracker;
+    }
+
+    public void addToChannelSymbolMap(final int channelId, final BitfinexStreamSymbol symbol) {
+        bitfinexApiBroker.routeChannel(ChannelRoutingTable.key(index, channelId), symbol);
+    }
+
+    public void removeChannel(final int channelId) {
+        bitfinexApiBroker.getChannelRoutingTable().remove(ChannelRoutingTable.key(index, channelId));
+    }
+
+    public BitfinexStreamSymbol getFromChannelSymbolMap(final int channelId) {
+        final ChannelRoutingTable.Route route
+                = bitfinexApiBroker.getChannelRoutingTable().get(ChannelRoutingTable.key(index, channelId));
+        return route == null ? null : route.getSymbol();
+    }
+
+    /**
+     * Seed the new users of a channel of this connection on the receive thread, see
+     * {@link BitfinexApiBroker#requestSeed(BitfinexStreamSymbol)}
+     *
+     * @param handler
+     */
+    void requestSeed(final ChannelCallbackHandler handler) {
+        pendingSeeds.add(handler);
+    }
+
+    private void updateLastMessageTime() {
+        lastMessageTime.set(System.currentTimeMillis());
+    }
+
+    private void websocketFragment(final String fragment, final boolean last) {
+        final long now = System.currentTimeMillis();
+        lastMessageTime.set(now);
+        frameRecorder.record(fragment, now);
+
+        try {
+            // Large snapshots are applied while their fragments arrive
+            final String message = streamingDecoder.onFragment(fragment, last, streamedPartCallback);
+
+            if (message != null) {
+                websocketCallback(message);
+            }
+
+            // Between two messages, a streamed snapshot is never half applied
+            if (last) {
+                seedPending();
+            }
+        } catch (RuntimeException e) {
+            Log.error("Got exception while handling message", e);
+            frameRecorder.dump("exception: " + e);
+        }
+    }
+
+    private void seedPending() {
+        ChannelCallbackHandler handler;
+        while ((handler = pendingSeeds.poll()) != null) {
+            bitfinexApiBroker.seed(handler);
+        }
+    }
+
+    private void websocketCallback(final String message) {
+        if (message.startsWith("{")) {
+            bitfinexApiBroker.handleCommandCallback(this, message);
+        } else if (message.startsWith("[")) {
+            handleChannelCallback(message);
+        } else {
+            Log.error("Got unknown callback: " + message);
+        }
+    }
+
+    private void handleChannelCallback(final String message) {
+        if (frameDecoder.decode(message, decodedFrame) && decodedFrame.getChannelId() != 0) {
+            handleChannelData(decodedFrame);
+            return;
+        }
+
+        // Unknown shape, fall back to the JSON tree
+        final JsonArray jsonArray = new JsonParser().parse(message).getAsJsonArray();
+
+        final int channel = jsonArray.get(0).getAsInt();
+
+        if (channel == 0) {
+            Log.debug("signal message: " + message);
+        } else {
+            handleChannelData(jsonArray);
+        }
+    }
+
+    private void handleChannelData(final DecodedFrame frame) {
+        final int channel = frame.getChannelId();
+        final DecodedFrame.Type type = frame.getType();
+
+        if (frame.hasSequence()
+                && !checkSequence(channel, frame.getSequence(), type == DecodedFrame.Type.HEARTBEAT)) {
+            return;
+        }
+
+        final ChannelRoutingTable.Route route
+                = bitfinexApiBroker.getChannelRoutingTable().get(ChannelRoutingTable.key(index, channel));
+
+        if (route == null) {
+            Log.debug("Unable to determine symbol for channel " + channel + " on connection " + index);
+            return;
+        }
+
+        route.countMessage();
+
+        // Feeds see heartbeats too, they tell the arbiter the feed is alive
+        if (route.getFeed() != null) {
+            route.getFeed().onFrame(frame);
+            return;
+        }
+
+        if (type == DecodedFrame.Type.TRADE_UPDATE) {
+            return;
+        }
+
+        bitfinexApiBroker.handleChannelData(route.getHandler(), frame);
+    }
+
+    private void handleChannelData(final JsonArray jsonArray) {
+        final int channel = jsonArray.get(0).getAsInt();
+
+        if (jsonArray.size() >= 3 && bitfinexApiBroker.isConfFlagEnabled(ConfFlag.SEQ_ALL)) {
+            final JsonElement last = jsonArray.get(jsonArray.size() - 1);
+
+            if (last.isJsonPrimitive() && last.getAsJsonPrimitive().isNumber()) {
+                final JsonElement kind = jsonArray.get(1);
+                final boolean heartbeat = kind.isJsonPrimitive() && "hb".equals(kind.getAsString());
+                if (!checkSequence(channel, last.getAsLong(), heartbeat)) {
+                    return;
+                }
+            }
+        }
+        final ChannelRoutingTable.Route route
+                = bitfinexApiBroker.getChannelRoutingTable().get(ChannelRoutingTable.key(index, channel));
+
+        if (route == null) {
+            Log.debug("Unable to determine symbol for channel " + channel + " on connection " + index);
+            Log.debug("Data is " + jsonArray);
+            return;
+        }
+
+        route.countMessage();
+
+        if (route.getFeed() != null) {
+            route.getFeed().onFrame(jsonArray);
+        } else {
+            bitfinexApiBroker.handleChannelData(route.getHandler(), jsonArray);
+        }
+    }
+
+    /**
+     * Check the sequence number of a message and resync the affected books if messages were lost
+     *
+     * @param channel
+     * @param sequence
+     * @param heartbeat
+     * @return false if the message is out of order and must be dropped
+     */
+    private boolean checkSequence(final int channel, final long sequence, final boolean heartbeat) {
+        final SequenceTracker.Result result = sequenceTracker.onMessage(sequence, heartbeat);
+
+        if (result == SequenceTracker.Result.IN_SEQUENCE) {
+            return true;
+        }
+
+        final BitfinexStreamSymbol symbol = getFromChannelSymbolMap(channel);
+
+        if (result == SequenceTracker.Result.REORDERED) {
+            Log.warn("Got message " + sequence + " out of order on channel " + channel + " (" + symbol + ")");
+
+            // Only this channel is rebuilt, a second feed of the book keeps delivering meanwhile
+            if (BitfinexApiBroker.isBookSymbol(symbol)) {
+                frameRecorder.dump("sequence reordered");
+                bitfinexApiBroker.resubscribeChannel(symbol);
+            }
+            return false;
+        }
+
+        // The lost messages can belong to any channel of the connection, so all its books are rebuilt
+        Log.warn("Sequence gap before message " + sequence + " on channel " + channel
+                + " of connection " + index + ", resyncing books");
+        frameRecorder.dump("sequence gap");
+
+        for (final BitfinexStreamSymbol bookSymbol : bitfinexApiBroker.getChannelRoutingTable().getSymbols(index)) {
+            if (BitfinexApiBroker.isBookSymbol(bookSymbol)) {
+                bitfinexApiBroker.resubscribeChannel(bookSymbol);
+            }
+        }
+
+        return true;
+    }
+}
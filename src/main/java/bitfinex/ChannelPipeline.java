@@ -0,0 +1,297 @@
+/*******************************************************************************
+ *
+ *    Copyright (C) 2015-2018 Jan Kristof Nidzwetzki
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License. 
+ *
+ *******************************************************************************/
+package bitfinex;
+
+import bitfinex.callback.channel.ChannelCallbackHandler;
+import bitfinex.callback.channel.DecodedFrame;
+import bitfinex.entity.BitfinexStreamSymbol;
+import com.google.gson.JsonArray;
+import velox.api.layer1.common.Log;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Moves the channel handlers off the websocket receive thread. Decoded frames are
+ * published into one {@link FrameRing} per shard and applied by the shard's own thread,
+ * so a slow listener no longer stalls the socket.
+ * <p>
+ * All channels of an instrument go to the same shard, which keeps the frames of a channel
+ * in order, also across a resubscription that assigns a new channel id. The frames queued
+ * for each instrument are counted, see {@link #getBacklog(BitfinexStreamSymbol)}.
+ */
+public class ChannelPipeline implements Closeable {
+
+    private final FrameRing[] rings;
+
+    private final Thread[] threads;
+
+    private final Consumer<FrameRing.Slot> dispatcher;
+
+    /**
+     * Instrument -> frames published and not yet started
+     */
+    private final Map<Object, AtomicLong> queuedFrames = new ConcurrentHashMap<>();
+
+    /**
+     * Tasks each shard thread runs after it applied a batch of frames
+     */
+    private final AtomicReferenceArray<Runnable[]> batchEndTasks;
+
+    private volatile boolean running;
+
+    /**
+     * @param shards        number of consumer threads
+     * @param ringSize      slots per shard, a power of 2
+     * @param waitStrategy
+     * @param multiProducer frames are published from more than one receive thread
+     * @param dispatcher    applies a frame, called on the shard thread
+     */
+    public ChannelPipeline(final int shards, final int ringSize, final WaitStrategy waitStrategy,
+                           final boolean multiProducer, final Consumer<FrameRing.Slot> dispatcher) {
+        if (shards <= 0) {
+            throw new IllegalArgumentException("Pipeline needs at least one shard: " + shards);
+        }
+
+        this.rings = new FrameRing[shards];
+        this.threads = new Thread[shards];
+        this.batchEndTasks = new AtomicReferenceArray<>(shards);
+        this.dispatcher = dispatcher;
+
+        for (int i = 0; i < shards; i++) {
+            rings[i] = new FrameRing(ringSize, waitStrategy, multiProducer);
+            batchEndTasks.set(i, new Runnable[0]);
+        }
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+
+        running = true;
+
+        for (final AtomicLong queued : queuedFrames.values()) {
+            queued.set(0);
+        }
+
+        for (int i = 0; i < rings.length; i++) {
+            final FrameRing ring = rings[i];
+            // Frames queued before a close belong to handlers of the old connections
+            ring.reset();
+            final int shard = i;
+            threads[i] = new Thread(() -> consume(ring, shard), "bitfinex-pipeline-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    /**
+     * Stop the shard threads, frames that are still queued are dropped when the pipeline is started again
+     */
+    @Override
+    public synchronized void close() {
+        if (!running) {
+            return;
+        }
+
+        running = false;
+
+        for (int i = 0; i < rings.length; i++) {
+            rings[i].wakeUp();
+            try {
+                threads[i].join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            threads[i] = null;
+        }
+    }
+
+    /**
+     * Queue a decoded frame, called from the websocket receive threads
+     *
+     * @param handler
+     * @param frame
+     */
+    public void publish(final ChannelCallbackHandler handler, final DecodedFrame frame) {
+        final AtomicLong queued = countQueued(handler.getSymbol());
+        try {
+            rings[shardOf(handler.getSymbol())].publish(handler, frame, queued);
+        } catch (IllegalStateException e) {
+            queued.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Queue a frame that could only be parsed to a JSON tree, called from the websocket receive threads
+     *
+     * @param handler
+     * @param json
+     */
+    public void publish(final ChannelCallbackHandler handler, final JsonArray json) {
+        final AtomicLong queued = countQueued(handler.getSymbol());
+        try {
+            rings[shardOf(handler.getSymbol())].publish(handler, json, queued);
+        } catch (IllegalStateException e) {
+            queued.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Run the task on the shard thread of the symbol after every batch of frames the thread
+     * applied, in particular when its ring drained. Lets a handler release what it kept
+     * back while frames were queued.
+     *
+     * @param symbol
+     * @param task
+     */
+    public void addBatchEndTask(final BitfinexStreamSymbol symbol, final Runnable task) {
+        final int shard = shardOf(symbol);
+        synchronized (batchEndTasks) {
+            final Runnable[] tasks = Arrays.copyOf(batchEndTasks.get(shard), batchEndTasks.get(shard).length + 1);
+            tasks[tasks.length - 1] = task;
+            batchEndTasks.set(shard, tasks);
+        }
+    }
+
+    public void removeBatchEndTask(final BitfinexStreamSymbol symbol, final Runnable task) {
+        final int shard = shardOf(symbol);
+        synchronized (batchEndTasks) {
+            final Runnable[] tasks = batchEndTasks.get(shard);
+            for (int i = 0; i < tasks.length; i++) {
+                if (tasks[i] == task) {
+                    final Runnable[] remaining = new Runnable[tasks.length - 1];
+                    System.arraycopy(tasks, 0, remaining, 0, i);
+                    System.arraycopy(tasks, i + 1, remaining, i, remaining.length - i);
+                    batchEndTasks.set(shard, remaining);
+                    return;
+                }
+            }
+        }
+    }
+
+    private AtomicLong countQueued(final BitfinexStreamSymbol symbol) {
+        final Object instrument = StreamSymbols.instrumentOf(symbol);
+        AtomicLong queued = queuedFrames.get(instrument);
+        if (queued == null) {
+            queued = queuedFrames.computeIfAbsent(instrument, (key) -> new AtomicLong());
+        }
+        // Counted before the frame is visible, so the consumer never takes the count below 0
+        queued.incrementAndGet();
+        return queued;
+    }
+
+    private void consume(final FrameRing ring, final int shard) {
+        try {
+            long next = ring.getConsumed() + 1;
+
+            while (running) {
+                final long available = ring.waitFor(next, () -> running);
+
+                if (available < 0) {
+                    return;
+                }
+
+                for (long position = next; position <= available; position++) {
+                    ring.startProcessing(position);
+                    final FrameRing.Slot slot = ring.get(position);
+                    // While a frame is applied, only the frames behind it count
+                    if (slot.getQueued() != null) {
+                        slot.getQueued().decrementAndGet();
+                    }
+                    try {
+                        dispatcher.accept(slot);
+                    } catch (RuntimeException e) {
+                        Log.error("Got exception while handling queued frame", e);
+                    }
+                }
+
+                ring.release(available);
+                next = available + 1;
+
+                runBatchEndTasks(shard);
+            }
+        } catch (Error e) {
+            Log.error("Pipeline thread stopped, frames of its shard are dropped until the pipeline is restarted", e);
+            throw e;
+        } finally {
+            // A producer waiting for a slot must not park forever
+            ring.consumerStopped();
+        }
+    }
+
+    private void runBatchEndTasks(final int shard) {
+        for (final Runnable task : batchEndTasks.get(shard)) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.error("Got exception while running a batch end task", e);
+            }
+        }
+    }
+
+    private int shardOf(final BitfinexStreamSymbol symbol) {
+        return Math.floorMod(StreamSymbols.instrumentOf(symbol).hashCode(), rings.length);
+    }
+
+    public int getShards() {
+        return rings.length;
+    }
+
+    /**
+     * Frames queued in all shards
+     */
+    public long getQueueDepth() {
+        long depth = 0;
+        for (final FrameRing ring : rings) {
+            depth += ring.getDepth();
+        }
+        return depth;
+    }
+
+    public long getQueueDepth(final int shard) {
+        return rings[shard].getDepth();
+    }
+
+    /**
+     * Frames of the symbol's instrument that wait behind the one being applied. Frames of other
+     * instruments in the same shard are not counted.
+     *
+     * @param symbol
+     * @return
+     */
+    public long getBacklog(final BitfinexStreamSymbol symbol) {
+        final AtomicLong queued = queuedFrames.get(StreamSymbols.instrumentOf(symbol));
+        return queued == null ? 0 : Math.max(0, queued.get());
+    }
+
+    /**
+     * Highest depth a shard reached since the pipeline was created
+     */
+    public long getMaxQueueDepth(final int shard) {
+        return rings[shard].getMaxDepth();
+    }
+}
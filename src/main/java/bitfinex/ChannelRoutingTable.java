@@ -0,0 +1,333 @@
+/*******************************************************************************
+ *
+ *    Copyright (C) 2015-2018 Jan Kristof Nidzwetzki
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License. 
+ *
+ *******************************************************************************/
+package bitfinex;
+
+import bitfinex.callback.channel.ChannelCallbackHandler;
+import bitfinex.entity.BitfinexStreamSymbol;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps channels to their dispatch targets and stream symbols back to channels.
+ * Channel ids are only unique per connection, so channels are keyed by
+ * {@link #key(int, int)} of the connection index and the channel id.
+ * <p>
+ * Lookups run without locks: the table is an immutable open-addressing
+ * snapshot that is replaced (copy-on-write) on every subscribe and unsubscribe,
+ * which are rare compared to the number of frames routed through it.
+ */
+public class ChannelRoutingTable {
+
+    private final static long FREE = 0;
+
+    private final static int MIN_CAPACITY = 16;
+
+    private final static Snapshot EMPTY = new Snapshot(new long[MIN_CAPACITY],
+            new Route[MIN_CAPACITY], new HashMap<>());
+
+    private volatile Snapshot snapshot = EMPTY;
+
+    /**
+     * A routed channel. The message counter is only written by the receive thread of the connection.
+     */
+    public final static class Route {
+
+        private final long key;
+
+        private final BitfinexStreamSymbol symbol;
+
+        private final ChannelCallbackHandler handler;
+
+        private final FeedArbiter.Feed feed;
+
+        private volatile long messages;
+
+        private Route(final long key, final BitfinexStreamSymbol symbol,
+                      final ChannelCallbackHandler handler, final FeedArbiter.Feed feed) {
+            this.key = key;
+            this.symbol = symbol;
+            this.handler = handler;
+            this.feed = feed;
+        }
+
+        /**
+         * @return the handler of the channel, null if the channel is a feed of an arbiter
+         */
+        public ChannelCallbackHandler getHandler() {
+            return handler;
+        }
+
+        /**
+         * @return the arbiter feed of the channel, null if the channel is dispatched to its handler
+         */
+        public FeedArbiter.Feed getFeed() {
+            return feed;
+        }
+
+        public BitfinexStreamSymbol getSymbol() {
+            return symbol;
+        }
+
+        public int getConnection() {
+            return connectionOf(key);
+        }
+
+        public int getChannelId() {
+            return channelOf(key);
+        }
+
+        void countMessage() {
+            messages = messages + 1;
+        }
+
+        /**
+         * Number of frames routed to the channel
+         */
+        public long getMessages() {
+            return messages;
+        }
+    }
+
+    public static long key(final int connection, final int channelId) {
+        return ((long) connection << 32) | (channelId & 0xFFFFFFFFL);
+    }
+
+    public static int connectionOf(final long key) {
+        return (int) (key >>> 32);
+    }
+
+    public static int channelOf(final long key) {
+        return (int) key;
+    }
+
+    /**
+     * Get the route of the channel, or null if the channel is unknown
+     *
+     * @param key
+     * @return
+     */
+    public Route get(final long key) {
+        final Snapshot current = snapshot;
+        final long[] keys = current.keys;
+        final int mask = keys.length - 1;
+
+        int index = mix(key) & mask;
+
+        while (true) {
+            final long candidate = keys[index];
+
+            if (candidate == key) {
+                return current.routes[index];
+            }
+
+            if (candidate == FREE) {
+                return null;
+            }
+
+            index = (index + 1) & mask;
+        }
+    }
+
+    /**
+     * Get the channel key of the symbol, or -1 if the symbol is not subscribed
+     *
+     * @param symbol
+     * @return
+     */
+    public long getKey(final BitfinexStreamSymbol symbol) {
+        final Route route = snapshot.routeBySymbol.get(symbol);
+        return route == null ? -1 : route.key;
+    }
+
+    public void put(final long key, final ChannelCallbackHandler handler) {
+        put(new Route(key, handler.getSymbol(), handler, null));
+    }
+
+    /**
+     * Route the channel to a feed of an arbiter
+     *
+     * @param key
+     * @param symbol the symbol the channel was subscribed with
+     * @param feed
+     */
+    public void put(final long key, final BitfinexStreamSymbol symbol, final FeedArbiter.Feed feed) {
+        put(new Route(key, symbol, null, feed));
+    }
+
+    private synchronized void put(final Route route) {
+        if (channelOf(route.key) == 0) {
+            throw new IllegalArgumentException("Channel 0 can not be routed");
+        }
+
+        final Map<Long, Route> entries = snapshot.toMap();
+        entries.put(route.key, route);
+        snapshot = Snapshot.of(entries);
+    }
+
+    /**
+     * Remove the channel
+     *
+     * @param key
+     * @return the route of the channel or null if the channel was unknown
+     */
+    public synchronized Route remove(final long key) {
+        final Map<Long, Route> entries = snapshot.toMap();
+        final Route route = entries.remove(key);
+
+        if (route == null) {
+            return null;
+        }
+
+        snapshot = Snapshot.of(entries);
+        return route;
+    }
+
+    /**
+     * Remove the channel of the symbol
+     *
+     * @param symbol
+     * @return the key of the removed channel or -1 if the symbol was not subscribed
+     */
+    public synchronized long removeSymbol(final BitfinexStreamSymbol symbol) {
+        final long key = getKey(symbol);
+
+        if (key != -1) {
+            remove(key);
+        }
+
+        return key;
+    }
+
+    /**
+     * Remove all channels of a connection
+     *
+     * @param connection
+     * @return the symbols that were registered
+     */
+    public synchronized List<BitfinexStreamSymbol> clear(final int connection) {
+        final List<BitfinexStreamSymbol> symbols = new ArrayList<>();
+        final Map<Long, Route> entries = snapshot.toMap();
+
+        entries.values().removeIf(route -> {
+            if (route.getConnection() != connection) {
+                return false;
+            }
+            symbols.add(route.getSymbol());
+            return true;
+        });
+
+        snapshot = Snapshot.of(entries);
+        return symbols;
+    }
+
+    /**
+     * Get the symbols of all channels
+     *
+     * @return
+     */
+    public List<BitfinexStreamSymbol> getSymbols() {
+        return new ArrayList<>(snapshot.routeBySymbol.keySet());
+    }
+
+    /**
+     * Get the symbols of the channels of a connection
+     *
+     * @param connection
+     * @return
+     */
+    public List<BitfinexStreamSymbol> getSymbols(final int connection) {
+        final List<BitfinexStreamSymbol> symbols = new ArrayList<>();
+        for (final Route route : snapshot.routeBySymbol.values()) {
+            if (route.getConnection() == connection) {
+                symbols.add(route.getSymbol());
+            }
+        }
+        return symbols;
+    }
+
+    /**
+     * Get the routes of all channels
+     *
+     * @return
+     */
+    public List<Route> getRoutes() {
+        return new ArrayList<>(snapshot.routeBySymbol.values());
+    }
+
+    public int size() {
+        return snapshot.routeBySymbol.size();
+    }
+
+    private static int mix(final long key) {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private final static class Snapshot {
+
+        private final long[] keys;
+
+        private final Route[] routes;
+
+        private final Map<BitfinexStreamSymbol, Route> routeBySymbol;
+
+        private Snapshot(final long[] keys, final Route[] routes,
+                         final Map<BitfinexStreamSymbol, Route> routeBySymbol) {
+            this.keys = keys;
+            this.routes = routes;
+            this.routeBySymbol = routeBySymbol;
+        }
+
+        private static Snapshot of(final Map<Long, Route> entries) {
+            int capacity = MIN_CAPACITY;
+            while (capacity < entries.size() * 2) {
+                capacity <<= 1;
+            }
+
+            final long[] keys = new long[capacity];
+            final Route[] routes = new Route[capacity];
+            final Map<BitfinexStreamSymbol, Route> routeBySymbol = new HashMap<>();
+            final int mask = capacity - 1;
+
+            for (final Route route : entries.values()) {
+                int index = mix(route.key) & mask;
+                while (keys[index] != FREE) {
+                    index = (index + 1) & mask;
+                }
+                keys[index] = route.key;
+                routes[index] = route;
+                routeBySymbol.put(route.getSymbol(), route);
+            }
+
+            return new Snapshot(keys, routes, routeBySymbol);
+        }
+
+        private Map<Long, Route> toMap() {
+            final Map<Long, Route> entries = new HashMap<>();
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != FREE) {
+                    entries.put(keys[i], routes[i]);
+                }
+            }
+            return entries;
+        }
+    }
+}
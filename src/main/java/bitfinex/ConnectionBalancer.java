@@ -0,0 +1,383 @@
+/*******************************************************************************
+ *
+ *    Copyright (C) 2015-2018 Jan Kristof Nidzwetzki
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License. 
+ *
+ *******************************************************************************/
+package bitfinex;
+
+import bitfinex.entity.BitfinexStreamSymbol;
+import velox.api.layer1.common.Log;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Places the channels of a {@link BitfinexApiBroker} on its connections. All channels of an
+ * instrument share a connection, so they are applied by the same receive thread. A new
+ * instrument goes to the connection with the lowest load, counting both the observed
+ * message rate and the number of channels. While running, the message rates are measured
+ * periodically and a hot instrument is moved when the connections get out of balance.
+ * When every open connection is full, another one is opened, up to the maximum of the pool.
+ */
+public class ConnectionBalancer implements Closeable {
+
+    public final static int DEFAULT_MAX_CHANNELS_PER_CONNECTION = 30;
+
+    public final static long DEFAULT_REBALANCE_INTERVAL_MILLIS = 60_000;
+
+    /**
+     * Load of a channel before its rate is known, in messages per second
+     */
+    private final static double CHANNEL_WEIGHT = 10;
+
+    /**
+     * Channels of an instrument that has no channel yet (book and trades)
+     */
+    private final static int EXPECTED_CHANNELS = 2;
+
+    /**
+     * Rebalance when the hottest connection has this much more load than the coldest
+     */
+    private final static double IMBALANCE_RATIO = 1.5;
+
+    /**
+     * Moving an instrument costs a new snapshot, so below this rate the connections are left alone
+     */
+    private final static double MIN_REBALANCE_RATE = 100;
+
+    private final BitfinexApiBroker bitfinexApiBroker;
+
+    /**
+     * Open connections, grows up to maxConnectionCount when they are full
+     */
+    private volatile int connectionCount;
+
+    private final int maxConnectionCount;
+
+    private final int maxChannelsPerConnection;
+
+    private final Map<Object, Integer> connectionByInstrument = new HashMap<>();
+
+    private final Map<BitfinexStreamSymbol, Integer> connectionBySymbol = new HashMap<>();
+
+    /**
+     * Messages per second of each connection, as of the last measurement
+     */
+    private volatile double[] connectionRates;
+
+    /**
+     * Message counts of the last measurement, only used by the rebalance thread
+     */
+    private final Map<ChannelRoutingTable.Route, Long> lastMessages = new HashMap<>();
+
+    private long lastMeasurement;
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Interval of the rebalance thread, 0 until started and after close
+     */
+    private long intervalMillis;
+
+    public ConnectionBalancer(final BitfinexApiBroker bitfinexApiBroker, final int connectionCount,
+                              final int maxConnectionCount, final int maxChannelsPerConnection) {
+        this.bitfinexApiBroker = bitfinexApiBroker;
+        this.connectionCount = connectionCount;
+        this.maxConnectionCount = Math.max(connectionCount, maxConnectionCount);
+        this.maxChannelsPerConnection = maxChannelsPerConnection;
+        this.connectionRates = new double[connectionCount];
+    }
+
+    /**
+     * Get the connection for a new channel of the symbol
+     *
+     * @param symbol
+     * @return index of the connection
+     */
+    public synchronized int place(final BitfinexStreamSymbol symbol) {
+        final Object instrument = StreamSymbols.instrumentOf(symbol);
+        Integer connection = connectionByInstrument.get(instrument);
+
+        if (connection == null) {
+            // The two feeds of a dual fed instrument must not share a connection
+            final Integer counterpart = connectionByInstrument.get(StreamSymbols.counterpartOf(instrument));
+            connection = leastLoaded(counterpart == null ? -1 : counterpart);
+            connectionByInstrument.put(instrument, connection);
+        }
+
+        connectionBySymbol.put(symbol, connection);
+        return connection;
+    }
+
+    /**
+     * @param symbol
+     * @return the connection the symbol is placed on or -1
+     */
+    public synchronized int getConnection(final BitfinexStreamSymbol symbol) {
+        final Integer connection = connectionBySymbol.get(symbol);
+        return connection == null ? -1 : connection;
+    }
+
+    /**
+     * Forget a symbol that is no longer subscribed
+     *
+     * @param symbol
+     */
+    public synchronized void release(final BitfinexStreamSymbol symbol) {
+        if (connectionBySymbol.remove(symbol) == null) {
+            return;
+        }
+
+        final Object instrument = StreamSymbols.instrumentOf(symbol);
+
+        for (final BitfinexStreamSymbol other : connectionBySymbol.keySet()) {
+            if (StreamSymbols.instrumentOf(other).equals(instrument)) {
+                return;
+            }
+        }
+
+        connectionByInstrument.remove(instrument);
+    }
+
+    public synchronized int getChannelCount(final int connection) {
+        int channels = 0;
+        for (final Integer placed : connectionBySymbol.values()) {
+            if (placed == connection) {
+                channels++;
+            }
+        }
+        return channels;
+    }
+
+    /**
+     * Messages per second of the connection, as of the last measurement
+     *
+     * @param connection
+     * @return
+     */
+    public double getMessageRate(final int connection) {
+        return connectionRates[connection];
+    }
+
+    private int leastLoaded(final int excluded) {
+        final double[] rates = connectionRates;
+
+        int best = -1;
+        double bestLoad = Double.MAX_VALUE;
+        int fewest = excluded == 0 && connectionCount > 1 ? 1 : 0;
+
+        for (int i = 0; i < connectionCount; i++) {
+            if (i == excluded) {
+                continue;
+            }
+
+            final int channels = getChannelCount(i);
+
+            if (channels < getChannelCount(fewest)) {
+                fewest = i;
+            }
+
+            if (channels + EXPECTED_CHANNELS > maxChannelsPerConnection) {
+                continue;
+            }
+
+            final double load = rates[i] + channels * CHANNEL_WEIGHT;
+            if (load < bestLoad) {
+                bestLoad = load;
+                best = i;
+            }
+        }
+
+        if (best == -1 && connectionCount < maxConnectionCount) {
+            best = grow();
+        }
+
+        if (best == -1) {
+            Log.warn("All " + connectionCount + " connections carry " + maxChannelsPerConnection
+                    + " channels, the server may reject further subscriptions. Configure more connections,"
+                    + " see BitfinexApiBroker#setMaxConnectionCount");
+            return fewest;
+        }
+
+        return best;
+    }
+
+    /**
+     * Open another connection for the channels that do not fit on the open ones
+     *
+     * @return the index of the new connection, or -1 if it could not be opened
+     */
+    private int grow() {
+        final int connection = bitfinexApiBroker.addConnection();
+
+        if (connection == -1) {
+            return -1;
+        }
+
+        connectionCount = connection + 1;
+        connectionRates = Arrays.copyOf(connectionRates, connectionCount);
+        Log.info("Opened connection " + connection + ", the others are full or excluded");
+
+        if (intervalMillis > 0) {
+            start(intervalMillis);
+        }
+        return connection;
+    }
+
+    public synchronized void start(final long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+
+        if (scheduler != null || connectionCount < 2) {
+            return;
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "bitfinex-connection-balancer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                rebalance();
+            } catch (RuntimeException e) {
+                Log.error("Got exception while rebalancing connections", e);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void close() {
+        intervalMillis = 0;
+
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Measure the message rates and move one instrument from the hottest to the
+     * coldest connection if that narrows the gap between them
+     */
+    void rebalance() {
+        final long now = System.nanoTime();
+        final double seconds = lastMeasurement == 0 ? 0 : (now - lastMeasurement) / 1e9;
+        lastMeasurement = now;
+
+        final int connectionCount = this.connectionCount;
+        final double[] rates = new double[connectionCount];
+        final Map<Object, Double> instrumentRates = new HashMap<>();
+        final Map<Object, Integer> instrumentConnections = new HashMap<>();
+        final Map<ChannelRoutingTable.Route, Long> messages = new HashMap<>();
+
+        for (final ChannelRoutingTable.Route route : bitfinexApiBroker.getChannelRoutingTable().getRoutes()) {
+            final long count = route.getMessages();
+            final Long last = lastMessages.get(route);
+            messages.put(route, count);
+
+            if (seconds == 0 || route.getConnection() >= connectionCount) {
+                continue;
+            }
+
+            final double rate = (count - (last == null ? 0 : last)) / seconds;
+            final Object instrument = StreamSymbols.instrumentOf(route.getSymbol());
+            rates[route.getConnection()] += rate;
+            instrumentRates.merge(instrument, rate, Double::sum);
+            instrumentConnections.put(instrument, route.getConnection());
+        }
+
+        lastMessages.clear();
+        lastMessages.putAll(messages);
+
+        if (seconds == 0) {
+            return;
+        }
+
+        connectionRates = rates;
+
+        int hot = 0;
+        int cold = 0;
+        for (int i = 1; i < connectionCount; i++) {
+            if (rates[i] > rates[hot]) {
+                hot = i;
+            }
+            if (rates[i] < rates[cold]) {
+                cold = i;
+            }
+        }
+
+        if (rates[hot] < MIN_REBALANCE_RATE || rates[hot] < rates[cold] * IMBALANCE_RATIO) {
+            return;
+        }
+
+        // Moving rate r leaves max(hot - r, cold + r), best for r close to half the gap
+        final double gap = rates[hot] - rates[cold];
+        Object candidate = null;
+        double bestGain = 0;
+
+        for (final Map.Entry<Object, Double> entry : instrumentRates.entrySet()) {
+            if (instrumentConnections.get(entry.getKey()) != hot || isDualFed(entry.getKey())) {
+                continue;
+            }
+            final double gain = Math.min(entry.getValue(), gap - entry.getValue());
+            if (gain > bestGain) {
+                bestGain = gain;
+                candidate = entry.getKey();
+            }
+        }
+
+        if (candidate == null || bestGain < gap / 4
+                || getChannelCount(cold) + EXPECTED_CHANNELS > maxChannelsPerConnection) {
+            return;
+        }
+
+        move(candidate, hot, cold);
+    }
+
+    /**
+     * Dual fed instruments stay where they are, a move could put both feeds on one connection
+     */
+    private synchronized boolean isDualFed(final Object instrument) {
+        return connectionByInstrument.containsKey(StreamSymbols.counterpartOf(instrument));
+    }
+
+    private void move(final Object instrument, final int from, final int to) {
+        final List<BitfinexStreamSymbol> symbols = new ArrayList<>();
+
+        synchronized (this) {
+            connectionByInstrument.put(instrument, to);
+            for (final Map.Entry<BitfinexStreamSymbol, Integer> entry : connectionBySymbol.entrySet()) {
+                if (StreamSymbols.instrumentOf(entry.getKey()).equals(instrument)) {
+                    entry.setValue(to);
+                    symbols.add(entry.getKey());
+                }
+            }
+        }
+
+        Log.info("Moving " + instrument + " from connection " + from + " to connection " + to);
+
+        for (final BitfinexStreamSymbol symbol : symbols) {
+            bitfinexApiBroker.resubscribeChannel(symbol);
+        }
+    }
+}
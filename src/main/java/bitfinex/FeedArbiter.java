@@ -0,0 +1,888 @@
+/*******************************************************************************
+ *
+ *    Copyright (C) 2015-2018 Jan Kristof Nidzwetzki
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License. 
+ *
+ *******************************************************************************/
+package bitfinex;
+
+import bitfinex.callback.channel.ChannelCallbackHandler;
+import bitfinex.callback.channel.DecodedFrame;
+import bitfinex.entity.BitfinexStreamSymbol;
+import bitfinex.util.LongLongHashMap;
+import com.google.gson.JsonArray;
+import velox.api.layer1.common.Log;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Merges the copies of one stream that are received on two connections, see
+ * {@link BitfinexApiBroker#enableDualFeed(bitfinex.entity.BitfinexCurrencyPair)}.
+ * Every update is delivered once, from the feed that receives it first.
+ * <p>
+ * Trades are matched by their id. The sequence numbers of the two connections are
+ * unrelated, so book updates are matched by their position after a book state both
+ * feeds have seen: the feed whose snapshot is delivered defines position 0, a feed
+ * that joins later is aligned by the only shift that matches its checksums with the
+ * ones of the delivered entries. Afterwards the checksums of each feed are compared
+ * with the delivered ones, a feed that diverges is resubscribed.
+ * <p>
+ * Called from the receive threads of both connections, the winning frames are handed
+ * to the broker while the arbiter is locked, so they keep their order.
+ */
+public class FeedArbiter {
+
+    public final static int FEEDS = 2;
+
+    /**
+     * A feed without frames for longer is considered lost, channels send a heartbeat every 15 s
+     */
+    private final static long STALE_NANOS = TimeUnit.SECONDS.toNanos(20);
+
+    /**
+     * Book positions with a checksum, kept to align and cross check the feeds
+     */
+    private final static int CHECKPOINTS = 1024;
+
+    /**
+     * Checksums of a feed that is not aligned yet
+     */
+    private final static int ALIGN_CHECKPOINTS = 64;
+
+    /**
+     * Delivered book positions and trade ids whose arrival is kept for the lead statistics
+     */
+    private final static int ARRIVALS = 4096;
+
+    /**
+     * Frames a feed that is aligned ahead of the delivered entries keeps until the other feed catches up
+     */
+    private final static int BACKLOG = 256;
+
+    /**
+     * Checkpoints a shift must agree with to align a feed
+     */
+    private final static int MIN_ALIGN_MATCHES = 3;
+
+    /**
+     * Shifts are stored as map keys, which must not be 0
+     */
+    private final static long SHIFT_KEY_OFFSET = 1L << 62;
+
+    private final BitfinexApiBroker bitfinexApiBroker;
+
+    private final BitfinexStreamSymbol symbol;
+
+    private final boolean book;
+
+    private final Supplier<ChannelCallbackHandler> handlerFactory;
+
+    private final Feed[] feeds = new Feed[FEEDS];
+
+    /**
+     * Handler of the merged stream, replaced when no feed is left to continue it
+     */
+    private ChannelCallbackHandler target;
+
+    private int leader = -1;
+
+    /**
+     * Book entries delivered after the snapshot of the target
+     */
+    private long delivered;
+
+    private long checksumPosition;
+
+    private final long[] checkpointPositions = new long[CHECKPOINTS];
+
+    private final int[] checkpointChecksums = new int[CHECKPOINTS];
+
+    private final byte[] checkpointFeeds = new byte[CHECKPOINTS];
+
+    private long checkpointCount;
+
+    private final long[] arrivalNanos = new long[ARRIVALS];
+
+    private final byte[] arrivalFeeds = new byte[ARRIVALS];
+
+    /**
+     * Delivered trade ids -> arrival nanos with the winning feed in the lowest bit
+     */
+    private final LongLongHashMap tradeArrivals = new LongLongHashMap(ARRIVALS);
+
+    private final long[] tradeIds = new long[ARRIVALS];
+
+    private long tradeCount;
+
+    private final LongLongHashMap testedShifts = new LongLongHashMap();
+
+    private long joins;
+
+    private final DecodedFrame slice = new DecodedFrame();
+
+    private final long[] wins = new long[FEEDS];
+
+    private final long[] duplicates = new long[FEEDS];
+
+    private final long[] leads = new long[FEEDS];
+
+    private final long[] leadNanos = new long[FEEDS];
+
+    private final long[] maxLeadNanos = new long[FEEDS];
+
+    private final long[] divergences = new long[FEEDS];
+
+    FeedArbiter(final BitfinexApiBroker bitfinexApiBroker, final BitfinexStreamSymbol symbol,
+                final Supplier<ChannelCallbackHandler> handlerFactory) {
+        this.bitfinexApiBroker = bitfinexApiBroker;
+        this.symbol = symbol;
+        this.book = StreamSymbols.isBook(symbol);
+        this.handlerFactory = handlerFactory;
+    }
+
+    /**
+     * One subscription of the stream. Replaced by a new instance when the channel is subscribed again.
+     */
+    public final class Feed {
+
+        private final int index;
+
+        private final BitfinexStreamSymbol feedSymbol;
+
+        private boolean retired;
+
+        /**
+         * The snapshot of this feed is delivered to the target
+         */
+        private boolean owner;
+
+        private boolean snapshotSeen;
+
+        private boolean inSnapshot;
+
+        /**
+         * Book position of the feed is known
+         */
+        private boolean aligned;
+
+        private long position;
+
+        /**
+         * Entries after the snapshot while the feed is not aligned
+         */
+        private long offset;
+
+        private final long[] pendingOffsets = new long[ALIGN_CHECKPOINTS];
+
+        private final int[] pendingChecksums = new int[ALIGN_CHECKPOINTS];
+
+        private long pendingCount;
+
+        /**
+         * Order in which the feeds got their position, the later one is suspected when two disagree
+         */
+        private long joined;
+
+        /**
+         * Entries of the feed were delivered since the stream started
+         */
+        private boolean led;
+
+        private DecodedFrame[] backlog;
+
+        private long[] backlogNanos;
+
+        private long backlogFirst;
+
+        private int backlogHead;
+
+        private int backlogSize;
+
+        private long lastFrameNanos;
+
+        private Feed(final int index, final BitfinexStreamSymbol feedSymbol, final long now) {
+            this.index = index;
+            this.feedSymbol = feedSymbol;
+            this.lastFrameNanos = now;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public BitfinexStreamSymbol getSymbol() {
+            return feedSymbol;
+        }
+
+        void onFrame(final DecodedFrame frame) {
+            synchronized (FeedArbiter.this) {
+                if (!retired) {
+                    handleFrame(this, frame);
+                }
+            }
+        }
+
+        /**
+         * Frames of unknown shape can not be matched, they are passed on from the leading feed only
+         */
+        void onFrame(final JsonArray jsonArray) {
+            synchronized (FeedArbiter.this) {
+                if (!retired) {
+                    lastFrameNanos = System.nanoTime();
+                    if (leader == index) {
+                        bitfinexApiBroker.handleChannelData(target, jsonArray);
+                    }
+                }
+            }
+        }
+
+        private boolean isDelivering(final long now) {
+            return !retired && (owner || aligned || !book) && now - lastFrameNanos < STALE_NANOS;
+        }
+    }
+
+    /**
+     * Start a feed for a newly routed channel. Without another feed to continue the
+     * stream, the snapshot of the new feed starts it over with a new target handler.
+     *
+     * @param index       the feed
+     * @param feedSymbol  the symbol the channel was subscribed with
+     * @return
+     */
+    synchronized Feed attach(final int index, final BitfinexStreamSymbol feedSymbol) {
+        final long now = System.nanoTime();
+        final Feed feed = new Feed(index, feedSymbol, now);
+
+        if (feeds[index] != null) {
+            feeds[index].retired = true;
+        }
+        feeds[index] = feed;
+
+        if (target == null || !hasDeliveringFeed(index, now)) {
+            restart();
+            feed.owner = true;
+            leader = index;
+        }
+
+        Log.info("Feed " + index + " of " + symbol + (feed.owner ? " starts the stream" : " joins the stream"));
+        return feed;
+    }
+
+    /**
+     * Drop all feeds, the next attached feed starts the stream over
+     */
+    synchronized void reset() {
+        for (final Feed feed : feeds) {
+            if (feed != null) {
+                feed.retired = true;
+            }
+        }
+        target = null;
+        leader = -1;
+    }
+
+    /**
+     * Seed the new users of the merged stream, see {@link BitfinexApiBroker#requestSeed(BitfinexStreamSymbol)}.
+     * Frames reach the target under the lock of the arbiter, so does the request.
+     */
+    synchronized void requestSeed() {
+        if (target != null) {
+            bitfinexApiBroker.seed(target);
+        }
+    }
+
+    public BitfinexStreamSymbol getSymbol() {
+        return symbol;
+    }
+
+    private void restart() {
+        target = handlerFactory.get();
+        delivered = 0;
+        checksumPosition = 0;
+        checkpointCount = 0;
+        tradeArrivals.clear();
+        tradeCount = 0;
+
+        // Positions of the remaining feeds refer to the old stream, they are aligned again
+        for (final Feed feed : feeds) {
+            if (feed != null) {
+                feed.owner = false;
+                feed.aligned = false;
+                feed.led = false;
+                feed.offset = feed.position;
+                feed.pendingCount = 0;
+                feed.backlogSize = 0;
+            }
+        }
+    }
+
+    private boolean hasDeliveringFeed(final int except, final long now) {
+        for (final Feed feed : feeds) {
+            if (feed != null && feed.index != except && feed.isDelivering(now)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void handleFrame(final Feed feed, final DecodedFrame frame) {
+        final long now = System.nanoTime();
+        feed.lastFrameNanos = now;
+
+        switch (frame.getType()) {
+            case HEARTBEAT:
+            case TRADE_UPDATE:
+                return;
+            case CHECKSUM:
+                if (book) {
+                    handleChecksum(feed, frame, now);
+                }
+                return;
+            default:
+                if (book) {
+                    handleBookFrame(feed, frame, now);
+                } else {
+                    handleTradeFrame(feed, frame, now);
+                }
+        }
+    }
+
+    private void handleBookFrame(final Feed feed, final DecodedFrame frame, final long now) {
+        if (frame.getType() == DecodedFrame.Type.ENTRY_LIST && frame.isFirstPart() && !feed.snapshotSeen) {
+            feed.snapshotSeen = true;
+            feed.inSnapshot = true;
+        }
+
+        if (!feed.snapshotSeen) {
+            return;
+        }
+
+        if (feed.inSnapshot) {
+            // Only the snapshot that starts the stream is delivered, a joining feed is aligned by its checksums
+            if (feed.owner) {
+                bitfinexApiBroker.handleChannelData(target, frame);
+            }
+            if (frame.isLastPart()) {
+                feed.inSnapshot = false;
+                feed.aligned = feed.owner;
+                feed.joined = ++joins;
+            }
+            return;
+        }
+
+        final int rows = frame.getRowCount();
+
+        if (!feed.aligned) {
+            feed.offset += rows;
+            promoteIfAlone(feed, now);
+            return;
+        }
+
+        final long first = feed.position + 1;
+        feed.position += rows;
+
+        if (first > delivered + 1) {
+            // Aligned ahead of the delivered entries, kept until the other feed delivers the ones in between
+            addBacklog(feed, frame, first, now);
+            promoteIfAlone(feed, now);
+            return;
+        }
+
+        deliverBookRows(feed, frame, first, now);
+        drainBacklogs();
+    }
+
+    private void deliverBookRows(final Feed feed, final DecodedFrame frame, final long first, final long arrival) {
+        final int rows = frame.getRowCount();
+        final long last = first + rows - 1;
+        final int fresh = (int) Math.max(0, last - delivered);
+        final int stale = rows - fresh;
+
+        for (int i = 0; i < stale; i++) {
+            countDuplicate(feed, first + i, arrival);
+        }
+
+        if (fresh == 0) {
+            return;
+        }
+
+        for (long position = delivered + 1; position <= last; position++) {
+            final int slot = (int) (position & (ARRIVALS - 1));
+            arrivalNanos[slot] = arrival;
+            arrivalFeeds[slot] = (byte) feed.index;
+        }
+
+        wins[feed.index] += fresh;
+        delivered = last;
+        leader = feed.index;
+        feed.led = true;
+
+        if (stale == 0) {
+            bitfinexApiBroker.handleChannelData(target, frame);
+        } else {
+            slice.copyHeader(frame);
+            for (int row = stale; row < rows; row++) {
+                slice.appendRow(frame, row);
+            }
+            bitfinexApiBroker.handleChannelData(target, slice);
+        }
+    }
+
+    private void addBacklog(final Feed feed, final DecodedFrame frame, final long first, final long now) {
+        if (feed.backlog == null) {
+            feed.backlog = new DecodedFrame[BACKLOG];
+            feed.backlogNanos = new long[BACKLOG];
+            for (int i = 0; i < BACKLOG; i++) {
+                feed.backlog[i] = new DecodedFrame();
+            }
+        }
+
+        // Too far ahead to catch up, the other feed keeps delivering these entries
+        if (feed.backlogSize == BACKLOG) {
+            feed.backlogSize = 0;
+        }
+
+        if (feed.backlogSize == 0) {
+            feed.backlogHead = 0;
+            feed.backlogFirst = first;
+        }
+
+        final int slot = (feed.backlogHead + feed.backlogSize) % BACKLOG;
+        final DecodedFrame copy = feed.backlog[slot];
+        copy.copyHeader(frame);
+        for (int row = 0; row < frame.getRowCount(); row++) {
+            copy.appendRow(frame, row);
+        }
+        feed.backlogNanos[slot] = now;
+        feed.backlogSize++;
+    }
+
+    /**
+     * Deliver the kept frames that follow the delivered entries. A feed that was ahead
+     * takes the lead this way once the other feed filled the gap.
+     */
+    private void drainBacklogs() {
+        boolean progress = true;
+
+        while (progress) {
+            progress = false;
+
+            for (final Feed feed : feeds) {
+                while (feed != null && !feed.retired && feed.backlogSize > 0 && feed.backlogFirst <= delivered + 1) {
+                    final DecodedFrame frame = feed.backlog[feed.backlogHead];
+                    final long first = feed.backlogFirst;
+                    final long arrival = feed.backlogNanos[feed.backlogHead];
+
+                    feed.backlogFirst += frame.getRowCount();
+                    feed.backlogHead = (feed.backlogHead + 1) % BACKLOG;
+                    feed.backlogSize--;
+
+                    final long before = delivered;
+                    deliverBookRows(feed, frame, first, arrival);
+                    progress |= delivered != before;
+                }
+            }
+        }
+    }
+
+    private void countDuplicate(final Feed feed, final long position, final long now) {
+        duplicates[feed.index]++;
+
+        if (delivered - position < ARRIVALS) {
+            final int slot = (int) (position & (ARRIVALS - 1));
+            countLead(arrivalFeeds[slot], now - arrivalNanos[slot]);
+        }
+    }
+
+    private void countLead(final int winner, final long lead) {
+        // A kept frame of a feed that was ahead can arrive before the entries it lost to
+        if (lead < 0) {
+            return;
+        }
+
+        leads[winner]++;
+        leadNanos[winner] += lead;
+        maxLeadNanos[winner] = Math.max(maxLeadNanos[winner], lead);
+    }
+
+    private void handleChecksum(final Feed feed, final DecodedFrame frame, final long now) {
+        if (!feed.snapshotSeen || feed.inSnapshot) {
+            return;
+        }
+
+        final int checksum = (int) frame.getLong(0, 0);
+
+        if (!feed.aligned) {
+            addPendingChecksum(feed, checksum);
+            promoteIfAlone(feed, now);
+            return;
+        }
+
+        final long position = feed.position;
+        final int known = findCheckpoint(position);
+
+        if (known >= 0) {
+            if (checkpointChecksums[known] != checksum) {
+                // The feed that got its position later is the one that may be misaligned
+                final Feed recorder = feeds[checkpointFeeds[known]];
+                final boolean recorderSuspect = recorder != null && recorder != feed && !recorder.retired
+                        && recorder.joined > feed.joined;
+                diverged(recorderSuspect ? recorder : feed, position);
+                return;
+            }
+        } else if (position <= delivered && (checkpointCount == 0
+                || position > checkpointPositions[(int) ((checkpointCount - 1) % CHECKPOINTS)])) {
+            // Only delivered entries are checkpoints, a feed that is ahead is checked once they are delivered
+            addCheckpoint(feed, position, checksum);
+        }
+
+        if (position == delivered && position >= checksumPosition && leader == feed.index) {
+            checksumPosition = position + 1;
+            bitfinexApiBroker.handleChannelData(target, frame);
+        }
+    }
+
+    /**
+     * @param position
+     * @return the slot of the checkpoint at the position or -1
+     */
+    private int findCheckpoint(final long position) {
+        long low = Math.max(0, checkpointCount - CHECKPOINTS);
+        long high = checkpointCount - 1;
+
+        while (low <= high) {
+            final long middle = (low + high) >>> 1;
+            final int slot = (int) (middle % CHECKPOINTS);
+            final long candidate = checkpointPositions[slot];
+
+            if (candidate < position) {
+                low = middle + 1;
+            } else if (candidate > position) {
+                high = middle - 1;
+            } else {
+                return slot;
+            }
+        }
+
+        return -1;
+    }
+
+    private void addCheckpoint(final Feed recorder, final long position, final int checksum) {
+        final boolean changed = checkpointCount == 0
+                || checkpointChecksums[(int) ((checkpointCount - 1) % CHECKPOINTS)] != checksum;
+
+        final int slot = (int) (checkpointCount % CHECKPOINTS);
+        checkpointPositions[slot] = position;
+        checkpointChecksums[slot] = checksum;
+        checkpointFeeds[slot] = (byte) recorder.index;
+        checkpointCount++;
+
+        // A feed that is ahead of the others can only be aligned by checkpoints that arrive later
+        if (changed) {
+            for (final Feed feed : feeds) {
+                if (feed != null && !feed.retired && !feed.aligned && feed.pendingCount > 0) {
+                    align(feed);
+                }
+            }
+        }
+    }
+
+    private void addPendingChecksum(final Feed feed, final int checksum) {
+        final boolean changed = feed.pendingCount == 0
+                || feed.pendingChecksums[(int) ((feed.pendingCount - 1) % ALIGN_CHECKPOINTS)] != checksum;
+
+        final int slot = (int) (feed.pendingCount % ALIGN_CHECKPOINTS);
+        feed.pendingOffsets[slot] = feed.offset;
+        feed.pendingChecksums[slot] = checksum;
+        feed.pendingCount++;
+
+        if (changed) {
+            align(feed);
+        }
+    }
+
+    /**
+     * Find the book position of a feed. A checksum stays the same while updates do not
+     * reach the top levels, so a single equal checksum does not tell the position.
+     * The shift from the entries of the feed to the book positions is accepted if it
+     * agrees with every checkpoint both have, covers a change of the checksum and
+     * every other shift with an equal checksum is contradicted.
+     */
+    private void align(final Feed feed) {
+        testedShifts.clear();
+
+        long shift = 0;
+        int shifts = 0;
+        boolean strong = false;
+
+        for (long i = Math.max(0, feed.pendingCount - ALIGN_CHECKPOINTS); i < feed.pendingCount; i++) {
+            final int pending = (int) (i % ALIGN_CHECKPOINTS);
+
+            for (long j = Math.max(0, checkpointCount - CHECKPOINTS); j < checkpointCount; j++) {
+                final int slot = (int) (j % CHECKPOINTS);
+
+                if (checkpointChecksums[slot] != feed.pendingChecksums[pending]) {
+                    continue;
+                }
+
+                final long candidate = checkpointPositions[slot] - feed.pendingOffsets[pending];
+                final long key = candidate + SHIFT_KEY_OFFSET;
+
+                if (testedShifts.containsKey(key)) {
+                    continue;
+                }
+                testedShifts.put(key, 1);
+
+                final int agreement = agreement(feed, candidate);
+                if (agreement < 0) {
+                    continue;
+                }
+
+                if (++shifts > 1) {
+                    return;
+                }
+                shift = candidate;
+                strong = agreement > 0;
+            }
+        }
+
+        if (shifts != 1 || !strong) {
+            return;
+        }
+
+        feed.aligned = true;
+        feed.joined = ++joins;
+        feed.position = feed.offset + shift;
+        feed.pendingCount = 0;
+        Log.info("Feed " + feed.index + " of " + symbol + " is aligned at entry " + feed.position
+                + ", " + delivered + " entries are delivered");
+    }
+
+    /**
+     * @return -1 if a checkpoint contradicts the shift, 1 if enough checkpoints confirm it, 0 otherwise
+     */
+    private int agreement(final Feed feed, final long shift) {
+        int matched = 0;
+        int changes = 0;
+        int lastChecksum = 0;
+
+        for (long i = Math.max(0, feed.pendingCount - ALIGN_CHECKPOINTS); i < feed.pendingCount; i++) {
+            final int pending = (int) (i % ALIGN_CHECKPOINTS);
+            final int slot = findCheckpoint(feed.pendingOffsets[pending] + shift);
+
+            if (slot < 0) {
+                continue;
+            }
+
+            final int checksum = feed.pendingChecksums[pending];
+
+            if (checkpointChecksums[slot] != checksum) {
+                return -1;
+            }
+
+            if (matched > 0 && checksum != lastChecksum) {
+                changes++;
+            }
+            lastChecksum = checksum;
+            matched++;
+        }
+
+        return matched >= MIN_ALIGN_MATCHES && changes > 0 ? 1 : 0;
+    }
+
+    /**
+     * A feed that can not be aligned because the other feed is gone restarts the stream
+     */
+    private void promoteIfAlone(final Feed feed, final long now) {
+        if (hasDeliveringFeed(feed.index, now)) {
+            return;
+        }
+
+        Log.warn("No feed of " + symbol + " is delivering, restarting the stream from feed " + feed.index);
+        bitfinexApiBroker.restartDualFeed(symbol);
+    }
+
+    private void diverged(final Feed feed, final long position) {
+        divergences[feed.index]++;
+
+        if (feed.led) {
+            // Entries of the feed were delivered, the merged book can not be trusted anymore
+            Log.warn("Feed " + feed.index + " of " + symbol + " diverged at entry " + position + ", restarting the stream");
+            bitfinexApiBroker.restartDualFeed(symbol);
+            return;
+        }
+
+        feed.retired = true;
+        Log.warn("Feed " + feed.index + " of " + symbol + " diverged at entry " + position + ", resubscribing it");
+        bitfinexApiBroker.resubscribeChannel(feed.feedSymbol);
+    }
+
+    private void handleTradeFrame(final Feed feed, final DecodedFrame frame, final long now) {
+        // The first list of a trades channel holds recent trades, its duplicates say nothing about latency
+        final boolean snapshot = frame.getType() == DecodedFrame.Type.ENTRY_LIST && !feed.snapshotSeen;
+        if (frame.getType() == DecodedFrame.Type.ENTRY_LIST) {
+            feed.snapshotSeen = true;
+        }
+
+        final int rows = frame.getRowCount();
+        int fresh = 0;
+        boolean sliced = false;
+
+        for (int row = 0; row < rows; row++) {
+            final long id = frame.getLong(row, 0);
+            final long arrival = tradeArrivals.get(id, 0);
+
+            if (arrival != 0) {
+                duplicates[feed.index]++;
+                if (!snapshot) {
+                    countLead((int) (arrival & 1), now - arrival);
+                }
+
+                // The rows are copied once the first duplicate shows up
+                if (!sliced) {
+                    sliced = true;
+                    slice.copyHeader(frame);
+                    for (int previous = 0; previous < row; previous++) {
+                        slice.appendRow(frame, previous);
+                    }
+                }
+                continue;
+            }
+
+            if (sliced) {
+                slice.appendRow(frame, row);
+            }
+            fresh++;
+            addTrade(id, (now & ~1L) | feed.index);
+        }
+
+        if (fresh == 0) {
+            return;
+        }
+
+        wins[feed.index] += fresh;
+        leader = feed.index;
+        bitfinexApiBroker.handleChannelData(target, sliced ? slice : frame);
+    }
+
+    private void addTrade(final long id, final long arrival) {
+        final int slot = (int) (tradeCount % ARRIVALS);
+
+        if (tradeCount >= ARRIVALS) {
+            tradeArrivals.remove(tradeIds[slot]);
+        }
+
+        tradeIds[slot] = id;
+        tradeArrivals.put(id, arrival == 0 ? 1 : arrival);
+        tradeCount++;
+    }
+
+    /**
+     * Book entries or trades the feed delivered first
+     *
+     * @param feed
+     * @return
+     */
+    public synchronized long getWins(final int feed) {
+        return wins[feed];
+    }
+
+    /**
+     * Share of the updates the feed delivered first, between 0 and 1
+     *
+     * @param feed
+     * @return
+     */
+    public synchronized double getWinRate(final int feed) {
+        long total = 0;
+        for (final long count : wins) {
+            total += count;
+        }
+        return total == 0 ? 0 : (double) wins[feed] / total;
+    }
+
+    /**
+     * Updates of the feed that were dropped because the other feed delivered them before
+     *
+     * @param feed
+     * @return
+     */
+    public synchronized long getDuplicates(final int feed) {
+        return duplicates[feed];
+    }
+
+    /**
+     * Mean time the feed was ahead of the other feed, over the updates it delivered first
+     * and the other feed received as well
+     *
+     * @param feed
+     * @return
+     */
+    public synchronized long getMeanLeadNanos(final int feed) {
+        return leads[feed] == 0 ? 0 : leadNanos[feed] / leads[feed];
+    }
+
+    public synchronized long getMaxLeadNanos(final int feed) {
+        return maxLeadNanos[feed];
+    }
+
+    /**
+     * Number of times the feed disagreed with the checksums of the other feed
+     *
+     * @param feed
+     * @return
+     */
+    public synchronized long getDivergences(final int feed) {
+        return divergences[feed];
+    }
+
+    public synchronized boolean isDelivering(final int feed) {
+        return feeds[feed] != null && feeds[feed].isDelivering(System.nanoTime());
+    }
+
+    /**
+     * Book entries the feed received since the snapshot the stream started from
+     *
+     * @param feed
+     * @return -1 if the feed is not aligned with the stream or the stream is not a book
+     */
+    public synchronized long getPosition(final int feed) {
+        final Feed current = feeds[feed];
+        return current == null || current.retired || !current.aligned ? -1 : current.position;
+    }
+
+    public synchronized void resetStatistics() {
+        for (int i = 0; i < FEEDS; i++) {
+            wins[i] = 0;
+            duplicates[i] = 0;
+            leads[i] = 0;
+            leadNanos[i] = 0;
+            maxLeadNanos[i] = 0;
+            divergences[i] = 0;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder sb = new StringBuilder("FeedArbiter [symbol=").append(symbol);
+        for (int i = 0; i < FEEDS; i++) {
+            sb.append(", feed").append(i).append("=[wins=").append(wins[i])
+                    .append(", duplicates=").append(duplicates[i])
+                    .append(", meanLeadMicros=").append(TimeUnit.NANOSECONDS.toMicros(getMeanLeadNanos(i)))
+                    .append(", divergences=").append(divergences[i]).append(']');
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -0,0 +1,164 @@
+/*******************************************************************************
+ *
+ *    Copyright (C) 2015-2018 Jan Kristof Nidzwetzki
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License. 
+ *
+ *******************************************************************************/
+package bitfinex;
+
+import velox.api.layer1.common.Log;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Flight recorder for the raw websocket frames. The last frames are kept in a
+ * preallocated ring buffer together with their receive time and channel and are
+ * only written to the log when something went wrong (exception, resync, reconnect).
+ * <p>
+ * Frames are recorded from the receive thread without locking. Only a bounded prefix
+ * of each frame is copied into preallocated slots, so large snapshots are not kept alive
+ * by the recorder. A dump from another thread is best effort: frames recorded while
+ * dumping may show up out of place.
+ */
+public class FrameRecorder {
+
+    public final static int DEFAULT_CAPACITY = 256;
+
+    /**
+     * Longer frames are cut when recorded
+     */
+    private final static int MAX_RECORDED_FRAME_LENGTH = 1024;
+
+    /**
+     * First characters of the frames
+     */
+    private final char[][] frames;
+
+    /**
+     * Full length of the frames, 0 for an empty slot
+     */
+    private final int[] lengths;
+
+    private final long[] timestamps;
+
+    private final int[] channels;
+
+    private final int mask;
+
+    private volatile long recorded;
+
+    public FrameRecorder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity number of frames kept, rounded up to a power of two
+     */
+    public FrameRecorder(final int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+
+        this.frames = new char[size][MAX_RECORDED_FRAME_LENGTH];
+        this.lengths = new int[size];
+        this.timestamps = new long[size];
+        this.channels = new int[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Record a frame, must only be called from the receive thread
+     *
+     * @param frame
+     * @param timestamp
+     */
+    public void record(final String frame, final long timestamp) {
+        final long sequence = recorded;
+        final int index = (int) sequence & mask;
+
+        final int length = frame.length();
+        frame.getChars(0, Math.min(length, MAX_RECORDED_FRAME_LENGTH), frames[index], 0);
+        lengths[index] = length;
+        timestamps[index] = timestamp;
+        channels[index] = parseChannel(frame);
+
+        recorded = sequence + 1;
+    }
+
+    /**
+     * Write the recorded frames to the log, oldest first
+     *
+     * @param reason
+     */
+    public void dump(final String reason) {
+        final long end = recorded;
+        final long start = Math.max(0, end - frames.length);
+
+        final SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+        final StringBuilder sb = new StringBuilder();
+        sb.append("Last ").append(end - start).append(" frames (").append(reason).append("):");
+
+        for (long sequence = start; sequence < end; sequence++) {
+            final int index = (int) sequence & mask;
+            final int length = lengths[index];
+
+            if (length == 0) {
+                continue;
+            }
+
+            sb.append('\n').append(format.format(new Date(timestamps[index])));
+            sb.append(" channel=").append(channels[index]).append(' ');
+
+            if (length > MAX_RECORDED_FRAME_LENGTH) {
+                sb.append(frames[index], 0, MAX_RECORDED_FRAME_LENGTH).append("... (").append(length).append(" chars)");
+            } else {
+                sb.append(frames[index], 0, length);
+            }
+        }
+
+        Log.warn(sb.toString());
+    }
+
+    /**
+     * Number of frames recorded so far
+     *
+     * @return
+     */
+    public long getRecordedFrames() {
+        return recorded;
+    }
+
+    /**
+     * Channel id of a [chanId,...] frame, -1 for everything else
+     */
+    private static int parseChannel(final String frame) {
+        if (frame.isEmpty() || frame.charAt(0) != '[') {
+            return -1;
+        }
+
+        int channel = 0;
+        final int end = Math.min(frame.length(), 11);
+        for (int i = 1; i < end; i++) {
+            final char c = frame.charAt(i);
+            if (c < '0' || c > '9') {
+                return i > 1 && c == ',' ? channel : -1;
+            }
+            channel = channel * 10 + (c - '0');
+        }
+
+        return -1;
+    }
+}
@@ -0,0 +1,352 @@
+/*******************************************************************************
+ *
+ *    Copyright (C) 2015-2018 Jan Kristof Nidzwetzki
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License. 
+ *
+ *******************************************************************************/
+package bitfinex;
+
+import bitfinex.callback.channel.ChannelCallbackHandler;
+import bitfinex.callback.channel.DecodedFrame;
+import com.google.gson.JsonArray;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Preallocated ring of frames between the websocket receive thread (the single producer)
+ * and one pipeline thread (the single consumer). Slots and their frames are reused,
+ * publishing a frame copies it into the slot. With several connections the receive
+ * threads take turns on a lock to publish.
+ */
+public class FrameRing {
+
+    private final static int SPIN_TRIES = 100;
+
+    private final static int YIELD_TRIES = 100;
+
+    private final static long SLEEP_NANOS = 100_000;
+
+    public final static class Slot {
+
+        private ChannelCallbackHandler handler;
+
+        private final DecodedFrame frame = new DecodedFrame();
+
+        private JsonArray json;
+
+        private AtomicLong queued;
+
+        public ChannelCallbackHandler getHandler() {
+            return handler;
+        }
+
+        public DecodedFrame getFrame() {
+            return frame;
+        }
+
+        /**
+         * The frame as JSON tree if it could not be decoded, else null
+         */
+        public JsonArray getJson() {
+            return json;
+        }
+
+        /**
+         * Counter of the queued frames the frame was counted in when it was published, or null
+         */
+        public AtomicLong getQueued() {
+            return queued;
+        }
+
+        private void clear() {
+            handler = null;
+            json = null;
+            queued = null;
+        }
+    }
+
+    private final Slot[] slots;
+
+    private final int mask;
+
+    private final WaitStrategy waitStrategy;
+
+    private final boolean multiProducer;
+
+    /**
+     * Last published and last consumed position
+     */
+    private final AtomicLong published = new AtomicLong(-1);
+
+    private final AtomicLong consumed = new AtomicLong(-1);
+
+    /**
+     * Position the consumer is applying
+     */
+    private final AtomicLong processing = new AtomicLong(-1);
+
+    /**
+     * Producer state, guarded by the lock if there are several producers
+     */
+    private long claimed = -1;
+
+    private volatile long maxDepth;
+
+    /**
+     * Consumer state, see {@link WaitStrategy#BLOCKING}
+     */
+    private volatile Thread consumerThread;
+
+    private volatile boolean consumerParked;
+
+    /**
+     * Cleared when the consumer thread ends, a producer waiting for a slot then gives up
+     */
+    private volatile boolean consumerRunning;
+
+    public FrameRing(final int size, final WaitStrategy waitStrategy) {
+        this(size, waitStrategy, false);
+    }
+
+    public FrameRing(final int size, final WaitStrategy waitStrategy, final boolean multiProducer) {
+        if (size <= 0 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("Ring size must be a power of 2: " + size);
+        }
+
+        this.slots = new Slot[size];
+        this.mask = size - 1;
+        this.waitStrategy = waitStrategy;
+        this.multiProducer = multiProducer;
+
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+    }
+
+    public void publish(final ChannelCallbackHandler handler, final DecodedFrame frame) {
+        publish(handler, frame, null);
+    }
+
+    public void publish(final ChannelCallbackHandler handler, final JsonArray json) {
+        publish(handler, json, null);
+    }
+
+    /**
+     * @param queued passed on with the frame, see {@link Slot#getQueued()}
+     */
+    public void publish(final ChannelCallbackHandler handler, final DecodedFrame frame, final AtomicLong queued) {
+        if (multiProducer) {
+            synchronized (this) {
+                write(handler, frame, null, queued);
+            }
+        } else {
+            write(handler, frame, null, queued);
+        }
+    }
+
+    public void publish(final ChannelCallbackHandler handler, final JsonArray json, final AtomicLong queued) {
+        if (multiProducer) {
+            synchronized (this) {
+                write(handler, null, json, queued);
+            }
+        } else {
+            write(handler, null, json, queued);
+        }
+    }
+
+    private void write(final ChannelCallbackHandler handler, final DecodedFrame frame, final JsonArray json,
+                       final AtomicLong queued) {
+        final Slot slot = claim();
+        slot.handler = handler;
+        if (frame != null) {
+            slot.frame.copyFrom(frame);
+        }
+        slot.json = json;
+        slot.queued = queued;
+        commit();
+    }
+
+    /**
+     * Wait until the slot after the last claimed one is free. A full ring
+     * stalls the receive thread, which pushes back on the socket.
+     */
+    private Slot claim() {
+        final long next = claimed + 1;
+        final long wrapPoint = next - slots.length;
+
+        int tries = 0;
+        while (wrapPoint > consumed.get()) {
+            if (++tries < SPIN_TRIES) {
+                continue;
+            }
+            if (!consumerRunning) {
+                throw new IllegalStateException("Frame ring is full and its consumer stopped, frame dropped");
+            }
+            LockSupport.parkNanos(1000);
+        }
+
+        claimed = next;
+        return slots[(int) next & mask];
+    }
+
+    private void commit() {
+        if (waitStrategy == WaitStrategy.BLOCKING) {
+            // Full fence, the consumer flag is read after the cursor is visible
+            published.set(claimed);
+        } else {
+            published.lazySet(claimed);
+        }
+
+        final long depth = claimed - consumed.get();
+        if (depth > maxDepth) {
+            maxDepth = depth;
+        }
+
+        if (consumerParked) {
+            LockSupport.unpark(consumerThread);
+        }
+    }
+
+    /**
+     * Wait until the position is published
+     *
+     * @param position
+     * @param running polled while waiting, the wait ends when it becomes false
+     * @return the last published position, or -1 if the wait was stopped
+     */
+    long waitFor(final long position, final BooleanSupplier running) {
+        long available = published.get();
+        int tries = 0;
+
+        while (available < position) {
+            if (!running.getAsBoolean()) {
+                return -1;
+            }
+
+            tries++;
+            switch (waitStrategy) {
+                case BUSY_SPIN:
+                    break;
+                case YIELDING:
+                    if (tries > SPIN_TRIES) {
+                        Thread.yield();
+                    }
+                    break;
+                case SLEEPING:
+                    if (tries > SPIN_TRIES + YIELD_TRIES) {
+                        LockSupport.parkNanos(SLEEP_NANOS);
+                    } else if (tries > SPIN_TRIES) {
+                        Thread.yield();
+                    }
+                    break;
+                case BLOCKING:
+                    consumerThread = Thread.currentThread();
+                    consumerParked = true;
+                    if (published.get() < position && running.getAsBoolean()) {
+                        LockSupport.park(this);
+                    }
+                    consumerParked = false;
+                    break;
+            }
+
+            available = published.get();
+        }
+
+        return available;
+    }
+
+    void startProcessing(final long position) {
+        processing.lazySet(position);
+    }
+
+    Slot get(final long position) {
+        return slots[(int) position & mask];
+    }
+
+    /**
+     * Hand the slots up to the position back to the producer
+     *
+     * @param position
+     */
+    void release(final long position) {
+        for (long i = consumed.get() + 1; i <= position; i++) {
+            slots[(int) i & mask].clear();
+        }
+        consumed.lazySet(position);
+    }
+
+    long getConsumed() {
+        return consumed.get();
+    }
+
+    /**
+     * Drop all queued frames and start over at position 0. Neither producer nor consumer may
+     * use the ring meanwhile, the consumer is expected to start right after.
+     */
+    void reset() {
+        for (final Slot slot : slots) {
+            slot.clear();
+        }
+        claimed = -1;
+        published.set(-1);
+        consumed.set(-1);
+        processing.set(-1);
+        consumerRunning = true;
+    }
+
+    /**
+     * Called by the consumer thread when it ends, normally or not
+     */
+    void consumerStopped() {
+        consumerRunning = false;
+    }
+
+    /**
+     * Wake a consumer that is parked in {@link #waitFor(long, BooleanSupplier)}
+     */
+    void wakeUp() {
+        final Thread thread = consumerThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Number of published frames that are not consumed yet
+     */
+    public long getDepth() {
+        return Math.max(0, published.get() - consumed.get());
+    }
+
+    /**
+     * Number of published frames the consumer has not started yet. Called from a
+     * channel handler it tells how many frames wait behind the current one.
+     */
+    public long getBacklog() {
+        return Math.max(0, published.get() - processing.get());
+    }
+
+    /**
+     * Highest depth seen by the producer
+     */
+    public long getMaxDepth() {
+        return maxDepth;
+    }
+
+    public int getSize() {
+        return slots.length;
+    }
+}
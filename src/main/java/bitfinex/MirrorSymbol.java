@@ -0,0 +1,103 @@
+/*******************************************************************************
+ *
+ *    Copyright (C) 2015-2018 Jan Kristof Nidzwetzki
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License. 
+ *
+ *******************************************************************************/
+package bitfinex;
+
+import bitfinex.entity.BitfinexStreamSymbol;
+
+/**
+ * Second subscription of a stream on another connection, see
+ * {@link BitfinexApiBroker#enableDualFeed(bitfinex.entity.BitfinexCurrencyPair)}.
+ * The server sees the subscription of the wrapped symbol, the broker routes its
+ * channel as a separate feed of the same {@link FeedArbiter}.
+ */
+public final class MirrorSymbol implements BitfinexStreamSymbol {
+
+    private final BitfinexStreamSymbol symbol;
+
+    private final Instrument instrument;
+
+    public MirrorSymbol(final BitfinexStreamSymbol symbol) {
+        if (symbol instanceof MirrorSymbol) {
+            throw new IllegalArgumentException("Mirror of a mirror: " + symbol);
+        }
+        this.symbol = symbol;
+        this.instrument = new Instrument(StreamSymbols.instrumentOf(symbol));
+    }
+
+    /**
+     * @param symbol
+     * @return the mirrored symbol if the symbol is a mirror, otherwise the symbol itself
+     */
+    public static BitfinexStreamSymbol primaryOf(final BitfinexStreamSymbol symbol) {
+        return symbol instanceof MirrorSymbol ? ((MirrorSymbol) symbol).symbol : symbol;
+    }
+
+    public BitfinexStreamSymbol getSymbol() {
+        return symbol;
+    }
+
+    /**
+     * The mirrors of an instrument are placed together, but never on the connection of the instrument
+     */
+    Instrument getInstrument() {
+        return instrument;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * symbol.hashCode() + 1;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        return obj instanceof MirrorSymbol && symbol.equals(((MirrorSymbol) obj).symbol);
+    }
+
+    @Override
+    public String toString() {
+        return "MirrorSymbol [symbol=" + symbol + "]";
+    }
+
+    static final class Instrument {
+
+        private final Object primary;
+
+        Instrument(final Object primary) {
+            this.primary = primary;
+        }
+
+        Object getPrimary() {
+            return primary;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * primary.hashCode() + 1;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            return obj instanceof Instrument && primary.equals(((Instrument) obj).primary);
+        }
+
+        @Override
+        public String toString() {
+            return "mirror of " + primary;
+        }
+    }
+}
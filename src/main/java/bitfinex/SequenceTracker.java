@@ -0,0 +1,90 @@
+/*******************************************************************************
+ *
+ *    Copyright (C) 2015-2018 Jan Kristof Nidzwetzki
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License. 
+ *
+ *******************************************************************************/
+package bitfinex;
+
+/**
+ * Checks the public sequence numbers of a connection (see {@link bitfinex.entity.ConfFlag#SEQ_ALL}).
+ * <p>
+ * The sequence is shared by all channels of the connection. A gap therefore can not be
+ * attributed to a single channel, while a message that arrives out of order belongs to
+ * the channel it was received on.
+ * <p>
+ * Must only be used from the websocket receive thread.
+ */
+public class SequenceTracker {
+
+    public enum Result {
+        IN_SEQUENCE,
+        GAP,       // Messages of the connection were lost
+        REORDERED  // The message is not newer than the last message of the connection
+    }
+
+    private long lastSequence = -1;
+
+    private long gaps;
+
+    private long reorders;
+
+    /**
+     * Check the sequence number of a message
+     *
+     * @param sequence
+     * @param heartbeat heartbeats may repeat the last sequence number
+     * @return
+     */
+    public Result onMessage(final long sequence, final boolean heartbeat) {
+
+        if (heartbeat && sequence == lastSequence) {
+            return Result.IN_SEQUENCE;
+        }
+
+        if (lastSequence >= 0 && sequence <= lastSequence) {
+            reorders++;
+            return Result.REORDERED;
+        }
+
+        final boolean gap = lastSequence >= 0 && sequence > lastSequence + 1;
+        lastSequence = sequence;
+
+        if (gap) {
+            gaps++;
+            return Result.GAP;
+        }
+
+        return Result.IN_SEQUENCE;
+    }
+
+    /**
+     * Forget the sequence, a new connection starts a new one
+     */
+    public void reset() {
+        lastSequence = -1;
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    public long getGaps() {
+        return gaps;
+    }
+
+    public long getReorders() {
+        return reorders;
+    }
+}
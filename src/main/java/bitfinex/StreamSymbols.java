@@ -0,0 +1,69 @@
+/*******************************************************************************
+ *
+ *    Copyright (C) 2015-2018 Jan Kristof Nidzwetzki
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License. 
+ *
+ *******************************************************************************/
+package bitfinex;
+
+import bitfinex.entity.BitfinexExecutedTradeSymbol;
+import bitfinex.entity.BitfinexStreamSymbol;
+import bitfinex.entity.OrderbookConfiguration;
+import bitfinex.entity.RawOrderbookConfiguration;
+
+final class StreamSymbols {
+
+    private StreamSymbols() {
+    }
+
+    /**
+     * The instrument a stream belongs to. The channels of an instrument are applied by the
+     * same thread, so they are kept on one connection and in one pipeline shard.
+     *
+     * @param symbol
+     * @return
+     */
+    static Object instrumentOf(final BitfinexStreamSymbol symbol) {
+        if (symbol instanceof OrderbookConfiguration) {
+            return ((OrderbookConfiguration) symbol).getCurrencyPair();
+        } else if (symbol instanceof RawOrderbookConfiguration) {
+            return ((RawOrderbookConfiguration) symbol).getCurrencyPair();
+        } else if (symbol instanceof BitfinexExecutedTradeSymbol) {
+            return ((BitfinexExecutedTradeSymbol) symbol).getBitfinexCurrencyPair();
+        } else if (symbol instanceof MirrorSymbol) {
+            return ((MirrorSymbol) symbol).getInstrument();
+        }
+
+        return symbol;
+    }
+
+    /**
+     * The instrument that must not share a connection with the given one: the mirror of an instrument and vice versa
+     *
+     * @param instrument
+     * @return
+     */
+    static Object counterpartOf(final Object instrument) {
+        if (instrument instanceof MirrorSymbol.Instrument) {
+            return ((MirrorSymbol.Instrument) instrument).getPrimary();
+        }
+
+        return new MirrorSymbol.Instrument(instrument);
+    }
+
+    static boolean isBook(final BitfinexStreamSymbol symbol) {
+        final BitfinexStreamSymbol primary = MirrorSymbol.primaryOf(symbol);
+        return primary instanceof OrderbookConfiguration || primary instanceof RawOrderbookConfiguration;
+    }
+}
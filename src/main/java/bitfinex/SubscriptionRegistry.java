@@ -0,0 +1,329 @@
+/*******************************************************************************
+ *
+ *    Copyright (C) 2015-2018 Jan Kristof Nidzwetzki
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License. 
+ *
+ *******************************************************************************/
+package bitfinex;
+
+import bitfinex.entity.APIException;
+import bitfinex.entity.BitfinexStreamSymbol;
+import velox.api.layer1.common.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/**
+ * Subscriptions that are sent but not yet acknowledged. Every subscribe request carries
+ * a subId that the server echoes in its subscribed or error event, so any number of
+ * subscriptions can be outstanding at the same time.
+ */
+public class SubscriptionRegistry {
+
+    public final static long DEFAULT_TIMEOUT_MILLIS = 10_000;
+
+    /**
+     * Delay before a failed subscription of {@link #subscribeRetrying(BitfinexStreamSymbol, Predicate)} is sent again
+     */
+    public final static long DEFAULT_RETRY_DELAY_MILLIS = 5_000;
+
+    private final static ScheduledExecutorService TIMEOUTS = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "bitfinex-subscription-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final static class Pending {
+
+        private final BitfinexStreamSymbol symbol;
+
+        private final String subId;
+
+        private final CompletableFuture<Integer> future = new CompletableFuture<>();
+
+        private ScheduledFuture<?> timeout;
+
+        private Pending(final BitfinexStreamSymbol symbol, final String subId) {
+            this.symbol = symbol;
+            this.subId = subId;
+        }
+    }
+
+    private final BiConsumer<BitfinexStreamSymbol, String> sender;
+
+    private final Map<String, Pending> pendingBySubId = new HashMap<>();
+
+    private final Map<BitfinexStreamSymbol, Pending> pendingBySymbol = new HashMap<>();
+
+    /**
+     * SubIds of subscriptions that were cancelled before the server answered
+     */
+    private final Set<String> cancelledSubIds = new HashSet<>();
+
+    private long lastSubId;
+
+    private volatile long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+
+    private volatile long retryDelayMillis = DEFAULT_RETRY_DELAY_MILLIS;
+
+    /**
+     * @param sender sends the subscribe request of a symbol with the given subId
+     */
+    public SubscriptionRegistry(final BiConsumer<BitfinexStreamSymbol, String> sender) {
+        this.sender = sender;
+    }
+
+    /**
+     * Send a subscribe request, unless one for the symbol is already outstanding
+     *
+     * @param symbol
+     * @return completes with the channel id, or exceptionally on an error event or timeout
+     */
+    public CompletableFuture<Integer> subscribe(final BitfinexStreamSymbol symbol) {
+        final Pending pending;
+
+        synchronized (this) {
+            final Pending existing = pendingBySymbol.get(symbol);
+
+            if (existing != null) {
+                return existing.future;
+            }
+
+            pending = new Pending(symbol, Long.toString(++lastSubId));
+            pendingBySubId.put(pending.subId, pending);
+            pendingBySymbol.put(symbol, pending);
+
+            final long timeout = timeoutMillis;
+            pending.timeout = TIMEOUTS.schedule(() -> expire(pending.subId, timeout),
+                    timeout, TimeUnit.MILLISECONDS);
+        }
+
+        sender.accept(symbol, pending.subId);
+        return pending.future;
+    }
+
+    /**
+     * Subscribe a channel the broker dropped itself, nobody waits for the result. A failed
+     * attempt is sent again after the retry delay as long as the condition holds,
+     * e.g. while users still hold the symbol.
+     *
+     * @param symbol
+     * @param retryWhile
+     */
+    public void subscribeRetrying(final BitfinexStreamSymbol symbol, final Predicate<BitfinexStreamSymbol> retryWhile) {
+        subscribe(symbol).whenComplete((channelId, failure) -> {
+            // Cancelled by the last user
+            if (failure == null || failure instanceof CancellationException) {
+                return;
+            }
+
+            TIMEOUTS.schedule(() -> {
+                if (retryWhile.test(symbol)) {
+                    Log.info("Subscribing " + symbol + " again");
+                    subscribeRetrying(symbol, retryWhile);
+                }
+            }, retryDelayMillis, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    public synchronized boolean isPending(final BitfinexStreamSymbol symbol) {
+        return pendingBySymbol.containsKey(symbol);
+    }
+
+    /**
+     * Give up an outstanding subscription, the channel is dropped when the server acknowledges it
+     *
+     * @param symbol
+     * @return false if no subscription of the symbol was outstanding
+     */
+    public boolean cancel(final BitfinexStreamSymbol symbol) {
+        final Pending pending;
+
+        synchronized (this) {
+            pending = remove(pendingBySymbol.get(symbol));
+
+            if (pending == null) {
+                return false;
+            }
+
+            cancelledSubIds.add(pending.subId);
+        }
+
+        pending.future.cancel(false);
+        return true;
+    }
+
+    /**
+     * Check a subscribed event before its channel is routed
+     *
+     * @param subId the echoed subId or null
+     * @return false if the subscription was cancelled and the channel must be unsubscribed
+     */
+    public synchronized boolean accept(final String subId) {
+        return subId == null || !cancelledSubIds.remove(subId);
+    }
+
+    /**
+     * @param subId the echoed subId or null
+     * @return the symbol the outstanding subscription was requested with, or null
+     */
+    public synchronized BitfinexStreamSymbol getSymbol(final String subId) {
+        final Pending pending = subId == null ? null : pendingBySubId.get(subId);
+        return pending == null ? null : pending.symbol;
+    }
+
+    /**
+     * Complete the subscription once its channel is routed
+     *
+     * @param subId  the echoed subId, if null the subscription is looked up by its symbol
+     * @param symbol
+     * @param channelId
+     */
+    public void complete(final String subId, final BitfinexStreamSymbol symbol, final int channelId) {
+        final Pending pending;
+
+        synchronized (this) {
+            pending = remove(subId != null ? pendingBySubId.get(subId) : pendingBySymbol.get(symbol));
+        }
+
+        if (pending != null) {
+            pending.future.complete(channelId);
+        }
+    }
+
+    /**
+     * Fail the subscription on an error event
+     *
+     * @param subId
+     * @param cause
+     */
+    public void fail(final String subId, final Throwable cause) {
+        final Pending pending;
+
+        synchronized (this) {
+            pending = remove(pendingBySubId.get(subId));
+        }
+
+        if (pending != null) {
+            Log.warn("Subscription of " + pending.symbol + " failed: " + cause.getMessage());
+            pending.future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Fail a subscription the server did not answer in time. Its subscribed event may still
+     * arrive, the channel is then unsubscribed like the one of a cancelled subscription.
+     */
+    private void expire(final String subId, final long timeout) {
+        final Pending pending;
+
+        synchronized (this) {
+            pending = remove(pendingBySubId.get(subId));
+
+            if (pending == null) {
+                return;
+            }
+
+            cancelledSubIds.add(subId);
+        }
+
+        Log.warn("Subscription of " + pending.symbol + " timed out");
+        pending.future.completeExceptionally(new TimeoutException(
+                "No answer to the subscription of " + pending.symbol + " within " + timeout + " ms"));
+    }
+
+    /**
+     * Send outstanding subscriptions again, after their connection was reestablished
+     *
+     * @param filter selects the subscriptions that were sent on the connection
+     */
+    public void resendAll(final Predicate<BitfinexStreamSymbol> filter) {
+        final List<Pending> pendings = new ArrayList<>();
+
+        synchronized (this) {
+            for (final Pending pending : pendingBySubId.values()) {
+                if (filter.test(pending.symbol)) {
+                    pendings.add(pending);
+                }
+            }
+        }
+
+        for (final Pending pending : pendings) {
+            sender.accept(pending.symbol, pending.subId);
+        }
+    }
+
+    /**
+     * Fail all outstanding subscriptions
+     *
+     * @param reason
+     */
+    public void failAll(final String reason) {
+        final List<Pending> pendings;
+
+        synchronized (this) {
+            pendings = new ArrayList<>(pendingBySubId.values());
+            for (final Pending pending : pendings) {
+                remove(pending);
+            }
+            cancelledSubIds.clear();
+        }
+
+        for (final Pending pending : pendings) {
+            pending.future.completeExceptionally(new APIException(reason));
+        }
+    }
+
+    public synchronized int getPendingCount() {
+        return pendingBySubId.size();
+    }
+
+    public void setTimeoutMillis(final long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public void setRetryDelayMillis(final long retryDelayMillis) {
+        this.retryDelayMillis = retryDelayMillis;
+    }
+
+    public long getRetryDelayMillis() {
+        return retryDelayMillis;
+    }
+
+    private Pending remove(final Pending pending) {
+        if (pending != null) {
+            pendingBySubId.remove(pending.subId);
+            pendingBySymbol.remove(pending.symbol);
+            pending.timeout.cancel(false);
+        }
+        return pending;
+    }
+}
@@ -0,0 +1,44 @@
+/*******************************************************************************
+ *
+ *    Copyright (C) 2015-2018 Jan Kristof Nidzwetzki
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License. 
+ *
+ *******************************************************************************/
+package bitfinex;
+
+/**
+ * How a {@link ChannelPipeline} consumer waits for frames when its ring is empty
+ */
+public enum WaitStrategy {
+
+    /**
+     * Spin on the ring cursor, lowest latency at the cost of one busy core per shard
+     */
+    BUSY_SPIN,
+
+    /**
+     * Spin for a while, then yield the processor between checks
+     */
+    YIELDING,
+
+    /**
+     * Spin, yield and then sleep for short intervals
+     */
+    SLEEPING,
+
+    /**
+     * Park until the producer publishes, no cpu is used while the ring is empty
+     */
+    BLOCKING
+}
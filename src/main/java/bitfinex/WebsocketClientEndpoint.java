@@ -18,6 +18,13 @@ public class WebsocketClientEndpoint implements Closeable {
 
     private final List<Consumer<String>> callbackConsumer = new CopyOnWriteArrayList<>();
 
+    private final List<FragmentConsumer> fragmentConsumer = new CopyOnWriteArrayList<>();
+
+    /**
+     * Reassembles fragmented messages for the consumers of complete messages
+     */
+    private final StringBuilder messageBuffer = new StringBuilder();
+
     private final URI endpointURI;
 
     public WebsocketClientEndpoint(final URI endpointURI) {
@@ -51,8 +58,30 @@ public class WebsocketClientEndpoint implements Closeable {
     }
 
     @OnMessage(maxMessageSize = 1048576)
-    public void onMessage(final String message) {
-        //Log.info("message: " + message);
+    public void onMessage(final String fragment, final boolean last) {
+        //Log.info("message: " + fragment);
+        for (final FragmentConsumer consumer : fragmentConsumer) {
+            consumer.accept(fragment, last);
+        }
+
+        if (callbackConsumer.isEmpty()) {
+            messageBuffer.setLength(0);
+            return;
+        }
+
+        if (!last) {
+            messageBuffer.append(fragment);
+            return;
+        }
+
+        final String message;
+        if (messageBuffer.length() == 0) {
+            message = fragment;
+        } else {
+            message = messageBuffer.append(fragment).toString();
+            messageBuffer.setLength(0);
+        }
+
         callbackConsumer.forEach((c) -> c.accept(message));
     }
 
@@ -95,6 +124,25 @@ public class WebsocketClientEndpoint implements Closeable {
         return callbackConsumer.remove(consumer);
     }
 
+    /**
+     * Add a consumer that receives the messages fragment by fragment, as they arrive
+     *
+     * @param consumer
+     */
+    public void addFragmentConsumer(final FragmentConsumer consumer) {
+        fragmentConsumer.add(consumer);
+    }
+
+    /**
+     * Remove a fragment consumer
+     *
+     * @param consumer
+     * @return
+     */
+    public boolean removeFragmentConsumer(final FragmentConsumer consumer) {
+        return fragmentConsumer.remove(consumer);
+    }
+
     /**
      * Close the connection
      */
@@ -119,4 +167,14 @@ public class WebsocketClientEndpoint implements Closeable {
     public boolean isConnected() {
         return userSession.isOpen();
     }
-}
\ No newline at end of file
+
+    @FunctionalInterface
+    public interface FragmentConsumer {
+
+        /**
+         * @param fragment the next part of the message
+         * @param last is this the last part of the message
+         */
+        public void accept(final String fragment, final boolean last);
+    }
+}
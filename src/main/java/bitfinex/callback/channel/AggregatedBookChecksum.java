@@ -0,0 +1,63 @@
+/*******************************************************************************
+ *
+ *    Copyright (C) 2015-2018 Jan Kristof Nidzwetzki
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License. 
+ *
+ *******************************************************************************/
+package bitfinex.callback.channel;
+
+/**
+ * Checksum mirror of a price aggregated book (P0 - P4), levels are identified by their price
+ */
+public class AggregatedBookChecksum extends BookChecksum {
+
+    public AggregatedBookChecksum(final int priceScale, final int amountScale) {
+        super(priceScale, amountScale);
+    }
+
+    /**
+     * Apply a book entry, a count of 0 removes the level
+     *
+     * @param priceMantissa
+     * @param count
+     * @param amountMantissa
+     */
+    public void apply(final long priceMantissa, final int count, final long amountMantissa) {
+        // Removed levels carry amount 1 for bids and -1 for asks
+        final Side side = amountMantissa > 0 ? bids : asks;
+
+        if (count == 0) {
+            side.remove(priceMantissa, 0);
+        } else {
+            side.put(priceMantissa, 0, count, amountMantissa);
+        }
+    }
+
+    /**
+     * Every level as price, count and amount
+     */
+    @Override
+    void forEach(final BookMirror.EntryConsumer consumer) {
+        for (final Side side : new Side[]{bids, asks}) {
+            for (int i = 0; i < side.size(); i++) {
+                consumer.accept(side.getPrice(i), side.getCount(i), side.getAmount(i));
+            }
+        }
+    }
+
+    @Override
+    protected long getChecksumKey(final Side side, final int index) {
+        return side.getPrice(index);
+    }
+}
@@ -0,0 +1,327 @@
+/*******************************************************************************
+ *
+ *    Copyright (C) 2015-2018 Jan Kristof Nidzwetzki
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License. 
+ *
+ *******************************************************************************/
+package bitfinex.callback.channel;
+
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Local mirror of the top of a book, used to verify the checksums Bitfinex sends
+ * with {@link bitfinex.entity.ConfFlag#OB_CHECKSUM}.
+ * <p>
+ * Both sides are kept sorted while updates are applied, so a check only walks
+ * the first {@link #CHECKSUM_LEVELS} entries of each side. The checksum is the CRC32
+ * of "bid0:amount0:ask0:amount0:bid1:..." with the numbers formatted like JavaScript does.
+ * <p>
+ * Not thread-safe, used from the websocket receive thread of the channel.
+ */
+public abstract class BookChecksum {
+
+    public final static int CHECKSUM_LEVELS = 25;
+
+    protected final Side bids = new Side(true);
+
+    protected final Side asks = new Side(false);
+
+    private final int keyScale;
+
+    private final int amountScale;
+
+    private final CRC32 crc = new CRC32();
+
+    private byte[] buffer = new byte[1024];
+
+    private int length;
+
+    /**
+     * @param keyScale scale of the first number of a level (price or order id)
+     * @param amountScale scale of the amounts
+     */
+    protected BookChecksum(final int keyScale, final int amountScale) {
+        this.keyScale = keyScale;
+        this.amountScale = amountScale;
+    }
+
+    public void clear() {
+        bids.clear();
+        asks.clear();
+    }
+
+    /**
+     * @return the entries of both sides, the whole book and not only the checksum levels
+     */
+    public int size() {
+        return bids.size + asks.size;
+    }
+
+    /**
+     * Walk the whole book, see {@link BookMirror#forEach(BookMirror.EntryConsumer)}
+     */
+    abstract void forEach(final BookMirror.EntryConsumer consumer);
+
+    /**
+     * Compare the local book against the checksum of the exchange
+     *
+     * @param expected
+     * @return
+     */
+    public boolean verify(final int expected) {
+        return compute() == expected;
+    }
+
+    public int compute() {
+        length = 0;
+
+        for (int i = 0; i < CHECKSUM_LEVELS; i++) {
+            if (i < bids.size) {
+                appendLevel(bids, i);
+            }
+            if (i < asks.size) {
+                appendLevel(asks, i);
+            }
+        }
+
+        crc.reset();
+        crc.update(buffer, 0, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * The first number of the level in the checksum, the price or the order id
+     */
+    protected abstract long getChecksumKey(final Side side, final int index);
+
+    private void appendLevel(final Side side, final int index) {
+        if (length > 0) {
+            append(':');
+        }
+        appendNumber(getChecksumKey(side, index), keyScale);
+        append(':');
+        appendNumber(side.amounts[index], amountScale);
+    }
+
+    /**
+     * Append mantissa * 10^-scale the way JavaScript's Number.toString() prints it
+     */
+    private void appendNumber(long mantissa, int scale) {
+        if (mantissa == 0) {
+            append('0');
+            return;
+        }
+
+        while (scale > 0 && mantissa % 10 == 0) {
+            mantissa /= 10;
+            scale--;
+        }
+
+        if (mantissa < 0) {
+            append('-');
+            mantissa = -mantissa;
+        }
+
+        final int start = length;
+        appendDigits(mantissa);
+        final int digits = length - start;
+
+        // Position of the decimal point relative to the first digit
+        final int point = digits - scale;
+
+        if (point >= digits && point <= 21) {
+            for (int i = digits; i < point; i++) {
+                append('0');
+            }
+        } else if (point > 0 && point <= 21) {
+            insert(start + point, '.');
+        } else if (point > -6 && point <= 0) {
+            for (int i = 0; i < 2 - point; i++) {
+                insert(start, '0');
+            }
+            buffer[start + 1] = '.';
+        } else {
+            final int exponent = point - 1;
+            if (digits > 1) {
+                insert(start + 1, '.');
+            }
+            append('e');
+            append(exponent < 0 ? '-' : '+');
+            appendDigits(Math.abs(exponent));
+        }
+    }
+
+    private void appendDigits(final long value) {
+        final int start = length;
+        long remaining = value;
+        do {
+            append((char) ('0' + remaining % 10));
+            remaining /= 10;
+        } while (remaining != 0);
+
+        // Digits were written in reverse order
+        for (int i = start, j = length - 1; i < j; i++, j--) {
+            final byte tmp = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = tmp;
+        }
+    }
+
+    private void append(final char c) {
+        ensureCapacity(1);
+        buffer[length++] = (byte) c;
+    }
+
+    private void insert(final int position, final char c) {
+        ensureCapacity(1);
+        System.arraycopy(buffer, position, buffer, position + 1, length - position);
+        buffer[position] = (byte) c;
+        length++;
+    }
+
+    private void ensureCapacity(final int additional) {
+        if (length + additional > buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+    }
+
+    /**
+     * One side of the book, sorted from the best price outwards and by key within a price
+     */
+    protected final static class Side {
+
+        private final boolean bid;
+
+        private long[] prices = new long[64];
+
+        private long[] keys = new long[64];
+
+        private long[] amounts = new long[64];
+
+        private int[] counts = new int[64];
+
+        private int size;
+
+        private Side(final boolean bid) {
+            this.bid = bid;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public long getPrice(final int index) {
+            return prices[index];
+        }
+
+        public long getKey(final int index) {
+            return keys[index];
+        }
+
+        public long getAmount(final int index) {
+            return amounts[index];
+        }
+
+        /**
+         * Orders at the price level, not part of the checksum
+         */
+        public int getCount(final int index) {
+            return counts[index];
+        }
+
+        /**
+         * Insert or update the entry
+         */
+        public void put(final long price, final long key, final int count, final long amount) {
+            final int index = find(price, key);
+
+            if (index >= 0) {
+                amounts[index] = amount;
+                counts[index] = count;
+                return;
+            }
+
+            final int insertAt = -index - 1;
+
+            if (size == prices.length) {
+                prices = Arrays.copyOf(prices, size * 2);
+                keys = Arrays.copyOf(keys, size * 2);
+                amounts = Arrays.copyOf(amounts, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+
+            System.arraycopy(prices, insertAt, prices, insertAt + 1, size - insertAt);
+            System.arraycopy(keys, insertAt, keys, insertAt + 1, size - insertAt);
+            System.arraycopy(amounts, insertAt, amounts, insertAt + 1, size - insertAt);
+            System.arraycopy(counts, insertAt, counts, insertAt + 1, size - insertAt);
+
+            prices[insertAt] = price;
+            keys[insertAt] = key;
+            amounts[insertAt] = amount;
+            counts[insertAt] = count;
+            size++;
+        }
+
+        public boolean remove(final long price, final long key) {
+            final int index = find(price, key);
+
+            if (index < 0) {
+                return false;
+            }
+
+            System.arraycopy(prices, index + 1, prices, index, size - index - 1);
+            System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+            System.arraycopy(amounts, index + 1, amounts, index, size - index - 1);
+            System.arraycopy(counts, index + 1, counts, index, size - index - 1);
+            size--;
+            return true;
+        }
+
+        public void clear() {
+            size = 0;
+        }
+
+        /**
+         * Binary search, returns the index or -(insertion point) - 1
+         */
+        private int find(final long price, final long key) {
+            int low = 0;
+            int high = size - 1;
+
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                final int cmp = compare(prices[mid], keys[mid], price, key);
+
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+
+            return -(low + 1);
+        }
+
+        private int compare(final long price1, final long key1, final long price2, final long key2) {
+            if (price1 != price2) {
+                // Best price first: descending for bids, ascending for asks
+                return bid ? Long.compare(price2, price1) : Long.compare(price1, price2);
+            }
+            return Long.compare(key1, key2);
+        }
+    }
+}
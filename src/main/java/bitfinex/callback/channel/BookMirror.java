@@ -0,0 +1,65 @@
+/*******************************************************************************
+ *
+ *    Copyright (C) 2015-2018 Jan Kristof Nidzwetzki
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License. 
+ *
+ *******************************************************************************/
+package bitfinex.callback.channel;
+
+import bitfinex.util.LongLongHashMap;
+
+/**
+ * Complete book of a channel as two values per key, the price level or order
+ * and its count or price plus the amount. Channel handlers keep it to seed users
+ * that join a channel after its snapshot, see
+ * {@link bitfinex.manager.SnapshotCallbackManager.SymbolSnapshotCallbacks#seed(java.util.List)}.
+ * Handlers that verify checksums seed from their {@link BookChecksum} instead, which holds the whole book as well.
+ * <p>
+ * Not thread-safe.
+ */
+final class BookMirror {
+
+    interface EntryConsumer {
+        void accept(long key, long value, long amount);
+    }
+
+    private final LongLongHashMap values = new LongLongHashMap();
+
+    private final LongLongHashMap amounts = new LongLongHashMap();
+
+    void put(final long key, final long value, final long amount) {
+        values.put(key, value);
+        amounts.put(key, amount);
+    }
+
+    void remove(final long key) {
+        values.remove(key);
+        amounts.remove(key);
+    }
+
+    void clear() {
+        values.clear();
+        amounts.clear();
+    }
+
+    int size() {
+        return values.size();
+    }
+
+    void forEach(final EntryConsumer consumer) {
+        for (final long key : values.keys()) {
+            consumer.accept(key, values.get(key, 0), amounts.get(key, 0));
+        }
+    }
+}
@@ -17,22 +17,56 @@
  *******************************************************************************/
 package bitfinex.callback.channel;
 
-import bitfinex.BitfinexApiBroker;
 import bitfinex.entity.APIException;
 import bitfinex.entity.BitfinexStreamSymbol;
 import com.google.gson.JsonArray;
 
+/**
+ * Dispatch target of one subscribed channel. Instances are created when the channel
+ * is subscribed and already hold the callbacks of the symbol, so a frame is handled
+ * without any further lookup.
+ */
 public interface ChannelCallbackHandler {
 
+    /**
+     * The symbol of the channel
+     *
+     * @return
+     */
+    public BitfinexStreamSymbol getSymbol();
+
     /**
      * Handle data for the channel
      *
-     * @param bitfinexApiBroker
      * @param jsonArray
      * @throws APIException
      */
-    public void handleChannelData(final BitfinexApiBroker bitfinexApiBroker,
-                                  final BitfinexStreamSymbol channelSymbol, final JsonArray jsonArray)
-            throws APIException;
+    public void handleChannelData(final JsonArray jsonArray) throws APIException;
+
+    /**
+     * Handle data for the channel that was decoded without a JSON tree
+     *
+     * @param frame
+     * @throws APIException
+     */
+    public void handleChannelData(final DecodedFrame frame) throws APIException;
+
+    /**
+     * Handle a checksum of the channel (see {@link bitfinex.entity.ConfFlag#OB_CHECKSUM}),
+     * only sent on book channels
+     *
+     * @param checksum
+     * @throws APIException
+     */
+    public default void handleChecksum(final int checksum) throws APIException {
+        // Not verified by default
+    }
+
+    /**
+     * Handle a heartbeat of the channel, sent when it has no data for a while
+     */
+    public default void handleHeartbeat() {
+        // Nothing to do by default
+    }
 
 }
@@ -0,0 +1,492 @@
+/*******************************************************************************
+ *
+ *    Copyright (C) 2015-2018 Jan Kristof Nidzwetzki
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License. 
+ *
+ *******************************************************************************/
+package bitfinex.callback.channel;
+
+/**
+ * Single pass decoder for the fixed array shapes of the public v2 channels:
+ * <pre>
+ *   [chanId,"hb"]
+ *   [chanId,[id,price,amount]]
+ *   [chanId,[[id,price,amount],[id,price,amount]]]
+ *   [chanId,"te",[id,mts,amount,price]]
+ *   [chanId,"cs",checksum]
+ * </pre>
+ * optionally followed by sequence numbers, [chanId,"hb",seq].
+ * The numbers are read straight from the characters of the message, no JSON tree is built.
+ * Everything else (strings inside the payload, nested objects, overlong numbers) is
+ * reported as not decodable, so the caller can fall back to Gson.
+ * <p>
+ * Entry lists can also be decoded piecewise from an incomplete message, see
+ * {@link StreamingFrameDecoder}.
+ * <p>
+ * Instances keep the parser position as state and must not be shared between threads.
+ */
+public class ChannelFrameDecoder {
+
+    private final static int MAX_MANTISSA_DIGITS = 18;
+
+    private final static int MAX_EXPONENT = 30;
+
+    /**
+     * Public sequence, followed by the private sequence on authenticated channels
+     */
+    private final static int MAX_SEQUENCE_NUMBERS = 2;
+
+    /**
+     * The input ended before the part could be decoded
+     */
+    final static int NEED_MORE_INPUT = -2;
+
+    /**
+     * The input has a shape that can not be decoded piecewise
+     */
+    final static int NOT_STREAMABLE = -1;
+
+    private CharSequence input;
+
+    private int pos;
+
+    private int length;
+
+    private boolean entryListComplete;
+
+    private long numberMantissa;
+
+    private int numberScale;
+
+    /**
+     * Decode the message into the given frame
+     *
+     * @param message
+     * @param frame
+     * @return false if the message has a shape that is not supported by the decoder
+     */
+    public boolean decode(final CharSequence message, final DecodedFrame frame) {
+        this.input = message;
+        this.pos = 0;
+        this.length = message.length();
+
+        frame.reset();
+
+        try {
+            if (!consume('[') || !parseNumber() || numberScale != 0) {
+                return false;
+            }
+
+            frame.setChannelId((int) numberMantissa);
+
+            if (!consume(',')) {
+                return false;
+            }
+
+            skipWhitespace();
+
+            if (pos >= length) {
+                return false;
+            }
+
+            final char c = input.charAt(pos);
+
+            if (c == '"') {
+                if (!parseKind(frame)) {
+                    return false;
+                }
+            } else if (c == '[') {
+                if (!parseEntries(frame)) {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+
+            if (!parseSequence(frame) || !consume(']')) {
+                return false;
+            }
+
+            skipWhitespace();
+            return pos == length;
+        } finally {
+            this.input = null;
+        }
+    }
+
+    /**
+     * Decode the beginning of a message that is not complete yet. Only messages carrying a
+     * non-empty entry list ([chanId,[[...) can be streamed.
+     *
+     * @param input
+     * @param frame
+     * @return the position of the first row, {@link #NEED_MORE_INPUT} or {@link #NOT_STREAMABLE}
+     */
+    int decodeEntryListHeader(final CharSequence input, final DecodedFrame frame) {
+        this.input = input;
+        this.pos = 0;
+        this.length = input.length();
+
+        frame.reset();
+
+        try {
+            if (!consume('[') || !parseNumber() || numberScale != 0 || !consume(',') || !consume('[')) {
+                return pos >= length ? NEED_MORE_INPUT : NOT_STREAMABLE;
+            }
+
+            frame.setChannelId((int) numberMantissa);
+
+            skipWhitespace();
+
+            if (pos >= length) {
+                return NEED_MORE_INPUT;
+            }
+
+            if (input.charAt(pos) != '[') {
+                return NOT_STREAMABLE;
+            }
+
+            frame.setType(DecodedFrame.Type.ENTRY_LIST);
+            return pos;
+        } finally {
+            this.input = null;
+        }
+    }
+
+    /**
+     * Decode all complete rows of an entry list, starting at the given position.
+     * The rows replace the rows of the frame, {@link #isEntryListComplete()} tells
+     * if the closing bracket of the list was reached.
+     *
+     * @param input
+     * @param start
+     * @param frame
+     * @return the position to continue at with more input, or {@link #NOT_STREAMABLE} if the rows are malformed
+     */
+    int decodeEntryListRows(final CharSequence input, final int start, final DecodedFrame frame) {
+        this.input = input;
+        this.pos = start;
+        this.length = input.length();
+        this.entryListComplete = false;
+
+        frame.clearRows();
+
+        try {
+            while (true) {
+                skipWhitespace();
+
+                if (pos >= length) {
+                    return pos;
+                }
+
+                final char c = input.charAt(pos);
+
+                if (c == ',') {
+                    pos++;
+                    continue;
+                }
+
+                if (c == ']') {
+                    pos++;
+                    entryListComplete = true;
+                    return pos;
+                }
+
+                if (c != '[') {
+                    return NOT_STREAMABLE;
+                }
+
+                // Rows are flat number arrays, so the next closing bracket ends the row
+                int end = pos + 1;
+                while (end < length && input.charAt(end) != ']') {
+                    end++;
+                }
+
+                if (end >= length) {
+                    return pos;
+                }
+
+                length = end + 1;
+                pos++;
+
+                if (!parseRowValues(frame)) {
+                    return NOT_STREAMABLE;
+                }
+
+                length = input.length();
+            }
+        } finally {
+            this.input = null;
+        }
+    }
+
+    /**
+     * Decode the remainder of a message after the entry list
+     *
+     * @param input
+     * @param start
+     * @param frame
+     * @return false if the message is malformed
+     */
+    boolean decodeEntryListTail(final CharSequence input, final int start, final DecodedFrame frame) {
+        this.input = input;
+        this.pos = start;
+        this.length = input.length();
+
+        try {
+            if (!parseSequence(frame) || !consume(']')) {
+                return false;
+            }
+
+            skipWhitespace();
+            return pos == length;
+        } finally {
+            this.input = null;
+        }
+    }
+
+    boolean isEntryListComplete() {
+        return entryListComplete;
+    }
+
+    /**
+     * Parse the trailing sequence numbers, the first one is the public sequence of the connection
+     */
+    private boolean parseSequence(final DecodedFrame frame) {
+        for (int i = 0; i < MAX_SEQUENCE_NUMBERS && consume(','); i++) {
+            if (!parseNumber() || numberScale != 0) {
+                return false;
+            }
+
+            if (i == 0) {
+                frame.setSequence(numberMantissa);
+            }
+        }
+
+        return true;
+    }
+
+    private boolean parseKind(final DecodedFrame frame) {
+        // Opening quote
+        pos++;
+
+        final int start = pos;
+        while (pos < length && input.charAt(pos) != '"') {
+            pos++;
+        }
+
+        if (pos >= length || pos - start != 2) {
+            return false;
+        }
+
+        final char first = input.charAt(start);
+        final char second = input.charAt(start + 1);
+
+        // Closing quote
+        pos++;
+
+        if (first == 'h' && second == 'b') {
+            frame.setType(DecodedFrame.Type.HEARTBEAT);
+            return true;
+        }
+
+        if (first == 'c' && second == 's') {
+            frame.setType(DecodedFrame.Type.CHECKSUM);
+            return consume(',') && parseNumber() && numberScale == 0
+                    && frame.addValue(frame.addRow(), numberMantissa, numberScale);
+        }
+
+        if (first == 't' && second == 'e') {
+            frame.setType(DecodedFrame.Type.TRADE_EXECUTED);
+        } else if (first == 't' && second == 'u') {
+            frame.setType(DecodedFrame.Type.TRADE_UPDATE);
+        } else {
+            return false;
+        }
+
+        return consume(',') && consume('[') && parseRowValues(frame);
+    }
+
+    private boolean parseEntries(final DecodedFrame frame) {
+        // Opening bracket of the payload
+        pos++;
+
+        skipWhitespace();
+
+        if (pos >= length) {
+            return false;
+        }
+
+        final char c = input.charAt(pos);
+
+        if (c == ']') {
+            // Empty snapshot
+            pos++;
+            frame.setType(DecodedFrame.Type.ENTRY_LIST);
+            return true;
+        }
+
+        if (c != '[') {
+            frame.setType(DecodedFrame.Type.ENTRY);
+            return parseRowValues(frame);
+        }
+
+        frame.setType(DecodedFrame.Type.ENTRY_LIST);
+
+        while (true) {
+            if (!consume('[') || !parseRowValues(frame)) {
+                return false;
+            }
+
+            skipWhitespace();
+
+            if (pos >= length) {
+                return false;
+            }
+
+            final char separator = input.charAt(pos++);
+
+            if (separator == ']') {
+                return true;
+            } else if (separator != ',') {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Parse the numbers of one row, the opening bracket is already consumed
+     */
+    private boolean parseRowValues(final DecodedFrame frame) {
+        final int row = frame.addRow();
+
+        while (true) {
+            if (!parseNumber() || !frame.addValue(row, numberMantissa, numberScale)) {
+                return false;
+            }
+
+            skipWhitespace();
+
+            if (pos >= length) {
+                return false;
+            }
+
+            final char separator = input.charAt(pos++);
+
+            if (separator == ']') {
+                return true;
+            } else if (separator != ',') {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Parse a JSON number into numberMantissa and numberScale
+     */
+    private boolean parseNumber() {
+        skipWhitespace();
+
+        boolean negative = false;
+        if (pos < length && input.charAt(pos) == '-') {
+            negative = true;
+            pos++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int significantDigits = 0;
+        int scale = 0;
+        boolean fraction = false;
+
+        for (; pos < length; pos++) {
+            final char c = input.charAt(pos);
+
+            if (c >= '0' && c <= '9') {
+                digits++;
+                if (mantissa != 0 || c != '0') {
+                    if (++significantDigits > MAX_MANTISSA_DIGITS) {
+                        return false;
+                    }
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                if (fraction) {
+                    scale++;
+                }
+            } else if (c == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+        }
+
+        if (digits == 0) {
+            return false;
+        }
+
+        if (pos < length && (input.charAt(pos) == 'e' || input.charAt(pos) == 'E')) {
+            pos++;
+
+            boolean negativeExponent = false;
+            if (pos < length && (input.charAt(pos) == '-' || input.charAt(pos) == '+')) {
+                negativeExponent = input.charAt(pos) == '-';
+                pos++;
+            }
+
+            int exponent = 0;
+            int exponentDigits = 0;
+            for (; pos < length; pos++) {
+                final char c = input.charAt(pos);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                exponent = exponent * 10 + (c - '0');
+                if (++exponentDigits > 2 || exponent > MAX_EXPONENT) {
+                    return false;
+                }
+            }
+
+            if (exponentDigits == 0) {
+                return false;
+            }
+
+            scale += negativeExponent ? exponent : -exponent;
+        }
+
+        numberMantissa = negative ? -mantissa : mantissa;
+        numberScale = scale;
+        return true;
+    }
+
+    private boolean consume(final char expected) {
+        skipWhitespace();
+
+        if (pos < length && input.charAt(pos) == expected) {
+            pos++;
+            return true;
+        }
+
+        return false;
+    }
+
+    private void skipWhitespace() {
+        while (pos < length) {
+            final char c = input.charAt(pos);
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return;
+            }
+            pos++;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*******************************************************************************
+ *
+ *    Copyright (C) 2015-2018 Jan Kristof Nidzwetzki
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License. 
+ *
+ *******************************************************************************/
+package bitfinex.callback.channel;
+
+import bitfinex.entity.FixedPoint;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+/**
+ * Reusable result of {@link ChannelFrameDecoder}. Numbers are kept as decimal
+ * mantissa and scale (value = mantissa * 10^-scale), laid out row by row.
+ * The content is only valid until the next frame is decoded into this instance.
+ * <p>
+ * An entry list that was streamed from a fragmented message is handed out in
+ * several parts, see {@link #isFirstPart()} and {@link #isLastPart()}.
+ */
+public class DecodedFrame {
+
+    public enum Type {
+        HEARTBEAT,      // [chanId,"hb"]
+        ENTRY,          // [chanId,[a,b,c]]
+        ENTRY_LIST,     // [chanId,[[a,b,c],[a,b,c]]]
+        TRADE_EXECUTED, // [chanId,"te",[a,b,c,d]]
+        TRADE_UPDATE,   // [chanId,"tu",[a,b,c,d]]
+        CHECKSUM        // [chanId,"cs",checksum]
+    }
+
+    public final static int MAX_COLUMNS = 8;
+
+    private int channelId;
+
+    private Type type;
+
+    private int rowCount;
+
+    private boolean firstPart;
+
+    private boolean lastPart;
+
+    private boolean hasSequence;
+
+    private long sequence;
+
+    private int[] columnCounts = new int[16];
+
+    private long[] mantissas = new long[16 * MAX_COLUMNS];
+
+    private int[] scales = new int[16 * MAX_COLUMNS];
+
+    void reset() {
+        channelId = -1;
+        type = null;
+        rowCount = 0;
+        firstPart = true;
+        lastPart = true;
+        hasSequence = false;
+    }
+
+    /**
+     * Drop the rows of the last part, the frame header is kept
+     */
+    void clearRows() {
+        rowCount = 0;
+    }
+
+    void setParts(final boolean firstPart, final boolean lastPart) {
+        this.firstPart = firstPart;
+        this.lastPart = lastPart;
+    }
+
+    void setChannelId(final int channelId) {
+        this.channelId = channelId;
+    }
+
+    void setType(final Type type) {
+        this.type = type;
+    }
+
+    int addRow() {
+        if (rowCount == columnCounts.length) {
+            final int capacity = rowCount * 2;
+            columnCounts = Arrays.copyOf(columnCounts, capacity);
+            mantissas = Arrays.copyOf(mantissas, capacity * MAX_COLUMNS);
+            scales = Arrays.copyOf(scales, capacity * MAX_COLUMNS);
+        }
+        columnCounts[rowCount] = 0;
+        return rowCount++;
+    }
+
+    boolean addValue(final int row, final long mantissa, final int scale) {
+        final int column = columnCounts[row];
+
+        if (column == MAX_COLUMNS) {
+            return false;
+        }
+
+        mantissas[row * MAX_COLUMNS + column] = mantissa;
+        scales[row * MAX_COLUMNS + column] = scale;
+        columnCounts[row] = column + 1;
+        return true;
+    }
+
+    void setSequence(final long sequence) {
+        this.sequence = sequence;
+        this.hasSequence = true;
+    }
+
+    /**
+     * Copy the content of another frame into this instance, reusing the row storage
+     *
+     * @param other
+     */
+    public void copyFrom(final DecodedFrame other) {
+        channelId = other.channelId;
+        type = other.type;
+        firstPart = other.firstPart;
+        lastPart = other.lastPart;
+        hasSequence = other.hasSequence;
+        sequence = other.sequence;
+        rowCount = other.rowCount;
+
+        if (columnCounts.length < rowCount) {
+            columnCounts = new int[other.columnCounts.length];
+            mantissas = new long[other.mantissas.length];
+            scales = new int[other.scales.length];
+        }
+
+        System.arraycopy(other.columnCounts, 0, columnCounts, 0, rowCount);
+        System.arraycopy(other.mantissas, 0, mantissas, 0, rowCount * MAX_COLUMNS);
+        System.arraycopy(other.scales, 0, scales, 0, rowCount * MAX_COLUMNS);
+    }
+
+    /**
+     * Copy the header of another frame into this instance, without its rows
+     *
+     * @param other
+     */
+    public void copyHeader(final DecodedFrame other) {
+        channelId = other.channelId;
+        type = other.type;
+        firstPart = other.firstPart;
+        lastPart = other.lastPart;
+        hasSequence = other.hasSequence;
+        sequence = other.sequence;
+        rowCount = 0;
+    }
+
+    /**
+     * Append a row of another frame, used to hand out a subset of its rows
+     *
+     * @param other
+     * @param row
+     */
+    public void appendRow(final DecodedFrame other, final int row) {
+        final int target = addRow();
+        columnCounts[target] = other.columnCounts[row];
+        System.arraycopy(other.mantissas, row * MAX_COLUMNS, mantissas, target * MAX_COLUMNS, MAX_COLUMNS);
+        System.arraycopy(other.scales, row * MAX_COLUMNS, scales, target * MAX_COLUMNS, MAX_COLUMNS);
+    }
+
+    public int getChannelId() {
+        return channelId;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Is this the first part of an entry list, always true for complete frames
+     */
+    public boolean isFirstPart() {
+        return firstPart;
+    }
+
+    /**
+     * Is this the last part of an entry list, always true for complete frames
+     */
+    public boolean isLastPart() {
+        return lastPart;
+    }
+
+    /**
+     * Does the frame carry a sequence number (see {@link bitfinex.entity.ConfFlag#SEQ_ALL}).
+     * Streamed entry lists carry it on the last part only.
+     */
+    public boolean hasSequence() {
+        return hasSequence;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getColumnCount(final int row) {
+        return columnCounts[row];
+    }
+
+    public long getMantissa(final int row, final int column) {
+        return mantissas[row * MAX_COLUMNS + column];
+    }
+
+    public int getScale(final int row, final int column) {
+        return scales[row * MAX_COLUMNS + column];
+    }
+
+    /**
+     * Integral part of the value, truncated like {@link com.google.gson.JsonElement#getAsLong()}
+     */
+    public long getLong(final int row, final int column) {
+        return FixedPoint.rescale(getMantissa(row, column), getScale(row, column), 0);
+    }
+
+    public int getInt(final int row, final int column) {
+        return (int) getLong(row, column);
+    }
+
+    /**
+     * Mantissa of the value brought to the given scale
+     *
+     * @throws ArithmeticException if the value has more decimals than the scale, see {@link FixedPoint#rescaleExact(long, int, int)}
+     */
+    public long getMantissa(final int row, final int column, final int scale) {
+        return FixedPoint.rescaleExact(getMantissa(row, column), getScale(row, column), scale);
+    }
+
+    public BigDecimal getBigDecimal(final int row, final int column) {
+        return FixedPoint.toBigDecimal(getMantissa(row, column), getScale(row, column));
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("DecodedFrame [channelId=").append(channelId).append(", type=").append(type);
+        if (hasSequence) {
+            sb.append(", sequence=").append(sequence);
+        }
+        sb.append(", rows=");
+        for (int row = 0; row < rowCount; row++) {
+            sb.append('[');
+            for (int column = 0; column < columnCounts[row]; column++) {
+                if (column > 0) {
+                    sb.append(',');
+                }
+                sb.append(getBigDecimal(row, column).toPlainString());
+            }
+            sb.append(']');
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -17,48 +17,115 @@
  *******************************************************************************/
 package bitfinex.callback.channel;
 
-import bitfinex.BitfinexApiBroker;
 import bitfinex.entity.APIException;
+import bitfinex.entity.BitfinexCurrencyPair;
 import bitfinex.entity.BitfinexExecutedTradeSymbol;
-import bitfinex.entity.BitfinexStreamSymbol;
 import bitfinex.entity.ExecutedTrade;
+import bitfinex.entity.FixedPoint;
+import bitfinex.manager.BiConsumerCallbackManager.SymbolCallbacks;
 import com.google.gson.JsonArray;
 
 import java.math.BigDecimal;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ExecutedTradeHandler implements ChannelCallbackHandler {
 
+    private final BitfinexExecutedTradeSymbol symbol;
+
+    private final SymbolCallbacks<BitfinexExecutedTradeSymbol, ExecutedTrade> tradeCallbacks;
+
+    private final int priceScale;
+
+    private final int amountScale;
+
+    /**
+     * Reused trade in flyweight mode, see {@link bitfinex.BitfinexApiBroker#setFlyweightEvents(boolean)}
+     */
+    private final ExecutedTrade flyweightTrade;
+
+    /**
+     * Highest trade id delivered for the symbol, shared by the handlers of its subscriptions
+     */
+    private final AtomicLong lastTradeId;
+
+    /**
+     * Trade ids up to this one are skipped in the snapshot being applied
+     */
+    private long snapshotFloor = -1;
+
+    /**
+     * @param lastTradeId highest trade id delivered by the handlers of earlier subscriptions of the
+     *                    symbol, trades of the snapshot up to that id are not delivered again
+     */
+    public ExecutedTradeHandler(final BitfinexExecutedTradeSymbol symbol,
+                                final SymbolCallbacks<BitfinexExecutedTradeSymbol, ExecutedTrade> tradeCallbacks,
+                                final boolean flyweight, final AtomicLong lastTradeId) {
+        this.symbol = symbol;
+        this.tradeCallbacks = tradeCallbacks;
+        this.lastTradeId = lastTradeId;
+        this.flyweightTrade = flyweight ? new ExecutedTrade() : null;
+
+        final BitfinexCurrencyPair currencyPair = symbol.getBitfinexCurrencyPair();
+        this.priceScale = currencyPair.getPriceScale();
+        this.amountScale = currencyPair.getAmountScale();
+    }
+
     @Override
-    public void handleChannelData(final BitfinexApiBroker bitfinexApiBroker,
-                                  final BitfinexStreamSymbol channelSymbol, final JsonArray jsonArray) throws APIException {
+    public BitfinexExecutedTradeSymbol getSymbol() {
+        return symbol;
+    }
 
-        final BitfinexExecutedTradeSymbol configuration = (BitfinexExecutedTradeSymbol) channelSymbol;
+    @Override
+    public void handleChannelData(final JsonArray jsonArray) throws APIException {
 
         // Snapshots contain multiple executes entries, updates only one
         if (jsonArray.get(0) instanceof JsonArray) {
+            final long delivered = lastTradeId.get();
             for (int pos = 0; pos < jsonArray.size(); pos++) {
                 final JsonArray parts = jsonArray.get(pos).getAsJsonArray();
-                handleEntry(bitfinexApiBroker, configuration, parts);
+                if (parts.get(0).getAsLong() > delivered) {
+                    handleEntry(parts);
+                }
             }
         } else {
-            handleEntry(bitfinexApiBroker, configuration, jsonArray);
+            handleEntry(jsonArray);
         }
     }
 
-    private void handleEntry(final BitfinexApiBroker bitfinexApiBroker,
-                             final BitfinexExecutedTradeSymbol symbol,
-                             final JsonArray jsonArray) {
+    @Override
+    public void handleChannelData(final DecodedFrame frame) throws APIException {
 
-        final ExecutedTrade executedTrade = new ExecutedTrade();
+        // Snapshots contain multiple executes entries, updates only one
+        if (frame.getType() == DecodedFrame.Type.ENTRY_LIST) {
+            // A resubscription starts with the recent trades, the ones delivered before are skipped
+            if (frame.isFirstPart()) {
+                snapshotFloor = lastTradeId.get();
+            }
+            for (int row = 0; row < frame.getRowCount(); row++) {
+                if (frame.getLong(row, 0) > snapshotFloor) {
+                    handleEntry(frame, row);
+                }
+            }
+        } else {
+            for (int row = 0; row < frame.getRowCount(); row++) {
+                handleEntry(frame, row);
+            }
+        }
+    }
+
+    private void handleEntry(final JsonArray jsonArray) {
+
+        final ExecutedTrade executedTrade = createTrade();
 
         final long id = jsonArray.get(0).getAsLong();
         executedTrade.setId(id);
+        updateLastTradeId(id);
 
         final long timestamp = jsonArray.get(1).getAsLong();
         executedTrade.setTimestamp(timestamp);
 
         final BigDecimal amount = jsonArray.get(2).getAsBigDecimal();
-        executedTrade.setAmount(amount);
+        executedTrade.setAmount(FixedPoint.fromBigDecimal(amount, amountScale), amountScale);
 
         // Funding or Currency
         if (jsonArray.size() > 4) {
@@ -69,9 +136,47 @@ public class ExecutedTradeHandler implements ChannelCallbackHandler {
             executedTrade.setPeriod(period);
         } else {
             final BigDecimal price = jsonArray.get(3).getAsBigDecimal();
-            executedTrade.setPrice(price);
+            executedTrade.setPrice(FixedPoint.fromBigDecimal(price, priceScale), priceScale);
+        }
+
+        tradeCallbacks.handleEvent(executedTrade);
+    }
+
+    private void handleEntry(final DecodedFrame frame, final int row) throws APIException {
+
+        if (frame.getColumnCount(row) < 4) {
+            throw new APIException("Malformed executed trade: " + frame);
+        }
+
+        final ExecutedTrade executedTrade = createTrade();
+        executedTrade.setId(frame.getLong(row, 0));
+        updateLastTradeId(executedTrade.getId());
+        executedTrade.setTimestamp(frame.getLong(row, 1));
+        executedTrade.setAmount(frame.getMantissa(row, 2, amountScale), amountScale);
+
+        // Funding or Currency
+        if (frame.getColumnCount(row) > 4) {
+            executedTrade.setRate(frame.getMantissa(row, 3), frame.getScale(row, 3));
+            executedTrade.setPeriod(frame.getInt(row, 4));
+        } else {
+            executedTrade.setPrice(frame.getMantissa(row, 3, priceScale), priceScale);
+        }
+
+        tradeCallbacks.handleEvent(executedTrade);
+    }
+
+    private void updateLastTradeId(final long id) {
+        if (id > lastTradeId.get()) {
+            lastTradeId.set(id);
+        }
+    }
+
+    private ExecutedTrade createTrade() {
+        if (flyweightTrade == null) {
+            return new ExecutedTrade();
         }
 
-        bitfinexApiBroker.getExecutedTradesManager().handleExecutedTradeEntry(symbol, executedTrade);
+        flyweightTrade.reset();
+        return flyweightTrade;
     }
 }
@@ -17,60 +17,309 @@
  *******************************************************************************/
 package bitfinex.callback.channel;
 
-import bitfinex.BitfinexApiBroker;
 import bitfinex.entity.APIException;
+import bitfinex.entity.BitfinexCurrencyPair;
 import bitfinex.entity.BitfinexStreamSymbol;
+import bitfinex.entity.FixedPoint;
 import bitfinex.entity.OrderbookConfiguration;
 import bitfinex.entity.OrderbookEntry;
+import bitfinex.manager.BiConsumerCallbackManager.SymbolCallbacks;
+import bitfinex.manager.SnapshotCallbackManager.SymbolSnapshotCallbacks;
 import com.google.gson.JsonArray;
+import velox.api.layer1.common.Log;
 
-import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 public class OrderbookHandler implements ChannelCallbackHandler {
 
+    private final OrderbookConfiguration configuration;
+
+    private final SymbolCallbacks<OrderbookConfiguration, OrderbookEntry> entryCallbacks;
+
+    private final SymbolSnapshotCallbacks<OrderbookConfiguration, OrderbookEntry> snapshotCallbacks;
+
+    private final SymbolCallbacks<OrderbookConfiguration, List<OrderbookEntry>> batchCallbacks;
+
+    private final int priceScale;
+
+    private final int amountScale;
+
+    /**
+     * The first entry list of a channel is the snapshot, later ones are bulk updates
+     */
+    private boolean snapshotReceived;
+
+    private boolean receivingSnapshot;
+
+    /**
+     * Mirror of the top levels to verify checksums, null if checksums are not verified
+     */
+    private final AggregatedBookChecksum checksum;
+
+    private final Consumer<BitfinexStreamSymbol> resyncHandler;
+
+    /**
+     * The whole book if no checksum mirror keeps it, users that join the channel later are seeded from it
+     */
+    private final BookMirror mirror;
+
+    private boolean checksumFailed;
+
+    /**
+     * Reuse entries and lists, see {@link bitfinex.BitfinexApiBroker#setFlyweightEvents(boolean)}
+     */
+    private final boolean flyweight;
+
+    private final List<OrderbookEntry> entryPool = new ArrayList<>();
+
+    private int pooledEntries;
+
+    private final List<OrderbookEntry> batchBuffer = new ArrayList<>();
+
+    public OrderbookHandler(final OrderbookConfiguration configuration,
+                            final SymbolCallbacks<OrderbookConfiguration, OrderbookEntry> entryCallbacks,
+                            final SymbolSnapshotCallbacks<OrderbookConfiguration, OrderbookEntry> snapshotCallbacks,
+                            final SymbolCallbacks<OrderbookConfiguration, List<OrderbookEntry>> batchCallbacks,
+                            final Consumer<BitfinexStreamSymbol> resyncHandler,
+                            final boolean flyweight) {
+        this.configuration = configuration;
+        this.entryCallbacks = entryCallbacks;
+        this.snapshotCallbacks = snapshotCallbacks;
+        this.batchCallbacks = batchCallbacks;
+
+        final BitfinexCurrencyPair currencyPair = configuration.getCurrencyPair();
+        this.priceScale = currencyPair.getPriceScale();
+        this.amountScale = currencyPair.getAmountScale();
+
+        this.flyweight = flyweight;
+        this.resyncHandler = resyncHandler;
+        this.checksum = resyncHandler == null ? null : new AggregatedBookChecksum(priceScale, amountScale);
+        this.mirror = checksum == null ? new BookMirror() : null;
+    }
+
     @Override
-    public void handleChannelData(final BitfinexApiBroker bitfinexApiBroker,
-                                  final BitfinexStreamSymbol channelSymbol, final JsonArray jsonArray) throws APIException {
+    public OrderbookConfiguration getSymbol() {
+        return configuration;
+    }
+
+    @Override
+    public void handleChannelData(final JsonArray jsonArray) throws APIException {
+
+        pooledEntries = 0;
 
-        final OrderbookConfiguration configuration = (OrderbookConfiguration) channelSymbol;
         // Example: [13182,1,-0.1]
 
-        // Snapshots contain multiple Orderbook entries, updates only one
-        if (jsonArray.get(0) instanceof JsonArray) {
-            handleSnapshot(bitfinexApiBroker, configuration, jsonArray);
+        // Snapshots and bulk updates contain multiple Orderbook entries, updates only one
+        if (jsonArray.size() == 0 || jsonArray.get(0) instanceof JsonArray) {
+            if (snapshotReceived) {
+                handleBatch(jsonArray);
+            } else {
+                snapshotReceived = true;
+                handleSnapshot(jsonArray);
+            }
         } else {
-            handleEntry(bitfinexApiBroker, configuration, jsonArray);
+            entryCallbacks.handleEvent(parseOrderBookEntry(jsonArray));
         }
 
+        seedNewUsers();
+    }
+
+    @Override
+    public void handleChannelData(final DecodedFrame frame) throws APIException {
+
+        // The entries of a streamed snapshot stay valid until its last part
+        if (frame.isFirstPart()) {
+            pooledEntries = 0;
+        }
+
+        if (frame.getType() == DecodedFrame.Type.ENTRY_LIST) {
+            // Large entry lists arrive in several parts, see StreamingFrameDecoder
+            if (frame.isFirstPart()) {
+                receivingSnapshot = !snapshotReceived;
+                snapshotReceived = true;
+            }
+
+            if (receivingSnapshot) {
+                handleSnapshot(frame);
+            } else {
+                handleBatch(frame);
+            }
+        } else {
+            entryCallbacks.handleEvent(parseOrderBookEntry(frame, 0));
+        }
 
+        if (frame.isLastPart()) {
+            seedNewUsers();
+        }
     }
 
-    private void handleEntry(final BitfinexApiBroker bitfinexApiBroker,
-                             final OrderbookConfiguration configuration,
-                             final JsonArray jsonArray) {
-        bitfinexApiBroker.getOrderbookManager().handleNewOrderbookEntry(configuration, parseOrderBookEntry(jsonArray));
+    @Override
+    public void handleHeartbeat() {
+        // A quiet channel still seeds its new users
+        seedNewUsers();
     }
 
-    private void handleSnapshot(final BitfinexApiBroker bitfinexApiBroker,
-                                final OrderbookConfiguration configuration,
-                                final JsonArray jsonArray) {
+    @Override
+    public void handleChecksum(final int expected) {
+
+        if (checksum == null || checksumFailed || !snapshotReceived) {
+            return;
+        }
+
+        final int actual = checksum.compute();
 
-        List<OrderbookEntry> entries = new ArrayList<>();
+        if (actual != expected) {
+            // Stop checking until the channel is resubscribed with a new handler
+            checksumFailed = true;
+            Log.warn("Checksum mismatch on " + configuration + ", expected " + expected + ", computed " + actual);
+            resyncHandler.accept(configuration);
+        }
+    }
+
+    private void handleSnapshot(final DecodedFrame frame) throws APIException {
+        if (frame.isFirstPart()) {
+            clearBook();
+            snapshotCallbacks.start(flyweight);
+        }
+        for (int row = 0; row < frame.getRowCount(); row++) {
+            snapshotCallbacks.entry(parseOrderBookEntry(frame, row));
+        }
+        if (frame.isLastPart()) {
+            snapshotCallbacks.end();
+        }
+    }
+
+    /**
+     * Bulk update, delivered as a whole to the batch callbacks or entry by entry
+     * if there are none
+     */
+    private void handleBatch(final DecodedFrame frame) throws APIException {
+        if (!batchCallbacks.hasCallbacks()) {
+            for (int row = 0; row < frame.getRowCount(); row++) {
+                entryCallbacks.handleEvent(parseOrderBookEntry(frame, row));
+            }
+            return;
+        }
+
+        final List<OrderbookEntry> entries = createBatchList(frame.getRowCount());
+        for (int row = 0; row < frame.getRowCount(); row++) {
+            entries.add(parseOrderBookEntry(frame, row));
+        }
+        batchCallbacks.handleEvent(entries);
+    }
+
+    private void handleBatch(final JsonArray jsonArray) {
+        final boolean deliverBatch = batchCallbacks.hasCallbacks();
+        final List<OrderbookEntry> entries = createBatchList(jsonArray.size());
         for (int pos = 0; pos < jsonArray.size(); pos++) {
-            JsonArray entry = jsonArray.get(pos).getAsJsonArray();
-            entries.add(parseOrderBookEntry(entry));
+            final OrderbookEntry entry = parseOrderBookEntry(jsonArray.get(pos).getAsJsonArray());
+            if (deliverBatch) {
+                entries.add(entry);
+            } else {
+                entryCallbacks.handleEvent(entry);
+            }
         }
+        if (deliverBatch) {
+            batchCallbacks.handleEvent(entries);
+        }
+    }
 
-        bitfinexApiBroker.getOrderbookManager().handleOrderbookSnapshot(configuration, entries);
+    private void handleSnapshot(final JsonArray jsonArray) {
+        clearBook();
+        snapshotCallbacks.start(flyweight);
+        for (int pos = 0; pos < jsonArray.size(); pos++) {
+            final JsonArray parts = jsonArray.get(pos).getAsJsonArray();
+            snapshotCallbacks.entry(parseOrderBookEntry(parts));
+        }
+        snapshotCallbacks.end();
     }
 
     private OrderbookEntry parseOrderBookEntry(JsonArray jsonArray) {
-        BigDecimal price = jsonArray.get(0).getAsBigDecimal();
-        BigDecimal count = jsonArray.get(1).getAsBigDecimal();
-        BigDecimal amount = jsonArray.get(2).getAsBigDecimal();
-        return new OrderbookEntry(price, count, amount);
+        long price = FixedPoint.fromBigDecimal(jsonArray.get(0).getAsBigDecimal(), priceScale);
+        int count = jsonArray.get(1).getAsInt();
+        long amount = FixedPoint.fromBigDecimal(jsonArray.get(2).getAsBigDecimal(), amountScale);
+        updateBook(price, count, amount);
+        return createEntry(price, count, amount);
+    }
+
+    private OrderbookEntry parseOrderBookEntry(final DecodedFrame frame, final int row) throws APIException {
+        if (frame.getColumnCount(row) < 3) {
+            throw new APIException("Malformed orderbook entry: " + frame);
+        }
+
+        long price = frame.getMantissa(row, 0, priceScale);
+        int count = frame.getInt(row, 1);
+        long amount = frame.getMantissa(row, 2, amountScale);
+        updateBook(price, count, amount);
+        return createEntry(price, count, amount);
+    }
+
+    /**
+     * Deliver the book to the users that subscribed after the snapshot, the channel is not resubscribed for them
+     */
+    private void seedNewUsers() {
+        if (!snapshotReceived || !snapshotCallbacks.hasUnseeded()) {
+            return;
+        }
+
+        // Seeding is rare, the entries are not pooled
+        final List<OrderbookEntry> entries = new ArrayList<>(checksum == null ? mirror.size() : checksum.size());
+        forEachEntry((price, count, amount)
+                -> entries.add(new OrderbookEntry(price, priceScale, (int) count, amount, amountScale)));
+        snapshotCallbacks.seed(entries);
     }
 
+    private void forEachEntry(final BookMirror.EntryConsumer consumer) {
+        if (checksum == null) {
+            mirror.forEach(consumer);
+        } else {
+            checksum.forEach(consumer);
+        }
+    }
+
+    private void clearBook() {
+        if (checksum == null) {
+            mirror.clear();
+        } else {
+            checksum.clear();
+        }
+    }
+
+    /**
+     * Every parsed entry is applied to the checksum mirror, or to the book mirror if checksums are not verified
+     */
+    private void updateBook(final long price, final int count, final long amount) {
+        if (checksum != null) {
+            checksum.apply(price, count, amount);
+        } else if (count == 0) {
+            mirror.remove(price);
+        } else {
+            mirror.put(price, count, amount);
+        }
+    }
+
+    private OrderbookEntry createEntry(final long price, final int count, final long amount) {
+        if (!flyweight) {
+            return new OrderbookEntry(price, priceScale, count, amount, amountScale);
+        }
+
+        if (pooledEntries == entryPool.size()) {
+            entryPool.add(new OrderbookEntry(0, 0, 0, 0, 0));
+        }
+
+        final OrderbookEntry entry = entryPool.get(pooledEntries++);
+        entry.set(price, priceScale, count, amount, amountScale);
+        return entry;
+    }
+
+    private List<OrderbookEntry> createBatchList(final int size) {
+        if (!flyweight) {
+            return new ArrayList<>(size);
+        }
+
+        batchBuffer.clear();
+        return batchBuffer;
+    }
 }
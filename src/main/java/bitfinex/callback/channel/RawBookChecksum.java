@@ -0,0 +1,91 @@
+/*******************************************************************************
+ *
+ *    Copyright (C) 2015-2018 Jan Kristof Nidzwetzki
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License. 
+ *
+ *******************************************************************************/
+package bitfinex.callback.channel;
+
+import bitfinex.util.LongLongHashMap;
+
+/**
+ * Checksum mirror of a raw book (R0). Orders are sorted by price and by id within a
+ * price, the checksum contains the order ids instead of the prices.
+ */
+public class RawBookChecksum extends BookChecksum {
+
+    /**
+     * Price of every order to find it in its side, negated for asks
+     */
+    private final LongLongHashMap priceByOrder = new LongLongHashMap(1024);
+
+    public RawBookChecksum(final int amountScale) {
+        super(0, amountScale);
+    }
+
+    /**
+     * Apply a raw book entry, a price of 0 removes the order
+     *
+     * @param orderId
+     * @param priceMantissa
+     * @param amountMantissa
+     */
+    public void apply(final long orderId, final long priceMantissa, final long amountMantissa) {
+        removeOrder(orderId);
+
+        if (priceMantissa != 0) {
+            final boolean bid = amountMantissa > 0;
+            (bid ? bids : asks).put(priceMantissa, orderId, 1, amountMantissa);
+            priceByOrder.put(orderId, bid ? priceMantissa : -priceMantissa);
+        }
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        priceByOrder.clear();
+    }
+
+    /**
+     * Every order as order id, price and amount
+     */
+    @Override
+    void forEach(final BookMirror.EntryConsumer consumer) {
+        for (final Side side : new Side[]{bids, asks}) {
+            for (int i = 0; i < side.size(); i++) {
+                consumer.accept(side.getKey(i), side.getPrice(i), side.getAmount(i));
+            }
+        }
+    }
+
+    @Override
+    protected long getChecksumKey(final Side side, final int index) {
+        return side.getKey(index);
+    }
+
+    private void removeOrder(final long orderId) {
+        final long signedPrice = priceByOrder.get(orderId, 0);
+
+        if (signedPrice == 0) {
+            return;
+        }
+
+        if (signedPrice > 0) {
+            bids.remove(signedPrice, orderId);
+        } else {
+            asks.remove(-signedPrice, orderId);
+        }
+        priceByOrder.remove(orderId);
+    }
+}
@@ -17,57 +17,309 @@
  *******************************************************************************/
 package bitfinex.callback.channel;
 
-import bitfinex.BitfinexApiBroker;
 import bitfinex.entity.APIException;
+import bitfinex.entity.BitfinexCurrencyPair;
 import bitfinex.entity.BitfinexStreamSymbol;
+import bitfinex.entity.FixedPoint;
 import bitfinex.entity.RawOrderbookConfiguration;
 import bitfinex.entity.RawOrderbookEntry;
+import bitfinex.manager.BiConsumerCallbackManager.SymbolCallbacks;
+import bitfinex.manager.SnapshotCallbackManager.SymbolSnapshotCallbacks;
 import com.google.gson.JsonArray;
+import velox.api.layer1.common.Log;
 
-import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 public class RawOrderbookHandler implements ChannelCallbackHandler {
 
+    private final RawOrderbookConfiguration configuration;
+
+    private final SymbolCallbacks<RawOrderbookConfiguration, RawOrderbookEntry> entryCallbacks;
+
+    private final SymbolSnapshotCallbacks<RawOrderbookConfiguration, RawOrderbookEntry> snapshotCallbacks;
+
+    private final SymbolCallbacks<RawOrderbookConfiguration, List<RawOrderbookEntry>> batchCallbacks;
+
+    private final int priceScale;
+
+    private final int amountScale;
+
+    /**
+     * The first entry list of a channel is the snapshot, later ones are bulk updates
+     */
+    private boolean snapshotReceived;
+
+    private boolean receivingSnapshot;
+
+    /**
+     * Mirror of the top levels to verify checksums, null if checksums are not verified
+     */
+    private final RawBookChecksum checksum;
+
+    private final Consumer<BitfinexStreamSymbol> resyncHandler;
+
+    /**
+     * The whole book if no checksum mirror keeps it, users that join the channel later are seeded from it
+     */
+    private final BookMirror mirror;
+
+    private boolean checksumFailed;
+
+    /**
+     * Reuse entries and lists, see {@link bitfinex.BitfinexApiBroker#setFlyweightEvents(boolean)}
+     */
+    private final boolean flyweight;
+
+    private final List<RawOrderbookEntry> entryPool = new ArrayList<>();
+
+    private int pooledEntries;
+
+    private final List<RawOrderbookEntry> batchBuffer = new ArrayList<>();
+
+    public RawOrderbookHandler(final RawOrderbookConfiguration configuration,
+                               final SymbolCallbacks<RawOrderbookConfiguration, RawOrderbookEntry> entryCallbacks,
+                               final SymbolSnapshotCallbacks<RawOrderbookConfiguration, RawOrderbookEntry> snapshotCallbacks,
+                               final SymbolCallbacks<RawOrderbookConfiguration, List<RawOrderbookEntry>> batchCallbacks,
+                               final Consumer<BitfinexStreamSymbol> resyncHandler,
+                               final boolean flyweight) {
+        this.configuration = configuration;
+        this.entryCallbacks = entryCallbacks;
+        this.snapshotCallbacks = snapshotCallbacks;
+        this.batchCallbacks = batchCallbacks;
+
+        final BitfinexCurrencyPair currencyPair = configuration.getCurrencyPair();
+        this.priceScale = currencyPair.getPriceScale();
+        this.amountScale = currencyPair.getAmountScale();
+
+        this.flyweight = flyweight;
+        this.resyncHandler = resyncHandler;
+        this.checksum = resyncHandler == null ? null : new RawBookChecksum(amountScale);
+        this.mirror = checksum == null ? new BookMirror() : null;
+    }
+
+    @Override
+    public RawOrderbookConfiguration getSymbol() {
+        return configuration;
+    }
+
     @Override
-    public void handleChannelData(final BitfinexApiBroker bitfinexApiBroker,
-                                  final BitfinexStreamSymbol channelSymbol, final JsonArray jsonArray) throws APIException {
+    public void handleChannelData(final JsonArray jsonArray) throws APIException {
 
-        final RawOrderbookConfiguration configuration = (RawOrderbookConfiguration) channelSymbol;
+        pooledEntries = 0;
 
         // Example: [13182,1,-0.1]
 
-        // Snapshots contain multiple Orderbook entries, updates only one
-        if (jsonArray.get(0) instanceof JsonArray) {
-            handleSnapshot(bitfinexApiBroker, jsonArray, configuration);
+        // Snapshots and bulk updates contain multiple Orderbook entries, updates only one
+        if (jsonArray.size() == 0 || jsonArray.get(0) instanceof JsonArray) {
+            if (snapshotReceived) {
+                handleBatch(jsonArray);
+            } else {
+                snapshotReceived = true;
+                handleSnapshot(jsonArray);
+            }
         } else {
-            handleEntry(bitfinexApiBroker, configuration, jsonArray);
+            entryCallbacks.handleEvent(parseRawOrderbookEntry(jsonArray));
         }
+
+        seedNewUsers();
     }
 
-    private void handleSnapshot(BitfinexApiBroker bitfinexApiBroker, JsonArray jsonArray, RawOrderbookConfiguration configuration) {
-        List<RawOrderbookEntry> entries = new ArrayList<>();
-        for (int pos = 0; pos < jsonArray.size(); pos++) {
-            final JsonArray parts = jsonArray.get(pos).getAsJsonArray();
-            RawOrderbookEntry rawOrderbookEntry = parseRawOrderbookEntry(parts);
-            entries.add(rawOrderbookEntry);
+    @Override
+    public void handleChannelData(final DecodedFrame frame) throws APIException {
+
+        // The entries of a streamed snapshot stay valid until its last part
+        if (frame.isFirstPart()) {
+            pooledEntries = 0;
+        }
+
+        if (frame.getType() == DecodedFrame.Type.ENTRY_LIST) {
+            // Large entry lists arrive in several parts, see StreamingFrameDecoder
+            if (frame.isFirstPart()) {
+                receivingSnapshot = !snapshotReceived;
+                snapshotReceived = true;
+            }
+
+            if (receivingSnapshot) {
+                handleSnapshot(frame);
+            } else {
+                handleBatch(frame);
+            }
+        } else {
+            entryCallbacks.handleEvent(parseRawOrderbookEntry(frame, 0));
+        }
+
+        if (frame.isLastPart()) {
+            seedNewUsers();
+        }
+    }
+
+    @Override
+    public void handleHeartbeat() {
+        // A quiet channel still seeds its new users
+        seedNewUsers();
+    }
+
+    @Override
+    public void handleChecksum(final int expected) {
+
+        if (checksum == null || checksumFailed || !snapshotReceived) {
+            return;
+        }
+
+        final int actual = checksum.compute();
+
+        if (actual != expected) {
+            // Stop checking until the channel is resubscribed with a new handler
+            checksumFailed = true;
+            Log.warn("Checksum mismatch on " + configuration + ", expected " + expected + ", computed " + actual);
+            resyncHandler.accept(configuration);
+        }
+    }
+
+    private void handleSnapshot(final DecodedFrame frame) throws APIException {
+        if (frame.isFirstPart()) {
+            clearBook();
+            snapshotCallbacks.start(flyweight);
+        }
+        for (int row = 0; row < frame.getRowCount(); row++) {
+            snapshotCallbacks.entry(parseRawOrderbookEntry(frame, row));
+        }
+        if (frame.isLastPart()) {
+            snapshotCallbacks.end();
         }
-        bitfinexApiBroker.getRawOrderbookManager().handleOrderbookSnapshot(configuration, entries);
     }
 
+    /**
+     * Bulk update, delivered as a whole to the batch callbacks or entry by entry
+     * if there are none
+     */
+    private void handleBatch(final DecodedFrame frame) throws APIException {
+        if (!batchCallbacks.hasCallbacks()) {
+            for (int row = 0; row < frame.getRowCount(); row++) {
+                entryCallbacks.handleEvent(parseRawOrderbookEntry(frame, row));
+            }
+            return;
+        }
+
+        final List<RawOrderbookEntry> entries = createBatchList(frame.getRowCount());
+        for (int row = 0; row < frame.getRowCount(); row++) {
+            entries.add(parseRawOrderbookEntry(frame, row));
+        }
+        batchCallbacks.handleEvent(entries);
+    }
 
-    private void handleEntry(final BitfinexApiBroker bitfinexApiBroker,
-                             final RawOrderbookConfiguration configuration,
-                             final JsonArray jsonArray) {
-        final RawOrderbookEntry orderbookEntry = parseRawOrderbookEntry(jsonArray);
-        bitfinexApiBroker.getRawOrderbookManager().handleNewOrderbookEntry(configuration, orderbookEntry);
+    private void handleBatch(final JsonArray jsonArray) {
+        final boolean deliverBatch = batchCallbacks.hasCallbacks();
+        final List<RawOrderbookEntry> entries = createBatchList(jsonArray.size());
+        for (int pos = 0; pos < jsonArray.size(); pos++) {
+            final RawOrderbookEntry entry = parseRawOrderbookEntry(jsonArray.get(pos).getAsJsonArray());
+            if (deliverBatch) {
+                entries.add(entry);
+            } else {
+                entryCallbacks.handleEvent(entry);
+            }
+        }
+        if (deliverBatch) {
+            batchCallbacks.handleEvent(entries);
+        }
+    }
+
+    private void handleSnapshot(final JsonArray jsonArray) {
+        clearBook();
+        snapshotCallbacks.start(flyweight);
+        for (int pos = 0; pos < jsonArray.size(); pos++) {
+            final JsonArray parts = jsonArray.get(pos).getAsJsonArray();
+            snapshotCallbacks.entry(parseRawOrderbookEntry(parts));
+        }
+        snapshotCallbacks.end();
     }
 
     private RawOrderbookEntry parseRawOrderbookEntry(JsonArray jsonArray) {
         long orderId = jsonArray.get(0).getAsLong();
-        BigDecimal price = jsonArray.get(1).getAsBigDecimal();
-        BigDecimal amount = jsonArray.get(2).getAsBigDecimal();
-        return new RawOrderbookEntry(orderId, price, amount);
+        long price = FixedPoint.fromBigDecimal(jsonArray.get(1).getAsBigDecimal(), priceScale);
+        long amount = FixedPoint.fromBigDecimal(jsonArray.get(2).getAsBigDecimal(), amountScale);
+        updateBook(orderId, price, amount);
+        return createEntry(orderId, price, amount);
+    }
+
+    private RawOrderbookEntry parseRawOrderbookEntry(final DecodedFrame frame, final int row) throws APIException {
+        if (frame.getColumnCount(row) < 3) {
+            throw new APIException("Malformed raw orderbook entry: " + frame);
+        }
+
+        long orderId = frame.getLong(row, 0);
+        long price = frame.getMantissa(row, 1, priceScale);
+        long amount = frame.getMantissa(row, 2, amountScale);
+        updateBook(orderId, price, amount);
+        return createEntry(orderId, price, amount);
+    }
+
+    /**
+     * Deliver the book to the users that subscribed after the snapshot, the channel is not resubscribed for them
+     */
+    private void seedNewUsers() {
+        if (!snapshotReceived || !snapshotCallbacks.hasUnseeded()) {
+            return;
+        }
+
+        // Seeding is rare, the entries are not pooled
+        final List<RawOrderbookEntry> entries = new ArrayList<>(checksum == null ? mirror.size() : checksum.size());
+        forEachEntry((orderId, price, amount)
+                -> entries.add(new RawOrderbookEntry(orderId, price, priceScale, amount, amountScale)));
+        snapshotCallbacks.seed(entries);
+    }
+
+    private void forEachEntry(final BookMirror.EntryConsumer consumer) {
+        if (checksum == null) {
+            mirror.forEach(consumer);
+        } else {
+            checksum.forEach(consumer);
+        }
+    }
+
+    private void clearBook() {
+        if (checksum == null) {
+            mirror.clear();
+        } else {
+            checksum.clear();
+        }
+    }
+
+    /**
+     * Every parsed entry is applied to the checksum mirror, or to the book mirror if checksums are not verified
+     */
+    private void updateBook(final long orderId, final long price, final long amount) {
+        if (checksum != null) {
+            checksum.apply(orderId, price, amount);
+        } else if (price == 0) {
+            mirror.remove(orderId);
+        } else {
+            mirror.put(orderId, price, amount);
+        }
+    }
+
+    private RawOrderbookEntry createEntry(final long orderId, final long price, final long amount) {
+        if (!flyweight) {
+            return new RawOrderbookEntry(orderId, price, priceScale, amount, amountScale);
+        }
+
+        if (pooledEntries == entryPool.size()) {
+            entryPool.add(new RawOrderbookEntry(0, 0, 0, 0, 0));
+        }
+
+        final RawOrderbookEntry entry = entryPool.get(pooledEntries++);
+        entry.set(orderId, price, priceScale, amount, amountScale);
+        return entry;
+    }
+
+    private List<RawOrderbookEntry> createBatchList(final int size) {
+        if (!flyweight) {
+            return new ArrayList<>(size);
+        }
+
+        batchBuffer.clear();
+        return batchBuffer;
     }
 }
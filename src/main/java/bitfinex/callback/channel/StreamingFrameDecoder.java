@@ -0,0 +1,163 @@
+/*******************************************************************************
+ *
+ *    Copyright (C) 2015-2018 Jan Kristof Nidzwetzki
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License. 
+ *
+ *******************************************************************************/
+package bitfinex.callback.channel;
+
+import velox.api.layer1.common.Log;
+
+import java.util.function.Consumer;
+
+/**
+ * Reassembles websocket messages that are delivered in several fragments.
+ * <p>
+ * Entry lists (order book and trade snapshots) are decoded while the fragments
+ * arrive and handed out in parts as soon as complete rows are available, so a
+ * large snapshot is never held as one string or list. All other fragmented
+ * messages are buffered and returned as a whole once the last fragment arrived.
+ * <p>
+ * Instances must only be used from the websocket receive thread.
+ */
+public class StreamingFrameDecoder {
+
+    private enum State {
+        IDLE,   // No fragmented message in progress
+        HEADER, // Waiting for the beginning of the message
+        ROWS,   // Streaming the rows of an entry list
+        TAIL,   // Entry list complete, waiting for the end of the message
+        BUFFER, // Not streamable, collecting the whole message
+        SKIP    // Malformed, dropping the rest of the message
+    }
+
+    /**
+     * Buffers larger than this are released after the message, to not keep a
+     * single large message alive
+     */
+    private final static int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private final ChannelFrameDecoder decoder = new ChannelFrameDecoder();
+
+    private final DecodedFrame frame = new DecodedFrame();
+
+    private final StringBuilder pending = new StringBuilder();
+
+    private State state = State.IDLE;
+
+    private int position;
+
+    private boolean firstPartSent;
+
+    /**
+     * Handle the next fragment of a websocket message
+     *
+     * @param fragment
+     * @param last is this the last fragment of the message
+     * @param partConsumer receives the parts of streamed entry lists
+     * @return the complete message if it was not streamed, null otherwise
+     */
+    public String onFragment(final String fragment, final boolean last, final Consumer<DecodedFrame> partConsumer) {
+
+        if (state == State.IDLE) {
+            if (last) {
+                // Complete message in a single fragment, nothing to reassemble
+                return fragment;
+            }
+            state = State.HEADER;
+        }
+
+        try {
+            if (state == State.SKIP) {
+                return null;
+            }
+
+            pending.append(fragment);
+
+            if (state == State.HEADER) {
+                final int result = decoder.decodeEntryListHeader(pending, frame);
+
+                if (result == ChannelFrameDecoder.NEED_MORE_INPUT && !last) {
+                    return null;
+                } else if (result < 0) {
+                    state = State.BUFFER;
+                } else {
+                    position = result;
+                    firstPartSent = false;
+                    state = State.ROWS;
+                }
+            }
+
+            if (state == State.ROWS) {
+                final int next = decoder.decodeEntryListRows(pending, position, frame);
+
+                if (next == ChannelFrameDecoder.NOT_STREAMABLE) {
+                    Log.error("Malformed entry list on channel " + frame.getChannelId() + ", dropping message");
+                    state = State.SKIP;
+                    return null;
+                }
+
+                // Consumed rows are not needed anymore
+                pending.delete(0, next);
+                position = 0;
+
+                if (decoder.isEntryListComplete()) {
+                    // The last rows are handed out once the message is known to be complete
+                    state = State.TAIL;
+                } else if (frame.getRowCount() > 0) {
+                    emitPart(false, partConsumer);
+                }
+            }
+
+            if (!last) {
+                return null;
+            }
+
+            if (state == State.BUFFER) {
+                return pending.toString();
+            }
+
+            if (state == State.TAIL && decoder.decodeEntryListTail(pending, 0, frame)) {
+                emitPart(true, partConsumer);
+            } else {
+                Log.error("Incomplete entry list on channel " + frame.getChannelId() + ", dropping message");
+            }
+
+            return null;
+        } finally {
+            if (last) {
+                reset();
+            }
+        }
+    }
+
+    /**
+     * Drop a partially received message, e.g. after the connection was reestablished
+     */
+    public void reset() {
+        state = State.IDLE;
+        position = 0;
+        pending.setLength(0);
+
+        if (pending.capacity() > MAX_RETAINED_CAPACITY) {
+            pending.trimToSize();
+        }
+    }
+
+    private void emitPart(final boolean lastPart, final Consumer<DecodedFrame> partConsumer) {
+        frame.setParts(!firstPartSent, lastPart);
+        firstPartSent = true;
+        partConsumer.accept(frame);
+    }
+}
@@ -17,12 +17,12 @@
  *******************************************************************************/
 package bitfinex.callback.command;
 
-import bitfinex.BitfinexApiBroker;
+import bitfinex.BitfinexConnection;
 import bitfinex.entity.APIException;
 import com.google.gson.JsonObject;
 
 public interface CommandCallbackHandler {
 
-    public void handleChannelData(final BitfinexApiBroker bitfinexApiBroker, final JsonObject jsonObject)
+    public void handleChannelData(final BitfinexConnection connection, final JsonObject jsonObject)
             throws APIException;
 }
@@ -17,14 +17,14 @@
  *******************************************************************************/
 package bitfinex.callback.command;
 
-import bitfinex.BitfinexApiBroker;
+import bitfinex.BitfinexConnection;
 import bitfinex.entity.APIException;
 import com.google.gson.JsonObject;
 
 public class DoNothingCommandCallback implements CommandCallbackHandler {
 
     @Override
-    public void handleChannelData(final BitfinexApiBroker bitfinexApiBroker,
+    public void handleChannelData(final BitfinexConnection connection,
                                   final JsonObject jsonObject) throws APIException {
 
         // Do nothing
@@ -0,0 +1,43 @@
+/*******************************************************************************
+ *
+ *    Copyright (C) 2015-2018 Jan Kristof Nidzwetzki
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License. 
+ *
+ *******************************************************************************/
+package bitfinex.callback.command;
+
+import bitfinex.BitfinexConnection;
+import bitfinex.entity.APIException;
+import com.google.gson.JsonObject;
+import velox.api.layer1.common.Log;
+
+public class ErrorCallback implements CommandCallbackHandler {
+
+    @Override
+    public void handleChannelData(final BitfinexConnection connection,
+                                  final JsonObject jsonObject) throws APIException {
+
+        final String message = jsonObject.has("msg") ? jsonObject.get("msg").getAsString() : "";
+        final String code = jsonObject.has("code") ? jsonObject.get("code").getAsString() : "";
+
+        // Errors of subscribe requests echo the subId of the request
+        if (jsonObject.has("subId")) {
+            connection.getBitfinexApiBroker().getSubscriptions().fail(jsonObject.get("subId").getAsString(),
+                    new APIException("Subscription failed: " + message + " (code " + code + ")"));
+        } else {
+            Log.error("Got error from server: " + jsonObject);
+        }
+    }
+
+}
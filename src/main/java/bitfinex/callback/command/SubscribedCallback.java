@@ -17,9 +17,11 @@
  *******************************************************************************/
 package bitfinex.callback.command;
 
-import bitfinex.BitfinexApiBroker;
+import bitfinex.BitfinexConnection;
 import bitfinex.entity.APIException;
+import bitfinex.commands.UnsubscribeChannelCommand;
 import bitfinex.entity.BitfinexExecutedTradeSymbol;
+import bitfinex.entity.BitfinexStreamSymbol;
 import bitfinex.entity.OrderbookConfiguration;
 import bitfinex.entity.RawOrderbookConfiguration;
 import com.google.gson.JsonObject;
@@ -28,7 +30,7 @@ import velox.api.layer1.common.Log;
 public class SubscribedCallback implements CommandCallbackHandler {
 
     @Override
-    public void handleChannelData(final BitfinexApiBroker bitfinexApiBroker,
+    public void handleChannelData(final BitfinexConnection connection,
                                   final JsonObject jsonObject) throws APIException {
 
         final String channel = jsonObject.get("channel").getAsString();
@@ -36,38 +38,61 @@ public class SubscribedCallback implements CommandCallbackHandler {
 
         switch (channel) {
             case "trades":
-                handleTradesCallback(bitfinexApiBroker, jsonObject, channelId);
+                handleTradesCallback(connection, jsonObject, channelId);
                 break;
             case "book":
-                handleBookCallback(bitfinexApiBroker, jsonObject, channelId);
+                handleBookCallback(connection, jsonObject, channelId);
                 break;
             default:
                 Log.error("Unknown subscribed callback " + jsonObject.toString());
         }
     }
 
-    private void handleBookCallback(final BitfinexApiBroker bitfinexApiBroker, final JsonObject jsonObject,
+    private void handleBookCallback(final BitfinexConnection connection, final JsonObject jsonObject,
                                     final int channelId) {
 
         if ("R0".equals(jsonObject.get("prec").getAsString())) {
             final RawOrderbookConfiguration configuration
                     = RawOrderbookConfiguration.fromJSON(jsonObject);
             Log.info("Registering raw book " + jsonObject + " on channel " + channelId);
-            bitfinexApiBroker.addToChannelSymbolMap(channelId, configuration);
+            registerChannel(connection, jsonObject, channelId, configuration);
         } else {
             final OrderbookConfiguration configuration
                     = OrderbookConfiguration.fromJSON(jsonObject);
             Log.info("Registering book " + jsonObject + " on channel " + channelId);
-            bitfinexApiBroker.addToChannelSymbolMap(channelId, configuration);
+            registerChannel(connection, jsonObject, channelId, configuration);
         }
     }
 
-    private void handleTradesCallback(final BitfinexApiBroker bitfinexApiBroker, final JsonObject jsonObject,
+    private void handleTradesCallback(final BitfinexConnection connection, final JsonObject jsonObject,
                                       final int channelId) {
 
         final String symbol2 = jsonObject.get("symbol").getAsString();
         final BitfinexExecutedTradeSymbol currencyPair = BitfinexExecutedTradeSymbol.fromBitfinexString(symbol2);
         Log.info("Registering symbol " + currencyPair + " on channel " + channelId);
-        bitfinexApiBroker.addToChannelSymbolMap(channelId, currencyPair);
+        registerChannel(connection, jsonObject, channelId, currencyPair);
+    }
+
+    /**
+     * Route the channel and complete its subscription. A channel whose subscription
+     * was cancelled in the meantime is unsubscribed right away.
+     */
+    private void registerChannel(final BitfinexConnection connection, final JsonObject jsonObject,
+                                 final int channelId, final BitfinexStreamSymbol symbol) {
+
+        final String subId = jsonObject.has("subId") ? jsonObject.get("subId").getAsString() : null;
+
+        if (!connection.getBitfinexApiBroker().getSubscriptions().accept(subId)) {
+            Log.info("Subscription of " + symbol + " was cancelled, unsubscribing channel " + channelId);
+            connection.sendCommand(new UnsubscribeChannelCommand(channelId));
+            return;
+        }
+
+        // The request may have been a second subscription of the symbol on another connection
+        final BitfinexStreamSymbol requested = connection.getBitfinexApiBroker().getSubscriptions().getSymbol(subId);
+        final BitfinexStreamSymbol routed = requested != null ? requested : symbol;
+
+        connection.addToChannelSymbolMap(channelId, routed);
+        connection.getBitfinexApiBroker().getSubscriptions().complete(subId, routed, channelId);
     }
 }
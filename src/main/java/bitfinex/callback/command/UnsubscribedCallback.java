@@ -17,7 +17,7 @@
  *******************************************************************************/
 package bitfinex.callback.command;
 
-import bitfinex.BitfinexApiBroker;
+import bitfinex.BitfinexConnection;
 import bitfinex.entity.APIException;
 import bitfinex.entity.BitfinexStreamSymbol;
 import com.google.gson.JsonObject;
@@ -26,13 +26,13 @@ import velox.api.layer1.common.Log;
 public class UnsubscribedCallback implements CommandCallbackHandler {
 
     @Override
-    public void handleChannelData(final BitfinexApiBroker bitfinexApiBroker, final JsonObject jsonObject)
+    public void handleChannelData(final BitfinexConnection connection, final JsonObject jsonObject)
             throws APIException {
 
         final int channelId = jsonObject.get("chanId").getAsInt();
-        final BitfinexStreamSymbol symbol = bitfinexApiBroker.getFromChannelSymbolMap(channelId);
+        final BitfinexStreamSymbol symbol = connection.getFromChannelSymbolMap(channelId);
         Log.info("Channel " + channelId + " (" + symbol + ") is unsubscribed");
 
-        bitfinexApiBroker.removeChannel(channelId);
+        connection.removeChannel(channelId);
     }
 }
@@ -0,0 +1,46 @@
+/*******************************************************************************
+ *
+ *    Copyright (C) 2015-2018 Jan Kristof Nidzwetzki
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License. 
+ *
+ *******************************************************************************/
+package bitfinex.commands;
+
+import bitfinex.BitfinexApiBroker;
+import bitfinex.entity.ConfFlag;
+import com.google.gson.JsonObject;
+
+import java.util.Set;
+
+public class ConfCommand extends AbstractAPICommand {
+
+    private final int flags;
+
+    public ConfCommand(final Set<ConfFlag> confFlags) {
+        int flags = 0;
+        for (final ConfFlag confFlag : confFlags) {
+            flags |= confFlag.getFlag();
+        }
+        this.flags = flags;
+    }
+
+    @Override
+    public String getCommand(final BitfinexApiBroker bitfinexApiBroker) {
+        final JsonObject confJson = new JsonObject();
+        confJson.addProperty("event", "conf");
+        confJson.addProperty("flags", flags);
+
+        return confJson.toString();
+    }
+}
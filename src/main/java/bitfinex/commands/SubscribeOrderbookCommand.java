@@ -25,8 +25,19 @@ public class SubscribeOrderbookCommand extends AbstractAPICommand {
 
     private OrderbookConfiguration orderbookConfiguration;
 
+    private final String subId;
+
     public SubscribeOrderbookCommand(final OrderbookConfiguration orderbookConfiguration) {
+        this(orderbookConfiguration, null);
+    }
+
+    /**
+     * @param orderbookConfiguration
+     * @param subId echoed in the subscribed or error event, may be null
+     */
+    public SubscribeOrderbookCommand(final OrderbookConfiguration orderbookConfiguration, final String subId) {
         this.orderbookConfiguration = orderbookConfiguration;
+        this.subId = subId;
     }
 
     @Override
@@ -39,6 +50,10 @@ public class SubscribeOrderbookCommand extends AbstractAPICommand {
         subscribeJson.addProperty("freq", orderbookConfiguration.getOrderBookFrequency().toString());
         subscribeJson.addProperty("len", Integer.toString(orderbookConfiguration.getPricePoints()));
 
+        if (subId != null) {
+            subscribeJson.addProperty("subId", subId);
+        }
+
         return subscribeJson.toString();
     }
 
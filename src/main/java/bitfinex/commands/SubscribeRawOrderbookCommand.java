@@ -25,8 +25,19 @@ public class SubscribeRawOrderbookCommand extends AbstractAPICommand {
 
     private RawOrderbookConfiguration rawOrderbookConfiguration;
 
+    private final String subId;
+
     public SubscribeRawOrderbookCommand(final RawOrderbookConfiguration orderbookConfiguration) {
+        this(orderbookConfiguration, null);
+    }
+
+    /**
+     * @param orderbookConfiguration
+     * @param subId echoed in the subscribed or error event, may be null
+     */
+    public SubscribeRawOrderbookCommand(final RawOrderbookConfiguration orderbookConfiguration, final String subId) {
         this.rawOrderbookConfiguration = orderbookConfiguration;
+        this.subId = subId;
     }
 
     @Override
@@ -37,6 +48,10 @@ public class SubscribeRawOrderbookCommand extends AbstractAPICommand {
         subscribeJson.addProperty("symbol", rawOrderbookConfiguration.getCurrencyPair().toBitfinexString());
         subscribeJson.addProperty("prec", "R0");
 
+        if (subId != null) {
+            subscribeJson.addProperty("subId", subId);
+        }
+
         return subscribeJson.toString();
     }
 
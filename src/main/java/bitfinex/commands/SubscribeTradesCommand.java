@@ -25,8 +25,19 @@ public class SubscribeTradesCommand extends AbstractAPICommand {
 
     private String currencyPair;
 
+    private final String subId;
+
     public SubscribeTradesCommand(final BitfinexExecutedTradeSymbol tradeSymbol) {
+        this(tradeSymbol, null);
+    }
+
+    /**
+     * @param tradeSymbol
+     * @param subId echoed in the subscribed or error event, may be null
+     */
+    public SubscribeTradesCommand(final BitfinexExecutedTradeSymbol tradeSymbol, final String subId) {
         this.currencyPair = tradeSymbol.getBitfinexCurrencyPair().toBitfinexString();
+        this.subId = subId;
     }
 
     @Override
@@ -36,6 +47,10 @@ public class SubscribeTradesCommand extends AbstractAPICommand {
         subscribeJson.addProperty("channel", "trades");
         subscribeJson.addProperty("symbol", currencyPair);
 
+        if (subId != null) {
+            subscribeJson.addProperty("subId", subId);
+        }
+
         return subscribeJson.toString();
     }
 }
@@ -125,6 +125,21 @@ public enum BitfinexCurrencyPair {
     ELF_ETH,
     ELF_USD;
 
+    /**
+     * Decimal places kept in the fixed-point mantissas of prices and amounts. Prices have
+     * 5 significant digits, pairs quoted in BTC or ETH trade down to 1e-8 and need more
+     * decimals than fiat pairs. Bitfinex does not accept amounts with more than 8 decimals.
+     */
+    private final static int FIAT_PRICE_SCALE = 10;
+    private final static int CRYPTO_PRICE_SCALE = 12;
+    private final static int AMOUNT_SCALE = 8;
+
+    private final int priceScale;
+
+    BitfinexCurrencyPair() {
+        this.priceScale = name().endsWith("_BTC") || name().endsWith("_ETH") ? CRYPTO_PRICE_SCALE : FIAT_PRICE_SCALE;
+    }
+
     public static BitfinexCurrencyPair fromSymbolString(final String symbolString) {
         for (BitfinexCurrencyPair curency : BitfinexCurrencyPair.values()) {
             if (curency.toBitfinexString().equalsIgnoreCase(symbolString)) {
@@ -141,6 +156,14 @@ public enum BitfinexCurrencyPair {
         return false;
     }
 
+    public int getPriceScale() {
+        return priceScale;
+    }
+
+    public int getAmountScale() {
+        return AMOUNT_SCALE;
+    }
+
     public String toBitfinexString() {
         return "t" + toString().replace("_", "");
     }
@@ -0,0 +1,37 @@
+/*******************************************************************************
+ *
+ *    Copyright (C) 2015-2018 Jan Kristof Nidzwetzki
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License. 
+ *
+ *******************************************************************************/
+package bitfinex.entity;
+
+/**
+ * Connection options that are negotiated with the conf event
+ */
+public enum ConfFlag {
+    SEQ_ALL(65536),          // Every message carries the sequence number of the connection, [chanId,..,seq]
+    OB_CHECKSUM(131072),     // Books send a CRC32 of their top levels, [chanId,"cs",checksum]
+    BULK_UPDATES(536870912); // Book updates are sent in batches, [chanId,[[..],[..]]]
+
+    private final int flag;
+
+    ConfFlag(final int flag) {
+        this.flag = flag;
+    }
+
+    public int getFlag() {
+        return flag;
+    }
+}
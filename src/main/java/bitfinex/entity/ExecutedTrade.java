@@ -19,18 +19,49 @@ package bitfinex.entity;
 
 import java.math.BigDecimal;
 
+/**
+ * Amount, price and rate are stored as fixed-point mantissas (value = mantissa * 10^-scale),
+ * the BigDecimal getters are lazily created views on them and return null if the value is not set.
+ */
 public class ExecutedTrade {
 
     private long id;
     private long timestamp;
+    private long amountMantissa;
+    private int amountScale;
+    private long priceMantissa;
+    private int priceScale;
+    private long rateMantissa;
+    private int rateScale;
+    private int period;
+
+    private boolean hasAmount;
+    private boolean hasPrice;
+    private boolean hasRate;
+
     private BigDecimal amount;
     private BigDecimal price;
     private BigDecimal rate;
-    private int period;
 
     public ExecutedTrade() {
     }
 
+    /**
+     * Unset all values, used by the channel handlers to reuse instances in flyweight mode
+     * (see {@link bitfinex.BitfinexApiBroker#setFlyweightEvents(boolean)})
+     */
+    public void reset() {
+        id = 0;
+        timestamp = 0;
+        period = 0;
+        hasAmount = false;
+        hasPrice = false;
+        hasRate = false;
+        amount = null;
+        price = null;
+        rate = null;
+    }
+
     public long getTimestamp() {
         return timestamp;
     }
@@ -40,27 +71,96 @@ public class ExecutedTrade {
     }
 
     public BigDecimal getAmount() {
+        if (amount == null && hasAmount) {
+            amount = FixedPoint.toBigDecimal(amountMantissa, amountScale);
+        }
         return amount;
     }
 
     public void setAmount(final BigDecimal amount) {
         this.amount = amount;
+        this.hasAmount = amount != null;
+        if (hasAmount) {
+            this.amountMantissa = amount.unscaledValue().longValueExact();
+            this.amountScale = amount.scale();
+        }
+    }
+
+    public void setAmount(final long amountMantissa, final int amountScale) {
+        this.amountMantissa = amountMantissa;
+        this.amountScale = amountScale;
+        this.hasAmount = true;
+        this.amount = null;
+    }
+
+    public long getAmountMantissa() {
+        return amountMantissa;
+    }
+
+    public int getAmountScale() {
+        return amountScale;
     }
 
     public BigDecimal getPrice() {
+        if (price == null && hasPrice) {
+            price = FixedPoint.toBigDecimal(priceMantissa, priceScale);
+        }
         return price;
     }
 
     public void setPrice(final BigDecimal price) {
         this.price = price;
+        this.hasPrice = price != null;
+        if (hasPrice) {
+            this.priceMantissa = price.unscaledValue().longValueExact();
+            this.priceScale = price.scale();
+        }
+    }
+
+    public void setPrice(final long priceMantissa, final int priceScale) {
+        this.priceMantissa = priceMantissa;
+        this.priceScale = priceScale;
+        this.hasPrice = true;
+        this.price = null;
+    }
+
+    public long getPriceMantissa() {
+        return priceMantissa;
+    }
+
+    public int getPriceScale() {
+        return priceScale;
     }
 
     public BigDecimal getRate() {
+        if (rate == null && hasRate) {
+            rate = FixedPoint.toBigDecimal(rateMantissa, rateScale);
+        }
         return rate;
     }
 
     public void setRate(final BigDecimal rate) {
         this.rate = rate;
+        this.hasRate = rate != null;
+        if (hasRate) {
+            this.rateMantissa = rate.unscaledValue().longValueExact();
+            this.rateScale = rate.scale();
+        }
+    }
+
+    public void setRate(final long rateMantissa, final int rateScale) {
+        this.rateMantissa = rateMantissa;
+        this.rateScale = rateScale;
+        this.hasRate = true;
+        this.rate = null;
+    }
+
+    public long getRateMantissa() {
+        return rateMantissa;
+    }
+
+    public int getRateScale() {
+        return rateScale;
     }
 
     public int getPeriod() {
@@ -81,8 +181,8 @@ public class ExecutedTrade {
 
     @Override
     public String toString() {
-        return "ExecutedTrade [id=" + id + ", timestamp=" + timestamp + ", amount=" + amount + ", price=" + price
-                + ", rate=" + rate + ", period=" + period + "]";
+        return "ExecutedTrade [id=" + id + ", timestamp=" + timestamp + ", amount=" + getAmount() + ", price=" + getPrice()
+                + ", rate=" + getRate() + ", period=" + period + "]";
     }
 
 }
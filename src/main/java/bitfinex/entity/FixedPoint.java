@@ -0,0 +1,139 @@
+/*******************************************************************************
+ *
+ *    Copyright (C) 2015-2018 Jan Kristof Nidzwetzki
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License. 
+ *
+ *******************************************************************************/
+package bitfinex.entity;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Helpers for decimal fixed-point numbers stored as a long mantissa and a scale,
+ * the value being mantissa * 10^-scale.
+ */
+public final class FixedPoint {
+
+    private final static long[] POW10 = new long[19];
+
+    private final static double[] POW10_DOUBLE = new double[23];
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+
+        POW10_DOUBLE[0] = 1;
+        for (int i = 1; i < POW10_DOUBLE.length; i++) {
+            POW10_DOUBLE[i] = POW10_DOUBLE[i - 1] * 10;
+        }
+    }
+
+    private FixedPoint() {
+    }
+
+    public static long pow10(final int exponent) {
+        return POW10[exponent];
+    }
+
+    /**
+     * Bring the mantissa to another scale. Digits that do not fit into the
+     * target scale are truncated toward zero.
+     *
+     * @throws ArithmeticException if the result does not fit into a long
+     */
+    public static long rescale(final long mantissa, final int fromScale, final int toScale) {
+        if (fromScale == toScale) {
+            return mantissa;
+        } else if (fromScale < toScale) {
+            final int shift = toScale - fromScale;
+            if (shift >= POW10.length) {
+                if (mantissa == 0) {
+                    return 0;
+                }
+                throw new ArithmeticException("long overflow");
+            }
+            return Math.multiplyExact(mantissa, POW10[shift]);
+        } else {
+            final int shift = fromScale - toScale;
+            return shift >= POW10.length ? 0 : mantissa / POW10[shift];
+        }
+    }
+
+    /**
+     * Bring the mantissa to another scale without losing digits
+     *
+     * @throws ArithmeticException if the value has more decimals than the target scale
+     * or the result does not fit into a long
+     */
+    public static long rescaleExact(final long mantissa, final int fromScale, final int toScale) {
+        final long result = rescale(mantissa, fromScale, toScale);
+
+        if (fromScale > toScale && rescale(result, toScale, fromScale) != mantissa) {
+            throw new ArithmeticException(toBigDecimal(mantissa, fromScale).toPlainString()
+                    + " has more than " + toScale + " decimals");
+        }
+
+        return result;
+    }
+
+    /**
+     * Integral part of mantissa * 10^-scale * multiplier, truncated toward zero
+     */
+    public static long multiply(final long mantissa, final int scale, final long multiplier) {
+        try {
+            return rescale(Math.multiplyExact(mantissa, multiplier), scale, 0);
+        } catch (ArithmeticException e) {
+            return toBigDecimal(mantissa, scale).multiply(BigDecimal.valueOf(multiplier)).longValue();
+        }
+    }
+
+    /**
+     * mantissa * 10^-scale * multiplier as the closest double
+     */
+    public static double multiplyToDouble(final long mantissa, final int scale, final long multiplier) {
+        final long product;
+        try {
+            product = Math.multiplyExact(mantissa, multiplier);
+        } catch (ArithmeticException e) {
+            return toBigDecimal(mantissa, scale).multiply(BigDecimal.valueOf(multiplier)).doubleValue();
+        }
+
+        // Both operands are exact doubles here, so the division is correctly rounded
+        if (Math.abs(product) < (1L << 53) && scale >= 0 && scale <= 22) {
+            return product / POW10_DOUBLE[scale];
+        }
+
+        return toBigDecimal(product, scale).doubleValue();
+    }
+
+    public static BigDecimal toBigDecimal(final long mantissa, final int scale) {
+        return BigDecimal.valueOf(mantissa, scale);
+    }
+
+    /**
+     * Mantissa of the value at the given scale
+     *
+     * @throws ArithmeticException if the value has more decimals than the scale or does not fit into a long
+     */
+    public static long fromBigDecimal(final BigDecimal value, final int scale) {
+        try {
+            return value.setScale(scale, RoundingMode.UNNECESSARY).unscaledValue().longValueExact();
+        } catch (ArithmeticException e) {
+            throw new ArithmeticException(value.toPlainString() + " does not fit into a mantissa of scale " + scale);
+        }
+    }
+}
@@ -19,33 +19,91 @@ package bitfinex.entity;
 
 import java.math.BigDecimal;
 
+/**
+ * Price and amount are stored as fixed-point mantissas (value = mantissa * 10^-scale),
+ * the BigDecimal getters are lazily created views on them.
+ * <p>
+ * In flyweight mode (see {@link bitfinex.BitfinexApiBroker#setFlyweightEvents(boolean)})
+ * instances are reused by the channel handlers and only valid during the callback.
+ */
 public class OrderbookEntry {
 
-    private final BigDecimal price;
-    private final BigDecimal amount;
-    private final BigDecimal count;
+    private long priceMantissa;
+    private int priceScale;
+    private long amountMantissa;
+    private int amountScale;
+    private int count;
+
+    private BigDecimal price;
+    private BigDecimal amount;
+
+    public OrderbookEntry(final long priceMantissa, final int priceScale, final int count,
+                          final long amountMantissa, final int amountScale) {
+        set(priceMantissa, priceScale, count, amountMantissa, amountScale);
+    }
 
     public OrderbookEntry(BigDecimal price, BigDecimal count, BigDecimal amount) {
+        this(price.unscaledValue().longValueExact(), price.scale(), count.intValue(),
+                amount.unscaledValue().longValueExact(), amount.scale());
         this.price = price;
-        this.count = count;
         this.amount = amount;
     }
 
+    /**
+     * Overwrite the entry, used by the channel handlers to reuse instances
+     */
+    public void set(final long priceMantissa, final int priceScale, final int count,
+                    final long amountMantissa, final int amountScale) {
+        this.priceMantissa = priceMantissa;
+        this.priceScale = priceScale;
+        this.count = count;
+        this.amountMantissa = amountMantissa;
+        this.amountScale = amountScale;
+        this.price = null;
+        this.amount = null;
+    }
+
     public BigDecimal getPrice() {
+        if (price == null) {
+            price = FixedPoint.toBigDecimal(priceMantissa, priceScale);
+        }
         return price;
     }
 
     public BigDecimal getAmount() {
+        if (amount == null) {
+            amount = FixedPoint.toBigDecimal(amountMantissa, amountScale);
+        }
         return amount;
     }
 
     public BigDecimal getCount() {
+        return BigDecimal.valueOf(count);
+    }
+
+    public long getPriceMantissa() {
+        return priceMantissa;
+    }
+
+    public int getPriceScale() {
+        return priceScale;
+    }
+
+    public long getAmountMantissa() {
+        return amountMantissa;
+    }
+
+    public int getAmountScale() {
+        return amountScale;
+    }
+
+    public int getIntCount() {
         return count;
     }
 
     @Override
     public String toString() {
-        return "OrderbookEntry [price=" + price + ", count=" + count + ", amount=" + amount + "]";
+        return "OrderbookEntry [price=" + getPrice() + ", count=" + count + ", amount=" + getAmount() + "]";
     }
 
 }
@@ -19,33 +19,87 @@ package bitfinex.entity;
 
 import java.math.BigDecimal;
 
+/**
+ * Price and amount are stored as fixed-point mantissas (value = mantissa * 10^-scale),
+ * the BigDecimal getters are lazily created views on them.
+ * <p>
+ * In flyweight mode (see {@link bitfinex.BitfinexApiBroker#setFlyweightEvents(boolean)})
+ * instances are reused by the channel handlers and only valid during the callback.
+ */
 public class RawOrderbookEntry {
 
-    private final long orderId;
-    private final BigDecimal price;
-    private final BigDecimal amount;
+    private long orderId;
+    private long priceMantissa;
+    private int priceScale;
+    private long amountMantissa;
+    private int amountScale;
+
+    private BigDecimal price;
+    private BigDecimal amount;
+
+    public RawOrderbookEntry(final long orderId, final long priceMantissa, final int priceScale,
+                             final long amountMantissa, final int amountScale) {
+        set(orderId, priceMantissa, priceScale, amountMantissa, amountScale);
+    }
 
     public RawOrderbookEntry(final long orderId, BigDecimal price, BigDecimal amount) {
-        this.orderId = orderId;
+        this(orderId, price.unscaledValue().longValueExact(), price.scale(),
+                amount.unscaledValue().longValueExact(), amount.scale());
         this.price = price;
         this.amount = amount;
     }
 
+    /**
+     * Overwrite the entry, used by the channel handlers to reuse instances
+     */
+    public void set(final long orderId, final long priceMantissa, final int priceScale,
+                    final long amountMantissa, final int amountScale) {
+        this.orderId = orderId;
+        this.priceMantissa = priceMantissa;
+        this.priceScale = priceScale;
+        this.amountMantissa = amountMantissa;
+        this.amountScale = amountScale;
+        this.price = null;
+        this.amount = null;
+    }
+
     public long getOrderId() {
         return orderId;
     }
 
     public BigDecimal getPrice() {
+        if (price == null) {
+            price = FixedPoint.toBigDecimal(priceMantissa, priceScale);
+        }
         return price;
     }
 
     public BigDecimal getAmount() {
+        if (amount == null) {
+            amount = FixedPoint.toBigDecimal(amountMantissa, amountScale);
+        }
         return amount;
     }
 
+    public long getPriceMantissa() {
+        return priceMantissa;
+    }
+
+    public int getPriceScale() {
+        return priceScale;
+    }
+
+    public long getAmountMantissa() {
+        return amountMantissa;
+    }
+
+    public int getAmountScale() {
+        return amountScale;
+    }
+
     @Override
     public String toString() {
-        return "RawOrderbookEntry [orderId=" + orderId + ", price=" + price + ", amount=" + amount + "]";
+        return "RawOrderbookEntry [orderId=" + orderId + ", price=" + getPrice() + ", amount=" + getAmount() + "]";
     }
 
 }
@@ -19,69 +19,128 @@ package bitfinex.manager;
 
 import bitfinex.entity.APIException;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiConsumer;
 
+/**
+ * Callbacks per symbol. Registration publishes a new immutable callback array
+ * (copy-on-write), so dispatching an event is a volatile read and a loop without locks.
+ */
 public class BiConsumerCallbackManager<S, T> {
 
-    private final Map<S, List<BiConsumer<S, T>>> callbacks = new HashMap<>();
+    private final Map<S, SymbolCallbacks<S, T>> callbacks = new ConcurrentHashMap<>();
 
     public void registerCallback(final S symbol, final BiConsumer<S, T> callback) {
+        getCallbacks(symbol).add(callback);
+    }
 
-        callbacks.putIfAbsent(symbol, new ArrayList<>());
+    public void clearCallBacks(final S symbol) throws APIException {
 
-        final List<BiConsumer<S, T>> callbackList = callbacks.get(symbol);
+        final SymbolCallbacks<S, T> symbolCallbacks = callbacks.get(symbol);
 
-        synchronized (callbackList) {
-            callbackList.add(callback);
+        if (symbolCallbacks == null) {
+            throw new APIException("Unknown ticker string: " + symbol);
         }
+
+        symbolCallbacks.clear();
     }
 
-    public void clearCallBacks(final S symbol) throws APIException {
+    public boolean removeCallback(final S symbol, final BiConsumer<S, T> callback) throws APIException {
 
-        if (!callbacks.containsKey(symbol)) {
+        final SymbolCallbacks<S, T> symbolCallbacks = callbacks.get(symbol);
+
+        if (symbolCallbacks == null) {
             throw new APIException("Unknown ticker string: " + symbol);
         }
 
-        final List<BiConsumer<S, T>> callbackList = callbacks.get(symbol);
+        return symbolCallbacks.remove(callback);
+    }
+
+    public void handleEvent(final S symbol, final T element) {
+
+        final SymbolCallbacks<S, T> symbolCallbacks = callbacks.get(symbol);
 
-        synchronized (callbackList) {
-            callbackList.clear();
+        if (symbolCallbacks == null) {
+            return;
         }
+
+        symbolCallbacks.handleEvent(element);
     }
 
-    public boolean removeCallback(final S symbol, final BiConsumer<S, T> callback) throws APIException {
+    /**
+     * Get the callbacks of the symbol, so that a channel can keep the reference and
+     * dispatch its events without looking up the symbol again. Callbacks that are
+     * registered or removed later are seen through the returned object.
+     *
+     * @param symbol
+     * @return
+     */
+    public SymbolCallbacks<S, T> getCallbacks(final S symbol) {
+        return callbacks.computeIfAbsent(symbol, SymbolCallbacks::new);
+    }
 
-        if (!callbacks.containsKey(symbol)) {
-            throw new APIException("Unknown ticker string: " + symbol);
-        }
+    public static final class SymbolCallbacks<S, T> {
+
+        @SuppressWarnings("rawtypes")
+        private final static BiConsumer[] EMPTY = new BiConsumer[0];
 
-        final List<BiConsumer<S, T>> callbackList = callbacks.get(symbol);
+        private final S symbol;
 
-        synchronized (callbackList) {
-            return callbackList.remove(callback);
+        /**
+         * Never modified, replaced on every change
+         */
+        private volatile BiConsumer<S, T>[] callbackArray = empty();
+
+        private SymbolCallbacks(final S symbol) {
+            this.symbol = symbol;
         }
-    }
 
-    public void handleEvent(final S symbol, final T element) {
+        public S getSymbol() {
+            return symbol;
+        }
 
-        final List<BiConsumer<S, T>> callbackList = callbacks.get(symbol);
+        public boolean hasCallbacks() {
+            return callbackArray.length > 0;
+        }
 
-        if (callbackList == null) {
-            return;
+        public void handleEvent(final T element) {
+            final BiConsumer<S, T>[] current = callbackArray;
+            for (int i = 0; i < current.length; i++) {
+                current[i].accept(symbol, element);
+            }
+        }
+
+        private synchronized void add(final BiConsumer<S, T> callback) {
+            final BiConsumer<S, T>[] current = callbackArray;
+            final BiConsumer<S, T>[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = callback;
+            callbackArray = updated;
         }
 
-        synchronized (callbackList) {
-            if (callbackList.isEmpty()) {
-                return;
+        private synchronized boolean remove(final BiConsumer<S, T> callback) {
+            final BiConsumer<S, T>[] current = callbackArray;
+
+            for (int i = 0; i < current.length; i++) {
+                if (current[i].equals(callback)) {
+                    final BiConsumer<S, T>[] updated = Arrays.copyOf(current, current.length - 1);
+                    System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                    callbackArray = updated;
+                    return true;
+                }
             }
 
-            callbackList.forEach((c) -> {
-                c.accept(symbol, element);
-            });
+            return false;
+        }
+
+        private synchronized void clear() {
+            callbackArray = empty();
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <S, T> BiConsumer<S, T>[] empty() {
+            return EMPTY;
         }
     }
 
@@ -1,12 +1,16 @@
 package bitfinex.manager;
 
 import bitfinex.BitfinexApiBroker;
-import bitfinex.commands.SubscribeTradesCommand;
-import bitfinex.commands.UnsubscribeChannelCommand;
+import bitfinex.callback.channel.ChannelCallbackHandler;
+import bitfinex.callback.channel.ExecutedTradeHandler;
 import bitfinex.entity.APIException;
 import bitfinex.entity.BitfinexExecutedTradeSymbol;
 import bitfinex.entity.ExecutedTrade;
 
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
 
 public class ExecutedTradesManager {
@@ -14,6 +18,12 @@ public class ExecutedTradesManager {
 
     private final BitfinexApiBroker bitfinexApiBroker;
 
+    /**
+     * Highest trade id delivered per symbol. It outlives the channel handlers, so a channel that is
+     * resubscribed (moved to another connection, reconnected) does not deliver its recent trades again.
+     */
+    private final Map<BitfinexExecutedTradeSymbol, AtomicLong> lastTradeIds = new ConcurrentHashMap<>();
+
     public ExecutedTradesManager(final BitfinexApiBroker bitfinexApiBroker) {
         this.bitfinexApiBroker = bitfinexApiBroker;
         this.tradesCallbacks = new BiConsumerCallbackManager<>();
@@ -31,26 +41,38 @@ public class ExecutedTradesManager {
         return tradesCallbacks.removeCallback(tradeSymbol, callback);
     }
 
-    public void subscribeExecutedTrades(final BitfinexExecutedTradeSymbol tradeSymbol) {
-
-        final SubscribeTradesCommand subscribeTradesCommand
-                = new SubscribeTradesCommand(tradeSymbol);
-
-        bitfinexApiBroker.sendCommand(subscribeTradesCommand);
+    /**
+     * Subscribe the channel, see {@link BitfinexApiBroker#subscribeChannel(bitfinex.entity.BitfinexStreamSymbol)}
+     *
+     * @param tradeSymbol
+     * @return completes with the channel id
+     */
+    public CompletableFuture<Integer> subscribeExecutedTrades(final BitfinexExecutedTradeSymbol tradeSymbol) {
+        return bitfinexApiBroker.subscribeChannel(tradeSymbol);
     }
 
     public void unsubscribeExecutedTrades(final BitfinexExecutedTradeSymbol tradeSymbol) throws APIException {
 
-        final int channel = bitfinexApiBroker.getChannelForSymbol(tradeSymbol);
-
-        if (channel == -1) {
+        if (!bitfinexApiBroker.unsubscribeChannel(tradeSymbol)) {
             throw new IllegalArgumentException("Unknown symbol: " + tradeSymbol);
         }
 
-        final UnsubscribeChannelCommand command = new UnsubscribeChannelCommand(channel);
-        bitfinexApiBroker.sendCommand(command);
-        bitfinexApiBroker.removeChannelForSymbol(tradeSymbol);
-        tradesCallbacks.clearCallBacks(tradeSymbol);
+        // Other users of a shared channel keep their callbacks
+        if (bitfinexApiBroker.getSubscriberCount(tradeSymbol) == 0) {
+            tradesCallbacks.clearCallBacks(tradeSymbol);
+            lastTradeIds.remove(tradeSymbol);
+        }
+    }
+
+    /**
+     * Create the dispatch target for a channel of the symbol
+     *
+     * @param tradeSymbol
+     * @return
+     */
+    public ChannelCallbackHandler createChannelHandler(final BitfinexExecutedTradeSymbol tradeSymbol) {
+        return new ExecutedTradeHandler(tradeSymbol, tradesCallbacks.getCallbacks(tradeSymbol),
+                bitfinexApiBroker.isFlyweightEvents(), lastTradeIds.computeIfAbsent(tradeSymbol, s -> new AtomicLong(-1)));
     }
 
     public void handleExecutedTradeEntry(final BitfinexExecutedTradeSymbol tradeSymbol,
@@ -18,26 +18,32 @@
 package bitfinex.manager;
 
 import bitfinex.BitfinexApiBroker;
-import bitfinex.commands.SubscribeOrderbookCommand;
-import bitfinex.commands.UnsubscribeChannelCommand;
+import bitfinex.callback.channel.ChannelCallbackHandler;
+import bitfinex.callback.channel.OrderbookHandler;
 import bitfinex.entity.APIException;
+import bitfinex.entity.BitfinexStreamSymbol;
+import bitfinex.entity.ConfFlag;
 import bitfinex.entity.OrderbookConfiguration;
 import bitfinex.entity.OrderbookEntry;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 public class OrderbookManager {
 
     private final BiConsumerCallbackManager<OrderbookConfiguration, OrderbookEntry> channelCallbacks;
-    private final BiConsumerCallbackManager<OrderbookConfiguration, List<OrderbookEntry>> snapshotCallbacks;
+    private final SnapshotCallbackManager<OrderbookConfiguration, OrderbookEntry> snapshotCallbacks;
+    private final BiConsumerCallbackManager<OrderbookConfiguration, List<OrderbookEntry>> batchCallbacks;
 
     private final BitfinexApiBroker bitfinexApiBroker;
 
     public OrderbookManager(final BitfinexApiBroker bitfinexApiBroker) {
         this.bitfinexApiBroker = bitfinexApiBroker;
         this.channelCallbacks = new BiConsumerCallbackManager<>();
-        this.snapshotCallbacks = new BiConsumerCallbackManager<>();
+        this.snapshotCallbacks = new SnapshotCallbackManager<>();
+        this.batchCallbacks = new BiConsumerCallbackManager<>();
     }
 
     public void registerOrderbookCallback(final OrderbookConfiguration orderbookConfiguration,
@@ -50,6 +56,35 @@ public class OrderbookManager {
                                                   final BiConsumer<OrderbookConfiguration, List<OrderbookEntry>> callback) {
 
         snapshotCallbacks.registerCallback(orderbookConfiguration, callback);
+        // A shared channel that is already subscribed seeds the new callback from its book
+        bitfinexApiBroker.requestSeed(orderbookConfiguration);
+    }
+
+    /**
+     * Receive snapshots entry by entry while they are decoded, no list of the entries is built
+     *
+     * @param orderbookConfiguration
+     * @param consumer
+     */
+    public void registerOrderbookSnapshotConsumer(final OrderbookConfiguration orderbookConfiguration,
+                                                  final SnapshotConsumer<OrderbookConfiguration, OrderbookEntry> consumer) {
+
+        snapshotCallbacks.registerConsumer(orderbookConfiguration, consumer);
+        // A shared channel that is already subscribed seeds the new callback from its book
+        bitfinexApiBroker.requestSeed(orderbookConfiguration);
+    }
+
+    /**
+     * Receive bulk updates (see {@link bitfinex.entity.ConfFlag#BULK_UPDATES}) as one list.
+     * Once a batch callback is registered, the entries of bulk updates are no longer
+     * passed to the orderbook callbacks.
+     *
+     * @param orderbookConfiguration
+     * @param callback
+     */
+    public void registerOrderbookBatchCallback(final OrderbookConfiguration orderbookConfiguration,
+                                               final BiConsumer<OrderbookConfiguration, List<OrderbookEntry>> callback) {
+        batchCallbacks.registerCallback(orderbookConfiguration, callback);
     }
 
     public boolean removeOrderbookCallback(final OrderbookConfiguration orderbookConfiguration,
@@ -58,26 +93,66 @@ public class OrderbookManager {
         return channelCallbacks.removeCallback(orderbookConfiguration, callback);
     }
 
-    public void subscribeOrderbook(final OrderbookConfiguration orderbookConfiguration) {
+    public boolean removeOrderbookSnapshotConsumer(final OrderbookConfiguration orderbookConfiguration,
+                                                   final SnapshotConsumer<OrderbookConfiguration, OrderbookEntry> consumer) throws APIException {
 
-        final SubscribeOrderbookCommand subscribeOrderbookCommand
-                = new SubscribeOrderbookCommand(orderbookConfiguration);
+        return snapshotCallbacks.removeConsumer(orderbookConfiguration, consumer);
+    }
 
-        bitfinexApiBroker.sendCommand(subscribeOrderbookCommand);
+    public boolean removeOrderbookBatchCallback(final OrderbookConfiguration orderbookConfiguration,
+                                                final BiConsumer<OrderbookConfiguration, List<OrderbookEntry>> callback) throws APIException {
+
+        return batchCallbacks.removeCallback(orderbookConfiguration, callback);
     }
 
-    public void unsubscribeOrderbook(final OrderbookConfiguration orderbookConfiguration) throws APIException {
+    /**
+     * Subscribe the channel, see {@link BitfinexApiBroker#subscribeChannel(bitfinex.entity.BitfinexStreamSymbol)}
+     *
+     * @param orderbookConfiguration
+     * @return completes with the channel id
+     */
+    public CompletableFuture<Integer> subscribeOrderbook(final OrderbookConfiguration orderbookConfiguration) {
+        return bitfinexApiBroker.subscribeChannel(orderbookConfiguration);
+    }
 
-        final int channel = bitfinexApiBroker.getChannelForSymbol(orderbookConfiguration);
+    public void unsubscribeOrderbook(final OrderbookConfiguration orderbookConfiguration) throws APIException {
 
-        if (channel == -1) {
+        if (!bitfinexApiBroker.unsubscribeChannel(orderbookConfiguration)) {
             throw new IllegalArgumentException("Unknown symbol: " + orderbookConfiguration);
         }
 
-        final UnsubscribeChannelCommand command = new UnsubscribeChannelCommand(channel);
-        bitfinexApiBroker.sendCommand(command);
-        bitfinexApiBroker.removeChannelForSymbol(orderbookConfiguration);
-        channelCallbacks.clearCallBacks(orderbookConfiguration);
+        // Other users of a shared channel keep their callbacks
+        if (bitfinexApiBroker.getSubscriberCount(orderbookConfiguration) == 0) {
+            channelCallbacks.clearCallBacks(orderbookConfiguration);
+        }
+    }
+
+    /**
+     * Create the dispatch target for a channel of the configuration
+     *
+     * @param configuration
+     * @return
+     */
+    public ChannelCallbackHandler createChannelHandler(final OrderbookConfiguration configuration) {
+        return new OrderbookHandler(configuration,
+                channelCallbacks.getCallbacks(configuration),
+                snapshotCallbacks.getCallbacks(configuration),
+                batchCallbacks.getCallbacks(configuration),
+                createResyncHandler(),
+                bitfinexApiBroker.isFlyweightEvents());
+    }
+
+    /**
+     * Handler for checksum mismatches, null if checksums are not verified
+     *
+     * @return
+     */
+    private Consumer<BitfinexStreamSymbol> createResyncHandler() {
+        if (!bitfinexApiBroker.isConfFlagEnabled(ConfFlag.OB_CHECKSUM)) {
+            return null;
+        }
+
+        return (symbol) -> bitfinexApiBroker.resyncChannel(symbol, "checksum mismatch");
     }
 
     public void handleNewOrderbookEntry(final OrderbookConfiguration configuration,
@@ -87,6 +162,11 @@ public class OrderbookManager {
 
     public void handleOrderbookSnapshot(final OrderbookConfiguration configuration,
                                         final List<OrderbookEntry> entry) {
-        snapshotCallbacks.handleEvent(configuration, entry);
+        snapshotCallbacks.handleSnapshot(configuration, entry);
+    }
+
+    public void handleOrderbookBatch(final OrderbookConfiguration configuration,
+                                     final List<OrderbookEntry> entries) {
+        batchCallbacks.handleEvent(configuration, entries);
     }
 }
@@ -18,26 +18,32 @@
 package bitfinex.manager;
 
 import bitfinex.BitfinexApiBroker;
-import bitfinex.commands.SubscribeRawOrderbookCommand;
-import bitfinex.commands.UnsubscribeChannelCommand;
+import bitfinex.callback.channel.ChannelCallbackHandler;
+import bitfinex.callback.channel.RawOrderbookHandler;
 import bitfinex.entity.APIException;
+import bitfinex.entity.BitfinexStreamSymbol;
+import bitfinex.entity.ConfFlag;
 import bitfinex.entity.RawOrderbookConfiguration;
 import bitfinex.entity.RawOrderbookEntry;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 public class RawOrderbookManager {
 
     private final BiConsumerCallbackManager<RawOrderbookConfiguration, RawOrderbookEntry> channelCallbacks;
-    private final BiConsumerCallbackManager<RawOrderbookConfiguration, List<RawOrderbookEntry>> snapshotCallbacks;
+    private final SnapshotCallbackManager<RawOrderbookConfiguration, RawOrderbookEntry> snapshotCallbacks;
+    private final BiConsumerCallbackManager<RawOrderbookConfiguration, List<RawOrderbookEntry>> batchCallbacks;
 
     private final BitfinexApiBroker bitfinexApiBroker;
 
     public RawOrderbookManager(final BitfinexApiBroker bitfinexApiBroker) {
         this.bitfinexApiBroker = bitfinexApiBroker;
         this.channelCallbacks = new BiConsumerCallbackManager<>();
-        this.snapshotCallbacks = new BiConsumerCallbackManager<>();
+        this.snapshotCallbacks = new SnapshotCallbackManager<>();
+        this.batchCallbacks = new BiConsumerCallbackManager<>();
     }
 
     public void registerOrderbookCallback(final RawOrderbookConfiguration orderbookConfiguration,
@@ -48,6 +54,34 @@ public class RawOrderbookManager {
     public void registerOrderbookSnapshotCallback(final RawOrderbookConfiguration orderbookConfiguration,
                                                   final BiConsumer<RawOrderbookConfiguration, List<RawOrderbookEntry>> callback) {
         snapshotCallbacks.registerCallback(orderbookConfiguration, callback);
+        // A shared channel that is already subscribed seeds the new callback from its book
+        bitfinexApiBroker.requestSeed(orderbookConfiguration);
+    }
+
+    /**
+     * Receive snapshots entry by entry while they are decoded, no list of the entries is built
+     *
+     * @param orderbookConfiguration
+     * @param consumer
+     */
+    public void registerOrderbookSnapshotConsumer(final RawOrderbookConfiguration orderbookConfiguration,
+                                                  final SnapshotConsumer<RawOrderbookConfiguration, RawOrderbookEntry> consumer) {
+        snapshotCallbacks.registerConsumer(orderbookConfiguration, consumer);
+        // A shared channel that is already subscribed seeds the new callback from its book
+        bitfinexApiBroker.requestSeed(orderbookConfiguration);
+    }
+
+    /**
+     * Receive bulk updates (see {@link bitfinex.entity.ConfFlag#BULK_UPDATES}) as one list.
+     * Once a batch callback is registered, the entries of bulk updates are no longer
+     * passed to the orderbook callbacks.
+     *
+     * @param orderbookConfiguration
+     * @param callback
+     */
+    public void registerOrderbookBatchCallback(final RawOrderbookConfiguration orderbookConfiguration,
+                                               final BiConsumer<RawOrderbookConfiguration, List<RawOrderbookEntry>> callback) {
+        batchCallbacks.registerCallback(orderbookConfiguration, callback);
     }
 
     public boolean removeOrderbookCallback(final RawOrderbookConfiguration orderbookConfiguration,
@@ -56,26 +90,66 @@ public class RawOrderbookManager {
         return channelCallbacks.removeCallback(orderbookConfiguration, callback);
     }
 
-    public void subscribeOrderbook(final RawOrderbookConfiguration orderbookConfiguration) {
+    public boolean removeOrderbookSnapshotConsumer(final RawOrderbookConfiguration orderbookConfiguration,
+                                                   final SnapshotConsumer<RawOrderbookConfiguration, RawOrderbookEntry> consumer) throws APIException {
 
-        final SubscribeRawOrderbookCommand subscribeOrderbookCommand
-                = new SubscribeRawOrderbookCommand(orderbookConfiguration);
+        return snapshotCallbacks.removeConsumer(orderbookConfiguration, consumer);
+    }
 
-        bitfinexApiBroker.sendCommand(subscribeOrderbookCommand);
+    public boolean removeOrderbookBatchCallback(final RawOrderbookConfiguration orderbookConfiguration,
+                                                final BiConsumer<RawOrderbookConfiguration, List<RawOrderbookEntry>> callback) throws APIException {
+
+        return batchCallbacks.removeCallback(orderbookConfiguration, callback);
     }
 
-    public void unsubscribeOrderbook(final RawOrderbookConfiguration orderbookConfiguration) throws APIException {
+    /**
+     * Subscribe the channel, see {@link BitfinexApiBroker#subscribeChannel(bitfinex.entity.BitfinexStreamSymbol)}
+     *
+     * @param orderbookConfiguration
+     * @return completes with the channel id
+     */
+    public CompletableFuture<Integer> subscribeOrderbook(final RawOrderbookConfiguration orderbookConfiguration) {
+        return bitfinexApiBroker.subscribeChannel(orderbookConfiguration);
+    }
 
-        final int channel = bitfinexApiBroker.getChannelForSymbol(orderbookConfiguration);
+    public void unsubscribeOrderbook(final RawOrderbookConfiguration orderbookConfiguration) throws APIException {
 
-        if (channel == -1) {
+        if (!bitfinexApiBroker.unsubscribeChannel(orderbookConfiguration)) {
             throw new IllegalArgumentException("Unknown symbol: " + orderbookConfiguration);
         }
 
-        final UnsubscribeChannelCommand command = new UnsubscribeChannelCommand(channel);
-        bitfinexApiBroker.sendCommand(command);
-        bitfinexApiBroker.removeChannelForSymbol(orderbookConfiguration);
-        channelCallbacks.clearCallBacks(orderbookConfiguration);
+        // Other users of a shared channel keep their callbacks
+        if (bitfinexApiBroker.getSubscriberCount(orderbookConfiguration) == 0) {
+            channelCallbacks.clearCallBacks(orderbookConfiguration);
+        }
+    }
+
+    /**
+     * Create the dispatch target for a channel of the configuration
+     *
+     * @param configuration
+     * @return
+     */
+    public ChannelCallbackHandler createChannelHandler(final RawOrderbookConfiguration configuration) {
+        return new RawOrderbookHandler(configuration,
+                channelCallbacks.getCallbacks(configuration),
+                snapshotCallbacks.getCallbacks(configuration),
+                batchCallbacks.getCallbacks(configuration),
+                createResyncHandler(),
+                bitfinexApiBroker.isFlyweightEvents());
+    }
+
+    /**
+     * Handler for checksum mismatches, null if checksums are not verified
+     *
+     * @return
+     */
+    private Consumer<BitfinexStreamSymbol> createResyncHandler() {
+        if (!bitfinexApiBroker.isConfFlagEnabled(ConfFlag.OB_CHECKSUM)) {
+            return null;
+        }
+
+        return (symbol) -> bitfinexApiBroker.resyncChannel(symbol, "checksum mismatch");
     }
 
     public void handleNewOrderbookEntry(final RawOrderbookConfiguration configuration,
@@ -85,6 +159,11 @@ public class RawOrderbookManager {
 
     public void handleOrderbookSnapshot(final RawOrderbookConfiguration configuration,
                                         final List<RawOrderbookEntry> entry) {
-        snapshotCallbacks.handleEvent(configuration, entry);
+        snapshotCallbacks.handleSnapshot(configuration, entry);
+    }
+
+    public void handleOrderbookBatch(final RawOrderbookConfiguration configuration,
+                                     final List<RawOrderbookEntry> entries) {
+        batchCallbacks.handleEvent(configuration, entries);
     }
 }
@@ -0,0 +1,318 @@
+/*******************************************************************************
+ *
+ *    Copyright (C) 2015-2018 Jan Kristof Nidzwetzki
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License. 
+ *
+ *******************************************************************************/
+package bitfinex.manager;
+
+import bitfinex.entity.APIException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Snapshot callbacks of a channel type. A snapshot is delivered entry by entry to the
+ * registered {@link SnapshotConsumer}s; a list of the entries is only built if callbacks
+ * that want the whole list are registered for the symbol.
+ */
+public class SnapshotCallbackManager<S, T> {
+
+    private final Map<S, SymbolSnapshotCallbacks<S, T>> callbacks = new ConcurrentHashMap<>();
+
+    public void registerCallback(final S symbol, final BiConsumer<S, List<T>> callback) {
+        getCallbacks(symbol).add(callback);
+    }
+
+    public void registerConsumer(final S symbol, final SnapshotConsumer<S, T> consumer) {
+        getCallbacks(symbol).add(consumer);
+    }
+
+    public void clearCallBacks(final S symbol) throws APIException {
+
+        final SymbolSnapshotCallbacks<S, T> symbolCallbacks = callbacks.get(symbol);
+
+        if (symbolCallbacks == null) {
+            throw new APIException("Unknown ticker string: " + symbol);
+        }
+
+        symbolCallbacks.clear();
+    }
+
+    public boolean removeCallback(final S symbol, final BiConsumer<S, List<T>> callback) throws APIException {
+
+        final SymbolSnapshotCallbacks<S, T> symbolCallbacks = callbacks.get(symbol);
+
+        if (symbolCallbacks == null) {
+            throw new APIException("Unknown ticker string: " + symbol);
+        }
+
+        return symbolCallbacks.remove(callback);
+    }
+
+    public boolean removeConsumer(final S symbol, final SnapshotConsumer<S, T> consumer) throws APIException {
+
+        final SymbolSnapshotCallbacks<S, T> symbolCallbacks = callbacks.get(symbol);
+
+        if (symbolCallbacks == null) {
+            throw new APIException("Unknown ticker string: " + symbol);
+        }
+
+        return symbolCallbacks.remove(consumer);
+    }
+
+    public void handleSnapshot(final S symbol, final List<T> entries) {
+
+        final SymbolSnapshotCallbacks<S, T> symbolCallbacks = callbacks.get(symbol);
+
+        if (symbolCallbacks == null) {
+            return;
+        }
+
+        symbolCallbacks.handleSnapshot(entries);
+    }
+
+    /**
+     * Get the callbacks of the symbol, see {@link BiConsumerCallbackManager#getCallbacks(Object)}
+     *
+     * @param symbol
+     * @return
+     */
+    public SymbolSnapshotCallbacks<S, T> getCallbacks(final S symbol) {
+        return callbacks.computeIfAbsent(symbol, SymbolSnapshotCallbacks::new);
+    }
+
+    /**
+     * Snapshot callbacks of one symbol. {@link #start(boolean)}, {@link #entry(Object)} and {@link #end()}
+     * must be called from a single thread for each snapshot. Registration publishes new immutable
+     * callback arrays, the consumers seen by {@link #start(boolean)} receive the whole snapshot.
+     * Consumers registered later are unseeded until they get the book by {@link #seed(List)}.
+     */
+    public static final class SymbolSnapshotCallbacks<S, T> {
+
+        @SuppressWarnings("rawtypes")
+        private final static BiConsumer[] NO_CALLBACKS = new BiConsumer[0];
+
+        @SuppressWarnings("rawtypes")
+        private final static SnapshotConsumer[] NO_CONSUMERS = new SnapshotConsumer[0];
+
+        private final S symbol;
+
+        private volatile BiConsumer<S, List<T>>[] listCallbacks = noCallbacks();
+
+        private volatile SnapshotConsumer<S, T>[] consumers = noConsumers();
+
+        private SnapshotConsumer<S, T>[] snapshotConsumers = noConsumers();
+
+        /**
+         * Registered after the last snapshot started, they have not seen a complete book yet
+         */
+        private volatile BiConsumer<S, List<T>>[] unseededCallbacks = noCallbacks();
+
+        private volatile SnapshotConsumer<S, T>[] unseededConsumers = noConsumers();
+
+        private List<T> pendingEntries;
+
+        private ArrayList<T> snapshotBuffer;
+
+        private SymbolSnapshotCallbacks(final S symbol) {
+            this.symbol = symbol;
+        }
+
+        public S getSymbol() {
+            return symbol;
+        }
+
+        /**
+         * Begin a snapshot
+         *
+         * @param reuseBuffer pass the same list instance to the list callbacks for every snapshot
+         */
+        public void start(final boolean reuseBuffer) {
+            final SnapshotConsumer<S, T>[] current;
+            synchronized (this) {
+                // Everyone registered so far receives this snapshot
+                current = consumers;
+                unseededCallbacks = noCallbacks();
+                unseededConsumers = noConsumers();
+            }
+
+            if (listCallbacks.length == 0) {
+                pendingEntries = null;
+            } else if (reuseBuffer) {
+                if (snapshotBuffer == null) {
+                    snapshotBuffer = new ArrayList<>();
+                }
+                snapshotBuffer.clear();
+                pendingEntries = snapshotBuffer;
+            } else {
+                pendingEntries = new ArrayList<>();
+            }
+
+            snapshotConsumers = current;
+
+            for (int i = 0; i < current.length; i++) {
+                current[i].onSnapshotStart(symbol);
+            }
+        }
+
+        public void entry(final T entry) {
+            if (pendingEntries != null) {
+                pendingEntries.add(entry);
+            }
+
+            final SnapshotConsumer<S, T>[] current = snapshotConsumers;
+            for (int i = 0; i < current.length; i++) {
+                current[i].onSnapshotEntry(symbol, entry);
+            }
+        }
+
+        public void end() {
+            final SnapshotConsumer<S, T>[] current = snapshotConsumers;
+            snapshotConsumers = noConsumers();
+
+            for (int i = 0; i < current.length; i++) {
+                current[i].onSnapshotEnd(symbol);
+            }
+
+            final List<T> entries = pendingEntries;
+            pendingEntries = null;
+
+            if (entries != null) {
+                final BiConsumer<S, List<T>>[] callbacks = listCallbacks;
+                for (int i = 0; i < callbacks.length; i++) {
+                    callbacks[i].accept(symbol, entries);
+                }
+            }
+        }
+
+        public void handleSnapshot(final List<T> entries) {
+            deliver(consumers, listCallbacks, entries);
+        }
+
+        /**
+         * @return true if callbacks were registered after the last snapshot started
+         */
+        public boolean hasUnseeded() {
+            return unseededConsumers.length != 0 || unseededCallbacks.length != 0;
+        }
+
+        /**
+         * Deliver the current book as a snapshot to the unseeded callbacks only, the others
+         * already have it. Must be called from the thread that delivers the snapshots, between two of them.
+         *
+         * @param entries the book, e.g. the mirror a channel handler keeps
+         */
+        public void seed(final List<T> entries) {
+            final SnapshotConsumer<S, T>[] newConsumers;
+            final BiConsumer<S, List<T>>[] newCallbacks;
+            synchronized (this) {
+                newConsumers = unseededConsumers;
+                newCallbacks = unseededCallbacks;
+                unseededCallbacks = noCallbacks();
+                unseededConsumers = noConsumers();
+            }
+
+            deliver(newConsumers, newCallbacks, entries);
+        }
+
+        private void deliver(final SnapshotConsumer<S, T>[] current, final BiConsumer<S, List<T>>[] callbacks,
+                             final List<T> entries) {
+            for (int i = 0; i < current.length; i++) {
+                final SnapshotConsumer<S, T> consumer = current[i];
+                consumer.onSnapshotStart(symbol);
+                for (final T entry : entries) {
+                    consumer.onSnapshotEntry(symbol, entry);
+                }
+                consumer.onSnapshotEnd(symbol);
+            }
+
+            for (int i = 0; i < callbacks.length; i++) {
+                callbacks[i].accept(symbol, entries);
+            }
+        }
+
+        private synchronized void add(final BiConsumer<S, List<T>> callback) {
+            listCallbacks = append(listCallbacks, callback);
+            unseededCallbacks = append(unseededCallbacks, callback);
+        }
+
+        private synchronized void add(final SnapshotConsumer<S, T> consumer) {
+            consumers = append(consumers, consumer);
+            unseededConsumers = append(unseededConsumers, consumer);
+        }
+
+        private synchronized boolean remove(final BiConsumer<S, List<T>> callback) {
+            final BiConsumer<S, List<T>>[] updated = without(listCallbacks, callback);
+            if (updated == listCallbacks) {
+                return false;
+            }
+            listCallbacks = updated;
+            unseededCallbacks = without(unseededCallbacks, callback);
+            return true;
+        }
+
+        private synchronized boolean remove(final SnapshotConsumer<S, T> consumer) {
+            final SnapshotConsumer<S, T>[] updated = without(consumers, consumer);
+            if (updated == consumers) {
+                return false;
+            }
+            consumers = updated;
+            unseededConsumers = without(unseededConsumers, consumer);
+            return true;
+        }
+
+        private synchronized void clear() {
+            listCallbacks = noCallbacks();
+            consumers = noConsumers();
+            unseededCallbacks = noCallbacks();
+            unseededConsumers = noConsumers();
+        }
+
+        private static <E> E[] append(final E[] array, final E element) {
+            final E[] updated = Arrays.copyOf(array, array.length + 1);
+            updated[array.length] = element;
+            return updated;
+        }
+
+        /**
+         * @return a copy without the first occurrence of the element, or the array itself if it is not contained
+         */
+        private static <E> E[] without(final E[] array, final E element) {
+            for (int i = 0; i < array.length; i++) {
+                if (array[i].equals(element)) {
+                    final E[] updated = Arrays.copyOf(array, array.length - 1);
+                    System.arraycopy(array, i + 1, updated, i, array.length - i - 1);
+                    return updated;
+                }
+            }
+            return array;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <S, T> BiConsumer<S, List<T>>[] noCallbacks() {
+            return NO_CALLBACKS;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <S, T> SnapshotConsumer<S, T>[] noConsumers() {
+            return NO_CONSUMERS;
+        }
+    }
+
+}
@@ -0,0 +1,31 @@
+/*******************************************************************************
+ *
+ *    Copyright (C) 2015-2018 Jan Kristof Nidzwetzki
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License. 
+ *
+ *******************************************************************************/
+package bitfinex.manager;
+
+/**
+ * Receives a snapshot entry by entry while it is decoded, instead of as one list
+ */
+public interface SnapshotConsumer<S, T> {
+
+    public void onSnapshotStart(final S symbol);
+
+    public void onSnapshotEntry(final S symbol, final T entry);
+
+    public void onSnapshotEnd(final S symbol);
+
+}
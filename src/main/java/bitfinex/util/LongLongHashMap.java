@@ -0,0 +1,179 @@
+/*******************************************************************************
+ *
+ *    Copyright (C) 2015-2018 Jan Kristof Nidzwetzki
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License. 
+ *
+ *******************************************************************************/
+package bitfinex.util;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from long to long without boxing. The key 0 is
+ * reserved to mark free slots and can not be stored.
+ * <p>
+ * Not thread-safe.
+ */
+public class LongLongHashMap {
+
+    private final static long FREE = 0;
+
+    private final static int MIN_CAPACITY = 16;
+
+    private long[] keys;
+
+    private long[] values;
+
+    private int size;
+
+    private int mask;
+
+    public LongLongHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public LongLongHashMap(final int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(final long key) {
+        return keys[indexOf(key)] != FREE;
+    }
+
+    /**
+     * Get the value of the key, or the default value if the key is not present
+     *
+     * @param key
+     * @param defaultValue
+     * @return
+     */
+    public long get(final long key, final long defaultValue) {
+        final int index = indexOf(key);
+        return keys[index] == FREE ? defaultValue : values[index];
+    }
+
+    public void put(final long key, final long value) {
+        if (key == FREE) {
+            throw new IllegalArgumentException("Key 0 can not be stored");
+        }
+
+        final int index = indexOf(key);
+
+        if (keys[index] == FREE) {
+            keys[index] = key;
+            size++;
+        }
+
+        values[index] = value;
+
+        if (size * 2 > keys.length) {
+            rehash(keys.length << 1);
+        }
+    }
+
+    /**
+     * Remove the key
+     *
+     * @param key
+     * @return false if the key was not present
+     */
+    public boolean remove(final long key) {
+        int index = indexOf(key);
+
+        if (keys[index] == FREE) {
+            return false;
+        }
+
+        // Shift the following entries of the probe sequence back, so no tombstones are needed
+        int next = (index + 1) & mask;
+        while (keys[next] != FREE) {
+            final int home = mix(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - index) & mask)) {
+                keys[index] = keys[next];
+                values[index] = values[next];
+                index = next;
+            }
+            next = (next + 1) & mask;
+        }
+
+        keys[index] = FREE;
+        size--;
+        return true;
+    }
+
+    /**
+     * @return the keys in no particular order
+     */
+    public long[] keys() {
+        final long[] result = new long[size];
+        int next = 0;
+        for (final long key : keys) {
+            if (key != FREE) {
+                result[next++] = key;
+            }
+        }
+        return result;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, FREE);
+        size = 0;
+    }
+
+    private int indexOf(final long key) {
+        int index = mix(key) & mask;
+        while (keys[index] != FREE && keys[index] != key) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private void rehash(final int capacity) {
+        final long[] oldKeys = keys;
+        final long[] oldValues = values;
+
+        allocate(capacity);
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE) {
+                final int index = indexOf(oldKeys[i]);
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(final int capacity) {
+        keys = new long[capacity];
+        values = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int mix(final long key) {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
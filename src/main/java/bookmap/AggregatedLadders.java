@@ -0,0 +1,107 @@
+package bookmap;
+
+import java.util.Arrays;
+
+/**
+ * Books aggregated from the levels of a finer book at multiples of its price step. A bid level
+ * goes into the bucket price / multiple rounded down, an ask level into the one rounded up,
+ * so an aggregated book does not cross unless the fine one does.
+ * <p>
+ * The ladders follow the level changes of the fine book: a change adds its delta to one bucket
+ * of every view and reports the new size of the bucket to the listener of the view.
+ * <p>
+ * Not thread-safe.
+ */
+public class AggregatedLadders implements OrderByOrderEngine.LevelChangeListener {
+
+    public static final class View {
+
+        private final int multiple;
+
+        private final PriceLadder bids = new PriceLadder(true);
+
+        private final PriceLadder asks = new PriceLadder(false);
+
+        private final OrderByOrderEngine.LevelListener listener;
+
+        private View(int multiple, OrderByOrderEngine.LevelListener listener) {
+            this.multiple = multiple;
+            this.listener = listener;
+        }
+
+        public int getMultiple() {
+            return multiple;
+        }
+
+        public PriceLadder getLevels(boolean isBid) {
+            return isBid ? bids : asks;
+        }
+    }
+
+    private View[] views = new View[0];
+
+    /**
+     * Add a view of the book and report its current levels to the listener
+     *
+     * @param multiple number of fine price steps in one step of the view
+     * @param book     the fine book the changes come from
+     */
+    public View addView(int multiple, OrderByOrderEngine.LevelListener listener, OrderByOrderEngine book) {
+        if (multiple <= 0) {
+            throw new IllegalArgumentException("Multiple must be positive: " + multiple);
+        }
+
+        View view = new View(multiple, listener);
+        fill(view, true, book);
+        fill(view, false, book);
+
+        views = Arrays.copyOf(views, views.length + 1);
+        views[views.length - 1] = view;
+        return view;
+    }
+
+    public void removeView(View view) {
+        for (int i = 0; i < views.length; i++) {
+            if (views[i] == view) {
+                View[] remaining = new View[views.length - 1];
+                System.arraycopy(views, 0, remaining, 0, i);
+                System.arraycopy(views, i + 1, remaining, i, remaining.length - i);
+                views = remaining;
+                return;
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return views.length == 0;
+    }
+
+    /**
+     * Buckets are updated by the delta of the level
+     */
+    @Override
+    public void onLevelChange(boolean isBid, int price, long previousSize, long size) {
+        long delta = size - previousSize;
+        if (delta == 0) {
+            return;
+        }
+
+        for (View view : views) {
+            int bucket = bucket(price, view.multiple, isBid);
+            long bucketSize = view.getLevels(isBid).add(bucket, delta);
+            view.listener.onLevelChange(isBid, bucket, bucketSize - delta, bucketSize);
+        }
+    }
+
+    public static int bucket(int price, int multiple, boolean isBid) {
+        return isBid ? Math.floorDiv(price, multiple) : -Math.floorDiv(-price, multiple);
+    }
+
+    private static void fill(View view, boolean isBid, OrderByOrderEngine book) {
+        PriceLadder levels = view.getLevels(isBid);
+        for (int price : book.levels(isBid, true)) {
+            levels.add(bucket(price, view.multiple, isBid), book.getLevelSize(isBid, price));
+        }
+        levels.forEach((bucket, size) -> view.listener.onLevel(isBid, bucket, size));
+    }
+}
@@ -0,0 +1,381 @@
+package bookmap;
+
+import bitfinex.BitfinexApiBroker;
+import bitfinex.entity.*;
+import bitfinex.manager.ExecutedTradesManager;
+import bitfinex.manager.RawOrderbookManager;
+import bitfinex.manager.SnapshotConsumer;
+import velox.api.layer0.annotations.Layer0LiveModule;
+import velox.api.layer0.live.ExternalLiveBaseProvider;
+import velox.api.layer1.Layer1ApiAdminListener;
+import velox.api.layer1.Layer1ApiDataListener;
+import velox.api.layer1.data.*;
+
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+/**
+ * Provider of aggregated books derived locally from the raw order book of bitfinex.
+ * The raw book of a currency pair is subscribed once, every instrument is a view of it
+ * at a multiple of the P0 price step: "BTC_USD@10" has one level per ten P0 steps,
+ * "BTC_USD" is the book at the P0 step. All views of a pair share one channel and one snapshot.
+ */
+@Layer0LiveModule
+public class AggregatedMBPRealTimeProvider extends ExternalLiveBaseProvider {
+
+    private BitfinexApiBroker bitfinexApiBroker;
+
+    private final HashSet<String> aliases = new HashSet<>();
+
+    private Map<BitfinexCurrencyPair, RawBook> rawBookByPair = new HashMap<>();
+    private Map<String, RawBookView> viewByAlias = new HashMap<>();
+
+    private final InstrumentContext.Listeners listenerSnapshot = new InstrumentContext.Listeners();
+
+    private static final String MULTIPLE_SEPARATOR = "@";
+
+    private static final HashSet<BitfinexCurrencyPair> supportedPairs = new HashSet<>();
+    private static final HashMap<BitfinexCurrencyPair, Integer> amountMultipliers = new HashMap<>();
+
+    static {
+        supportedPairs.add(BitfinexCurrencyPair.BTC_USD);
+        supportedPairs.add(BitfinexCurrencyPair.IOT_USD);
+
+        amountMultipliers.put(BitfinexCurrencyPair.BTC_USD, (int) 1e4);
+        amountMultipliers.put(BitfinexCurrencyPair.IOT_USD, (int) 1e1);
+    }
+
+    /**
+     * Raw book of one currency pair and the views subscribed to it. Frames and subscriptions
+     * of views are applied under the lock of the raw book.
+     */
+    private static class RawBook {
+
+        private final RawOrderbookConfiguration orderbookConfiguration;
+
+        private final BitfinexExecutedTradeSymbol tradeSymbol;
+
+        private final PriceCodec priceCodec;
+
+        private final AmountCodec amountCodec;
+
+        private final OrderByOrderEngine orderBook = new OrderByOrderEngine();
+
+        private final AggregatedLadders ladders = new AggregatedLadders();
+
+        private final AliasCallbacks callbacks = new AliasCallbacks();
+
+        private volatile RawBookView[] views = new RawBookView[0];
+
+        private RawBook(BitfinexCurrencyPair currencyPair) {
+            orderbookConfiguration = new RawOrderbookConfiguration(currencyPair);
+            tradeSymbol = new BitfinexExecutedTradeSymbol(currencyPair);
+            priceCodec = PriceCodec.of(currencyPair, OrderBookPrecision.P0);
+            amountCodec = new AmountCodec(amountMultipliers.get(currencyPair));
+        }
+
+        private synchronized void addView(RawBookView view, int multiple) {
+            view.ladder = ladders.addView(multiple, view.depthAccumulator, orderBook);
+            view.flush();
+
+            RawBookView[] extended = Arrays.copyOf(views, views.length + 1);
+            extended[views.length] = view;
+            views = extended;
+        }
+
+        private synchronized boolean removeView(RawBookView view) {
+            ladders.removeView(view.ladder);
+            views = Arrays.stream(views).filter(v -> v != view).toArray(RawBookView[]::new);
+            return views.length == 0;
+        }
+
+        /**
+         * Report the changes of a frame to the listeners of every view
+         */
+        private void flush() {
+            for (RawBookView view : views) {
+                view.flush();
+            }
+        }
+    }
+
+    private static class RawBookView {
+
+        private final InstrumentContext context;
+
+        private final RawBook rawBook;
+
+        private final DepthAccumulator depthAccumulator = new DepthAccumulator();
+
+        private final OrderByOrderEngine.LevelListener depthListener;
+
+        private AggregatedLadders.View ladder;
+
+        private RawBookView(InstrumentContext context, RawBook rawBook) {
+            this.context = context;
+            this.rawBook = rawBook;
+            this.depthListener = context::onDepth;
+        }
+
+        private void flush() {
+            depthAccumulator.flush(depthListener);
+        }
+    }
+
+    @Override
+    public void login(LoginData loginData) {
+        try {
+            // The socket, heartbeat and channels are shared with the other providers of the process
+            bitfinexApiBroker = SharedApiBroker.acquire();
+            adminListeners.forEach(Layer1ApiAdminListener::onLoginSuccessful);
+        } catch (APIException e) {
+            adminListeners.forEach(l -> l.onLoginFailed(LoginFailedReason.FATAL, "Cannot connect to bitfinex API"));
+        }
+    }
+
+    @Override
+    public void addListener(Layer1ApiDataListener listener) {
+        super.addListener(listener);
+        listenerSnapshot.update(dataListeners);
+    }
+
+    @Override
+    public void removeListener(Layer1ApiDataListener listener) {
+        super.removeListener(listener);
+        listenerSnapshot.update(dataListeners);
+    }
+
+    /**
+     * The price step of a view is its multiple of the P0 step.
+     */
+    @Override
+    public String formatPrice(String alias, double price) {
+        RawBookView view;
+        synchronized (aliases) {
+            view = viewByAlias.get(alias);
+        }
+        return formatPriceDefault(view.context.getPriceCodec().getStep(), price);
+    }
+
+    /**
+     * Subscribe method is called when new instrument is added.
+     * The symbol is a currency pair, optionally followed by "@" and the multiple of the P0 step.
+     * @param symbol
+     * @param exchange
+     * @param type
+     */
+    @Override
+    public void subscribe(String symbol, String exchange, String type) {
+        String[] parts = symbol.split(MULTIPLE_SEPARATOR, 2);
+        String pair = parts[0];
+        int multiple = parts.length > 1 ? parseMultiple(parts[1]) : 1;
+
+        if (multiple <= 0 || !BitfinexCurrencyPair.contains(pair) || !supportedPairs.contains(BitfinexCurrencyPair.valueOf(pair))) {
+            instrumentListeners.forEach(i -> i.onInstrumentNotFound(symbol, exchange, type));
+            return;
+        }
+
+        String alias = createAlias(symbol, exchange, type);
+        synchronized (aliases) {
+            if (!aliases.add(alias)) {
+                instrumentListeners.forEach(i -> i.onInstrumentAlreadySubscribed(symbol, exchange, type));
+                return;
+            }
+            subscribeView(symbol, exchange, type, alias, BitfinexCurrencyPair.valueOf(pair), multiple);
+        }
+    }
+
+    private void subscribeView(String symbol, String exchange, String type, String alias, BitfinexCurrencyPair currencyPair, int multiple) {
+        RawBook rawBook = rawBookByPair.get(currencyPair);
+        boolean created = rawBook == null;
+        if (created) {
+            rawBook = new RawBook(currencyPair);
+            rawBookByPair.put(currencyPair, rawBook);
+        }
+
+        InstrumentContext context = new InstrumentContext(alias, rawBook.priceCodec.multiply(multiple), rawBook.amountCodec, listenerSnapshot);
+        double pips = context.getPriceCodec().getStep();
+        int amountMultiplier = context.getAmountCodec().getMultiplier();
+        InstrumentInfoCrypto instrumentInfoCrypto = new InstrumentInfoCrypto(symbol, exchange, type, pips, 1, "", amountMultiplier);
+        instrumentListeners.forEach(i -> i.onInstrumentAdded(alias, instrumentInfoCrypto));
+
+        // A view added to a live book starts with the levels the book has
+        RawBookView view = new RawBookView(context, rawBook);
+        rawBook.addView(view, multiple);
+        viewByAlias.put(alias, view);
+
+        if (created) {
+            subscribeRawBook(alias, rawBook);
+        }
+    }
+
+    private void subscribeRawBook(String alias, RawBook rawBook) {
+        RawOrderbookManager orderbookManager = bitfinexApiBroker.getRawOrderbookManager();
+        RawOrderbookConfiguration orderbookConfiguration = rawBook.orderbookConfiguration;
+
+        SnapshotConsumer<RawOrderbookConfiguration, RawOrderbookEntry> snapshotConsumer = new SnapshotConsumer<RawOrderbookConfiguration, RawOrderbookEntry>() {
+            @Override
+            public void onSnapshotStart(RawOrderbookConfiguration orderbookConfig) {
+                synchronized (rawBook) {
+                    rawBook.orderBook.beginSnapshot();
+                }
+            }
+
+            @Override
+            public void onSnapshotEntry(RawOrderbookConfiguration orderbookConfig, RawOrderbookEntry entry) {
+                boolean isBid = entry.getAmountMantissa() > 0;
+                int price = rawBook.priceCodec.toIndex(entry.getPriceMantissa(), entry.getPriceScale(), isBid);
+                if (price != 0) {
+                    int amount = rawBook.amountCodec.toSize(entry.getAmountMantissa(), entry.getAmountScale());
+                    synchronized (rawBook) {
+                        rawBook.orderBook.applySnapshotOrder(entry.getOrderId(), isBid, price, amount);
+                    }
+                }
+            }
+
+            @Override
+            public void onSnapshotEnd(RawOrderbookConfiguration orderbookConfig) {
+                synchronized (rawBook) {
+                    rawBook.orderBook.endSnapshot(rawBook.ladders);
+                    rawBook.flush();
+                }
+            }
+        };
+        orderbookManager.registerOrderbookSnapshotConsumer(orderbookConfiguration, snapshotConsumer);
+        rawBook.callbacks.add(() -> orderbookManager.removeOrderbookSnapshotConsumer(orderbookConfiguration, snapshotConsumer));
+
+        BiConsumer<RawOrderbookConfiguration, RawOrderbookEntry> orderBookCallback = (orderbookConfig, entry) -> {
+            synchronized (rawBook) {
+                applyOrderBookUpdate(rawBook, entry);
+                rawBook.flush();
+            }
+        };
+        orderbookManager.registerOrderbookCallback(orderbookConfiguration, orderBookCallback);
+        rawBook.callbacks.add(() -> orderbookManager.removeOrderbookCallback(orderbookConfiguration, orderBookCallback));
+
+        BiConsumer<RawOrderbookConfiguration, List<RawOrderbookEntry>> orderBookBatchCallback = (orderbookConfig, entries) -> {
+            synchronized (rawBook) {
+                for (RawOrderbookEntry entry : entries) {
+                    applyOrderBookUpdate(rawBook, entry);
+                }
+                rawBook.flush();
+            }
+        };
+        orderbookManager.registerOrderbookBatchCallback(orderbookConfiguration, orderBookBatchCallback);
+        rawBook.callbacks.add(() -> orderbookManager.removeOrderbookBatchCallback(orderbookConfiguration, orderBookBatchCallback));
+
+        ExecutedTradesManager executedTradesManager = bitfinexApiBroker.getExecutedTradesManager();
+        BitfinexExecutedTradeSymbol tradeSymbol = rawBook.tradeSymbol;
+        BiConsumer<BitfinexExecutedTradeSymbol, ExecutedTrade> tradeCallback = (symb, trade) -> {
+            boolean isOtc = false;
+            boolean isBidAgressor = trade.getAmountMantissa() > 0;
+            for (RawBookView view : rawBook.views) {
+                InstrumentContext context = view.context;
+                double price = context.getPriceCodec().toDouble(trade.getPriceMantissa(), trade.getPriceScale());
+                int amount = context.toSize(trade.getAmountMantissa(), trade.getAmountScale());
+                context.onTrade(price, amount, new TradeInfo(isOtc, isBidAgressor));
+            }
+        };
+        executedTradesManager.registerTradeCallback(tradeSymbol, tradeCallback);
+        rawBook.callbacks.add(() -> executedTradesManager.removeTradeCallback(tradeSymbol, tradeCallback));
+
+        reportSubscriptionFailure(alias, orderbookManager.subscribeOrderbook(orderbookConfiguration));
+        reportSubscriptionFailure(alias, executedTradesManager.subscribeExecutedTrades(tradeSymbol));
+    }
+
+    /**
+     * Applies the entry to the raw book, the changed levels go to the buckets of the views.
+     * An order with price 0 is removed.
+     */
+    private void applyOrderBookUpdate(RawBook rawBook, RawOrderbookEntry entry) {
+        long orderId = entry.getOrderId();
+        boolean isBid = entry.getAmountMantissa() > 0;
+        int price = rawBook.priceCodec.toIndex(entry.getPriceMantissa(), entry.getPriceScale(), isBid);
+        if (price != 0) {
+            int amount = rawBook.amountCodec.toSize(entry.getAmountMantissa(), entry.getAmountScale());
+            rawBook.orderBook.addOrder(orderId, isBid, price, amount, rawBook.ladders);
+        } else {
+            rawBook.orderBook.cancelOrder(orderId, rawBook.ladders);
+        }
+    }
+
+    /**
+     * Subscriptions are not awaited, so all instruments of a workspace are subscribed in parallel.
+     */
+    private void reportSubscriptionFailure(String alias, CompletableFuture<Integer> subscription) {
+        subscription.whenComplete((channel, e) -> {
+            if (e != null && !(e instanceof CancellationException)) {
+                adminListeners.forEach(l -> l.onSystemTextMessage("Cannot subscribe " + alias + ": " + e.getMessage(),
+                        SystemTextMessageType.UNCLASSIFIED));
+            }
+        });
+    }
+
+    /**
+     * The raw book is unsubscribed with its last view.
+     */
+    @Override
+    public void unsubscribe(String alias) {
+        synchronized (aliases) {
+            RawBookView view = viewByAlias.remove(alias);
+            aliases.remove(alias);
+            if (view == null) {
+                return;
+            }
+
+            RawBook rawBook = view.rawBook;
+            if (!rawBook.removeView(view)) {
+                return;
+            }
+
+            rawBookByPair.remove(rawBook.orderbookConfiguration.getCurrencyPair());
+            try {
+                rawBook.callbacks.removeAll();
+                bitfinexApiBroker.getRawOrderbookManager().unsubscribeOrderbook(rawBook.orderbookConfiguration);
+                bitfinexApiBroker.getExecutedTradesManager().unsubscribeExecutedTrades(rawBook.tradeSymbol);
+            } catch (APIException e) {
+                adminListeners.forEach(l -> l.onSystemTextMessage(e.getMessage(), SystemTextMessageType.UNCLASSIFIED));
+            }
+        }
+    }
+
+    @Override
+    public void sendOrder(OrderSendParameters orderSendParameters) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void updateOrder(OrderUpdateParameters orderUpdateParameters) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getSource() {
+        return "bitfinex";
+    }
+
+    @Override
+    public void close() {
+        List<String> subscribedAliases;
+        synchronized (aliases) {
+            subscribedAliases = new ArrayList<>(aliases);
+        }
+        // Channels shared with other providers stay subscribed, only our callbacks go away
+        subscribedAliases.forEach(this::unsubscribe);
+        SharedApiBroker.release(bitfinexApiBroker);
+    }
+
+    private static String createAlias(String symbol, String exchange, String type) {
+        return "Bitfinex/" + symbol;
+    }
+
+    private static int parseMultiple(String multiple) {
+        try {
+            return Integer.parseInt(multiple);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
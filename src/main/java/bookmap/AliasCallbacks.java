@@ -0,0 +1,30 @@
+package bookmap;
+
+import bitfinex.entity.APIException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Callbacks a provider registered on the shared broker for one alias. They are removed
+ * when the alias is unsubscribed, while the callbacks of other providers stay registered.
+ */
+public class AliasCallbacks {
+
+    public interface Removal {
+        void remove() throws APIException;
+    }
+
+    private final List<Removal> removals = new ArrayList<>();
+
+    public synchronized void add(Removal removal) {
+        removals.add(removal);
+    }
+
+    public synchronized void removeAll() throws APIException {
+        for (Removal removal : removals) {
+            removal.remove();
+        }
+        removals.clear();
+    }
+}
@@ -0,0 +1,84 @@
+package bookmap;
+
+import bitfinex.entity.FixedPoint;
+
+import java.math.BigDecimal;
+
+/**
+ * Converts amounts into Bookmap sizes, the absolute amount times the amount multiplier of
+ * the instrument, truncated. The reduced fraction multiplier / 10^scale is computed for every
+ * decimal scale when the codec is created. Sizes beyond the int range are clamped to
+ * {@link Integer#MAX_VALUE} instead of wrapping around.
+ * <p>
+ * Immutable, create one per instrument when it is subscribed.
+ */
+public final class AmountCodec {
+
+    private static final int MAX_SCALE = 18;
+
+    private static final BigDecimal MAX_SIZE = BigDecimal.valueOf(Integer.MAX_VALUE);
+
+    private final int multiplier;
+
+    /**
+     * For an amount with scale s, size = |mantissa| * numerators[s] / denominators[s].
+     * A numerator of 0 marks a scale whose fraction is too large for longs.
+     */
+    private final long[] numerators = new long[MAX_SCALE + 1];
+
+    private final long[] denominators = new long[MAX_SCALE + 1];
+
+    public AmountCodec(int multiplier) {
+        this.multiplier = multiplier;
+
+        for (int scale = 0; scale <= MAX_SCALE; scale++) {
+            long denominator = FixedPoint.pow10(scale);
+            long gcd = gcd(multiplier, denominator);
+            numerators[scale] = multiplier / gcd;
+            denominators[scale] = denominator / gcd;
+            if (numerators[scale] > Long.MAX_VALUE / denominators[scale]) {
+                numerators[scale] = 0;
+            }
+        }
+    }
+
+    public int getMultiplier() {
+        return multiplier;
+    }
+
+    public int toSize(long mantissa, int scale) {
+        // |Long.MIN_VALUE| does not fit, one unit less truncates to the same size
+        long absolute = mantissa == Long.MIN_VALUE ? Long.MAX_VALUE : Math.abs(mantissa);
+
+        if (scale < 0 || scale > MAX_SCALE || numerators[scale] == 0) {
+            // A product beyond the long range must not wrap around before it is clamped
+            return FixedPoint.toBigDecimal(absolute, scale).multiply(BigDecimal.valueOf(multiplier)).min(MAX_SIZE).intValue();
+        }
+
+        long numerator = numerators[scale];
+        long denominator = denominators[scale];
+
+        // Split into whole and remainder, the remainder times the numerator stays below numerator * denominator
+        long whole = absolute / denominator;
+        long remainder = absolute % denominator;
+
+        if (whole > Integer.MAX_VALUE / numerator) {
+            return Integer.MAX_VALUE;
+        }
+
+        return clamp(whole * numerator + remainder * numerator / denominator);
+    }
+
+    private static int clamp(long size) {
+        return (int) Math.min(Math.max(size, 0), Integer.MAX_VALUE);
+    }
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return Math.abs(a);
+    }
+}
@@ -0,0 +1,99 @@
+package bookmap;
+
+import bitfinex.util.LongLongHashMap;
+
+import java.util.Arrays;
+
+/**
+ * Collects the level changes of one frame or batch. Repeated changes of the same level
+ * collapse into the latest size, and {@link #flush(OrderByOrderEngine.LevelListener)}
+ * reports every level once, in the order the levels first changed. A level that ends
+ * the frame with the size it had before is not reported at all.
+ * <p>
+ * Not thread-safe.
+ */
+public class DepthAccumulator implements OrderByOrderEngine.LevelListener {
+
+    private final static long BID_KEY = 1;
+
+    private final static long KEY_MARKER = 1L << 62;
+
+    /**
+     * Size before the frame is not known, the level is always reported
+     */
+    private final static long UNKNOWN = -1;
+
+    /**
+     * Changed level -> index in the arrays below plus 1
+     */
+    private final LongLongHashMap changedIndex = new LongLongHashMap();
+
+    private boolean[] changedIsBid = new boolean[16];
+
+    private int[] changedPrice = new int[16];
+
+    private long[] previousSize = new long[16];
+
+    private long[] changedSize = new long[16];
+
+    private int changedCount;
+
+    @Override
+    public void onLevel(boolean isBid, int price, long size) {
+        onLevelChange(isBid, price, UNKNOWN, size);
+    }
+
+    @Override
+    public void onLevelChange(boolean isBid, int price, long previous, long size) {
+        long key = key(isBid, price);
+        int index = (int) changedIndex.get(key, 0) - 1;
+
+        if (index >= 0) {
+            changedSize[index] = size;
+            return;
+        }
+
+        if (changedCount == changedPrice.length) {
+            int capacity = changedCount * 2;
+            changedIsBid = Arrays.copyOf(changedIsBid, capacity);
+            changedPrice = Arrays.copyOf(changedPrice, capacity);
+            previousSize = Arrays.copyOf(previousSize, capacity);
+            changedSize = Arrays.copyOf(changedSize, capacity);
+        }
+
+        changedIsBid[changedCount] = isBid;
+        changedPrice[changedCount] = price;
+        previousSize[changedCount] = previous;
+        changedSize[changedCount] = size;
+        changedIndex.put(key, ++changedCount);
+    }
+
+    /**
+     * Report the net change of every level and start over
+     */
+    public void flush(OrderByOrderEngine.LevelListener listener) {
+        int count = changedCount;
+
+        if (count == 0) {
+            return;
+        }
+
+        changedCount = 0;
+        changedIndex.clear();
+
+        for (int i = 0; i < count; i++) {
+            if (changedSize[i] != previousSize[i]) {
+                listener.onLevel(changedIsBid[i], changedPrice[i], changedSize[i]);
+            }
+        }
+    }
+
+    public int getChangedLevels() {
+        return changedCount;
+    }
+
+    private static long key(boolean isBid, int price) {
+        // The marker keeps the key away from 0, which the map reserves
+        return ((long) price << 1 | (isBid ? BID_KEY : 0)) | KEY_MARKER;
+    }
+}
@@ -0,0 +1,157 @@
+package bookmap;
+
+import bitfinex.util.LongLongHashMap;
+
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+
+/**
+ * Depth updates of one alias on their way to the data listeners. While frames of the
+ * instrument queue up behind the one being applied, level changes are kept back and repeated
+ * changes of the same level collapse into the latest size. The kept changes are flushed in
+ * the order they first changed once the queue is drained, when too many levels are pending
+ * or when the oldest change waited too long. Besides the frames of the alias, the thread
+ * that applies them calls {@link #onFrameEnd()} after every batch, so the delay is bounded
+ * also when no further frame of the alias arrives.
+ * <p>
+ * Must be used from the thread that applies the channel data of the alias.
+ */
+public class DepthConflator {
+
+    public interface DepthListener {
+        void onDepth(boolean isBid, int price, int size);
+    }
+
+    private final static long BID_KEY = 1;
+
+    private final static long KEY_MARKER = 1L << 62;
+
+    private final LongSupplier backlog;
+
+    private final int maxPendingLevels;
+
+    private final long maxDelayNanos;
+
+    private final DepthListener listener;
+
+    /**
+     * Pending level -> index in the arrays below plus 1
+     */
+    private final LongLongHashMap pendingIndex = new LongLongHashMap();
+
+    private boolean[] pendingIsBid = new boolean[16];
+
+    private int[] pendingPrice = new int[16];
+
+    private int[] pendingSize = new int[16];
+
+    private int pendingCount;
+
+    private long firstPendingTime;
+
+    private long conflatedUpdates;
+
+    /**
+     * @param backlog          number of frames of the instrument waiting behind the current one
+     * @param maxPendingLevels flush when this many levels are pending
+     * @param maxDelayNanos    flush when the oldest pending change is older
+     * @param listener         receives the depth updates
+     */
+    public DepthConflator(LongSupplier backlog, int maxPendingLevels, long maxDelayNanos, DepthListener listener) {
+        this.backlog = backlog;
+        this.maxPendingLevels = maxPendingLevels;
+        this.maxDelayNanos = maxDelayNanos;
+        this.listener = listener;
+    }
+
+    /**
+     * Level change that may be conflated
+     */
+    public void onDepth(boolean isBid, int price, int size) {
+        if (pendingCount == 0 && backlog.getAsLong() == 0) {
+            listener.onDepth(isBid, price, size);
+            return;
+        }
+
+        long key = key(isBid, price);
+        int index = (int) pendingIndex.get(key, 0) - 1;
+
+        if (index >= 0) {
+            pendingSize[index] = size;
+            conflatedUpdates++;
+            return;
+        }
+
+        if (pendingCount == 0) {
+            firstPendingTime = System.nanoTime();
+        } else if (pendingCount == pendingPrice.length) {
+            int capacity = pendingCount * 2;
+            pendingIsBid = Arrays.copyOf(pendingIsBid, capacity);
+            pendingPrice = Arrays.copyOf(pendingPrice, capacity);
+            pendingSize = Arrays.copyOf(pendingSize, capacity);
+        }
+
+        pendingIsBid[pendingCount] = isBid;
+        pendingPrice[pendingCount] = price;
+        pendingSize[pendingCount] = size;
+        pendingIndex.put(key, ++pendingCount);
+    }
+
+    /**
+     * Level change that is never conflated, pending changes are flushed before it
+     */
+    public void onDepthNow(boolean isBid, int price, int size) {
+        flush();
+        listener.onDepth(isBid, price, size);
+    }
+
+    /**
+     * Called after a frame or a batch of frames is applied, flushes the pending changes
+     * if the instrument's queue drained, too many levels are pending or the delay expired
+     */
+    public void onFrameEnd() {
+        if (pendingCount == 0) {
+            return;
+        }
+
+        if (pendingCount >= maxPendingLevels
+                || backlog.getAsLong() == 0
+                || System.nanoTime() - firstPendingTime >= maxDelayNanos) {
+            flush();
+        }
+    }
+
+    /**
+     * Pass all pending changes to the listener, in the order the levels first changed
+     */
+    public void flush() {
+        int count = pendingCount;
+
+        if (count == 0) {
+            return;
+        }
+
+        pendingCount = 0;
+        pendingIndex.clear();
+
+        for (int i = 0; i < count; i++) {
+            listener.onDepth(pendingIsBid[i], pendingPrice[i], pendingSize[i]);
+        }
+    }
+
+    public int getPendingLevels() {
+        return pendingCount;
+    }
+
+    /**
+     * Number of updates that were replaced by a later size of the same level
+     */
+    public long getConflatedUpdates() {
+        return conflatedUpdates;
+    }
+
+    private static long key(boolean isBid, int price) {
+        // The marker keeps the key away from 0, which the map reserves
+        return ((long) price << 1 | (isBid ? BID_KEY : 0)) | KEY_MARKER;
+    }
+}
@@ -0,0 +1,168 @@
+package bookmap;
+
+/**
+ * Passes on the level changes of a book that lie in a window around the top of the book,
+ * either the best N levels of each side or the prices within a percentage of the mid price.
+ * The book itself is kept complete, only the delivery is limited. After each frame
+ * {@link #update()} moves the window with the book: levels that left it are cleared and
+ * levels that entered it are reported with their size.
+ * <p>
+ * Changes must be passed on before {@link #update()}, while the window of the previous frame
+ * is still in place. Not thread-safe.
+ */
+public class DepthWindow implements OrderByOrderEngine.LevelListener {
+
+    public static final class Limit {
+
+        public static final Limit NONE = new Limit(0, 0);
+
+        private final int levels;
+
+        private final double fraction;
+
+        private Limit(int levels, double fraction) {
+            this.levels = levels;
+            this.fraction = fraction;
+        }
+
+        /**
+         * The best levels of each side
+         */
+        public static Limit levels(int levels) {
+            if (levels <= 0) {
+                throw new IllegalArgumentException("Levels must be positive: " + levels);
+            }
+            return new Limit(levels, 0);
+        }
+
+        /**
+         * Prices within the percentage of the mid price
+         */
+        public static Limit percentFromMid(double percent) {
+            if (!(percent > 0)) {
+                throw new IllegalArgumentException("Percent must be positive: " + percent);
+            }
+            return new Limit(0, percent / 100);
+        }
+
+        public boolean isNone() {
+            return levels == 0 && fraction == 0;
+        }
+
+        @Override
+        public String toString() {
+            return isNone() ? "none" : levels > 0 ? levels + " levels" : fraction * 100 + "% from mid";
+        }
+    }
+
+    private final Limit limit;
+
+    private final PriceLadder bids;
+
+    private final PriceLadder asks;
+
+    private final OrderByOrderEngine.LevelListener listener;
+
+    /**
+     * Levels the listener has, the book restricted to the window
+     */
+    private final PriceLadder deliveredBids = new PriceLadder(true);
+
+    private final PriceLadder deliveredAsks = new PriceLadder(false);
+
+    /**
+     * Lowest bid and highest ask in the window, the window is empty until the first update
+     */
+    private int bidBound = Integer.MAX_VALUE;
+
+    private int askBound = Integer.MIN_VALUE;
+
+    /**
+     * @param bids     bid side of the complete book
+     * @param asks     ask side of the complete book
+     * @param listener receives the levels in the window
+     */
+    public DepthWindow(Limit limit, PriceLadder bids, PriceLadder asks, OrderByOrderEngine.LevelListener listener) {
+        this.limit = limit;
+        this.bids = bids;
+        this.asks = asks;
+        this.listener = listener;
+    }
+
+    public Limit getLimit() {
+        return limit;
+    }
+
+    @Override
+    public void onLevel(boolean isBid, int price, long size) {
+        if (limit.isNone()) {
+            listener.onLevel(isBid, price, size);
+        } else if (isBid ? price >= bidBound : price <= askBound) {
+            deliver(isBid, price, size);
+        }
+    }
+
+    /**
+     * Move the window to the current state of the book
+     */
+    public void update() {
+        if (limit.isNone()) {
+            return;
+        }
+
+        int newBidBound;
+        int newAskBound;
+
+        if (limit.levels > 0) {
+            // A side with fewer levels has all of them in the window
+            newBidBound = bids.getNthBest(limit.levels);
+            newAskBound = asks.getNthBest(limit.levels);
+            if (newAskBound == PriceLadder.NO_PRICE) {
+                newAskBound = Integer.MAX_VALUE;
+            }
+        } else {
+            int bestBid = bids.getBest();
+            int bestAsk = asks.getBest();
+            if (bestBid == PriceLadder.NO_PRICE && bestAsk == PriceLadder.NO_PRICE) {
+                newBidBound = Integer.MIN_VALUE;
+                newAskBound = Integer.MAX_VALUE;
+            } else {
+                double mid = bestBid == PriceLadder.NO_PRICE ? bestAsk
+                        : bestAsk == PriceLadder.NO_PRICE ? bestBid
+                        : ((double) bestBid + bestAsk) / 2;
+                newBidBound = (int) Math.ceil(mid * (1 - limit.fraction));
+                newAskBound = (int) Math.min(Math.floor(mid * (1 + limit.fraction)), Integer.MAX_VALUE);
+            }
+        }
+
+        if (newBidBound > bidBound) {
+            clear(deliveredBids, Integer.MIN_VALUE, newBidBound - 1);
+        } else if (newBidBound < bidBound) {
+            bids.forEachBetween(newBidBound, bidBound - 1, (price, size) -> deliver(true, price, size));
+        }
+
+        if (newAskBound < askBound) {
+            clear(deliveredAsks, newAskBound + 1, Integer.MAX_VALUE);
+        } else if (newAskBound > askBound) {
+            asks.forEachBetween(askBound + 1, newAskBound, (price, size) -> deliver(false, price, size));
+        }
+
+        bidBound = newBidBound;
+        askBound = newAskBound;
+    }
+
+    private void deliver(boolean isBid, int price, long size) {
+        PriceLadder delivered = isBid ? deliveredBids : deliveredAsks;
+        if (delivered.set(price, size) != size) {
+            listener.onLevel(isBid, price, size);
+        }
+    }
+
+    private void clear(PriceLadder delivered, int from, int to) {
+        boolean isBid = delivered.isBid();
+        delivered.forEachBetween(from, to, (price, size) -> {
+            delivered.remove(price);
+            listener.onLevel(isBid, price, 0);
+        });
+    }
+}
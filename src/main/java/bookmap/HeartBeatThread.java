@@ -1,7 +1,7 @@
 package bookmap;
 
 import bitfinex.BitfinexApiBroker;
-import bitfinex.WebsocketClientEndpoint;
+import bitfinex.BitfinexConnection;
 import bitfinex.commands.PingCommand;
 import velox.api.layer1.common.Log;
 
@@ -27,25 +27,10 @@ public class HeartBeatThread extends Thread {
         while (!stopped && !Thread.interrupted()) {
             try {
                 Thread.sleep(TimeUnit.SECONDS.toMillis(20));
-                WebsocketClientEndpoint websocketEndpoint = bitfinexApiBroker.getWebsocketEndpoint();
 
-                if (websocketEndpoint == null) {
-                    continue;
-                }
-
-                if (!websocketEndpoint.isConnected()) {
-                    Log.debug("We are not connected, reconnecting");
-                    executeReconnect();
-                    continue;
-                }
-
-                ping();
-
-                boolean reconnectNeeded = checkConnectionTimeout();
-
-                if (reconnectNeeded) {
-                    Log.debug("Connection heartbeat time out, reconnecting");
-                    executeReconnect();
+                // Connections are checked one by one, a stale socket does not affect the channels of the others
+                for (BitfinexConnection connection : bitfinexApiBroker.getConnections()) {
+                    checkConnection(connection);
                 }
             } catch (InterruptedException e) {
                 Log.error("heartbeat thread interrupted", e);
@@ -58,19 +43,40 @@ public class HeartBeatThread extends Thread {
         stopped = true;
     }
 
-    private boolean checkConnectionTimeout() {
-        long heartbeatTimeout = bitfinexApiBroker.getLastMessageTime().get() + CONNECTION_TIMEOUT;
+    private void checkConnection(BitfinexConnection connection) {
+        if (connection.getWebsocketEndpoint() == null) {
+            return;
+        }
+
+        if (!connection.isConnected()) {
+            Log.debug("Connection " + connection.getIndex() + " is not connected, reconnecting");
+            executeReconnect(connection);
+            return;
+        }
+
+        ping(connection);
+
+        boolean reconnectNeeded = checkConnectionTimeout(connection);
+
+        if (reconnectNeeded) {
+            Log.debug("Connection " + connection.getIndex() + " heartbeat time out, reconnecting");
+            executeReconnect(connection);
+        }
+    }
+
+    private boolean checkConnectionTimeout(BitfinexConnection connection) {
+        long heartbeatTimeout = connection.getLastMessageTime().get() + CONNECTION_TIMEOUT;
         return heartbeatTimeout < System.currentTimeMillis();
     }
 
-    private void ping() {
+    private void ping(BitfinexConnection connection) {
         Log.debug("HeartBeat thread. Sending ping command.");
-        bitfinexApiBroker.sendCommand(new PingCommand());
+        connection.sendCommand(new PingCommand());
     }
 
-    private void executeReconnect() {
-        Log.info("Trying to reconnect");
-        boolean reconnected = bitfinexApiBroker.reconnect();
+    private void executeReconnect(BitfinexConnection connection) {
+        Log.info("Trying to reconnect connection " + connection.getIndex());
+        boolean reconnected = bitfinexApiBroker.reconnect(connection);
         if (reconnected) Log.info("Successfully reconnected");
     }
 }
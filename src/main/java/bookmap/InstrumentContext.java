@@ -0,0 +1,80 @@
+package bookmap;
+
+import velox.api.layer1.Layer1ApiDataListener;
+import velox.api.layer1.data.TradeInfo;
+
+import java.util.Collection;
+
+/**
+ * Everything the callbacks of one alias need, built when the alias is subscribed: the alias,
+ * the price and amount codecs and the data listeners. Events are passed on in a plain loop
+ * over an array of the listeners.
+ */
+public final class InstrumentContext {
+
+    /**
+     * The data listeners of a provider as an array, replaced whenever a listener is added or removed
+     */
+    public static final class Listeners {
+
+        private volatile Layer1ApiDataListener[] listeners = new Layer1ApiDataListener[0];
+
+        public void update(Collection<Layer1ApiDataListener> dataListeners) {
+            listeners = dataListeners.toArray(new Layer1ApiDataListener[0]);
+        }
+
+        private Layer1ApiDataListener[] get() {
+            return listeners;
+        }
+    }
+
+    private final String alias;
+
+    private final PriceCodec priceCodec;
+
+    private final AmountCodec amountCodec;
+
+    private final Listeners listeners;
+
+    public InstrumentContext(String alias, PriceCodec priceCodec, AmountCodec amountCodec, Listeners listeners) {
+        this.alias = alias;
+        this.priceCodec = priceCodec;
+        this.amountCodec = amountCodec;
+        this.listeners = listeners;
+    }
+
+    public String getAlias() {
+        return alias;
+    }
+
+    public PriceCodec getPriceCodec() {
+        return priceCodec;
+    }
+
+    public AmountCodec getAmountCodec() {
+        return amountCodec;
+    }
+
+    public int toSize(long amountMantissa, int amountScale) {
+        return amountCodec.toSize(amountMantissa, amountScale);
+    }
+
+    public void onDepth(boolean isBid, int price, int size) {
+        for (Layer1ApiDataListener listener : listeners.get()) {
+            listener.onDepth(alias, isBid, price, size);
+        }
+    }
+
+    /**
+     * Level size from a book, clamped to the int range
+     */
+    public void onDepth(boolean isBid, int price, long size) {
+        onDepth(isBid, price, (int) Math.min(size, Integer.MAX_VALUE));
+    }
+
+    public void onTrade(double price, int size, TradeInfo tradeInfo) {
+        for (Layer1ApiDataListener listener : listeners.get()) {
+            listener.onTrade(alias, price, size, tradeInfo);
+        }
+    }
+}
@@ -3,15 +3,16 @@ package bookmap;
 import bitfinex.BitfinexApiBroker;
 import bitfinex.entity.*;
 import bitfinex.manager.ExecutedTradesManager;
+import bitfinex.manager.SnapshotConsumer;
 import velox.api.layer0.annotations.Layer0LiveModule;
 import velox.api.layer0.live.ExternalLiveBaseProvider;
 import velox.api.layer1.Layer1ApiAdminListener;
+import velox.api.layer1.Layer1ApiDataListener;
 import velox.api.layer1.data.*;
-import velox.api.layer1.layers.utils.OrderBook;
-import velox.api.layer1.layers.utils.OrderByOrderBook;
 
-import java.math.BigDecimal;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.BiConsumer;
 
 /**
@@ -20,14 +21,18 @@ import java.util.function.BiConsumer;
 @Layer0LiveModule
 public class MBORealTimeProvider extends ExternalLiveBaseProvider {
 
-    private BitfinexApiBroker bitfinexApiBroker = new BitfinexApiBroker();
-    private HeartBeatThread heartBeatThread = new HeartBeatThread(bitfinexApiBroker);
+    private BitfinexApiBroker bitfinexApiBroker;
 
 
     private final HashSet<String> aliases = new HashSet<>();
 
     private Map<String, RawOrderbookConfiguration> orderBookConfigByAlias = new HashMap<>();
     private Map<String, BitfinexExecutedTradeSymbol> tradeSymbolByAlias = new HashMap<>();
+    private Map<String, AliasCallbacks> callbacksByAlias = new HashMap<>();
+    private Map<String, InstrumentContext> contextByAlias = new HashMap<>();
+    private Map<String, DepthWindow.Limit> depthWindowByAlias = new HashMap<>();
+
+    private final InstrumentContext.Listeners listenerSnapshot = new InstrumentContext.Listeners();
 
     private static final OrderBookPrecision DEFAULT_RAW_ORDER_BOOK_PRICE_PRECISION = OrderBookPrecision.P1;
 
@@ -45,14 +50,36 @@ public class MBORealTimeProvider extends ExternalLiveBaseProvider {
     @Override
     public void login(LoginData loginData) {
         try {
-            bitfinexApiBroker.connect();
-            heartBeatThread.start();
+            // The socket, heartbeat and channels are shared with the other providers of the process
+            bitfinexApiBroker = SharedApiBroker.acquire();
             adminListeners.forEach(Layer1ApiAdminListener::onLoginSuccessful);
         } catch (APIException e) {
             adminListeners.forEach(l -> l.onLoginFailed(LoginFailedReason.FATAL, "Cannot connect to bitfinex API"));
         }
     }
 
+    @Override
+    public void addListener(Layer1ApiDataListener listener) {
+        super.addListener(listener);
+        listenerSnapshot.update(dataListeners);
+    }
+
+    @Override
+    public void removeListener(Layer1ApiDataListener listener) {
+        super.removeListener(listener);
+        listenerSnapshot.update(dataListeners);
+    }
+
+    /**
+     * Limit the depth updates of the alias to a window around the top of the book.
+     * Takes effect when the alias is subscribed, the book is kept complete either way.
+     */
+    public void setDepthWindow(String alias, DepthWindow.Limit limit) {
+        synchronized (aliases) {
+            depthWindowByAlias.put(alias, limit);
+        }
+    }
+
     /**
      * Price should be passed into onDepth method in integer format.
      * Integer value is used to identify the coordinate on price axis
@@ -61,12 +88,11 @@ public class MBORealTimeProvider extends ExternalLiveBaseProvider {
      */
     @Override
     public String formatPrice(String alias, double price) {
-        RawOrderbookConfiguration orderbookConfiguration;
+        InstrumentContext context;
         synchronized (aliases) {
-            orderbookConfiguration = orderBookConfigByAlias.get(alias);
+            context = contextByAlias.get(alias);
         }
-        double priceStep = PriceConverter.getPriceStep(orderbookConfiguration.getCurrencyPair(), DEFAULT_RAW_ORDER_BOOK_PRICE_PRECISION);
-        return formatPriceDefault(priceStep, price);
+        return formatPriceDefault(context.getPriceCodec().getStep(), price);
     }
 
     /**
@@ -88,151 +114,188 @@ public class MBORealTimeProvider extends ExternalLiveBaseProvider {
             added = aliases.add(alias);
         }
         if (added) {
-            subscribeOrderBook(symbol, exchange, type, alias);
-            subscribeExecutedTrades(symbol, exchange, type, alias);
+            BitfinexCurrencyPair currencyPair = BitfinexCurrencyPair.valueOf(symbol);
+            InstrumentContext context = new InstrumentContext(alias,
+                    PriceCodec.of(currencyPair, DEFAULT_RAW_ORDER_BOOK_PRICE_PRECISION),
+                    new AmountCodec(amountMultipliers.get(currencyPair)), listenerSnapshot);
+            synchronized (aliases) {
+                contextByAlias.put(alias, context);
+            }
+            subscribeOrderBook(symbol, exchange, type, context);
+            subscribeExecutedTrades(symbol, context);
         } else {
             instrumentListeners.forEach(i -> i.onInstrumentAlreadySubscribed(symbol, exchange, type));
         }
     }
 
-    private void subscribeOrderBook(String symbol, String exchange, String type, String alias) {
+    private void subscribeOrderBook(String symbol, String exchange, String type, InstrumentContext context) {
+        String alias = context.getAlias();
         RawOrderbookConfiguration orderbookConfiguration = new RawOrderbookConfiguration(BitfinexCurrencyPair.valueOf(symbol));
 
-        double pips = PriceConverter.getPriceStep(orderbookConfiguration.getCurrencyPair(), DEFAULT_RAW_ORDER_BOOK_PRICE_PRECISION);
-
-        int amountMultiplier = amountMultipliers.get(orderbookConfiguration.getCurrencyPair());
+        double pips = context.getPriceCodec().getStep();
+        int amountMultiplier = context.getAmountCodec().getMultiplier();
         InstrumentInfoCrypto instrumentInfoCrypto = new InstrumentInfoCrypto(symbol, exchange, type, pips, 1, "", amountMultiplier);
         instrumentListeners.forEach(i -> i.onInstrumentAdded(alias, instrumentInfoCrypto));
 
-        OrderByOrderBook orderByOrderBook = new OrderByOrderBook();
+        OrderByOrderEngine orderBook = new OrderByOrderEngine();
+        DepthWindow depthWindow = new DepthWindow(getDepthWindow(alias), orderBook.getLevels(true), orderBook.getLevels(false), context::onDepth);
 
-        registerOrderBookSnapshotCallback(alias, orderbookConfiguration, orderByOrderBook);
-        registerOrderBookUpdateCallback(alias, orderbookConfiguration, orderByOrderBook);
+        registerOrderBookSnapshotConsumer(alias, orderbookConfiguration, context, orderBook, depthWindow);
+        // Frames of one channel are applied one after another, so the callbacks can share the accumulator
+        DepthAccumulator depthAccumulator = new DepthAccumulator();
+        registerOrderBookUpdateCallback(alias, orderbookConfiguration, context, orderBook, depthAccumulator, depthWindow);
+        registerOrderBookBatchCallback(alias, orderbookConfiguration, context, orderBook, depthAccumulator, depthWindow);
 
-        bitfinexApiBroker.getRawOrderbookManager().subscribeOrderbook(orderbookConfiguration);
+        reportSubscriptionFailure(alias, bitfinexApiBroker.getRawOrderbookManager().subscribeOrderbook(orderbookConfiguration));
 
         orderBookConfigByAlias.put(alias, orderbookConfiguration);
     }
 
-    private void registerOrderBookUpdateCallback(String alias, RawOrderbookConfiguration orderbookConfiguration, OrderByOrderBook orderBook) {
-        BiConsumer<RawOrderbookConfiguration, RawOrderbookEntry> orderBookCallback =
-                (orderbookConfig, entry) -> notifyOrderBookUpdate(alias, orderbookConfig, entry, orderBook);
+    private void registerOrderBookUpdateCallback(String alias, RawOrderbookConfiguration orderbookConfiguration, InstrumentContext context, OrderByOrderEngine orderBook,
+                                                 DepthAccumulator depthAccumulator, DepthWindow depthWindow) {
+        BiConsumer<RawOrderbookConfiguration, RawOrderbookEntry> orderBookCallback = (orderbookConfig, entry) -> {
+            applyOrderBookUpdate(context, entry, orderBook, depthAccumulator);
+            depthAccumulator.flush(depthWindow);
+            depthWindow.update();
+        };
         bitfinexApiBroker.getRawOrderbookManager().registerOrderbookCallback(orderbookConfiguration, orderBookCallback);
+        getAliasCallbacks(alias).add(() -> bitfinexApiBroker.getRawOrderbookManager().removeOrderbookCallback(orderbookConfiguration, orderBookCallback));
     }
 
     /**
-     * We handle snapshot separately to remove levels that are not present in snapshot after reconnect.
+     * Bulk updates are applied as a whole, the net change of every level is reported once.
      * @param alias
      * @param orderbookConfiguration
      * @param orderBook
+     * @param depthAccumulator
+     * @param depthWindow
      */
-    private void registerOrderBookSnapshotCallback(String alias, RawOrderbookConfiguration orderbookConfiguration, OrderByOrderBook orderBook) {
-        BiConsumer<RawOrderbookConfiguration, List<RawOrderbookEntry>> orderBookSnapshopCallback = (orderbookConfig, entries) -> {
-            clearLevels(alias, orderBook, entries, orderbookConfig);
-
+    private void registerOrderBookBatchCallback(String alias, RawOrderbookConfiguration orderbookConfiguration, InstrumentContext context, OrderByOrderEngine orderBook,
+                                                DepthAccumulator depthAccumulator, DepthWindow depthWindow) {
+        BiConsumer<RawOrderbookConfiguration, List<RawOrderbookEntry>> orderBookBatchCallback = (orderbookConfig, entries) -> {
             for (RawOrderbookEntry entry : entries) {
-                notifyOrderBookUpdate(alias, orderbookConfig, entry, orderBook);
+                applyOrderBookUpdate(context, entry, orderBook, depthAccumulator);
             }
+            depthAccumulator.flush(depthWindow);
+            depthWindow.update();
         };
-        bitfinexApiBroker.getRawOrderbookManager().registerOrderbookSnapshotCallback(orderbookConfiguration, orderBookSnapshopCallback);
-    }
-
-    private void notifyOrderBookUpdate(String alias, RawOrderbookConfiguration orderbookConfiguration, RawOrderbookEntry entry, OrderByOrderBook orderBook) {
-        long orderId = entry.getOrderId();
-        boolean isBid = entry.getAmount().signum() > 0;
-        int price = PriceConverter.roundToInteger(orderbookConfiguration.getCurrencyPair(), DEFAULT_RAW_ORDER_BOOK_PRICE_PRECISION, entry.getPrice(), isBid);
-        int amount = getAmount(orderbookConfiguration.getCurrencyPair(), entry.getAmount());
-        if (price != 0) {
-            if (orderBook.hasOrder(orderId)) {
-                OrderByOrderBook.OrderUpdateResult orderUpdateResult = orderBook.updateOrder(orderId, price, amount);
-                dataListeners.forEach(l -> l.onDepth(alias, isBid, orderUpdateResult.fromPrice, (int) orderUpdateResult.fromSize));
-                dataListeners.forEach(l -> l.onDepth(alias, isBid, price, (int) orderUpdateResult.toSize));
-            } else {
-                long newAmount = orderBook.addOrder(orderId, isBid, price, amount);
-                dataListeners.forEach(l -> l.onDepth(alias, isBid, orderBook.getLastPriceOfOrder(orderId), (int) newAmount));
-            }
-        } else if (orderBook.hasOrder(orderId)) {
-            int removedOrderPrice = orderBook.getLastPriceOfOrder(orderId);
-            long newAmount = orderBook.removeOrder(orderId);
-            dataListeners.forEach(l -> l.onDepth(alias, isBid, removedOrderPrice, (int) newAmount));
-        }
+        bitfinexApiBroker.getRawOrderbookManager().registerOrderbookBatchCallback(orderbookConfiguration, orderBookBatchCallback);
+        getAliasCallbacks(alias).add(() -> bitfinexApiBroker.getRawOrderbookManager().removeOrderbookBatchCallback(orderbookConfiguration, orderBookBatchCallback));
     }
 
     /**
-     * Removes levels that are not present in snapshot from current bookmap state. Needed to support reconnect.
+     * We handle snapshot separately to reconcile the book after reconnect: the snapshot is diffed
+     * against the orders we have, only levels whose size changed are reported at its end.
      * @param alias
-     * @param orderByOrderBook
-     * @param entries
-     * @param orderbookConfig
+     * @param orderbookConfiguration
+     * @param orderBook
+     * @param depthWindow
      */
-    private void clearLevels(String alias, OrderByOrderBook orderByOrderBook, List<RawOrderbookEntry> entries, RawOrderbookConfiguration orderbookConfig) {
-        OrderBook orderBook = orderByOrderBook.getOrderBook();
-
-        Integer[] oldBidLevels = orderBook.levels(true);
-        Integer[] oldAskLevels = orderBook.levels(false);
-
-        Arrays.sort(oldBidLevels);
-        Arrays.sort(oldAskLevels, Comparator.reverseOrder());
-
-        HashSet<Integer> newBidLevels = new HashSet<>();
-        HashSet<Integer> newAskLevels = new HashSet<>();
-
-        for (RawOrderbookEntry entry : entries) {
-            boolean isBid = entry.getAmount().signum() > 0;
-            int price = PriceConverter.roundToInteger(orderbookConfig.getCurrencyPair(), DEFAULT_RAW_ORDER_BOOK_PRICE_PRECISION, entry.getPrice(), isBid);
-            if (price != 0) {
-                if (isBid) newBidLevels.add(price);
-                else newAskLevels.add(price);
+    private void registerOrderBookSnapshotConsumer(String alias, RawOrderbookConfiguration orderbookConfiguration, InstrumentContext context, OrderByOrderEngine orderBook,
+                                                   DepthWindow depthWindow) {
+        SnapshotConsumer<RawOrderbookConfiguration, RawOrderbookEntry> orderBookSnapshotConsumer = new SnapshotConsumer<RawOrderbookConfiguration, RawOrderbookEntry>() {
+            @Override
+            public void onSnapshotStart(RawOrderbookConfiguration orderbookConfig) {
+                orderBook.beginSnapshot();
             }
-        }
 
-
-        for (int i = 0; i < oldBidLevels.length; i++) {
-            if (!newBidLevels.contains(oldBidLevels[i])) {
-                int idx = i;
-                dataListeners.forEach(l -> l.onDepth(alias, true, oldBidLevels[idx], 0));
+            @Override
+            public void onSnapshotEntry(RawOrderbookConfiguration orderbookConfig, RawOrderbookEntry entry) {
+                boolean isBid = entry.getAmountMantissa() > 0;
+                int price = context.getPriceCodec().toIndex(entry.getPriceMantissa(), entry.getPriceScale(), isBid);
+                if (price != 0) {
+                    int amount = context.toSize(entry.getAmountMantissa(), entry.getAmountScale());
+                    orderBook.applySnapshotOrder(entry.getOrderId(), isBid, price, amount);
+                }
             }
-        }
 
-        for (int i = 0; i < oldAskLevels.length; i++) {
-            if (!newAskLevels.contains(oldAskLevels[i])) {
-                int idx = i;
-                dataListeners.forEach(l -> l.onDepth(alias, false, oldAskLevels[idx], 0));
+            @Override
+            public void onSnapshotEnd(RawOrderbookConfiguration orderbookConfig) {
+                orderBook.endSnapshot(depthWindow);
+                depthWindow.update();
             }
-        }
-
-        orderByOrderBook.getAllIds().forEach(orderByOrderBook::removeOrder);
+        };
+        bitfinexApiBroker.getRawOrderbookManager().registerOrderbookSnapshotConsumer(orderbookConfiguration, orderBookSnapshotConsumer);
+        getAliasCallbacks(alias).add(() -> bitfinexApiBroker.getRawOrderbookManager().removeOrderbookSnapshotConsumer(orderbookConfiguration, orderBookSnapshotConsumer));
+    }
 
+    /**
+     * Applies the entry to the book, the changed levels are reported to the listener.
+     * An order with price 0 is removed.
+     */
+    private void applyOrderBookUpdate(InstrumentContext context, RawOrderbookEntry entry, OrderByOrderEngine orderBook,
+                                      OrderByOrderEngine.LevelChangeListener levelListener) {
+        long orderId = entry.getOrderId();
+        boolean isBid = entry.getAmountMantissa() > 0;
+        int price = context.getPriceCodec().toIndex(entry.getPriceMantissa(), entry.getPriceScale(), isBid);
+        if (price != 0) {
+            int amount = context.toSize(entry.getAmountMantissa(), entry.getAmountScale());
+            orderBook.addOrder(orderId, isBid, price, amount, levelListener);
+        } else {
+            orderBook.cancelOrder(orderId, levelListener);
+        }
     }
 
-    private void subscribeExecutedTrades(String symbol, String exchange, String type, String alias) {
+    private void subscribeExecutedTrades(String symbol, InstrumentContext context) {
+        String alias = context.getAlias();
         BitfinexExecutedTradeSymbol tradeSymbol = new BitfinexExecutedTradeSymbol(BitfinexCurrencyPair.valueOf(symbol));
         ExecutedTradesManager executedTradesManager = bitfinexApiBroker.getExecutedTradesManager();
+        PriceCodec priceCodec = context.getPriceCodec();
 
         BiConsumer<BitfinexExecutedTradeSymbol, ExecutedTrade> tradeCallback = (symb, trade) -> {
-            double price = PriceConverter.convertToDouble(symb.getBitfinexCurrencyPair(), DEFAULT_RAW_ORDER_BOOK_PRICE_PRECISION, trade.getPrice());
+            double price = priceCodec.toDouble(trade.getPriceMantissa(), trade.getPriceScale());
             boolean isOtc = false;
-            boolean isBidAgressor = trade.getAmount().signum() > 0;
-            int amount = getAmount(symb.getBitfinexCurrencyPair(), trade.getAmount());
+            boolean isBidAgressor = trade.getAmountMantissa() > 0;
+            int amount = context.toSize(trade.getAmountMantissa(), trade.getAmountScale());
 
-            dataListeners.forEach(l -> l.onTrade(alias, price, amount, new TradeInfo(isOtc, isBidAgressor)));
+            context.onTrade(price, amount, new TradeInfo(isOtc, isBidAgressor));
         };
 
         executedTradesManager.registerTradeCallback(tradeSymbol, tradeCallback);
-        executedTradesManager.subscribeExecutedTrades(tradeSymbol);
+        getAliasCallbacks(alias).add(() -> executedTradesManager.removeTradeCallback(tradeSymbol, tradeCallback));
+        reportSubscriptionFailure(alias, executedTradesManager.subscribeExecutedTrades(tradeSymbol));
 
         tradeSymbolByAlias.put(alias, tradeSymbol);
     }
 
+    private DepthWindow.Limit getDepthWindow(String alias) {
+        synchronized (aliases) {
+            return depthWindowByAlias.getOrDefault(alias, DepthWindow.Limit.NONE);
+        }
+    }
+
+    private AliasCallbacks getAliasCallbacks(String alias) {
+        synchronized (aliases) {
+            return callbacksByAlias.computeIfAbsent(alias, a -> new AliasCallbacks());
+        }
+    }
+
+    /**
+     * Subscriptions are not awaited, so all instruments of a workspace are subscribed in parallel.
+     */
+    private void reportSubscriptionFailure(String alias, CompletableFuture<Integer> subscription) {
+        subscription.whenComplete((channel, e) -> {
+            if (e != null && !(e instanceof CancellationException)) {
+                adminListeners.forEach(l -> l.onSystemTextMessage("Cannot subscribe " + alias + ": " + e.getMessage(),
+                        SystemTextMessageType.UNCLASSIFIED));
+            }
+        });
+    }
+
     @Override
     public void unsubscribe(String alias) {
         synchronized (aliases) {
             try {
+                AliasCallbacks aliasCallbacks = callbacksByAlias.remove(alias);
+                if (aliasCallbacks != null) {
+                    aliasCallbacks.removeAll();
+                }
                 bitfinexApiBroker.getRawOrderbookManager().unsubscribeOrderbook(orderBookConfigByAlias.get(alias));
                 bitfinexApiBroker.getExecutedTradesManager().unsubscribeExecutedTrades(tradeSymbolByAlias.get(alias));
                 aliases.remove(alias);
                 orderBookConfigByAlias.remove(alias);
                 tradeSymbolByAlias.remove(alias);
+                contextByAlias.remove(alias);
             } catch (APIException e) {
                 adminListeners.forEach(l -> l.onSystemTextMessage(e.getMessage(), SystemTextMessageType.UNCLASSIFIED));
             }
@@ -256,20 +319,17 @@ public class MBORealTimeProvider extends ExternalLiveBaseProvider {
 
     @Override
     public void close() {
-        heartBeatThread.shutDown();
-        bitfinexApiBroker.close();
+        List<String> subscribedAliases;
+        synchronized (aliases) {
+            subscribedAliases = new ArrayList<>(aliases);
+        }
+        // Channels shared with other providers stay subscribed, only our callbacks go away
+        subscribedAliases.forEach(this::unsubscribe);
+        SharedApiBroker.release(bitfinexApiBroker);
     }
 
     private static String createAlias(String symbol, String exchange, String type) {
         return "Bitfinex/" + symbol;
     }
 
-    private int getAmount(BitfinexCurrencyPair pair, BigDecimal amount) {
-        return amount
-                .abs()
-                .multiply(BigDecimal.valueOf(amountMultipliers.get(pair)))
-                .toBigInteger()
-                .intValue();
-    }
-
 }
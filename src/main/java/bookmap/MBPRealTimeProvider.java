@@ -1,16 +1,19 @@
 package bookmap;
 
 import bitfinex.BitfinexApiBroker;
+import bitfinex.ChannelPipeline;
 import bitfinex.entity.*;
 import bitfinex.manager.ExecutedTradesManager;
+import bitfinex.manager.SnapshotConsumer;
 import velox.api.layer0.annotations.Layer0LiveModule;
 import velox.api.layer0.live.ExternalLiveBaseProvider;
 import velox.api.layer1.Layer1ApiAdminListener;
+import velox.api.layer1.Layer1ApiDataListener;
 import velox.api.layer1.data.*;
-import velox.api.layer1.layers.utils.OrderBook;
 
-import java.math.BigDecimal;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.BiConsumer;
 
 /**
@@ -19,13 +22,21 @@ import java.util.function.BiConsumer;
 @Layer0LiveModule
 public class MBPRealTimeProvider extends ExternalLiveBaseProvider {
 
-    private BitfinexApiBroker bitfinexApiBroker = new BitfinexApiBroker();
-    private HeartBeatThread heartBeatThread = new HeartBeatThread(bitfinexApiBroker);
+    private BitfinexApiBroker bitfinexApiBroker;
 
     private final HashSet<String> aliases = new HashSet<>();
 
     private Map<String, OrderbookConfiguration> orderBookConfigByAlias = new HashMap<>();
     private Map<String, BitfinexExecutedTradeSymbol> tradeSymbolByAlias = new HashMap<>();
+    private Map<String, DepthConflator> depthConflatorByAlias = new HashMap<>();
+    private Map<String, AliasCallbacks> callbacksByAlias = new HashMap<>();
+    private Map<String, InstrumentContext> contextByAlias = new HashMap<>();
+    private Map<String, DepthWindow.Limit> depthWindowByAlias = new HashMap<>();
+
+    private final InstrumentContext.Listeners listenerSnapshot = new InstrumentContext.Listeners();
+
+    private static final int MAX_PENDING_LEVELS = 1024;
+    private static final long MAX_CONFLATION_DELAY_NANOS = 100_000_000;
 
     private static final HashMap<BitfinexCurrencyPair, Integer> amountMultiPliers = new HashMap<>();
 
@@ -43,14 +54,36 @@ public class MBPRealTimeProvider extends ExternalLiveBaseProvider {
     @Override
     public void login(LoginData loginData) {
         try {
-            bitfinexApiBroker.connect();
-            heartBeatThread.start();
+            // The socket, heartbeat and channels are shared with the other providers of the process
+            bitfinexApiBroker = SharedApiBroker.acquire();
             adminListeners.forEach(Layer1ApiAdminListener::onLoginSuccessful);
         } catch (APIException e) {
             adminListeners.forEach(l -> l.onLoginFailed(LoginFailedReason.FATAL, "Cannot connect to bitfinex API"));
         }
     }
 
+    @Override
+    public void addListener(Layer1ApiDataListener listener) {
+        super.addListener(listener);
+        listenerSnapshot.update(dataListeners);
+    }
+
+    @Override
+    public void removeListener(Layer1ApiDataListener listener) {
+        super.removeListener(listener);
+        listenerSnapshot.update(dataListeners);
+    }
+
+    /**
+     * Limit the depth updates of the alias to a window around the top of the book.
+     * Takes effect when the alias is subscribed, the book is kept complete either way.
+     */
+    public void setDepthWindow(String alias, DepthWindow.Limit limit) {
+        synchronized (aliases) {
+            depthWindowByAlias.put(alias, limit);
+        }
+    }
+
     /**
      * Price should be passed into onDepth method in integer format.
      * Integer value is used to identify the coordinate on price axis
@@ -59,12 +92,11 @@ public class MBPRealTimeProvider extends ExternalLiveBaseProvider {
      */
     @Override
     public String formatPrice(String alias, double price) {
-        OrderbookConfiguration orderbookConfiguration;
+        InstrumentContext context;
         synchronized (aliases) {
-            orderbookConfiguration = orderBookConfigByAlias.get(alias);
+            context = contextByAlias.get(alias);
         }
-        double priceStep = PriceConverter.getPriceStep(orderbookConfiguration);
-        return formatPriceDefault(priceStep, price);
+        return formatPriceDefault(context.getPriceCodec().getStep(), price);
     }
 
     /**
@@ -87,101 +119,161 @@ public class MBPRealTimeProvider extends ExternalLiveBaseProvider {
             added = aliases.add(alias);
         }
         if (added) {
-            subscribeOrderBook(symbol, exchange, type, alias);
-            subscribeExecutedTrades(symbol, exchange, type, alias);
+            BitfinexCurrencyPair currencyPair = BitfinexCurrencyPair.valueOf(symbol);
+            // P1 precision is chosen because of optimal aggregation level by price. With P0 there are too many gaps on price axis.
+            InstrumentContext context = new InstrumentContext(alias, PriceCodec.of(currencyPair, OrderBookPrecision.P1),
+                    new AmountCodec(amountMultiPliers.get(currencyPair)), listenerSnapshot);
+            synchronized (aliases) {
+                contextByAlias.put(alias, context);
+            }
+            subscribeOrderBook(symbol, exchange, type, context);
+            subscribeExecutedTrades(symbol, context);
         } else {
             instrumentListeners.forEach(i -> i.onInstrumentAlreadySubscribed(symbol, exchange, type));
         }
     }
 
-    private void subscribeOrderBook(String symbol, String exchange, String type, String alias) {
-        // P1 precision is chosen because of optimal aggregation level by price. With P0 there are too many gaps on price axis.
+    private void subscribeOrderBook(String symbol, String exchange, String type, InstrumentContext context) {
+        String alias = context.getAlias();
         OrderbookConfiguration orderbookConfiguration =
                 new OrderbookConfiguration(BitfinexCurrencyPair.valueOf(symbol), OrderBookPrecision.P1, OrderBookFrequency.F0, 100);
 
-        double pips = PriceConverter.getPriceStep(orderbookConfiguration);
-
-        int amountMultiplier = amountMultiPliers.get(orderbookConfiguration.getCurrencyPair());
+        double pips = context.getPriceCodec().getStep();
+        int amountMultiplier = context.getAmountCodec().getMultiplier();
         InstrumentInfoCrypto instrumentInfoCrypto = new InstrumentInfoCrypto(symbol, exchange, type, pips, 1, "", amountMultiplier);
         instrumentListeners.forEach(i -> i.onInstrumentAdded(alias, instrumentInfoCrypto));
 
-        OrderBook orderBook = new OrderBook();
+        PriceLadder bids = new PriceLadder(true);
+        PriceLadder asks = new PriceLadder(false);
+        DepthWindow depthWindow = new DepthWindow(getDepthWindow(alias), bids, asks, context::onDepth);
+        DepthConflator depthConflator = createDepthConflator(depthWindow, orderbookConfiguration);
 
-        registerOrderBookSnapshotCallback(alias, orderbookConfiguration, orderBook);
-        registerOrderBookUpdateCallback(alias, orderbookConfiguration, orderBook);
+        AliasCallbacks aliasCallbacks = new AliasCallbacks();
+        callbacksByAlias.put(alias, aliasCallbacks);
+
+        ChannelPipeline pipeline = bitfinexApiBroker.getPipeline();
+        if (pipeline != null) {
+            Runnable flushTask = depthConflator::onFrameEnd;
+            pipeline.addBatchEndTask(orderbookConfiguration, flushTask);
+            aliasCallbacks.add(() -> pipeline.removeBatchEndTask(orderbookConfiguration, flushTask));
+        }
 
-        bitfinexApiBroker.getOrderbookManager().subscribeOrderbook(orderbookConfiguration);
+        registerOrderBookSnapshotConsumer(orderbookConfiguration, context, bids, asks, depthConflator, depthWindow, aliasCallbacks);
+        registerOrderBookUpdateCallback(orderbookConfiguration, context, bids, asks, depthConflator, depthWindow, aliasCallbacks);
+        registerOrderBookBatchCallback(orderbookConfiguration, context, bids, asks, depthConflator, depthWindow, aliasCallbacks);
+
+        reportSubscriptionFailure(alias, bitfinexApiBroker.getOrderbookManager().subscribeOrderbook(orderbookConfiguration));
 
         orderBookConfigByAlias.put(alias, orderbookConfiguration);
+        depthConflatorByAlias.put(alias, depthConflator);
     }
 
-    private void registerOrderBookSnapshotCallback(String alias, OrderbookConfiguration orderbookConfiguration, OrderBook orderBook) {
-        BiConsumer<OrderbookConfiguration, List<OrderbookEntry>> orderBookSnapshopCallback = (orderbookConfig, entries) -> {
-            removeLevelsNotPresentInSnapshot(alias, orderBook, orderbookConfig, entries);
-
-            for (OrderbookEntry entry : entries) {
-                notifyOrderBookUpdate(alias, orderbookConfig, entry, orderBook);
-            }
-        };
-        bitfinexApiBroker.getOrderbookManager().registerOrderbookSnapshotCallback(orderbookConfiguration, orderBookSnapshopCallback);
+    /**
+     * Level changes are conflated while frames of the instrument are queued behind the one being applied.
+     * The pipeline thread of the instrument flushes them after each batch, once they are due.
+     */
+    private DepthConflator createDepthConflator(DepthWindow depthWindow, OrderbookConfiguration orderbookConfiguration) {
+        return new DepthConflator(() -> {
+            ChannelPipeline pipeline = bitfinexApiBroker.getPipeline();
+            return pipeline == null ? 0 : pipeline.getBacklog(orderbookConfiguration);
+        }, MAX_PENDING_LEVELS, MAX_CONFLATION_DELAY_NANOS, depthWindow::onLevel);
     }
 
-    private void removeLevelsNotPresentInSnapshot(String alias, OrderBook orderBook, OrderbookConfiguration orderbookConfig, List<OrderbookEntry> entries) {
-        HashSet<Integer> bidPricesInSnapshot = new HashSet<>();
-        HashSet<Integer> askPricesInSnapshot = new HashSet<>();
-        for (OrderbookEntry entry : entries) {
-            boolean isBid = entry.getAmount().signum() > 0;
-            int price = PriceConverter.convertToInteger(orderbookConfig, entry.getPrice());
-            if (isBid) bidPricesInSnapshot.add(price);
-            else askPricesInSnapshot.add(price);
-        }
+    private void registerOrderBookSnapshotConsumer(OrderbookConfiguration orderbookConfiguration, InstrumentContext context, PriceLadder bids, PriceLadder asks,
+                                                   DepthConflator depthConflator, DepthWindow depthWindow, AliasCallbacks aliasCallbacks) {
+        // Snapshot entries are applied as they are decoded and only reported if they changed,
+        // levels the snapshot did not mark are removed at its end
+        SnapshotConsumer<OrderbookConfiguration, OrderbookEntry> orderBookSnapshotConsumer = new SnapshotConsumer<OrderbookConfiguration, OrderbookEntry>() {
+            @Override
+            public void onSnapshotStart(OrderbookConfiguration orderbookConfig) {
+                // Snapshots are never conflated, changes kept back so far go out before
+                depthConflator.flush();
+                bids.startMarking();
+                asks.startMarking();
+            }
 
-        Integer[] bidLevels = orderBook.levels(true);
-        Integer[] askLevels = orderBook.levels(false);
-        Arrays.sort(bidLevels);
-        Arrays.sort(askLevels, Comparator.reverseOrder());
+            @Override
+            public void onSnapshotEntry(OrderbookConfiguration orderbookConfig, OrderbookEntry entry) {
+                int price = context.getPriceCodec().toIndex(entry.getPriceMantissa(), entry.getPriceScale());
+                (entry.getAmountMantissa() > 0 ? bids : asks).mark(price);
 
-        for (int i = 0; i < bidLevels.length; i++) {
-            int idx = i;
-            if (!bidPricesInSnapshot.contains(bidLevels[i])) {
-                dataListeners.forEach(l -> l.onDepth(alias, true, bidLevels[idx], 0));
+                notifyOrderBookUpdate(context, entry, bids, asks, depthConflator, true);
             }
-        }
 
-        for (int i = 0; i < askLevels.length; i++) {
-            int idx = i;
-            if (!askPricesInSnapshot.contains(askLevels[i])) {
-                dataListeners.forEach(l -> l.onDepth(alias, false, askLevels[idx], 0));
+            @Override
+            public void onSnapshotEnd(OrderbookConfiguration orderbookConfig) {
+                bids.removeUnmarked((price, size) -> depthConflator.onDepthNow(true, price, 0));
+                asks.removeUnmarked((price, size) -> depthConflator.onDepthNow(false, price, 0));
+                depthWindow.update();
             }
-        }
+        };
+        bitfinexApiBroker.getOrderbookManager().registerOrderbookSnapshotConsumer(orderbookConfiguration, orderBookSnapshotConsumer);
+        aliasCallbacks.add(() -> bitfinexApiBroker.getOrderbookManager().removeOrderbookSnapshotConsumer(orderbookConfiguration, orderBookSnapshotConsumer));
     }
 
-    private void registerOrderBookUpdateCallback(String alias, OrderbookConfiguration orderbookConfiguration, OrderBook orderBook) {
+    private void registerOrderBookUpdateCallback(OrderbookConfiguration orderbookConfiguration, InstrumentContext context, PriceLadder bids, PriceLadder asks,
+                                                 DepthConflator depthConflator, DepthWindow depthWindow, AliasCallbacks aliasCallbacks) {
         BiConsumer<OrderbookConfiguration, OrderbookEntry> orderBookCallback = (orderbookConfig, entry) -> {
-            notifyOrderBookUpdate(alias, orderbookConfig, entry, orderBook);
+            notifyOrderBookUpdate(context, entry, bids, asks, depthConflator, false);
+            depthConflator.onFrameEnd();
+            depthWindow.update();
         };
         bitfinexApiBroker.getOrderbookManager().registerOrderbookCallback(orderbookConfiguration, orderBookCallback);
+        aliasCallbacks.add(() -> bitfinexApiBroker.getOrderbookManager().removeOrderbookCallback(orderbookConfiguration, orderBookCallback));
     }
 
-    private void notifyOrderBookUpdate(String alias, OrderbookConfiguration orderbookConfiguration, OrderbookEntry entry, OrderBook orderBook) {
-        boolean isBid = entry.getAmount().signum() > 0;
-        int price = PriceConverter.convertToInteger(orderbookConfiguration, entry.getPrice());
-        int amount = getAmount(orderbookConfiguration.getCurrencyPair(), entry.getAmount());
-        int count = entry.getCount().intValue();
-        if (count != 0) {
-            dataListeners.forEach(l -> l.onDepth(alias, isBid, price, amount));
-            orderBook.onUpdate(isBid, price, amount);
+    /**
+     * Bulk updates are applied as a whole, the net change of every level is reported once.
+     */
+    private void registerOrderBookBatchCallback(OrderbookConfiguration orderbookConfiguration, InstrumentContext context, PriceLadder bids, PriceLadder asks,
+                                                DepthConflator depthConflator, DepthWindow depthWindow, AliasCallbacks aliasCallbacks) {
+        DepthAccumulator depthAccumulator = new DepthAccumulator();
+        OrderByOrderEngine.LevelListener conflatorListener = (isBid, price, size) -> depthConflator.onDepth(isBid, price, (int) size);
+
+        BiConsumer<OrderbookConfiguration, List<OrderbookEntry>> orderBookBatchCallback = (orderbookConfig, entries) -> {
+            for (OrderbookEntry entry : entries) {
+                boolean isBid = entry.getAmountMantissa() > 0;
+                int price = context.getPriceCodec().toIndex(entry.getPriceMantissa(), entry.getPriceScale());
+                int amount = entry.getIntCount() != 0
+                        ? context.toSize(entry.getAmountMantissa(), entry.getAmountScale())
+                        : 0;
+                long previous = (isBid ? bids : asks).set(price, amount);
+                depthAccumulator.onLevelChange(isBid, price, previous, amount);
+            }
+
+            depthAccumulator.flush(conflatorListener);
+            depthConflator.onFrameEnd();
+            depthWindow.update();
+        };
+        bitfinexApiBroker.getOrderbookManager().registerOrderbookBatchCallback(orderbookConfiguration, orderBookBatchCallback);
+        aliasCallbacks.add(() -> bitfinexApiBroker.getOrderbookManager().removeOrderbookBatchCallback(orderbookConfiguration, orderBookBatchCallback));
+    }
+
+    private void notifyOrderBookUpdate(InstrumentContext context, OrderbookEntry entry, PriceLadder bids, PriceLadder asks,
+                                       DepthConflator depthConflator, boolean inSnapshot) {
+        boolean isBid = entry.getAmountMantissa() > 0;
+        int price = context.getPriceCodec().toIndex(entry.getPriceMantissa(), entry.getPriceScale());
+        int amount = context.toSize(entry.getAmountMantissa(), entry.getAmountScale());
+        int size = entry.getIntCount() != 0 ? amount : 0;
+        long previous = (isBid ? bids : asks).set(price, size);
+        if (inSnapshot) {
+            // Levels the snapshot confirms are not reported again
+            if (previous != size) {
+                depthConflator.onDepthNow(isBid, price, size);
+            }
         } else {
-            dataListeners.forEach(l -> l.onDepth(alias, isBid, price, 0));
-            orderBook.onUpdate(isBid, price, 0);
+            depthConflator.onDepth(isBid, price, size);
         }
     }
 
-    private void subscribeExecutedTrades(String symbol, String exchange, String type, String alias) {
+    private void subscribeExecutedTrades(String symbol, InstrumentContext context) {
+        String alias = context.getAlias();
         BitfinexExecutedTradeSymbol tradeSymbol = new BitfinexExecutedTradeSymbol(BitfinexCurrencyPair.valueOf(symbol));
         ExecutedTradesManager executedTradesManager = bitfinexApiBroker.getExecutedTradesManager();
 
         OrderbookConfiguration orderbookConfiguration = orderBookConfigByAlias.get(alias);
+        DepthConflator depthConflator = depthConflatorByAlias.get(alias);
+        PriceCodec priceCodec = context.getPriceCodec();
 
         if (orderbookConfiguration == null) {
             adminListeners.forEach(l -> l.onLoginFailed(LoginFailedReason.FATAL,
@@ -190,29 +282,56 @@ public class MBPRealTimeProvider extends ExternalLiveBaseProvider {
         }
 
         BiConsumer<BitfinexExecutedTradeSymbol, ExecutedTrade> tradeCallback = (symb, trade) -> {
-            double price = PriceConverter.convertToDouble(orderbookConfiguration, trade.getPrice());
+            double price = priceCodec.toDouble(trade.getPriceMantissa(), trade.getPriceScale());
             boolean isOtc = false;
-            boolean isBidAgressor = trade.getAmount().signum() > 0;
-            int amount = getAmount(symb.getBitfinexCurrencyPair(), trade.getAmount());
+            boolean isBidAgressor = trade.getAmountMantissa() > 0;
+            int amount = context.toSize(trade.getAmountMantissa(), trade.getAmountScale());
 
-            dataListeners.forEach(l -> l.onTrade(alias, price, amount, new TradeInfo(isOtc, isBidAgressor)));
+            // Trades are never conflated and must not overtake the depth updates kept back
+            depthConflator.flush();
+            context.onTrade(price, amount, new TradeInfo(isOtc, isBidAgressor));
         };
 
         executedTradesManager.registerTradeCallback(tradeSymbol, tradeCallback);
-        executedTradesManager.subscribeExecutedTrades(tradeSymbol);
+        callbacksByAlias.get(alias).add(() -> executedTradesManager.removeTradeCallback(tradeSymbol, tradeCallback));
+        reportSubscriptionFailure(alias, executedTradesManager.subscribeExecutedTrades(tradeSymbol));
 
         tradeSymbolByAlias.put(alias, tradeSymbol);
     }
 
+    private DepthWindow.Limit getDepthWindow(String alias) {
+        synchronized (aliases) {
+            return depthWindowByAlias.getOrDefault(alias, DepthWindow.Limit.NONE);
+        }
+    }
+
+    /**
+     * Subscriptions are not awaited, so all instruments of a workspace are subscribed in parallel.
+     */
+    private void reportSubscriptionFailure(String alias, CompletableFuture<Integer> subscription) {
+        subscription.whenComplete((channel, e) -> {
+            if (e != null && !(e instanceof CancellationException)) {
+                adminListeners.forEach(l -> l.onSystemTextMessage("Cannot subscribe " + alias + ": " + e.getMessage(),
+                        SystemTextMessageType.UNCLASSIFIED));
+            }
+        });
+    }
+
     @Override
     public void unsubscribe(String alias) {
         synchronized (aliases) {
             try {
+                AliasCallbacks aliasCallbacks = callbacksByAlias.remove(alias);
+                if (aliasCallbacks != null) {
+                    aliasCallbacks.removeAll();
+                }
                 bitfinexApiBroker.getOrderbookManager().unsubscribeOrderbook(orderBookConfigByAlias.get(alias));
                 bitfinexApiBroker.getExecutedTradesManager().unsubscribeExecutedTrades(tradeSymbolByAlias.get(alias));
                 aliases.remove(alias);
                 orderBookConfigByAlias.remove(alias);
                 tradeSymbolByAlias.remove(alias);
+                depthConflatorByAlias.remove(alias);
+                contextByAlias.remove(alias);
             } catch (APIException e) {
                 adminListeners.forEach(l -> l.onSystemTextMessage(e.getMessage(), SystemTextMessageType.UNCLASSIFIED));
             }
@@ -236,19 +355,16 @@ public class MBPRealTimeProvider extends ExternalLiveBaseProvider {
 
     @Override
     public void close() {
-        heartBeatThread.shutDown();
-        bitfinexApiBroker.close();
+        List<String> subscribedAliases;
+        synchronized (aliases) {
+            subscribedAliases = new ArrayList<>(aliases);
+        }
+        // Channels shared with other providers stay subscribed, only our callbacks go away
+        subscribedAliases.forEach(this::unsubscribe);
+        SharedApiBroker.release(bitfinexApiBroker);
     }
 
     private static String createAlias(String symbol, String exchange, String type) {
         return "Bitfinex/" + symbol;
     }
-
-    private int getAmount(BitfinexCurrencyPair pair, BigDecimal amount) {
-        return amount
-                .abs()
-                .multiply(BigDecimal.valueOf(amountMultiPliers.get(pair)))
-                .toBigInteger()
-                .intValue();
-    }
 }
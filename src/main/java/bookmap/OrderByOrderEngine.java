@@ -0,0 +1,255 @@
+package bookmap;
+
+import bitfinex.util.LongLongHashMap;
+
+/**
+ * Order-by-order book on primitive arrays. Orders are kept in an open addressing index
+ * from the order id to price, size and side, the aggregated sizes of the levels in
+ * {@link PriceLadder}s. Every change reports the new size of the levels it touched
+ * to the given listener, so nothing is boxed on the way.
+ * <p>
+ * Not thread-safe.
+ */
+public class OrderByOrderEngine {
+
+    /**
+     * Receives every level change of the engine together with the size before it
+     */
+    public interface LevelChangeListener {
+        void onLevelChange(boolean isBid, int price, long previousSize, long size);
+    }
+
+    public interface LevelListener extends LevelChangeListener {
+        void onLevel(boolean isBid, int price, long size);
+
+        /**
+         * Listeners that do not need the previous size get {@link #onLevel}
+         */
+        @Override
+        default void onLevelChange(boolean isBid, int price, long previousSize, long size) {
+            onLevel(isBid, price, size);
+        }
+    }
+
+    /**
+     * Sizes are not negative, so no order is stored as all ones
+     */
+    private final static long ABSENT = -1;
+
+    private final static long BID_FLAG = 1L << 32;
+
+    private final static LevelChangeListener IGNORE = (isBid, price, previousSize, size) -> {
+    };
+
+    /**
+     * Order id -> price in the upper 31 bits, the side flag and the size in the lower 32 bits
+     */
+    private final LongLongHashMap orders;
+
+    private final PriceLadder bids = new PriceLadder(true);
+
+    private final PriceLadder asks = new PriceLadder(false);
+
+    /**
+     * Levels before the snapshot that is being applied
+     */
+    private PriceLadder snapshotBids;
+
+    private PriceLadder snapshotAsks;
+
+    /**
+     * Orders contained in the snapshot that is being applied
+     */
+    private final LongLongHashMap snapshotOrders = new LongLongHashMap();
+
+    public OrderByOrderEngine() {
+        this(1024);
+    }
+
+    public OrderByOrderEngine(int expectedOrders) {
+        orders = new LongLongHashMap(expectedOrders);
+    }
+
+    public boolean hasOrder(long orderId) {
+        return orders.containsKey(orderId);
+    }
+
+    public int getOrderCount() {
+        return orders.size();
+    }
+
+    /**
+     * @return the price of the order, or 0 if the order is unknown
+     */
+    public int getPrice(long orderId) {
+        long order = orders.get(orderId, ABSENT);
+        return order == ABSENT ? 0 : priceOf(order);
+    }
+
+    /**
+     * @return the size of the order, or 0 if the order is unknown
+     */
+    public int getSize(long orderId) {
+        long order = orders.get(orderId, ABSENT);
+        return order == ABSENT ? 0 : sizeOf(order);
+    }
+
+    public long getLevelSize(boolean isBid, int price) {
+        return levels(isBid).get(price);
+    }
+
+    /**
+     * Add the order, an order that is already known is modified instead
+     */
+    public void addOrder(long orderId, boolean isBid, int price, int size, LevelChangeListener listener) {
+        long order = orders.get(orderId, ABSENT);
+        if (order != ABSENT) {
+            modify(orderId, order, price, size, listener);
+            return;
+        }
+
+        orders.put(orderId, pack(isBid, price, size));
+        report(listener, isBid, levels(isBid), price, size);
+    }
+
+    /**
+     * Change the size of the order and move it to the price. A move reports both levels,
+     * a change at the same price only the one level.
+     *
+     * @return false if the order is unknown
+     */
+    public boolean modifyOrder(long orderId, int price, int size, LevelChangeListener listener) {
+        long order = orders.get(orderId, ABSENT);
+        if (order == ABSENT) {
+            return false;
+        }
+
+        modify(orderId, order, price, size, listener);
+        return true;
+    }
+
+    /**
+     * @return false if the order is unknown
+     */
+    public boolean cancelOrder(long orderId, LevelChangeListener listener) {
+        long order = orders.get(orderId, ABSENT);
+        if (order == ABSENT) {
+            return false;
+        }
+
+        orders.remove(orderId);
+        boolean isBid = isBid(order);
+        int price = priceOf(order);
+        report(listener, isBid, levels(isBid), price, -sizeOf(order));
+        return true;
+    }
+
+    /**
+     * Remove all orders without reporting the levels
+     */
+    public void clear() {
+        orders.clear();
+        bids.clear();
+        asks.clear();
+    }
+
+    /**
+     * Start to reconcile the book with a snapshot. The orders of the snapshot are applied
+     * without reporting, {@link #endSnapshot(LevelChangeListener)} reports the net level changes.
+     */
+    public void beginSnapshot() {
+        if (snapshotBids == null) {
+            snapshotBids = new PriceLadder(true);
+            snapshotAsks = new PriceLadder(false);
+        }
+        snapshotBids.copyFrom(bids);
+        snapshotAsks.copyFrom(asks);
+        snapshotOrders.clear();
+    }
+
+    /**
+     * Apply an order of the snapshot, an unchanged order is left as it is
+     */
+    public void applySnapshotOrder(long orderId, boolean isBid, int price, int size) {
+        snapshotOrders.put(orderId, 1);
+
+        long order = orders.get(orderId, ABSENT);
+        if (order != ABSENT && priceOf(order) == price && sizeOf(order) == size) {
+            return;
+        }
+        addOrder(orderId, isBid, price, size, IGNORE);
+    }
+
+    /**
+     * Cancel the orders that were not in the snapshot and report every level whose size
+     * differs from the one before the snapshot
+     */
+    public void endSnapshot(LevelChangeListener listener) {
+        // Every order of the snapshot is in the book, so only a larger book has orders to cancel
+        if (orders.size() > snapshotOrders.size()) {
+            for (long orderId : orders.keys()) {
+                if (!snapshotOrders.containsKey(orderId)) {
+                    cancelOrder(orderId, IGNORE);
+                }
+            }
+        }
+        snapshotOrders.clear();
+
+        bids.diff(snapshotBids, (price, size) -> listener.onLevelChange(true, price, snapshotBids.get(price), size));
+        asks.diff(snapshotAsks, (price, size) -> listener.onLevelChange(false, price, snapshotAsks.get(price), size));
+    }
+
+    /**
+     * Prices of the levels with a size
+     */
+    public int[] levels(boolean isBid, boolean ascending) {
+        return levels(isBid).prices(ascending);
+    }
+
+    /**
+     * The levels of one side, to be read but not changed
+     */
+    public PriceLadder getLevels(boolean isBid) {
+        return levels(isBid);
+    }
+
+    private void modify(long orderId, long order, int price, int size, LevelChangeListener listener) {
+        boolean isBid = isBid(order);
+        int fromPrice = priceOf(order);
+        PriceLadder levels = levels(isBid);
+
+        orders.put(orderId, pack(isBid, price, size));
+
+        if (fromPrice == price) {
+            report(listener, isBid, levels, price, (long) size - sizeOf(order));
+        } else {
+            report(listener, isBid, levels, fromPrice, -sizeOf(order));
+            report(listener, isBid, levels, price, size);
+        }
+    }
+
+    private static void report(LevelChangeListener listener, boolean isBid, PriceLadder levels, int price, long delta) {
+        long size = levels.add(price, delta);
+        listener.onLevelChange(isBid, price, size - delta, size);
+    }
+
+    private PriceLadder levels(boolean isBid) {
+        return isBid ? bids : asks;
+    }
+
+    private static long pack(boolean isBid, int price, int size) {
+        return ((long) price << 33) | (isBid ? BID_FLAG : 0) | (size & 0xFFFFFFFFL);
+    }
+
+    private static int priceOf(long order) {
+        return (int) (order >>> 33);
+    }
+
+    private static int sizeOf(long order) {
+        return (int) order;
+    }
+
+    private static boolean isBid(long order) {
+        return (order & BID_FLAG) != 0;
+    }
+}
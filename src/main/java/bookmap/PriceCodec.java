@@ -0,0 +1,188 @@
+package bookmap;
+
+import bitfinex.entity.BitfinexCurrencyPair;
+import bitfinex.entity.FixedPoint;
+import bitfinex.entity.OrderBookPrecision;
+import bitfinex.entity.OrderbookConfiguration;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+
+/**
+ * Converts the prices of one currency pair and precision into Bookmap price indices,
+ * the price divided by the price step. The factors for every decimal scale are computed
+ * when the codec is created, so a conversion is a multiplication and a division on longs.
+ * Prices the factors do not cover fall back to BigDecimal.
+ * <p>
+ * Immutable, create one per instrument when it is subscribed.
+ */
+public final class PriceCodec {
+
+    private static final int MIN_SCALE = -18;
+
+    private static final int MAX_SCALE = 18;
+
+    private static final long MAX_EXACT_DOUBLE = 1L << 53;
+
+    private final double step;
+
+    private final BigDecimal exactStep;
+
+    /**
+     * For a price with scale s, index = mantissa * multipliers[s - MIN_SCALE] / divisors[s - MIN_SCALE].
+     * A multiplier of 0 marks a scale without factors.
+     */
+    private final long[] multipliers = new long[MAX_SCALE - MIN_SCALE + 1];
+
+    private final long[] divisors = new long[MAX_SCALE - MIN_SCALE + 1];
+
+    /**
+     * Largest absolute mantissa whose product with the multiplier fits into a long
+     */
+    private final long[] mantissaLimits = new long[MAX_SCALE - MIN_SCALE + 1];
+
+    public static PriceCodec of(BitfinexCurrencyPair currencyPair, OrderBookPrecision precision) {
+        return new PriceCodec(PriceConverter.getPriceStep(currencyPair, precision));
+    }
+
+    public static PriceCodec of(OrderbookConfiguration orderbookConfiguration) {
+        return of(orderbookConfiguration.getCurrencyPair(), orderbookConfiguration.getOrderBookPrecision());
+    }
+
+    public PriceCodec(double step) {
+        this.step = step;
+        this.exactStep = BigDecimal.valueOf(step).stripTrailingZeros();
+
+        long stepMantissa = exactStep.unscaledValue().longValueExact();
+        int stepScale = exactStep.scale();
+
+        for (int scale = MIN_SCALE; scale <= MAX_SCALE; scale++) {
+            int slot = scale - MIN_SCALE;
+            int exponent = stepScale - scale;
+
+            try {
+                if (exponent >= 0) {
+                    multipliers[slot] = FixedPoint.rescale(1, 0, exponent);
+                    divisors[slot] = stepMantissa;
+                } else {
+                    multipliers[slot] = 1;
+                    divisors[slot] = FixedPoint.rescale(stepMantissa, 0, -exponent);
+                }
+                mantissaLimits[slot] = Long.MAX_VALUE / multipliers[slot];
+            } catch (ArithmeticException e) {
+                multipliers[slot] = 0;
+            }
+        }
+    }
+
+    public double getStep() {
+        return step;
+    }
+
+    /**
+     * Codec for a step that is the given multiple of this one
+     */
+    public PriceCodec multiply(int multiple) {
+        return new PriceCodec(exactStep.multiply(BigDecimal.valueOf(multiple)).doubleValue());
+    }
+
+    /**
+     * Price index truncated toward zero
+     */
+    public int toIndex(long mantissa, int scale) {
+        int slot = scale - MIN_SCALE;
+        if (isCovered(slot, mantissa)) {
+            return (int) (mantissa * multipliers[slot] / divisors[slot]);
+        }
+        return FixedPoint.toBigDecimal(mantissa, scale).divide(exactStep, 0, RoundingMode.DOWN).intValue();
+    }
+
+    /**
+     * Price index of the absolute price, rounded down for bids and up for asks
+     */
+    public int toIndex(long mantissa, int scale, boolean isBid) {
+        int slot = scale - MIN_SCALE;
+        long absolute = Math.abs(mantissa);
+
+        if (absolute >= 0 && isCovered(slot, absolute)) {
+            long numerator = absolute * multipliers[slot];
+            long index = numerator / divisors[slot];
+            if (!isBid && index * divisors[slot] != numerator) {
+                index++;
+            }
+            return (int) index;
+        }
+
+        return FixedPoint.toBigDecimal(mantissa, scale).abs()
+                .divide(exactStep, 0, isBid ? RoundingMode.FLOOR : RoundingMode.CEILING).intValue();
+    }
+
+    /**
+     * Price index of a decimal number as it appears in a JSON message, rounded like
+     * {@link #toIndex(long, int, boolean)}
+     */
+    public int toIndex(CharSequence text, boolean isBid) {
+        int length = text.length();
+        int pos = 0;
+
+        boolean negative = pos < length && text.charAt(pos) == '-';
+        if (negative) {
+            pos++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean fraction = false;
+
+        for (; pos < length; pos++) {
+            char c = text.charAt(pos);
+            if (c >= '0' && c <= '9') {
+                if (++digits > 18) {
+                    return toIndex(new BigDecimal(text.toString()), isBid);
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                if (fraction) {
+                    scale++;
+                }
+            } else if (c == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+        }
+
+        if (digits == 0 || pos < length) {
+            // Exponents and malformed numbers are left to BigDecimal
+            return toIndex(new BigDecimal(text.toString()), isBid);
+        }
+
+        return toIndex(negative ? -mantissa : mantissa, scale, isBid);
+    }
+
+    /**
+     * Price as a double on the price axis, the price divided by the step
+     */
+    public double toDouble(long mantissa, int scale) {
+        int slot = scale - MIN_SCALE;
+        if (isCovered(slot, mantissa)) {
+            long numerator = mantissa * multipliers[slot];
+            long divisor = divisors[slot];
+            // Both operands are exact doubles here, so the division is correctly rounded
+            if (Math.abs(numerator) < MAX_EXACT_DOUBLE && divisor < MAX_EXACT_DOUBLE) {
+                return (double) numerator / divisor;
+            }
+        }
+        return FixedPoint.toBigDecimal(mantissa, scale).divide(exactStep, MathContext.DECIMAL128).doubleValue();
+    }
+
+    private int toIndex(BigDecimal price, boolean isBid) {
+        return price.abs().divide(exactStep, 0, isBid ? RoundingMode.FLOOR : RoundingMode.CEILING).intValue();
+    }
+
+    private boolean isCovered(int slot, long mantissa) {
+        return slot >= 0 && slot < multipliers.length && multipliers[slot] != 0
+                && mantissa <= mantissaLimits[slot] && mantissa >= -mantissaLimits[slot];
+    }
+}
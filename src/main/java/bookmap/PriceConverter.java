@@ -1,6 +1,7 @@
 package bookmap;
 
 import bitfinex.entity.BitfinexCurrencyPair;
+import bitfinex.entity.FixedPoint;
 import bitfinex.entity.OrderBookPrecision;
 import bitfinex.entity.OrderbookConfiguration;
 
@@ -28,6 +29,16 @@ public class PriceConverter {
         return price.multiply(BigDecimal.valueOf(figuresAfterComa)).intValue();
     }
 
+    public static int convertToInteger(OrderbookConfiguration orderbookConfiguration, long priceMantissa, int priceScale) {
+        return convertToInteger(orderbookConfiguration.getCurrencyPair(), orderbookConfiguration.getOrderBookPrecision(), priceMantissa, priceScale);
+    }
+
+    public static int convertToInteger(BitfinexCurrencyPair currencyPair, OrderBookPrecision precision, long priceMantissa, int priceScale) {
+        double step = getPriceStep(currencyPair, precision);
+        int figuresAfterComa = (int) Math.round(1.0 / step);
+        return (int) FixedPoint.multiply(priceMantissa, priceScale, figuresAfterComa);
+    }
+
     // onTrade accepts double prices
     public static double convertToDouble(OrderbookConfiguration orderbookConfiguration, BigDecimal price) {
         return convertToDouble(orderbookConfiguration.getCurrencyPair(), orderbookConfiguration.getOrderBookPrecision(), price);
@@ -39,16 +50,56 @@ public class PriceConverter {
         return price.multiply(BigDecimal.valueOf(figuresAfterComa)).doubleValue();
     }
 
+    public static double convertToDouble(OrderbookConfiguration orderbookConfiguration, long priceMantissa, int priceScale) {
+        return convertToDouble(orderbookConfiguration.getCurrencyPair(), orderbookConfiguration.getOrderBookPrecision(), priceMantissa, priceScale);
+    }
+
+    public static double convertToDouble(BitfinexCurrencyPair currencyPair, OrderBookPrecision precision, long priceMantissa, int priceScale) {
+        double step = getPriceStep(currencyPair, precision);
+        int figuresAfterComa = (int) Math.round(1.0 / step);
+        return FixedPoint.multiplyToDouble(priceMantissa, priceScale, figuresAfterComa);
+    }
+
     public static double getPriceStep(OrderbookConfiguration orderbookConfiguration) {
         return getPriceStep(orderbookConfiguration.getCurrencyPair(), orderbookConfiguration.getOrderBookPrecision());
     }
 
     public static double getPriceStep(BitfinexCurrencyPair currencyPair, OrderBookPrecision precision) {
-        int index = Integer.valueOf(precision.toString().substring(1));
-        return priceStep.get(currencyPair)[index];
+        // P0..P3 are declared in order, the ordinal is the index of the step
+        return priceStep.get(currencyPair)[precision.ordinal()];
     }
 
     public static int roundToInteger(BitfinexCurrencyPair currencyPair, OrderBookPrecision precision, BigDecimal price, boolean isBid) {
+        int figuresAfterComa = getFiguresAfterComa(currencyPair, precision);
+        RoundingMode roundingMode;
+        if (isBid) {
+            roundingMode = RoundingMode.FLOOR;
+        } else {
+            roundingMode = RoundingMode.CEILING;
+        }
+        price = price.abs().setScale(figuresAfterComa, roundingMode);
+        return convertToInteger(currencyPair, precision, price);
+    }
+
+    /**
+     * Same as {@link #roundToInteger(BitfinexCurrencyPair, OrderBookPrecision, BigDecimal, boolean)} on a fixed-point price.
+     */
+    public static int roundToInteger(BitfinexCurrencyPair currencyPair, OrderBookPrecision precision, long priceMantissa, int priceScale, boolean isBid) {
+        int figuresAfterComa = getFiguresAfterComa(currencyPair, precision);
+        long absolute = Math.abs(priceMantissa);
+
+        if (priceScale > figuresAfterComa) {
+            long divisor = FixedPoint.pow10(priceScale - figuresAfterComa);
+            long rounded = absolute / divisor;
+            if (!isBid && rounded * divisor != absolute) {
+                rounded++;
+            }
+            return convertToInteger(currencyPair, precision, rounded, figuresAfterComa);
+        }
+        return convertToInteger(currencyPair, precision, absolute, priceScale);
+    }
+
+    private static int getFiguresAfterComa(BitfinexCurrencyPair currencyPair, OrderBookPrecision precision) {
         double step = getPriceStep(currencyPair, precision);
         int figuresAfterComa = 0;
         int order = (int) Math.round(1.0 / step);
@@ -61,13 +112,6 @@ public class PriceConverter {
             figuresAfterComa--;
             order /= 10;
         }
-        RoundingMode roundingMode;
-        if (isBid) {
-            roundingMode = RoundingMode.FLOOR;
-        } else {
-            roundingMode = RoundingMode.CEILING;
-        }
-        price = price.abs().setScale(figuresAfterComa, roundingMode);
-        return convertToInteger(currencyPair, precision, price);
+        return figuresAfterComa;
     }
 }
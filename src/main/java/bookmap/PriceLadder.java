@@ -0,0 +1,417 @@
+package bookmap;
+
+import java.util.Arrays;
+
+/**
+ * Sizes of the levels of one book side in an array indexed by price - base, with a bitmap
+ * of the occupied levels. A price outside the array re-centers the occupied levels or
+ * grows the array. The base is a multiple of 64, so re-centering moves whole bitmap words.
+ * <p>
+ * Levels can be marked while a snapshot is applied, the occupied levels the snapshot did not
+ * mark are then found by a scan over the bitmaps.
+ * <p>
+ * Not thread-safe.
+ */
+public class PriceLadder {
+
+    public interface LevelConsumer {
+        void accept(int price, long size);
+    }
+
+    public static final int NO_PRICE = Integer.MIN_VALUE;
+
+    private static final int MIN_CAPACITY = 1024;
+
+    private final boolean isBid;
+
+    private long[] sizes = new long[MIN_CAPACITY];
+
+    private long[] occupied = new long[MIN_CAPACITY >> 6];
+
+    private long[] marked = new long[MIN_CAPACITY >> 6];
+
+    private int base;
+
+    private int count;
+
+    private int markedCount;
+
+    private boolean marking;
+
+    private int best = NO_PRICE;
+
+    public PriceLadder(boolean isBid) {
+        this.isBid = isBid;
+    }
+
+    public boolean isBid() {
+        return isBid;
+    }
+
+    /**
+     * Number of levels with a size
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return the highest bid or the lowest ask, {@link #NO_PRICE} if the side is empty
+     */
+    public int getBest() {
+        return best;
+    }
+
+    public long get(int price) {
+        long index = (long) price - base;
+        return index < 0 || index >= sizes.length ? 0 : sizes[(int) index];
+    }
+
+    /**
+     * Set the size of the level, 0 removes it
+     *
+     * @return the previous size
+     */
+    public long set(int price, long size) {
+        if (size == 0) {
+            return remove(price);
+        }
+
+        ensure(price);
+        int index = price - base;
+        long previous = sizes[index];
+        sizes[index] = size;
+
+        if (previous == 0) {
+            occupied[index >> 6] |= 1L << index;
+            count++;
+            if (best == NO_PRICE || (isBid ? price > best : price < best)) {
+                best = price;
+            }
+        }
+        return previous;
+    }
+
+    /**
+     * @return the new size of the level
+     */
+    public long add(int price, long delta) {
+        long size = get(price) + delta;
+        set(price, size);
+        return size;
+    }
+
+    /**
+     * @return the size of the removed level, 0 if it was empty
+     */
+    public long remove(int price) {
+        long index = (long) price - base;
+        if (index < 0 || index >= sizes.length || sizes[(int) index] == 0) {
+            return 0;
+        }
+
+        int i = (int) index;
+        long previous = sizes[i];
+        sizes[i] = 0;
+        occupied[i >> 6] &= ~(1L << i);
+        count--;
+
+        if (price == best) {
+            int next = isBid ? previousSetBit(occupied, i - 1) : nextSetBit(occupied, i + 1);
+            best = next < 0 ? NO_PRICE : base + next;
+        }
+        return previous;
+    }
+
+    /**
+     * Remove all levels
+     */
+    public void clear() {
+        for (int word = 0; word < occupied.length; word++) {
+            long bits = occupied[word];
+            while (bits != 0) {
+                sizes[(word << 6) + Long.numberOfTrailingZeros(bits)] = 0;
+                bits &= bits - 1;
+            }
+            occupied[word] = 0;
+        }
+        count = 0;
+        best = NO_PRICE;
+    }
+
+    /**
+     * Start marking the levels of a snapshot
+     */
+    public void startMarking() {
+        Arrays.fill(marked, 0);
+        markedCount = 0;
+        marking = true;
+    }
+
+    public void mark(int price) {
+        ensure(price);
+        int index = price - base;
+        long bit = 1L << index;
+        if ((marked[index >> 6] & bit) == 0) {
+            marked[index >> 6] |= bit;
+            markedCount++;
+        }
+    }
+
+    /**
+     * Stop marking and remove the occupied levels that were not marked, far levels first
+     *
+     * @param removed receives the price and the previous size of every removed level
+     */
+    public void removeUnmarked(LevelConsumer removed) {
+        marking = false;
+
+        if (isBid) {
+            for (int word = 0; word < occupied.length; word++) {
+                long bits = occupied[word] & ~marked[word];
+                while (bits != 0) {
+                    int price = base + (word << 6) + Long.numberOfTrailingZeros(bits);
+                    removed.accept(price, remove(price));
+                    bits &= bits - 1;
+                }
+            }
+        } else {
+            for (int word = occupied.length - 1; word >= 0; word--) {
+                long bits = occupied[word] & ~marked[word];
+                while (bits != 0) {
+                    int bit = 63 - Long.numberOfLeadingZeros(bits);
+                    int price = base + (word << 6) + bit;
+                    removed.accept(price, remove(price));
+                    bits &= ~(1L << bit);
+                }
+            }
+        }
+    }
+
+    /**
+     * Visit the levels with a size in ascending price order
+     */
+    public void forEach(LevelConsumer consumer) {
+        for (int word = 0; word < occupied.length; word++) {
+            long bits = occupied[word];
+            while (bits != 0) {
+                int index = (word << 6) + Long.numberOfTrailingZeros(bits);
+                consumer.accept(base + index, sizes[index]);
+                bits &= bits - 1;
+            }
+        }
+    }
+
+    /**
+     * Visit the levels with a price from {@code from} to {@code to} inclusive, in ascending price order
+     */
+    public void forEachBetween(int from, int to, LevelConsumer consumer) {
+        long first = Math.max((long) from - base, 0);
+        long last = Math.min((long) to - base, sizes.length - 1);
+
+        for (long word = first >> 6; word <= last >> 6; word++) {
+            long bits = occupied[(int) word];
+            if (word == first >> 6) {
+                bits &= -1L << first;
+            }
+            if (word == last >> 6) {
+                bits &= -1L >>> (63 - (last & 63));
+            }
+            while (bits != 0) {
+                int index = ((int) word << 6) + Long.numberOfTrailingZeros(bits);
+                consumer.accept(base + index, sizes[index]);
+                bits &= bits - 1;
+            }
+        }
+    }
+
+    /**
+     * @param n 1 for the best level
+     * @return price of the n-th level from the best one, {@link #NO_PRICE} if the side has fewer levels
+     */
+    public int getNthBest(int n) {
+        if (n <= 0 || n > count) {
+            return NO_PRICE;
+        }
+
+        int remaining = n;
+        int word = (best - base) >> 6;
+        while (true) {
+            long bits = occupied[word];
+            int levels = Long.bitCount(bits);
+            if (remaining <= levels) {
+                // Drop the levels closer to the best one, the wanted level is the next bit
+                for (int i = 1; i < remaining; i++) {
+                    bits &= isBid ? ~Long.highestOneBit(bits) : bits - 1;
+                }
+                int bit = isBid ? 63 - Long.numberOfLeadingZeros(bits) : Long.numberOfTrailingZeros(bits);
+                return base + (word << 6) + bit;
+            }
+            remaining -= levels;
+            word += isBid ? -1 : 1;
+        }
+    }
+
+    /**
+     * Prices of the levels with a size
+     */
+    public int[] prices(boolean ascending) {
+        int[] prices = new int[count];
+        int next = 0;
+        for (int word = 0; word < occupied.length; word++) {
+            long bits = occupied[word];
+            while (bits != 0) {
+                prices[next++] = base + (word << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+            }
+        }
+
+        if (!ascending) {
+            for (int i = 0, j = count - 1; i < j; i++, j--) {
+                int price = prices[i];
+                prices[i] = prices[j];
+                prices[j] = price;
+            }
+        }
+        return prices;
+    }
+
+    /**
+     * Make this ladder a copy of the other one
+     */
+    public void copyFrom(PriceLadder other) {
+        if (sizes.length != other.sizes.length) {
+            sizes = new long[other.sizes.length];
+            occupied = new long[other.occupied.length];
+            marked = new long[other.marked.length];
+        }
+        System.arraycopy(other.sizes, 0, sizes, 0, sizes.length);
+        System.arraycopy(other.occupied, 0, occupied, 0, occupied.length);
+        base = other.base;
+        count = other.count;
+        best = other.best;
+        marking = false;
+    }
+
+    /**
+     * Report the levels whose size differs from the previous state of the side
+     *
+     * @param previous the side before the changes
+     * @param changed  receives the price and the new size, 0 for a removed level
+     */
+    public void diff(PriceLadder previous, LevelConsumer changed) {
+        previous.forEach((price, size) -> {
+            long current = get(price);
+            if (current != size) {
+                changed.accept(price, current);
+            }
+        });
+        forEach((price, size) -> {
+            if (previous.get(price) == 0) {
+                changed.accept(price, size);
+            }
+        });
+    }
+
+    private void ensure(int price) {
+        long index = (long) price - base;
+        boolean empty = count == 0 && (!marking || markedCount == 0);
+
+        if (empty) {
+            // Nothing to move, the array is centered on the price
+            base = Math.floorDiv(price - sizes.length / 2, 64) * 64;
+            return;
+        }
+
+        if (index >= 0 && index < sizes.length) {
+            return;
+        }
+
+        int low = Math.min(price, base + firstUsed());
+        int high = Math.max(price, base + lastUsed());
+        long span = (long) high - low + 1;
+
+        int capacity = sizes.length;
+        while (capacity < span * 2) {
+            capacity <<= 1;
+        }
+
+        int newBase = (int) Math.floorDiv(low - (capacity - span) / 2, 64) * 64;
+        int wordShift = (base - newBase) >> 6;
+
+        long[] newSizes = new long[capacity];
+        long[] newOccupied = new long[capacity >> 6];
+        long[] newMarked = new long[capacity >> 6];
+
+        for (int word = 0; word < occupied.length; word++) {
+            if (occupied[word] == 0 && marked[word] == 0) {
+                continue;
+            }
+            int newWord = word + wordShift;
+            newOccupied[newWord] = occupied[word];
+            newMarked[newWord] = marked[word];
+            System.arraycopy(sizes, word << 6, newSizes, newWord << 6, 64);
+        }
+
+        sizes = newSizes;
+        occupied = newOccupied;
+        marked = newMarked;
+        base = newBase;
+    }
+
+    private int firstUsed() {
+        for (int word = 0; word < occupied.length; word++) {
+            long bits = occupied[word] | (marking ? marked[word] : 0);
+            if (bits != 0) {
+                return (word << 6) + Long.numberOfTrailingZeros(bits);
+            }
+        }
+        return 0;
+    }
+
+    private int lastUsed() {
+        for (int word = occupied.length - 1; word >= 0; word--) {
+            long bits = occupied[word] | (marking ? marked[word] : 0);
+            if (bits != 0) {
+                return (word << 6) + 63 - Long.numberOfLeadingZeros(bits);
+            }
+        }
+        return 0;
+    }
+
+    private static int nextSetBit(long[] words, int from) {
+        int word = from >> 6;
+        if (from < 0 || word >= words.length) {
+            return -1;
+        }
+
+        long bits = words[word] & (-1L << from);
+        while (true) {
+            if (bits != 0) {
+                return (word << 6) + Long.numberOfTrailingZeros(bits);
+            }
+            if (++word == words.length) {
+                return -1;
+            }
+            bits = words[word];
+        }
+    }
+
+    private static int previousSetBit(long[] words, int from) {
+        if (from < 0) {
+            return -1;
+        }
+
+        int word = from >> 6;
+        long bits = words[word] & (-1L >>> (63 - (from & 63)));
+        while (true) {
+            if (bits != 0) {
+                return (word << 6) + 63 - Long.numberOfLeadingZeros(bits);
+            }
+            if (word-- == 0) {
+                return -1;
+            }
+            bits = words[word];
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package bookmap;
+
+import bitfinex.BitfinexApiBroker;
+import bitfinex.ConnectionBalancer;
+import bitfinex.WaitStrategy;
+import bitfinex.entity.APIException;
+import bitfinex.entity.ConfFlag;
+import velox.api.layer1.common.Log;
+
+/**
+ * Broker shared by all providers loaded by the same class loader. The first provider that
+ * logs in connects it, the last one that closes disconnects it. Channels that several
+ * providers subscribe are received once and dispatched to the callbacks of all of them,
+ * see {@link BitfinexApiBroker#subscribeChannel(bitfinex.entity.BitfinexStreamSymbol)}.
+ */
+public class SharedApiBroker {
+
+    /**
+     * Websockets the shared broker may open. It starts with one and opens another when the open ones
+     * carry {@link ConnectionBalancer#DEFAULT_MAX_CHANNELS_PER_CONNECTION} channels (book and trades of a pair are two)
+     */
+    public static final String CONNECTIONS_PROPERTY = "bitfinex.connections";
+
+    /**
+     * Pipeline threads that apply the books and call the listeners, one per connection the pool may open by default
+     */
+    public static final String SHARDS_PROPERTY = "bitfinex.shards";
+
+    private static final int DEFAULT_CONNECTIONS = 4;
+
+    private static BitfinexApiBroker bitfinexApiBroker;
+
+    private static HeartBeatThread heartBeatThread;
+
+    private static int users;
+
+    private SharedApiBroker() {
+    }
+
+    public static synchronized BitfinexApiBroker acquire() throws APIException {
+        if (users == 0) {
+            BitfinexApiBroker broker = createBroker();
+            try {
+                broker.connect();
+            } catch (APIException e) {
+                broker.close();
+                throw e;
+            }
+
+            bitfinexApiBroker = broker;
+            heartBeatThread = new HeartBeatThread(broker);
+            heartBeatThread.start();
+            Log.info("Shared bitfinex broker connected");
+        }
+
+        users++;
+        return bitfinexApiBroker;
+    }
+
+    public static synchronized void release(BitfinexApiBroker broker) {
+        if (broker == null || broker != bitfinexApiBroker) {
+            return;
+        }
+
+        if (--users == 0) {
+            heartBeatThread.shutDown();
+            bitfinexApiBroker.close();
+            heartBeatThread = null;
+            bitfinexApiBroker = null;
+            Log.info("Shared bitfinex broker closed");
+        }
+    }
+
+    /**
+     * The options are the union of what the providers need, the broker is configured once for all of them.
+     */
+    private static BitfinexApiBroker createBroker() {
+        BitfinexApiBroker broker = new BitfinexApiBroker();
+        // One socket is limited to a few dozen channels, the pool grows when they are taken
+        int connections = Math.max(1, Integer.getInteger(CONNECTIONS_PROPERTY, DEFAULT_CONNECTIONS));
+        broker.setConnectionCount(1);
+        broker.setMaxConnectionCount(connections);
+        // Book updates of a burst arrive in one frame and are applied as one batch
+        broker.enableConfFlag(ConfFlag.BULK_UPDATES);
+        // Lost messages are detected by the sequence numbers and only the books are resubscribed
+        broker.enableConfFlag(ConfFlag.SEQ_ALL);
+        // Drifted books are detected by the checksums and resubscribed
+        broker.enableConfFlag(ConfFlag.OB_CHECKSUM);
+        // Entries and trades are converted right away, so the handlers can reuse them
+        broker.setFlyweightEvents(true);
+        // Listeners run off the receive threads, the instruments are spread over the shards
+        int shards = Math.max(1, Integer.getInteger(SHARDS_PROPERTY, connections));
+        broker.enablePipeline(shards, 4096, WaitStrategy.BLOCKING);
+        return broker;
+    }
+}
@@ -0,0 +1,149 @@
+/*******************************************************************************
+ *
+ *    Copyright (C) 2015-2018 Jan Kristof Nidzwetzki
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License. 
+ *
+ *******************************************************************************/
+package bitfinex;
+
+import bitfinex.callback.channel.ChannelFrameDecoder;
+import bitfinex.callback.channel.DecodedFrame;
+import bitfinex.entity.APIException;
+import bitfinex.entity.BitfinexCurrencyPair;
+import bitfinex.entity.BitfinexExecutedTradeSymbol;
+import bitfinex.entity.BitfinexStreamSymbol;
+import bitfinex.entity.OrderBookFrequency;
+import bitfinex.entity.OrderBookPrecision;
+import bitfinex.entity.OrderbookConfiguration;
+import bitfinex.entity.OrderbookEntry;
+import bitfinex.entity.RawOrderbookConfiguration;
+import bitfinex.manager.OrderbookManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dispatch of a decoded book update to its callbacks: the lookup path the broker used
+ * before channels were bound (channel id -> symbol under a lock, instanceof chain,
+ * callback map lookup by symbol) against the route that holds the handler bound at
+ * subscription time. Both paths build the same entry from the same frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChannelRoutingBenchmark {
+
+    @Param({"4", "64"})
+    private int channels;
+
+    private final Map<Integer, BitfinexStreamSymbol> channelIdSymbolMap = new HashMap<>();
+
+    private ChannelRoutingTable channelRoutingTable;
+
+    private OrderbookManager orderbookManager;
+
+    private DecodedFrame[] frames;
+
+    private int next;
+
+    private long sink;
+
+    @Setup
+    public void setUp() {
+        final BitfinexApiBroker broker = new BitfinexApiBroker();
+        channelRoutingTable = broker.getChannelRoutingTable();
+        orderbookManager = broker.getOrderbookManager();
+        frames = new DecodedFrame[channels];
+
+        final BitfinexCurrencyPair[] pairs = BitfinexCurrencyPair.values();
+        final OrderBookPrecision[] precisions = OrderBookPrecision.values();
+        final ChannelFrameDecoder decoder = new ChannelFrameDecoder();
+
+        for (int i = 0; i < channels; i++) {
+            final int channel = 1000 + i;
+            final OrderbookConfiguration configuration = new OrderbookConfiguration(pairs[i / precisions.length],
+                    precisions[i % precisions.length], OrderBookFrequency.F0, 25);
+
+            orderbookManager.registerOrderbookCallback(configuration, (symbol, entry) -> sink += entry.getIntCount());
+            channelIdSymbolMap.put(channel, configuration);
+            channelRoutingTable.put(ChannelRoutingTable.key(0, channel), orderbookManager.createChannelHandler(configuration));
+
+            frames[i] = new DecodedFrame();
+            if (!decoder.decode("[" + channel + ",[7012.5," + (1 + i % 5) + ",0.25]]", frames[i])) {
+                throw new IllegalStateException("Frame of channel " + channel + " not decoded");
+            }
+        }
+    }
+
+    @Benchmark
+    public long lookupPerFrame() {
+        final DecodedFrame frame = nextFrame();
+
+        final BitfinexStreamSymbol symbol;
+        synchronized (channelIdSymbolMap) {
+            symbol = channelIdSymbolMap.get(frame.getChannelId());
+        }
+
+        if (symbol instanceof RawOrderbookConfiguration) {
+            throw new IllegalStateException("Only aggregated books are routed");
+        } else if (symbol instanceof OrderbookConfiguration) {
+            final OrderbookConfiguration configuration = (OrderbookConfiguration) symbol;
+            orderbookManager.handleNewOrderbookEntry(configuration, parseEntry(configuration, frame));
+        } else if (symbol instanceof BitfinexExecutedTradeSymbol) {
+            throw new IllegalStateException("Only aggregated books are routed");
+        }
+
+        return sink;
+    }
+
+    @Benchmark
+    public long boundRoute() throws APIException {
+        final DecodedFrame frame = nextFrame();
+
+        final ChannelRoutingTable.Route route = channelRoutingTable.get(ChannelRoutingTable.key(0, frame.getChannelId()));
+        route.getHandler().handleChannelData(frame);
+
+        return sink;
+    }
+
+    private DecodedFrame nextFrame() {
+        final DecodedFrame frame = frames[next];
+        next = next + 1 == frames.length ? 0 : next + 1;
+        return frame;
+    }
+
+    private static OrderbookEntry parseEntry(final OrderbookConfiguration configuration, final DecodedFrame frame) {
+        final BitfinexCurrencyPair currencyPair = configuration.getCurrencyPair();
+        final int priceScale = currencyPair.getPriceScale();
+        final int amountScale = currencyPair.getAmountScale();
+
+        return new OrderbookEntry(frame.getMantissa(0, 0, priceScale), priceScale, frame.getInt(0, 1),
+                frame.getMantissa(0, 2, amountScale), amountScale);
+    }
+}
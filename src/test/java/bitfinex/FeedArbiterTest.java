@@ -0,0 +1,681 @@
+/*******************************************************************************
+ *
+ *    Copyright (C) 2015-2018 Jan Kristof Nidzwetzki
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License. 
+ *
+ *******************************************************************************/
+package bitfinex;
+
+import bitfinex.callback.channel.AggregatedBookChecksum;
+import bitfinex.entity.BitfinexCurrencyPair;
+import bitfinex.entity.ConfFlag;
+import bitfinex.entity.OrderBookFrequency;
+import bitfinex.entity.OrderBookPrecision;
+import bitfinex.entity.OrderbookConfiguration;
+import bitfinex.entity.OrderbookEntry;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.glassfish.tyrus.server.Server;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.websocket.OnMessage;
+import javax.websocket.OnOpen;
+import javax.websocket.Session;
+import javax.websocket.server.PathParam;
+import javax.websocket.server.ServerEndpoint;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * A dual fed book against two local websocket servers. The test scripts the frames of
+ * both connections and the order in which they arrive; each frame is sent once the
+ * effect of the previous one is visible, so every run delivers the same way.
+ */
+public class FeedArbiterTest {
+
+    private static final OrderbookConfiguration BOOK = new OrderbookConfiguration(BitfinexCurrencyPair.BTC_USD,
+            OrderBookPrecision.P0, OrderBookFrequency.F0, 25);
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Updates sent on both feeds until the second one is aligned by its checksums
+     */
+    private static final int ALIGN_STEPS = 6;
+
+    private static final long LEAD_MILLIS = 30;
+
+    private static final AtomicInteger NEXT_CHANNEL = new AtomicInteger(100);
+
+    /**
+     * Server side of the connections, by the index of the client connection
+     */
+    private static volatile ScriptedConnection[] connections;
+
+    private Server server;
+
+    private BitfinexApiBroker broker;
+
+    /**
+     * Server side of feed 0 (primary subscription) and feed 1 (mirror)
+     */
+    private final ScriptedConnection[] feeds = new ScriptedConnection[FeedArbiter.FEEDS];
+
+    private final ScriptedBook book = new ScriptedBook();
+
+    private final List<String> delivered = Collections.synchronizedList(new ArrayList<>());
+
+    private final AtomicInteger snapshots = new AtomicInteger();
+
+    /**
+     * Updates made before the snapshot the merged stream started from
+     */
+    private int streamStart;
+
+    @Before
+    public void setUp() throws Exception {
+        connections = new ScriptedConnection[]{new ScriptedConnection(), new ScriptedConnection()};
+
+        final int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        server = new Server("localhost", port, "/", null, ScriptedEndpoint.class);
+        server.start();
+
+        broker = new BitfinexApiBroker();
+        // The pool opens the connection of the mirror when it is subscribed
+        broker.setConnectionCount(1);
+        broker.setMaxConnectionCount(2);
+        broker.setWebsocketUris("ws://localhost:" + port + "/ws/0", "ws://localhost:" + port + "/ws/1");
+        broker.enableConfFlag(ConfFlag.OB_CHECKSUM);
+        broker.enableDualFeed(BitfinexCurrencyPair.BTC_USD);
+
+        broker.getOrderbookManager().registerOrderbookCallback(BOOK, (symbol, entry) ->
+                delivered.add(ScriptedBook.key(entry.getPriceMantissa(), entry.getIntCount(), entry.getAmountMantissa())));
+        broker.getOrderbookManager().registerOrderbookSnapshotCallback(BOOK, (symbol, entries) -> snapshots.incrementAndGet());
+
+        broker.connect();
+    }
+
+    @After
+    public void tearDown() {
+        if (broker != null) {
+            broker.close();
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void duplicatesAreDroppedAndTheWinnerIsCounted() {
+        startStream();
+
+        final int[] winners = {0, 0, 1, 0, 0, 1, 0, 0, 1, 0};
+        for (final int winner : winners) {
+            final ScriptedBook.Step step = book.next();
+            final int loser = 1 - winner;
+            final long duplicates = arbiter().getDuplicates(loser);
+
+            deliver(winner, step);
+            sleep(LEAD_MILLIS);
+            feeds[loser].send(step);
+            await("duplicate on feed " + loser, () -> arbiter().getDuplicates(loser) == duplicates + 1);
+        }
+
+        final FeedArbiter arbiter = arbiter();
+        assertEquals(7, arbiter.getWins(0));
+        assertEquals(3, arbiter.getWins(1));
+        assertEquals(3, arbiter.getDuplicates(0));
+        assertEquals(7, arbiter.getDuplicates(1));
+        assertEquals(0.7, arbiter.getWinRate(0), 1e-9);
+        assertEquals(0.3, arbiter.getWinRate(1), 1e-9);
+
+        for (int feed = 0; feed < FeedArbiter.FEEDS; feed++) {
+            final long mean = arbiter.getMeanLeadNanos(feed);
+            assertTrue("mean lead of feed " + feed + ": " + mean, mean >= TimeUnit.MILLISECONDS.toNanos(LEAD_MILLIS));
+            assertTrue("mean lead of feed " + feed + ": " + mean, mean < TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS));
+            assertTrue("max lead of feed " + feed, arbiter.getMaxLeadNanos(feed) >= mean);
+        }
+
+        assertStreamIntact(1);
+    }
+
+    @Test
+    public void noGapWhenThePrimaryConnectionIsLost() {
+        loseConnection(0);
+    }
+
+    @Test
+    public void noGapWhenTheMirrorConnectionIsLost() {
+        loseConnection(1);
+    }
+
+    @Test
+    public void lateJoiningFeedIsAligned() {
+        subscribe();
+        accept(0);
+        feeds[0].sendSnapshot(book);
+        await("snapshot", () -> snapshots.get() == 1);
+
+        for (int i = 0; i < 12; i++) {
+            deliver(0, book.next());
+        }
+
+        // The mirror is subscribed while the book moves on, its snapshot is 12 entries ahead of the first one
+        accept(1);
+        feeds[1].sendSnapshot(book);
+        alignSecondFeed();
+
+        for (int i = 0; i < 3; i++) {
+            final ScriptedBook.Step step = book.next();
+            deliver(1, step);
+            feeds[0].send(step);
+        }
+        await("duplicates on feed 0", () -> arbiter().getDuplicates(0) == 3);
+
+        assertEquals(3, arbiter().getWins(1));
+        assertStreamIntact(1);
+    }
+
+    @Test
+    public void divergedFeedIsResubscribed() {
+        startStream();
+
+        final ScriptedBook.Step diverged = book.diverged();
+        final ScriptedBook.Step step = book.next();
+        final int channel = feeds[1].channel;
+        deliver(0, step);
+        feeds[1].send(diverged);
+        await("divergence of feed 1", () -> arbiter().getDivergences(1) == 1);
+
+        // Feed 1 never delivered, so only its channel is subscribed again
+        assertEquals(channel, feeds[1].awaitCommand("unsubscribe").get("chanId").getAsInt());
+        accept(1);
+        feeds[1].sendSnapshot(book);
+        alignSecondFeed();
+
+        assertEquals(0, arbiter().getDivergences(0));
+        assertStreamIntact(1);
+    }
+
+    @Test
+    public void divergedLeaderRestartsTheStream() {
+        startStream();
+
+        final ScriptedBook.Step led = book.next();
+        deliver(1, led);
+        feeds[0].send(led);
+        awaitPosition(0);
+
+        final ScriptedBook.Step diverged = book.diverged();
+        final ScriptedBook.Step step = book.next();
+        deliver(0, step);
+        feeds[1].send(diverged);
+        await("divergence of feed 1", () -> arbiter().getDivergences(1) == 1);
+
+        // Entries of feed 1 were delivered, the merged book starts over from a new snapshot
+        for (final ScriptedConnection feed : feeds) {
+            feed.awaitCommand("unsubscribe");
+        }
+        accept(0);
+        streamStart = book.keys.size();
+        feeds[0].sendSnapshot(book);
+        await("second snapshot", () -> snapshots.get() == 2);
+        accept(1);
+        feeds[1].sendSnapshot(book);
+        alignSecondFeed();
+
+        assertStreamIntact(2);
+    }
+
+    @Test
+    public void timedOutMirrorIsSubscribedAgain() {
+        broker.getSubscriptions().setTimeoutMillis(200);
+        broker.getSubscriptions().setRetryDelayMillis(500);
+        final MirrorSymbol mirror = new MirrorSymbol(BOOK);
+
+        subscribe();
+        accept(0);
+        feeds[0].sendSnapshot(book);
+        await("snapshot", () -> snapshots.get() == 1);
+
+        // The subscribed event of the mirror arrives after its subscription timed out
+        final JsonObject late = feeds[1].awaitCommand("subscribe");
+        await("timeout of the mirror", () -> !broker.getSubscriptions().isPending(mirror));
+        final int lateChannel = feeds[1].answer(late);
+        assertEquals(lateChannel, feeds[1].awaitCommand("unsubscribe").get("chanId").getAsInt());
+        assertEquals(-1, broker.getChannelForSymbol(mirror));
+
+        // The book still has a user, so the mirror is requested again
+        accept(1);
+        feeds[1].sendSnapshot(book);
+        alignSecondFeed();
+
+        assertStreamIntact(1);
+    }
+
+    @Test
+    public void lateUserIsSeededWithoutWaitingForAFrame() {
+        startStream();
+        deliver(0, book.next());
+
+        final List<String> seeded = Collections.synchronizedList(new ArrayList<>());
+        broker.getOrderbookManager().registerOrderbookSnapshotCallback(BOOK, (symbol, entries) -> {
+            for (final OrderbookEntry entry : entries) {
+                seeded.add(ScriptedBook.key(entry.getPriceMantissa(), entry.getIntCount(), entry.getAmountMantissa()));
+            }
+        });
+
+        // Neither feed sends anything, the book of the checksum mirror is delivered right away
+        await("seed", () -> !seeded.isEmpty());
+
+        final List<String> expected = book.levelKeys();
+        final List<String> actual = new ArrayList<>(seeded);
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertEquals(expected, actual);
+        assertStreamIntact(1);
+    }
+
+    /**
+     * The lost connection delivers an update first and closes, the other feed continues the stream
+     */
+    private void loseConnection(final int lost) {
+        startStream();
+        final int survivor = 1 - lost;
+
+        final ScriptedBook.Step step = book.next();
+        deliver(lost, step);
+        feeds[lost].drop();
+        final BitfinexConnection connection = broker.getConnectionForSymbol(lost == 0 ? BOOK : new MirrorSymbol(BOOK));
+        await("connection " + connection.getIndex() + " to close", () -> !connection.isConnected());
+
+        feeds[survivor].send(step);
+        await("duplicate on feed " + survivor, () -> arbiter().getDuplicates(survivor) == 1);
+
+        for (int i = 0; i < 5; i++) {
+            deliver(survivor, book.next());
+        }
+
+        assertEquals(5, arbiter().getWins(survivor));
+        assertTrue(arbiter().isDelivering(survivor));
+        assertFalse(feeds[survivor].hasCommands());
+        assertStreamIntact(1);
+    }
+
+    /**
+     * Subscribe both feeds at once and align the second one
+     */
+    private void startStream() {
+        subscribe();
+        accept(0);
+        accept(1);
+        feeds[0].sendSnapshot(book);
+        await("snapshot", () -> snapshots.get() == 1);
+        feeds[1].sendSnapshot(book);
+        alignSecondFeed();
+    }
+
+    private void subscribe() {
+        broker.getOrderbookManager().subscribeOrderbook(BOOK);
+
+        final ConnectionBalancer balancer = broker.getConnectionBalancer();
+        feeds[0] = connections[balancer.getConnection(BOOK)];
+        feeds[1] = connections[balancer.getConnection(new MirrorSymbol(BOOK))];
+    }
+
+    /**
+     * Answer the pending subscription of the feed and wait until its channel is routed
+     */
+    private void accept(final int feed) {
+        final int channel = feeds[feed].acceptSubscription();
+        final MirrorSymbol mirror = new MirrorSymbol(BOOK);
+        await("route of feed " + feed, () -> broker.getChannelForSymbol(feed == 0 ? BOOK : mirror) == channel);
+    }
+
+    /**
+     * A feed whose snapshot is not delivered has no position in the merged book until it matches
+     * the checksums of a few updates. Both feeds send them, feed 0 first. The statistics are reset
+     * once the feed has handled all of them.
+     */
+    private void alignSecondFeed() {
+        for (int i = 0; i < ALIGN_STEPS; i++) {
+            final ScriptedBook.Step step = book.next();
+            deliver(0, step);
+            feeds[1].send(step);
+        }
+        awaitPosition(1);
+
+        arbiter().resetStatistics();
+    }
+
+    /**
+     * Wait until the feed has handled every update of the merged stream
+     */
+    private void awaitPosition(final int feed) {
+        await("position of feed " + feed, () -> arbiter().getPosition(feed) == book.keys.size() - streamStart);
+    }
+
+    /**
+     * Send an update the merged stream has not seen on the feed and wait for its delivery
+     */
+    private void deliver(final int feed, final ScriptedBook.Step step) {
+        final int count = delivered.size();
+        feeds[feed].send(step);
+        await("delivery of " + step.key + " from feed " + feed, () -> delivered.size() == count + 1);
+    }
+
+    /**
+     * Every update delivered once and in order, checksums of the merged book matched
+     */
+    private void assertStreamIntact(final int expectedSnapshots) {
+        assertEquals(book.keys, new ArrayList<>(delivered));
+        assertEquals(expectedSnapshots, snapshots.get());
+        for (final ScriptedConnection connection : connections) {
+            assertFalse("unexpected resubscription", connection.hasCommands());
+        }
+    }
+
+    private FeedArbiter arbiter() {
+        final FeedArbiter arbiter = broker.getFeedArbiter(BOOK);
+        assertNotNull(arbiter);
+        return arbiter;
+    }
+
+    private static void await(final String what, final BooleanSupplier condition) {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting for " + what);
+            }
+            sleep(1);
+        }
+    }
+
+    private static void sleep(final long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @ServerEndpoint("/ws/{connection}")
+    public static class ScriptedEndpoint {
+
+        @OnOpen
+        public void onOpen(final Session session, @PathParam("connection") final int connection) {
+            connections[connection].open(session);
+        }
+
+        @OnMessage
+        public void onMessage(final String message, @PathParam("connection") final int connection) {
+            connections[connection].onCommand(new JsonParser().parse(message).getAsJsonObject());
+        }
+    }
+
+    /**
+     * Server side of one connection. Subscriptions are answered when the test accepts them,
+     * frames are sent in the order of the calls.
+     */
+    private static final class ScriptedConnection {
+
+        private volatile Session session;
+
+        /**
+         * Subscribe and unsubscribe requests the test has not looked at yet
+         */
+        private final BlockingQueue<JsonObject> commands = new LinkedBlockingQueue<>();
+
+        private volatile int channel;
+
+        void open(final Session session) {
+            this.session = session;
+        }
+
+        void onCommand(final JsonObject command) {
+            final String event = command.get("event").getAsString();
+
+            if ("conf".equals(event)) {
+                send("{\"event\":\"conf\",\"status\":\"OK\"}");
+                return;
+            }
+
+            if ("unsubscribe".equals(event)) {
+                final JsonObject reply = new JsonObject();
+                reply.addProperty("event", "unsubscribed");
+                reply.addProperty("status", "OK");
+                reply.add("chanId", command.get("chanId"));
+                send(reply.toString());
+            }
+
+            commands.add(command);
+        }
+
+        JsonObject awaitCommand(final String event) {
+            try {
+                final JsonObject command = commands.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                assertNotNull("Timed out waiting for " + event, command);
+                assertEquals(event, command.get("event").getAsString());
+                return command;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+
+        boolean hasCommands() {
+            return !commands.isEmpty();
+        }
+
+        /**
+         * @return the channel id of the subscription
+         */
+        int acceptSubscription() {
+            return answer(awaitCommand("subscribe"));
+        }
+
+        /**
+         * Send the subscribed event of a request
+         *
+         * @return the channel id of the subscription
+         */
+        int answer(final JsonObject request) {
+            channel = NEXT_CHANNEL.incrementAndGet();
+
+            final JsonObject reply = new JsonObject();
+            reply.addProperty("event", "subscribed");
+            reply.addProperty("chanId", channel);
+            for (final String field : new String[]{"channel", "symbol", "prec", "freq", "len", "subId"}) {
+                reply.add(field, request.get(field));
+            }
+            send(reply.toString());
+            return channel;
+        }
+
+        void sendSnapshot(final ScriptedBook book) {
+            send("[" + channel + "," + book.snapshot() + "]");
+        }
+
+        void send(final ScriptedBook.Step step) {
+            send("[" + channel + "," + step.entry + "]");
+            send("[" + channel + ",\"cs\"," + step.checksum + "]");
+        }
+
+        synchronized void send(final String frame) {
+            try {
+                session.getBasicRemote().sendText(frame);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        synchronized void drop() {
+            try {
+                session.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * The book both feeds send: 10 bid levels below 7000 and 10 ask levels above. Every update
+     * changes one of the levels, so every checksum differs from the one before.
+     */
+    private static final class ScriptedBook {
+
+        private static final int PRICE_SCALE = BitfinexCurrencyPair.BTC_USD.getPriceScale();
+
+        private static final int AMOUNT_SCALE = BitfinexCurrencyPair.BTC_USD.getAmountScale();
+
+        /**
+         * Price -> {count, amount in cents}, asks have negative amounts
+         */
+        private final TreeMap<Integer, long[]> levels = new TreeMap<>();
+
+        /**
+         * Keys of the updates in the order they were made
+         */
+        private final List<String> keys = new ArrayList<>();
+
+        private int steps;
+
+        ScriptedBook() {
+            for (int i = 0; i < 10; i++) {
+                levels.put(6990 + i, new long[]{1 + i % 3, 10 * (i + 1)});
+                levels.put(7001 + i, new long[]{1 + i % 3, -10 * (i + 1)});
+            }
+        }
+
+        static final class Step {
+
+            private final String entry;
+
+            private final int checksum;
+
+            private final String key;
+
+            private Step(final String entry, final int checksum, final String key) {
+                this.entry = entry;
+                this.checksum = checksum;
+                this.key = key;
+            }
+        }
+
+        static String key(final long priceMantissa, final int count, final long amountMantissa) {
+            return priceMantissa + ":" + count + ":" + amountMantissa;
+        }
+
+        /**
+         * Keys of the current levels, in price order
+         */
+        List<String> levelKeys() {
+            final List<String> levelKeys = new ArrayList<>();
+            for (final Map.Entry<Integer, long[]> level : levels.entrySet()) {
+                levelKeys.add(key(price(level.getKey()), (int) level.getValue()[0], amount(level.getValue()[1])));
+            }
+            return levelKeys;
+        }
+
+        String snapshot() {
+            final StringBuilder sb = new StringBuilder("[");
+            for (final Map.Entry<Integer, long[]> level : levels.entrySet()) {
+                if (sb.length() > 1) {
+                    sb.append(',');
+                }
+                sb.append(entry(level.getKey(), (int) level.getValue()[0], level.getValue()[1]));
+            }
+            return sb.append(']').toString();
+        }
+
+        /**
+         * Apply the next update, every fifth one removes a level
+         */
+        Step next() {
+            final int step = steps++;
+            final Step update = update(levels, step, 0);
+            keys.add(update.key);
+            return update;
+        }
+
+        /**
+         * The next update with another amount, as a feed that lost track of the book would send it
+         */
+        Step diverged() {
+            return update(new TreeMap<>(levels), steps, 1);
+        }
+
+        private static Step update(final TreeMap<Integer, long[]> levels, final int step, final long skew) {
+            final boolean bid = step % 2 == 0;
+            final int price = bid ? 6990 + step * 7 % 10 : 7001 + step * 3 % 10;
+            final int count = step % 5 == 4 && skew == 0 ? 0 : 1 + step % 3;
+            // Removed levels carry an amount of 1 for bids and -1 for asks
+            final long cents = count == 0 ? 100 : 11 + step + skew;
+            final long amount = bid ? cents : -cents;
+
+            if (count == 0) {
+                levels.remove(price);
+            } else {
+                levels.put(price, new long[]{count, amount});
+            }
+
+            return new Step(entry(price, count, amount), checksum(levels),
+                    key(price(price), count, amount(amount)));
+        }
+
+        private static int checksum(final TreeMap<Integer, long[]> levels) {
+            final AggregatedBookChecksum checksum = new AggregatedBookChecksum(PRICE_SCALE, AMOUNT_SCALE);
+            for (final Map.Entry<Integer, long[]> level : levels.entrySet()) {
+                checksum.apply(price(level.getKey()), (int) level.getValue()[0], amount(level.getValue()[1]));
+            }
+            return checksum.compute();
+        }
+
+        private static String entry(final int price, final int count, final long cents) {
+            return "[" + price + "," + count + "," + BigDecimal.valueOf(cents, 2).toPlainString() + "]";
+        }
+
+        private static long price(final int price) {
+            return BigDecimal.valueOf(price).movePointRight(PRICE_SCALE).longValueExact();
+        }
+
+        private static long amount(final long cents) {
+            return BigDecimal.valueOf(cents, 2).movePointRight(AMOUNT_SCALE).longValueExact();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package bitfinex.entity;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Mantissas at the scales of the pairs must hold every digit Bitfinex sends, values that do not fit are rejected.
+ */
+public class FixedPointTest {
+
+    @Test
+    public void smallPricesOfCryptoPairsKeepAllDigits() {
+        int scale = BitfinexCurrencyPair.TRX_BTC.getPriceScale();
+        BigDecimal price = new BigDecimal("0.000012345");
+
+        long mantissa = FixedPoint.fromBigDecimal(price, scale);
+        assertEquals(0, price.compareTo(FixedPoint.toBigDecimal(mantissa, scale)));
+        assertEquals(mantissa, FixedPoint.rescaleExact(12345, 9, scale));
+
+        // Five significant digits down to 1e-8 BTC
+        assertEquals(12345, FixedPoint.fromBigDecimal(new BigDecimal("1.2345e-8"), scale));
+    }
+
+    @Test
+    public void trailingZerosAreNotDigits() {
+        assertEquals(123, FixedPoint.rescaleExact(12300, 4, 2));
+        assertEquals(123, FixedPoint.fromBigDecimal(new BigDecimal("1.2300000000"), 2));
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void rescaleRejectsLostDigits() {
+        FixedPoint.rescaleExact(12345, 9, 8);
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void fromBigDecimalRejectsLostDigits() {
+        FixedPoint.fromBigDecimal(new BigDecimal("0.000000001"), BitfinexCurrencyPair.BTC_USD.getAmountScale());
+    }
+}
@@ -0,0 +1,168 @@
+/*******************************************************************************
+ *
+ *    Copyright (C) 2015-2018 Jan Kristof Nidzwetzki
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License. 
+ *
+ *******************************************************************************/
+package bitfinex.manager;
+
+import bitfinex.entity.APIException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * A receive thread dispatches events of a symbol while a UI thread registers and removes
+ * callbacks of the same symbol. The copy-on-write {@link BiConsumerCallbackManager} is
+ * measured against the list guarded by a lock it replaced, which held the lock during
+ * the whole dispatch. The dispatch-only groups show the cost without contention.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CallbackContentionBenchmark {
+
+    private final static String SYMBOL = "tBTCUSD";
+
+    @Param({"1", "4"})
+    private int callbacks;
+
+    private BiConsumerCallbackManager<String, Long> copyOnWrite;
+
+    private BiConsumerCallbackManager.SymbolCallbacks<String, Long> boundCallbacks;
+
+    private LockedCallbackManager<String, Long> locked;
+
+    private final BiConsumer<String, Long> churnCallback = (symbol, element) -> sink(element);
+
+    private volatile long sink;
+
+    /**
+     * The callback registry before it was made copy-on-write
+     */
+    private final static class LockedCallbackManager<S, T> {
+
+        private final Map<S, List<BiConsumer<S, T>>> callbacks = new HashMap<>();
+
+        void registerCallback(final S symbol, final BiConsumer<S, T> callback) {
+            callbacks.putIfAbsent(symbol, new ArrayList<>());
+
+            final List<BiConsumer<S, T>> callbackList = callbacks.get(symbol);
+
+            synchronized (callbackList) {
+                callbackList.add(callback);
+            }
+        }
+
+        boolean removeCallback(final S symbol, final BiConsumer<S, T> callback) {
+            final List<BiConsumer<S, T>> callbackList = callbacks.get(symbol);
+
+            synchronized (callbackList) {
+                return callbackList.remove(callback);
+            }
+        }
+
+        void handleEvent(final S symbol, final T element) {
+            final List<BiConsumer<S, T>> callbackList = callbacks.get(symbol);
+
+            if (callbackList == null) {
+                return;
+            }
+
+            synchronized (callbackList) {
+                callbackList.forEach((c) -> c.accept(symbol, element));
+            }
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        copyOnWrite = new BiConsumerCallbackManager<>();
+        locked = new LockedCallbackManager<>();
+
+        for (int i = 0; i < callbacks; i++) {
+            final BiConsumer<String, Long> callback = (symbol, element) -> sink(element);
+            copyOnWrite.registerCallback(SYMBOL, callback);
+            locked.registerCallback(SYMBOL, callback);
+        }
+
+        boundCallbacks = copyOnWrite.getCallbacks(SYMBOL);
+    }
+
+    private void sink(final Long element) {
+        sink = element;
+    }
+
+    @Benchmark
+    @Group("copyOnWriteContended")
+    @GroupThreads(1)
+    public void copyOnWriteDispatch() {
+        boundCallbacks.handleEvent(1L);
+    }
+
+    @Benchmark
+    @Group("copyOnWriteContended")
+    @GroupThreads(1)
+    public void copyOnWriteRegister() throws APIException {
+        copyOnWrite.registerCallback(SYMBOL, churnCallback);
+        copyOnWrite.removeCallback(SYMBOL, churnCallback);
+    }
+
+    @Benchmark
+    @Group("lockedContended")
+    @GroupThreads(1)
+    public void lockedDispatch() {
+        locked.handleEvent(SYMBOL, 1L);
+    }
+
+    @Benchmark
+    @Group("lockedContended")
+    @GroupThreads(1)
+    public void lockedRegister() {
+        locked.registerCallback(SYMBOL, churnCallback);
+        locked.removeCallback(SYMBOL, churnCallback);
+    }
+
+    @Benchmark
+    @Group("copyOnWriteDispatchOnly")
+    public void copyOnWriteDispatchOnly() {
+        boundCallbacks.handleEvent(1L);
+    }
+
+    @Benchmark
+    @Group("lockedDispatchOnly")
+    public void lockedDispatchOnly() {
+        locked.handleEvent(SYMBOL, 1L);
+    }
+}
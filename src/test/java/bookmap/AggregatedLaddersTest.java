@@ -0,0 +1,132 @@
+package bookmap;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Random order flow through an {@link OrderByOrderEngine}: every view, including the ones added
+ * mid-stream, must hold and deliver the fine book bucketed at its multiple.
+ */
+public class AggregatedLaddersTest {
+
+    private static final int STEPS = 50_000;
+
+    private static final int ORDER_IDS = 3000;
+
+    private static final int[] MULTIPLES = {1, 10, 7};
+
+    /**
+     * Bids are placed below this price, asks at and above it
+     */
+    private static final int MID = 10_000;
+
+    @Test
+    public void viewsFollowTheFineBook() {
+        Random random = new Random(3);
+        OrderByOrderEngine engine = new OrderByOrderEngine();
+        AggregatedLadders ladders = new AggregatedLadders();
+
+        List<AggregatedLadders.View> views = new ArrayList<>();
+        List<DepthAccumulator> accumulators = new ArrayList<>();
+        List<Map<Long, Long>> delivered = new ArrayList<>();
+
+        for (int step = 0; step < STEPS; step++) {
+            if (step == STEPS / 40 || step == STEPS / 2) {
+                for (int multiple : MULTIPLES) {
+                    DepthAccumulator accumulator = new DepthAccumulator();
+                    accumulators.add(accumulator);
+                    delivered.add(new HashMap<>());
+                    views.add(ladders.addView(multiple, accumulator, engine));
+                }
+            }
+
+            int operation = random.nextInt(10);
+            long orderId = 1 + random.nextInt(ORDER_IDS);
+            if (operation < 6) {
+                boolean isBid = random.nextBoolean();
+                int price = isBid ? MID - 1 - random.nextInt(1000) : MID + random.nextInt(1000);
+                engine.addOrder(orderId, isBid, price, 1 + random.nextInt(100), ladders);
+            } else if (operation < 9) {
+                engine.cancelOrder(orderId, ladders);
+            } else {
+                applySnapshot(engine, ladders, random);
+            }
+
+            for (int i = 0; i < accumulators.size(); i++) {
+                Map<Long, Long> levels = delivered.get(i);
+                accumulators.get(i).flush((isBid, price, size) -> {
+                    if (size == 0) {
+                        levels.remove(key(isBid, price));
+                    } else {
+                        levels.put(key(isBid, price), size);
+                    }
+                });
+            }
+        }
+
+        assertEquals(2 * MULTIPLES.length, views.size());
+        for (int i = 0; i < views.size(); i++) {
+            AggregatedLadders.View view = views.get(i);
+            Map<Long, Long> expected = bucketed(engine, view.getMultiple());
+
+            Map<Long, Long> held = new HashMap<>();
+            for (boolean isBid : new boolean[]{true, false}) {
+                view.getLevels(isBid).forEach((price, size) -> held.put(key(isBid, price), size));
+            }
+
+            assertEquals("ladders of view " + i + " x" + view.getMultiple(), expected, held);
+            assertEquals("levels delivered by view " + i + " x" + view.getMultiple(), expected, delivered.get(i));
+        }
+    }
+
+    @Test
+    public void bucketsRoundBidsDownAndAsksUp() {
+        assertEquals(12, AggregatedLadders.bucket(125, 10, true));
+        assertEquals(13, AggregatedLadders.bucket(125, 10, false));
+        assertEquals(12, AggregatedLadders.bucket(120, 10, false));
+        assertEquals(-13, AggregatedLadders.bucket(-125, 10, true));
+        assertEquals(-12, AggregatedLadders.bucket(-125, 10, false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void multipleMustBePositive() {
+        new AggregatedLadders().addView(0, new DepthAccumulator(), new OrderByOrderEngine());
+    }
+
+    /**
+     * Keeps most of the orders, drops the rest and resizes some of the kept ones
+     */
+    private static void applySnapshot(OrderByOrderEngine engine, AggregatedLadders ladders, Random random) {
+        engine.beginSnapshot();
+        for (long orderId = 1; orderId <= ORDER_IDS; orderId++) {
+            if (engine.hasOrder(orderId) && random.nextInt(10) > 0) {
+                int price = engine.getPrice(orderId);
+                int size = random.nextInt(5) == 0 ? 1 + random.nextInt(100) : engine.getSize(orderId);
+                engine.applySnapshotOrder(orderId, price < MID, price, size);
+            }
+        }
+        engine.endSnapshot(ladders);
+    }
+
+    private static Map<Long, Long> bucketed(OrderByOrderEngine engine, int multiple) {
+        Map<Long, Long> levels = new HashMap<>();
+        for (boolean isBid : new boolean[]{true, false}) {
+            for (int price : engine.levels(isBid, true)) {
+                levels.merge(key(isBid, AggregatedLadders.bucket(price, multiple, isBid)),
+                        engine.getLevelSize(isBid, price), Long::sum);
+            }
+        }
+        return levels;
+    }
+
+    private static long key(boolean isBid, int price) {
+        return (isBid ? 1L << 32 : 0) | (price & 0xffffffffL);
+    }
+}
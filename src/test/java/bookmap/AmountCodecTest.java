@@ -0,0 +1,63 @@
+package bookmap;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Random amounts converted by the codec must equal the truncated, clamped BigDecimal product.
+ */
+public class AmountCodecTest {
+
+    private static final int AMOUNTS = 200_000;
+
+    private static final int[] MULTIPLIERS = {1, 7, 10, 10_000, 100_000_000};
+
+    @Test
+    public void toSizeIsTheTruncatedAbsoluteProduct() {
+        Random random = new Random(1);
+
+        for (int multiplier : MULTIPLIERS) {
+            AmountCodec codec = new AmountCodec(multiplier);
+
+            for (int i = 0; i < AMOUNTS; i++) {
+                int scale = random.nextInt(30) - 5;
+                long mantissa = random.nextLong() >> random.nextInt(64);
+
+                assertEquals(multiplier + " x " + BigDecimal.valueOf(mantissa, scale),
+                        expectedSize(mantissa, scale, multiplier), codec.toSize(mantissa, scale));
+            }
+        }
+    }
+
+    @Test
+    public void sizesBeyondTheIntRangeAreClamped() {
+        AmountCodec codec = new AmountCodec(100_000_000);
+
+        assertEquals(Integer.MAX_VALUE, codec.toSize(Long.MAX_VALUE, 0));
+        assertEquals(Integer.MAX_VALUE, codec.toSize(Long.MIN_VALUE, 8));
+        assertEquals(Integer.MAX_VALUE, codec.toSize(Long.MAX_VALUE, -3));
+        assertEquals(Integer.MAX_VALUE, codec.toSize(-22, 0));
+        assertEquals(2_147_483_646, codec.toSize(2_147_483_646, 8));
+        assertEquals(Integer.MAX_VALUE, codec.toSize(2_147_483_648L, 8));
+    }
+
+    @Test
+    public void fractionsOfTheSmallestSizeAreTruncated() {
+        AmountCodec codec = new AmountCodec(10_000);
+
+        assertEquals(0, codec.toSize(99_999, 9));
+        assertEquals(1, codec.toSize(100_000, 9));
+        assertEquals(1, codec.toSize(-199_999, 9));
+        assertEquals(12_345, codec.toSize(123_456, 5));
+    }
+
+    private static int expectedSize(long mantissa, int scale, int multiplier) {
+        BigDecimal size = new BigDecimal(BigInteger.valueOf(mantissa).abs(), scale).multiply(BigDecimal.valueOf(multiplier));
+        return size.min(BigDecimal.valueOf(Integer.MAX_VALUE)).intValue();
+    }
+}
@@ -0,0 +1,173 @@
+package bookmap;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * A random walk of the book: the levels delivered through the window must equal the window
+ * computed from a TreeMap copy of the book.
+ */
+public class DepthWindowTest {
+
+    private static final int FRAMES = 20_000;
+
+    private static final int SEEDS = 3;
+
+    /**
+     * Frames between two comparisons with the expected window
+     */
+    private static final int CHECK_EVERY = 20;
+
+    @Test
+    public void levelsWindowFollowsTheBook() {
+        for (int seed = 0; seed < SEEDS; seed++) {
+            Random random = new Random(seed);
+            int levels = 1 + random.nextInt(20);
+            run(random, DepthWindow.Limit.levels(levels), (bids, asks) -> {
+                Map<Long, Long> window = new HashMap<>();
+                bids.descendingMap().entrySet().stream().limit(levels)
+                        .forEach(level -> window.put(key(true, level.getKey()), level.getValue()));
+                asks.entrySet().stream().limit(levels)
+                        .forEach(level -> window.put(key(false, level.getKey()), level.getValue()));
+                return window;
+            });
+        }
+    }
+
+    @Test
+    public void percentWindowFollowsTheBook() {
+        for (int seed = 0; seed < SEEDS; seed++) {
+            Random random = new Random(seed);
+            double percent = 0.5 + random.nextDouble() * 3;
+            run(random, DepthWindow.Limit.percentFromMid(percent), (bids, asks) -> {
+                Map<Long, Long> window = new HashMap<>();
+                if (bids.isEmpty() && asks.isEmpty()) {
+                    return window;
+                }
+                double mid = bids.isEmpty() ? asks.firstKey()
+                        : asks.isEmpty() ? bids.lastKey()
+                        : (bids.lastKey() + (double) asks.firstKey()) / 2;
+                bids.tailMap((int) Math.ceil(mid * (1 - percent / 100)), true)
+                        .forEach((price, size) -> window.put(key(true, price), size));
+                asks.headMap((int) Math.floor(mid * (1 + percent / 100)), true)
+                        .forEach((price, size) -> window.put(key(false, price), size));
+                return window;
+            });
+        }
+    }
+
+    @Test
+    public void withoutLimitEveryLevelIsPassedOn() {
+        List<Long> passed = new ArrayList<>();
+        DepthWindow window = new DepthWindow(DepthWindow.Limit.NONE, new PriceLadder(true), new PriceLadder(false),
+                (isBid, price, size) -> passed.add(size));
+
+        window.onLevel(true, 100, 5);
+        window.onLevel(false, 1_000_000, 7);
+        window.update();
+        window.onLevel(true, 100, 0);
+
+        assertEquals(3, passed.size());
+    }
+
+    @Test
+    public void ladderFindsTheNthBestAndTheLevelsInARange() {
+        Random random = new Random(7);
+        for (boolean isBid : new boolean[]{true, false}) {
+            PriceLadder ladder = new PriceLadder(isBid);
+            TreeMap<Integer, Long> book = new TreeMap<>();
+            int center = 500_000;
+
+            for (int i = 0; i < 200_000; i++) {
+                if (i % 20_000 == 0) {
+                    center += random.nextInt(40_001) - 20_000;
+                }
+                int price = center + random.nextInt(600) - 300;
+                long size = random.nextInt(3) == 0 ? 0 : 1 + random.nextInt(9);
+                ladder.set(price, size);
+                if (size == 0) {
+                    book.remove(price);
+                } else {
+                    book.put(price, size);
+                }
+
+                if (i % 500 == 0) {
+                    List<Integer> best = new ArrayList<>(isBid ? book.descendingKeySet() : book.navigableKeySet());
+                    int n = 1 + random.nextInt(best.size() + 10);
+                    assertEquals("best " + n, n <= best.size() ? best.get(n - 1) : PriceLadder.NO_PRICE, ladder.getNthBest(n));
+
+                    int from = center - random.nextInt(800);
+                    int to = from + random.nextInt(1000);
+                    Map<Integer, Long> between = new TreeMap<>();
+                    ladder.forEachBetween(from, to, between::put);
+                    assertEquals(from + ".." + to, book.subMap(from, true, to, true), between);
+                }
+            }
+        }
+    }
+
+    private interface ExpectedWindow {
+        Map<Long, Long> of(TreeMap<Integer, Long> bids, TreeMap<Integer, Long> asks);
+    }
+
+    /**
+     * Moves the mid price randomly and changes a few levels on each side of it per frame
+     */
+    private static void run(Random random, DepthWindow.Limit limit, ExpectedWindow expected) {
+        PriceLadder bids = new PriceLadder(true);
+        PriceLadder asks = new PriceLadder(false);
+        TreeMap<Integer, Long> bookBids = new TreeMap<>();
+        TreeMap<Integer, Long> bookAsks = new TreeMap<>();
+
+        Map<Long, Long> delivered = new HashMap<>();
+        DepthWindow window = new DepthWindow(limit, bids, asks, (isBid, price, size) -> {
+            if (size == 0) {
+                assertNotNull("cleared a level that was not delivered: " + price, delivered.remove(key(isBid, price)));
+            } else {
+                delivered.put(key(isBid, price), size);
+            }
+        });
+
+        int mid = 100_000;
+        for (int frame = 0; frame < FRAMES; frame++) {
+            mid += random.nextInt(41) - 20;
+
+            for (int changes = 1 + random.nextInt(5); changes > 0; changes--) {
+                boolean isBid = random.nextBoolean();
+                int price = isBid ? mid - 1 - random.nextInt(3000) : mid + 1 + random.nextInt(3000);
+                if (isBid ? asks.getBest() != PriceLadder.NO_PRICE && price >= asks.getBest()
+                        : bids.getBest() != PriceLadder.NO_PRICE && price <= bids.getBest()) {
+                    continue;
+                }
+
+                long size = random.nextInt(3) == 0 ? 0 : 1 + random.nextInt(50);
+                (isBid ? bids : asks).set(price, size);
+                TreeMap<Integer, Long> book = isBid ? bookBids : bookAsks;
+                if (size == 0) {
+                    book.remove(price);
+                } else {
+                    book.put(price, size);
+                }
+                window.onLevel(isBid, price, size);
+            }
+            window.update();
+
+            if (frame % CHECK_EVERY == 0) {
+                assertEquals(limit + ", frame " + frame, expected.of(bookBids, bookAsks), delivered);
+            }
+        }
+    }
+
+    private static long key(boolean isBid, int price) {
+        return (isBid ? 1L << 32 : 0) | (price & 0xffffffffL);
+    }
+}
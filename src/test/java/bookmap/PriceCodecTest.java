@@ -0,0 +1,171 @@
+package bookmap;
+
+import bitfinex.entity.BitfinexCurrencyPair;
+import bitfinex.entity.OrderBookPrecision;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Random prices converted by the codec and by {@link PriceConverter} or BigDecimal must agree.
+ */
+public class PriceCodecTest {
+
+    private static final int PRICES = 50_000;
+
+    private static final BitfinexCurrencyPair[] PAIRS = {BitfinexCurrencyPair.BTC_USD, BitfinexCurrencyPair.IOT_USD};
+
+    @Test
+    public void toIndexTruncatesLikePriceConverter() {
+        Random random = new Random(1);
+        forEachStepBelowTen((pair, precision, codec, step) -> {
+            for (int i = 0; i < PRICES; i++) {
+                long mantissa = randomMantissa(random);
+                int scale = random.nextInt(12);
+                BigDecimal index = BigDecimal.valueOf(mantissa, scale).divide(step, 0, RoundingMode.DOWN);
+                if (!fitsInt(index)) {
+                    continue;
+                }
+
+                String message = pair + " " + precision + " " + BigDecimal.valueOf(mantissa, scale);
+                assertEquals(message, index.intValue(), codec.toIndex(mantissa, scale));
+                assertEquals(message, PriceConverter.convertToInteger(pair, precision, mantissa, scale), codec.toIndex(mantissa, scale));
+            }
+        });
+    }
+
+    @Test
+    public void toIndexRoundsSidesLikePriceConverter() {
+        Random random = new Random(2);
+        forEachStepBelowTen((pair, precision, codec, step) -> {
+            for (int i = 0; i < PRICES; i++) {
+                long mantissa = randomMantissa(random);
+                int scale = random.nextInt(12);
+                boolean isBid = random.nextBoolean();
+                BigDecimal price = BigDecimal.valueOf(mantissa, scale);
+                BigDecimal index = price.abs().divide(step, 0, isBid ? RoundingMode.FLOOR : RoundingMode.CEILING);
+                if (!fitsInt(index)) {
+                    continue;
+                }
+
+                String message = pair + " " + precision + " " + price + (isBid ? " bid" : " ask");
+                assertEquals(message, index.intValue(), codec.toIndex(mantissa, scale, isBid));
+                assertEquals(message, PriceConverter.roundToInteger(pair, precision, mantissa, scale, isBid),
+                        codec.toIndex(mantissa, scale, isBid));
+                assertEquals(message, index.intValue(), codec.toIndex(price.toPlainString(), isBid));
+            }
+        });
+    }
+
+    @Test
+    public void toDoubleIsCorrectlyRounded() {
+        Random random = new Random(3);
+        forEachStepBelowTen((pair, precision, codec, step) -> {
+            for (int i = 0; i < PRICES; i++) {
+                long mantissa = randomMantissa(random);
+                int scale = random.nextInt(12);
+                BigDecimal price = BigDecimal.valueOf(mantissa, scale);
+
+                String message = pair + " " + precision + " " + price;
+                assertEquals(message, price.divide(step, MathContext.DECIMAL128).doubleValue(), codec.toDouble(mantissa, scale), 0);
+                assertEquals(message, PriceConverter.convertToDouble(pair, precision, mantissa, scale), codec.toDouble(mantissa, scale), 0);
+            }
+        });
+    }
+
+    /**
+     * Scales and mantissas outside the precomputed factors take the BigDecimal path
+     */
+    @Test
+    public void uncoveredPricesFallBackToBigDecimal() {
+        Random random = new Random(4);
+        PriceCodec codec = new PriceCodec(0.0001);
+        BigDecimal step = new BigDecimal("0.0001");
+
+        for (int i = 0; i < PRICES; i++) {
+            long mantissa = random.nextLong() >> random.nextInt(64);
+            int scale = random.nextInt(50) - 20;
+            boolean isBid = random.nextBoolean();
+            BigDecimal price = BigDecimal.valueOf(mantissa, scale);
+
+            String message = price.toPlainString();
+            assertEquals(message, price.divide(step, MathContext.DECIMAL128).doubleValue(), codec.toDouble(mantissa, scale), 0);
+
+            BigDecimal truncated = price.divide(step, 0, RoundingMode.DOWN);
+            BigDecimal rounded = price.abs().divide(step, 0, isBid ? RoundingMode.FLOOR : RoundingMode.CEILING);
+            if (!fitsInt(truncated) || !fitsInt(rounded)) {
+                continue;
+            }
+
+            assertEquals(message, truncated.intValue(), codec.toIndex(mantissa, scale));
+            assertEquals(message, rounded.intValue(), codec.toIndex(mantissa, scale, isBid));
+            assertEquals(message, rounded.intValue(), codec.toIndex(price.toPlainString(), isBid));
+        }
+    }
+
+    @Test
+    public void textInOtherNotationsIsParsedByBigDecimal() {
+        PriceCodec codec = new PriceCodec(0.1);
+
+        assertEquals(15000, codec.toIndex("1.5E+3", true));
+        assertEquals(15000, codec.toIndex("-1.5e3", false));
+        assertEquals(12345, codec.toIndex("1234.5000000000000000001", true));
+        assertEquals(12346, codec.toIndex("1234.5000000000000000001", false));
+    }
+
+    /**
+     * For steps of 10 and more PriceConverter multiplies by round(1 / step), which is 0,
+     * the codec divides by the step instead
+     */
+    @Test
+    public void stepsOfTenAndMoreDivideByTheStep() {
+        PriceCodec ten = PriceCodec.of(BitfinexCurrencyPair.BTC_USD, OrderBookPrecision.P2);
+        PriceCodec hundred = PriceCodec.of(BitfinexCurrencyPair.BTC_USD, OrderBookPrecision.P3);
+
+        assertEquals(0, PriceConverter.convertToInteger(BitfinexCurrencyPair.BTC_USD, OrderBookPrecision.P2, 6543_21, 2));
+        assertEquals(0, PriceConverter.convertToDouble(BitfinexCurrencyPair.BTC_USD, OrderBookPrecision.P2, 6543_21, 2), 0);
+
+        assertEquals(654, ten.toIndex(6543_21, 2));
+        assertEquals(654, ten.toIndex(6543_21, 2, true));
+        assertEquals(655, ten.toIndex(6543_21, 2, false));
+        assertEquals(655, ten.toIndex("6543.21", false));
+        assertEquals(654.321, ten.toDouble(6543_21, 2), 0);
+
+        assertEquals(65, hundred.toIndex(6543_21, 2));
+        assertEquals(65, hundred.toIndex(6543_21, 2, true));
+        assertEquals(66, hundred.toIndex(6543_21, 2, false));
+        assertEquals(65.4321, hundred.toDouble(6543_21, 2), 0);
+    }
+
+    private interface StepCheck {
+        void run(BitfinexCurrencyPair pair, OrderBookPrecision precision, PriceCodec codec, BigDecimal step);
+    }
+
+    /**
+     * The pairs and precisions for which the codec and PriceConverter are meant to agree
+     */
+    private static void forEachStepBelowTen(StepCheck check) {
+        for (BitfinexCurrencyPair pair : PAIRS) {
+            for (OrderBookPrecision precision : OrderBookPrecision.values()) {
+                double step = PriceConverter.getPriceStep(pair, precision);
+                if (step < 10) {
+                    check.run(pair, precision, PriceCodec.of(pair, precision), BigDecimal.valueOf(step));
+                }
+            }
+        }
+    }
+
+    private static long randomMantissa(Random random) {
+        long mantissa = (long) (random.nextDouble() * Math.pow(10, 1 + random.nextInt(12)));
+        return random.nextBoolean() ? mantissa : -mantissa;
+    }
+
+    private static boolean fitsInt(BigDecimal index) {
+        return index.abs().compareTo(BigDecimal.valueOf(Integer.MAX_VALUE)) <= 0;
+    }
+}